@@ -1,17 +1,40 @@
 package com.acertainbookstore.business;
 
+import com.acertainbookstore.utils.BookStoreUtility;
+import com.acertainbookstore.utils.StripedCounter;
+
 /**
  * The implementation of all parts of the book. Only parts of it are available
  * in the BookStoreClient and StockManager, cf. the Book interface and the
  * StockBook interface.
  * 
+ * The stock of a book can be read without locking it, like a seqlock: every
+ * change makes the stamp of the book odd while it is in progress, and even
+ * again once it is done. A reader copies the fields between two reads of the
+ * stamp, and only keeps the copy if the stamp was even and unchanged, so it
+ * never writes shared state, and only retries when a write overlapped. The
+ * changes of a book must be serialized by its callers, as the stamp only
+ * tells readers about them.
+ * 
+ * The statistics of a book, its sale misses and ratings, are kept apart in
+ * StripedCounters, which any number of threads can add to at once, so they
+ * can be updated while the book is only locked for reading. The total
+ * rating and the number of ratings share one counter, so that no copy ever
+ * sees a rating half added.
+ * 
  */
 public class BookStoreBook extends ImmutableBook {
-	private int numCopies;
-	private long totalRating;
-	private long timesRated;
-	private long saleMisses;
-	private boolean editorPick;
+	// The times rated are counted in the lower half of the ratings, and the
+	// total rating in the upper half
+	private static final int RATING_SHIFT = 32;
+	private static final long TIMES_RATED_MASK = (1L << RATING_SHIFT) - 1;
+
+	// Fields are volatile, so a copy cannot be reordered past the stamp
+	private volatile int numCopies;
+	private volatile boolean editorPick;
+	private volatile long stamp = 0;
+	private final StripedCounter ratings = new StripedCounter();
+	private final StripedCounter saleMisses = new StripedCounter();
 
 	/**
 	 * Constructor to create a book object
@@ -19,10 +42,7 @@ public class BookStoreBook extends ImmutableBook {
 	public BookStoreBook(int ISBN, String title, String author, float price,
 			int numCopies) {
 		super(ISBN, title, author, price);
-		this.setSaleMisses(0);
-		this.setTimesRated(0);
 		this.setNumCopies(numCopies);
-		this.setTotalRating(0);
 		this.setEditorPick(false);
 	}
 
@@ -35,18 +55,18 @@ public class BookStoreBook extends ImmutableBook {
 		super(bookToCopy.getISBN(), bookToCopy.getTitle(), bookToCopy
 				.getAuthor(), bookToCopy.getPrice());
 		this.setSaleMisses(bookToCopy.getSaleMisses());
-		this.setTimesRated(bookToCopy.getTimesRated());
+		this.setRatings(bookToCopy.getTotalRating(),
+				bookToCopy.getTimesRated());
 		this.setNumCopies(bookToCopy.getNumCopies());
-		this.setTotalRating(bookToCopy.getTotalRating());
 		this.setEditorPick(bookToCopy.isEditorPick());
 	}
 
 	public long getTotalRating() {
-		return totalRating;
+		return ratings.sum() >>> RATING_SHIFT;
 	}
 
 	public long getTimesRated() {
-		return timesRated;
+		return ratings.sum() & TIMES_RATED_MASK;
 	}
 
 	public int getNumCopies() {
@@ -54,33 +74,48 @@ public class BookStoreBook extends ImmutableBook {
 	}
 
 	public long getSaleMisses() {
-		return saleMisses;
+		return saleMisses.sum();
 	}
 
 	public float getAverageRating() {
+		long ratings = this.ratings.sum();
+		long totalRating = ratings >>> RATING_SHIFT;
+		long timesRated = ratings & TIMES_RATED_MASK;
 		return (float) (timesRated == 0 ? -1.0 : totalRating / timesRated);
 	}
 
-	public boolean isEditorPick() {
-		return editorPick;
-	}
-
 	/**
-	 * Sets the total rating of the book.
+	 * Returns the average rating without truncating it, or -1 if the book has
+	 * never been rated. The total rating and the times rated are read in one
+	 * sum of their counter, so they always belong together.
 	 * 
-	 * @param totalRating
+	 * @return
 	 */
-	private void setTotalRating(long totalRating) {
-		this.totalRating = totalRating;
+	double averageRatingExact() {
+		long ratings = this.ratings.sum();
+		long totalRating = ratings >>> RATING_SHIFT;
+		long timesRated = ratings & TIMES_RATED_MASK;
+		return timesRated == 0 ? -1.0 : totalRating / (double) timesRated;
+	}
+
+	public boolean isEditorPick() {
+		return editorPick;
 	}
 
 	/**
-	 * Sets the number of times that a book was rated.
+	 * Sets the total rating of the book, and the number of times that it was
+	 * rated. Both must fit in the 32 bits they are counted in.
 	 * 
+	 * @param totalRating
 	 * @param timesRated
 	 */
-	private void setTimesRated(long timesRated) {
-		this.timesRated = timesRated;
+	private void setRatings(long totalRating, long timesRated) {
+		if (BookStoreUtility.isInvalidRatings(totalRating, timesRated)) {
+			throw new IllegalArgumentException("totalRating = " + totalRating
+					+ ", timesRated = " + timesRated + ", must fit in 32 bits");
+		}
+		this.ratings.reset();
+		this.ratings.add((totalRating << RATING_SHIFT) + timesRated);
 	}
 
 	/**
@@ -99,7 +134,8 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param saleMisses
 	 */
 	private void setSaleMisses(long saleMisses) {
-		this.saleMisses = saleMisses;
+		this.saleMisses.reset();
+		this.saleMisses.add(saleMisses);
 	}
 
 	/**
@@ -109,7 +145,9 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param editorPick
 	 */
 	public void setEditorPick(boolean editorPick) {
+		this.beginWrite();
 		this.editorPick = editorPick;
+		this.endWrite();
 	}
 
 	/**
@@ -128,36 +166,42 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public boolean buyCopies(int numCopies) {
 		if(areCopiesInStore(numCopies)) {
+			this.beginWrite();
 			this.numCopies-=numCopies;
+			this.endWrite();
 			return true;
 		}
 		return false;
 	}
 	
 	/**
-	 * Adds newCopies to the total number of copies of the book.
+	 * Adds newCopies to the total number of copies of the book. Restocking
+	 * resets the sale misses, so it must not run along with addSaleMiss.
 	 */
 	public void addCopies(int newCopies) {
+		this.beginWrite();
 		this.numCopies += newCopies;
-		this.saleMisses = 0;
+		this.saleMisses.reset();
+		this.endWrite();
 	}
 
 
 	/**
-	 * Increases the amount of missed sales of the book.
+	 * Increases the amount of missed sales of the book. Any number of threads
+	 * may do so at once.
 	 */
 	public void addSaleMiss() {
-		this.saleMisses++;
+		this.saleMisses.increment();
 	}
 
 	/**
-	 * Adds the rating to the total rating of the book.
+	 * Adds the rating to the total rating of the book. Any number of threads
+	 * may do so at once.
 	 * 
 	 * @param rating
 	 */
 	public void addRating(int rating) {
-		this.totalRating += rating;
-		this.timesRated++;
+		this.ratings.add(((long) rating << RATING_SHIFT) + 1);
 	}
 
 	/**
@@ -167,7 +211,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean hadSaleMiss() {
-		return this.saleMisses > 0;
+		return this.saleMisses.sum() > 0;
 	}
 
 	/**
@@ -181,7 +225,8 @@ public class BookStoreBook extends ImmutableBook {
 	}
 
 	/**
-	 * Returns a ImmutableBook copy of the book.
+	 * Returns a ImmutableBook copy of the book. The fields of a Book never
+	 * change, so this needs neither a lock nor the stamp.
 	 * 
 	 * @return
 	 */
@@ -191,15 +236,47 @@ public class BookStoreBook extends ImmutableBook {
 	}
 
 	/**
-	 * Returns a ImmutableStockBook copy of the book.
+	 * Returns a ImmutableStockBook copy of the book, as it was between two
+	 * changes, even if it is changed meanwhile.
 	 * 
 	 * @return
 	 */
 	public StockBook immutableStockBook() {
-		return new ImmutableStockBook(this.getISBN(), new String(
-				this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.saleMisses,
-				this.timesRated, this.totalRating, this.editorPick);
+		while (true) {
+			long stamp = this.stamp;
+			if ((stamp & 1) == 0) {
+				long ratings = this.ratings.sum();
+				StockBook copy = new ImmutableStockBook(this.getISBN(),
+						new String(this.getTitle()), new String(
+								this.getAuthor()), this.getPrice(),
+						this.numCopies, this.saleMisses.sum(),
+						ratings & TIMES_RATED_MASK, ratings >>> RATING_SHIFT,
+						this.editorPick);
+				if (this.stamp == stamp) {
+					return copy;
+				}
+			}
+			// Let the writer finish
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Returns the stamp of the book, which is odd while a change is in
+	 * progress, and grows with every change of the stock or the editor pick.
+	 * 
+	 * @return
+	 */
+	public long getStamp() {
+		return this.stamp;
+	}
+
+	private void beginWrite() {
+		this.stamp++;
+	}
+
+	private void endWrite() {
+		this.stamp++;
 	}
 
 	/**
@@ -6,15 +6,11 @@ package com.acertainbookstore.business;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
@@ -30,18 +26,13 @@ import com.acertainbookstore.utils.BookStoreUtility;
  */
 public class CertainBookStore implements BookStore, StockManager {
 	private static CertainBookStore				singleInstance;
-	public Map<Integer, BookStoreBook>	bookMap = new HashMap<Integer, BookStoreBook>();
-	private Comparator<BookStoreBook> avgRatingDescComparator;
+	public IntHashMap<BookStoreBook>	bookMap = new IntHashMap<BookStoreBook>();
+	private TopRatedIndex topRatedIndex = new TopRatedIndex();
+	// ISBNs of the books that have had a sale miss since they were restocked
+	private Set<Integer> booksInDemand = Collections
+			.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
 	
 	private CertainBookStore() {
-		avgRatingDescComparator = new Comparator<BookStoreBook>() {
-			@Override
-			public int compare(BookStoreBook arg0, BookStoreBook arg1) {
-				float first = arg0.getAverageRating();
-				float second = arg1.getAverageRating();
-				return Float.compare(second, first);
-			}
-		};
 	}
 	
 	public synchronized static CertainBookStore getInstance() {
@@ -64,17 +55,24 @@ public class CertainBookStore implements BookStore, StockManager {
 			int noCopies = book.getNumCopies();
 			float bookPrice = book.getPrice();
 			if (BookStoreUtility.isInvalidISBN(ISBN) || BookStoreUtility.isEmpty(bookTitle) || BookStoreUtility.isEmpty(bookAuthor) || BookStoreUtility.isInvalidNoCopies(noCopies)
-					|| bookPrice < 0.0) {
+					|| bookPrice < 0.0 || BookStoreUtility.isInvalidRatings(book.getTotalRating(), book.getTimesRated())) {
 				throw new BookStoreException(BookStoreConstants.BOOK + book.toString() + BookStoreConstants.INVALID);
 			} else if (bookMap.containsKey(ISBN)) {
 				throw new BookStoreException(BookStoreConstants.ISBN + ISBN + BookStoreConstants.DUPLICATED);
 			}
 		}
 
+		List<BookStoreBook> newBooks = new ArrayList<BookStoreBook>();
 		for (StockBook book : bookSet) {
 			int ISBN = book.getISBN();
-			bookMap.put(ISBN, new BookStoreBook(book));
+			BookStoreBook newBook = new BookStoreBook(book);
+			bookMap.put(ISBN, newBook);
+			newBooks.add(newBook);
+			if (newBook.hadSaleMiss()) {
+				booksInDemand.add(ISBN);
+			}
 		}
+		topRatedIndex.update(newBooks);
 	}
 
 	public synchronized void addCopies(Set<BookCopy> bookCopiesSet) throws BookStoreException {
@@ -103,6 +101,8 @@ public class CertainBookStore implements BookStore, StockManager {
 			numCopies = bookCopy.getNumCopies();
 			book = bookMap.get(ISBN);
 			book.addCopies(numCopies);
+			// Restocking resets the sale misses
+			booksInDemand.remove(ISBN);
 		}
 	}
 
@@ -154,6 +154,7 @@ public class CertainBookStore implements BookStore, StockManager {
 			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
 				book.addSaleMiss(); // If we cannot sell the copies of the book
 									// its a miss
+				booksInDemand.add(ISBN);
 				saleMiss = true;
 			}
 		}
@@ -198,15 +199,12 @@ public class CertainBookStore implements BookStore, StockManager {
 
 		List<BookStoreBook> listAllEditorPicks = new ArrayList<BookStoreBook>();
 		List<Book> listEditorPicks = new ArrayList<Book>();
-		Iterator<Entry<Integer, BookStoreBook>> it = bookMap.entrySet().iterator();
 		BookStoreBook book;
 
 		// Get all books that are editor picks
-		while (it.hasNext()) {
-			Entry<Integer, BookStoreBook> pair = (Entry<Integer, BookStoreBook>) it.next();
-			book = (BookStoreBook) pair.getValue();
-			if (book.isEditorPick()) {
-				listAllEditorPicks.add(book);
+		for (BookStoreBook candidate : bookMap.values()) {
+			if (candidate.isEditorPick()) {
+				listAllEditorPicks.add(candidate);
 			}
 		}
 
@@ -234,34 +232,28 @@ public class CertainBookStore implements BookStore, StockManager {
 
 	@Override
 	public void clear() {
-		this.bookMap = new HashMap<Integer, BookStoreBook>();
+		this.bookMap = new IntHashMap<BookStoreBook>();
+		this.topRatedIndex = new TopRatedIndex();
+		this.booksInDemand.clear();
 	}
 
 	@Override
 	public synchronized List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		List<BookStoreBook> books = new ArrayList<BookStoreBook>();
-		for(BookStoreBook book : this.bookMap.values()) {
-			if(book.getTimesRated() > 0) books.add(book);
-		}
-
-		if(numBooks <= 0 || numBooks >= books.size()) {
+		if(numBooks <= 0 || numBooks >= this.topRatedIndex.size()) {
 			throw new BookStoreException("Bad client input to getTopRatedBooks: " + numBooks);
 		}
 		
-		Collections.sort(books, this.avgRatingDescComparator);
-		List<Book> out = new ArrayList<Book>();
-		for(Iterator<BookStoreBook> it = books.iterator(); it.hasNext() && numBooks > 0; numBooks--) {
-			out.add(it.next().immutableBook());
-		}
-		return out;
+		// The index is kept ordered by addBooks and rateBooks
+		return this.topRatedIndex.top(numBooks);
 	}
 
 	@Override
 	public synchronized List<StockBook> getBooksInDemand() throws BookStoreException {
 		List<StockBook> out = new ArrayList<StockBook>();
-		CertainBookStore.getInstance();
-		for(BookStoreBook book : this.bookMap.values()) {
-			if(book.hadSaleMiss()) out.add(book.immutableStockBook());
+		// Only visit the books in demand instead of scanning the catalog
+		for(Integer ISBN : this.booksInDemand) {
+			BookStoreBook book = this.bookMap.get(ISBN);
+			if(book != null && book.hadSaleMiss()) out.add(book.immutableStockBook());
 		}
 		return out;
 	}
@@ -282,10 +274,13 @@ public class CertainBookStore implements BookStore, StockManager {
 		}
 		
 		synchronized(this) {
+			List<BookStoreBook> ratedBooks = new ArrayList<BookStoreBook>();
 			for(BookRating rating : bookRating) {
 				BookStoreBook book = this.bookMap.get(rating.getISBN());
 				book.addRating(rating.getRating());
+				ratedBooks.add(book);
 			}
+			this.topRatedIndex.update(ratedBooks);
 		}
 	}
 
@@ -2,31 +2,73 @@ package com.acertainbookstore.business;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.Map.Entry;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
 
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
-import com.acertainbookstore.locking.ReentrantRWLock;
+import com.acertainbookstore.locking.DeadlockException;
+import com.acertainbookstore.locking.LockManager;
+import com.acertainbookstore.locking.LockManager.LockMode;
+import com.acertainbookstore.locking.LockManager.Transaction;
+import com.acertainbookstore.locking.LockManagerStatistics;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreUtility;
 
+/**
+ * ConcurrentCertainBookStore runs every request as a transaction under strict
+ * two-phase locking, with a lock per book and a lock on the catalog as a
+ * whole, cf. {@link LockManager}. Requests on some books lock the catalog in
+ * an intention mode and then their books, in ISBN order, while requests on
+ * the whole catalog lock only the catalog. So requests on different books
+ * run side by side, and a request listing the catalog waits for the
+ * requests changing books to finish, and holds back new ones.
+ *
+ * All locks of a request are released when it returns. A request that would
+ * deadlock, or cannot get its locks before its deadline, fails with a
+ * BookStoreException that it can be retried after.
+ *
+ * getBooks(Set) first reads the books without any lock, validated against
+ * a version stamp of the catalog like a seqlock, and only takes its locks if
+ * the catalog changed meanwhile.
+ *
+ */
 public class ConcurrentCertainBookStore implements BookStore, StockManager{
 	private static ConcurrentCertainBookStore				singleInstance;
-	public Map<Integer, BookStoreBook>	bookMap;
+	// The resource standing for the whole catalog, next to the ISBNs
+	private static final Object CATALOG = "catalog";
+	// Volatile, as getBooks(Set) reads it without locks
+	public volatile ConcurrentIntHashMap<BookStoreBook>	bookMap;
 	
-	private ReentrantRWLock lock;
+	private LockManager lockManager;
+	private TopRatedIndex topRatedIndex;
+	// ISBNs of the books that have had a sale miss since they were restocked
+	private Set<Integer> booksInDemand;
+	// How long a request may wait for the lock in total, 0 for no limit
+	private volatile long requestTimeout = 0;
+	// Published as an MBean once enabled
+	private LockManagerStatistics lockStatistics;
+	// The version stamp of the books in the catalog: the number of changes
+	// to it begun and ended, which only differ while a change is under way
+	private final AtomicLong catalogChangesBegun = new AtomicLong();
+	private final AtomicLong catalogChangesEnded = new AtomicLong();
 	
 	private ConcurrentCertainBookStore() {
-		this.bookMap = new HashMap<Integer, BookStoreBook>();
-		this.lock = new ReentrantRWLock();
+		this.bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		this.lockManager = new LockManager();
+		this.topRatedIndex = new TopRatedIndex();
+		this.booksInDemand = Collections
+				.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
 	}
 
 	public synchronized static ConcurrentCertainBookStore getInstance() {
@@ -36,15 +78,60 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 		return singleInstance;
 	}
 
+	/**
+	 * Limits how long a request may wait for its locks, so that requests fail
+	 * with BookStoreConstants.BUSY instead of piling up while the store is
+	 * overloaded. A timeout of 0 lets requests wait as long as it takes.
+	 *
+	 * @param timeout
+	 * @param unit
+	 */
+	public void setRequestTimeout(long timeout, TimeUnit unit) {
+		this.requestTimeout = Math.max(0L, unit.toNanos(timeout));
+	}
+
+	public long getRequestTimeout(TimeUnit unit) {
+		return unit.convert(this.requestTimeout, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Starts sampling the locks of one in every sampleRate requests of each
+	 * thread, and publishes the lock statistics as a JMX MBean named after
+	 * the store. Once enabled, the statistics stay enabled.
+	 *
+	 * @param sampleRate
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public synchronized LockManagerStatistics enableLockStatistics(
+			int sampleRate) throws BookStoreException {
+		if (this.lockStatistics == null) {
+			LockManagerStatistics stats = this.lockManager
+					.enableStatistics(sampleRate);
+			try {
+				stats.register(ConcurrentCertainBookStore.class.getSimpleName());
+			} catch (JMException ex) {
+				this.lockManager.disableStatistics();
+				throw new BookStoreException(ex);
+			}
+			this.lockStatistics = stats;
+		}
+		return this.lockStatistics;
+	}
+
 	public void addBooks(Set<StockBook> bookSet)
 			throws BookStoreException {
 
 		if (bookSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		boolean writeLock = false;
+		Set<Integer> ISBNs = new TreeSet<Integer>();
+		for (StockBook book : bookSet) {
+			ISBNs.add(book.getISBN());
+		}
+		Transaction transaction = this.lockManager.begin();
 		try {
-			this.lock.readLock();
+			this.lockBooks(transaction, LockMode.IX, ISBNs, LockMode.X);
 			for (StockBook book : bookSet) {
 				int ISBN = book.getISBN();
 				String bookTitle = book.getTitle();
@@ -55,7 +142,9 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 						|| BookStoreUtility.isEmpty(bookTitle)
 						|| BookStoreUtility.isEmpty(bookAuthor)
 						|| BookStoreUtility.isInvalidNoCopies(noCopies)
-						|| bookPrice < 0.0) {
+						|| bookPrice < 0.0
+						|| BookStoreUtility.isInvalidRatings(
+								book.getTotalRating(), book.getTimesRated())) {
 					throw new BookStoreException(BookStoreConstants.BOOK
 							+ book.toString() + BookStoreConstants.INVALID);
 				} else if (bookMap.containsKey(ISBN)) {
@@ -64,23 +153,27 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 				}
 				
 			}
-			this.lock.writeLock();
-			writeLock = true;
-			for (StockBook book : bookSet) {
-				int ISBN = book.getISBN();
-				bookMap.put(ISBN, new BookStoreBook(book));
+			List<BookStoreBook> newBooks = new ArrayList<BookStoreBook>();
+			this.catalogChangesBegun.incrementAndGet();
+			try {
+				for (StockBook book : bookSet) {
+					int ISBN = book.getISBN();
+					BookStoreBook newBook = new BookStoreBook(book);
+					bookMap.put(ISBN, newBook);
+					newBooks.add(newBook);
+					if (newBook.hadSaleMiss()) {
+						booksInDemand.add(ISBN);
+					}
+				}
+			} finally {
+				this.catalogChangesEnded.incrementAndGet();
 			}
+			this.topRatedIndex.update(newBooks);
 		} catch (InterruptedException ex) {
 			ex.printStackTrace();
 			throw new BookStoreException("Concurrency exception!");
 		} finally {
-			try {
-				if(writeLock) this.lock.writeUnlock();
-				this.lock.readUnlock();
-			} catch (InterruptedException ex) {
-				ex.printStackTrace();
-				throw new BookStoreException("Concurrency exception!");
-			}
+			this.lockManager.releaseAll(transaction);
 		}
 	}
 
@@ -92,9 +185,13 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		boolean writeLock = false;
+		Set<Integer> ISBNs = new TreeSet<Integer>();
+		for (BookCopy bookCopy : bookCopiesSet) {
+			ISBNs.add(bookCopy.getISBN());
+		}
+		Transaction transaction = this.lockManager.begin();
 		try {
-			this.lock.readLock();
+			this.lockBooks(transaction, LockMode.IX, ISBNs, LockMode.X);
 			for (BookCopy bookCopy : bookCopiesSet) {
 				ISBN = bookCopy.getISBN();
 				numCopies = bookCopy.getNumCopies();
@@ -112,32 +209,27 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 
 			BookStoreBook book;
 			// Update the number of copies
-			// Grab a write lock.
-			this.lock.writeLock();
-			writeLock = true;
 			for (BookCopy bookCopy : bookCopiesSet) {
 				ISBN = bookCopy.getISBN();
 				numCopies = bookCopy.getNumCopies();
 				book = bookMap.get(ISBN);
 				book.addCopies(numCopies);
+				// Restocking resets the sale misses
+				booksInDemand.remove(ISBN);
 			}
 		} catch (InterruptedException ex) {
 			ex.printStackTrace();
 			throw new BookStoreException("Concurrency exception!");
 		} finally {
-			try {
-				this.lock.readUnlock();
-				if(writeLock) this.lock.writeUnlock();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}	
+			this.lockManager.releaseAll(transaction);
 		}
 	}
 
-	public List<StockBook> getBooks() {
+	public List<StockBook> getBooks() throws BookStoreException {
 		List<StockBook> listBooks = new ArrayList<StockBook>();
+		Transaction transaction = this.lockManager.begin();
 		try {
-			this.lock.readLock();
+			this.lockCatalog(transaction, LockMode.S);
 			Collection<BookStoreBook> bookMapValues = bookMap.values();
 			for (BookStoreBook book : bookMapValues) {
 				listBooks.add(book.immutableStockBook());
@@ -145,11 +237,7 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 		} catch (InterruptedException e) {
 			e.printStackTrace();
 		} finally {
-			try {
-				this.lock.readUnlock();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			this.lockManager.releaseAll(transaction);
 		}
 		return listBooks;
 	}
@@ -162,9 +250,13 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 		}
 
 		int ISBNVal;
-		boolean writeLock = false;
+		Set<Integer> ISBNs = new TreeSet<Integer>();
+		for (BookEditorPick editorPickArg : editorPicks) {
+			ISBNs.add(editorPickArg.getISBN());
+		}
+		Transaction transaction = this.lockManager.begin();
 		try {
-			this.lock.readLock();
+			this.lockBooks(transaction, LockMode.IX, ISBNs, LockMode.X);
 			for (BookEditorPick editorPickArg : editorPicks) {
 				ISBNVal = editorPickArg.getISBN();
 				if (BookStoreUtility.isInvalidISBN(ISBNVal))
@@ -175,8 +267,6 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 							+ BookStoreConstants.NOT_AVAILABLE);
 			}
 
-			this.lock.writeLock();
-			writeLock = true;
 			for (BookEditorPick editorPickArg : editorPicks) {
 				bookMap.get(editorPickArg.getISBN()).setEditorPick(
 						editorPickArg.isEditorPick());
@@ -184,98 +274,137 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 		} catch (InterruptedException ex) {
 			throw new BookStoreException("Concurrency exception!");
 		} finally {
-			try {
-				this.lock.readUnlock();
-				if(writeLock) this.lock.writeUnlock();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			this.lockManager.releaseAll(transaction);
 		}
 	}
 
+	/**
+	 * Buys the books under IX on the catalog and X on each book, in one
+	 * transaction. An order that runs short records its sale misses under
+	 * the same locks and fails; the misses only add to the counters of the
+	 * books, so they need no lock of their own.
+	 */
 	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
 			throws BookStoreException {
 		if (bookCopiesToBuy == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 		
-		// Check that all ISBNs that we buy are there first.
-		int ISBN;
-		BookStoreBook book;
-		Boolean saleMiss = false;
+		Set<Integer> ISBNs = new TreeSet<Integer>();
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			ISBNs.add(bookCopyToBuy.getISBN());
+		}
+		Transaction transaction = this.lockManager.begin();
 		try {
-			// We grab a write lock right away, since we might add a missing sales.
-			this.lock.writeLock();
-			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-				ISBN = bookCopyToBuy.getISBN();
-				if (BookStoreUtility.isInvalidISBN(ISBN))
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-							+ BookStoreConstants.INVALID);
-				if (!bookMap.containsKey(ISBN))
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-							+ BookStoreConstants.NOT_AVAILABLE);
-				book = bookMap.get(ISBN);
-				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
-					book.addSaleMiss(); // If we cannot sell the copies of the book
-										// its a miss 
-					saleMiss = true;
-				}
-			}
-	
-			// We throw exception now since we want to see how many books in the
-			// order incurred misses which is used by books in demand
-			if (saleMiss)
-				throw new BookStoreException(BookStoreConstants.BOOK
-						+ BookStoreConstants.NOT_AVAILABLE);
+			this.lockBooks(transaction, LockMode.IX, ISBNs, LockMode.X);
+			this.checkPurchase(bookCopiesToBuy);
 	
 			// Then make purchase
 			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
-					book = bookMap.get(bookCopyToBuy.getISBN());
-					book.buyCopies(bookCopyToBuy.getNumCopies());
+				BookStoreBook book = bookMap.get(bookCopyToBuy.getISBN());
+				book.buyCopies(bookCopyToBuy.getNumCopies());
 			}
 		} catch (InterruptedException ex) {
 			ex.printStackTrace();
 			throw new BookStoreException("Concurrency exception!");
 		} finally {
-			try {
-				this.lock.writeUnlock();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+			this.lockManager.releaseAll(transaction);
+		}
+	}
+
+	/**
+	 * Checks that every book of the order is there, and has the copies to
+	 * sell. Records a sale miss for every book that is short.
+	 */
+	private void checkPurchase(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		int ISBN;
+		BookStoreBook book;
+		boolean saleMiss = false;
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			ISBN = bookCopyToBuy.getISBN();
+			if (BookStoreUtility.isInvalidISBN(ISBN))
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.INVALID);
+			if (!bookMap.containsKey(ISBN))
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.NOT_AVAILABLE);
+			book = bookMap.get(ISBN);
+			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+				book.addSaleMiss(); // If we cannot sell the copies of the book
+									// its a miss 
+				booksInDemand.add(ISBN);
+				saleMiss = true;
 			}
 		}
+
+		// We throw exception now since we want to see how many books in the
+		// order incurred misses which is used by books in demand
+		if (saleMiss)
+			throw new BookStoreException(BookStoreConstants.BOOK
+					+ BookStoreConstants.NOT_AVAILABLE);
 	}
 
+	/**
+	 * Looks up the books optimistically, without any lock. The ISBN, title,
+	 * author and price of a book never change, so only books added or the
+	 * catalog cleared meanwhile can make the lookup differ from one under
+	 * locks. The version stamp of the catalog is read before and after the
+	 * lookup, and the lookup stands, found books or missing ones, if no
+	 * change was under way or begun in between. Otherwise the books are
+	 * looked up again under IS on the catalog and S on each book. Optimistic
+	 * lookups write no shared state, so they do not slow each other down.
+	 */
 	public List<Book> getBooks(Set<Integer> isbnSet)
 			throws BookStoreException {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		
-		List<Book> listBooks = new ArrayList<Book>();
-		try {
-			this.lock.readLock();
-			// Check that all ISBNs that we rate are there first.
-			for (Integer ISBN : isbnSet) {
-				if (BookStoreUtility.isInvalidISBN(ISBN))
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-							+ BookStoreConstants.INVALID);
-				if (!bookMap.containsKey(ISBN))
-					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-							+ BookStoreConstants.NOT_AVAILABLE);
+
+		long ended = this.catalogChangesEnded.get();
+		long begun = this.catalogChangesBegun.get();
+		if (begun == ended) {
+			List<Book> listBooks = null;
+			BookStoreException failure = null;
+			try {
+				listBooks = this.lookupBooks(isbnSet);
+			} catch (BookStoreException ex) {
+				failure = ex;
 			}
-			// Get the books
-			for (Integer ISBN : isbnSet) {
-				listBooks.add(bookMap.get(ISBN).immutableBook());
+			if (this.catalogChangesBegun.get() == begun) {
+				if (failure != null) {
+					throw failure;
+				}
+				return listBooks;
 			}
+		}
+
+		Set<Integer> ISBNs = new TreeSet<Integer>(isbnSet);
+		Transaction transaction = this.lockManager.begin();
+		try {
+			this.lockBooks(transaction, LockMode.IS, ISBNs, LockMode.S);
+			return this.lookupBooks(isbnSet);
 		} catch (InterruptedException ex) {
 			ex.printStackTrace();
 			throw new BookStoreException("Concurrency exception!");
 		} finally {
-			try {
-				this.lock.readUnlock();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			this.lockManager.releaseAll(transaction);
+		}
+	}
+
+	private List<Book> lookupBooks(Set<Integer> isbnSet)
+			throws BookStoreException {
+		ConcurrentIntHashMap<BookStoreBook> books = this.bookMap;
+		List<Book> listBooks = new ArrayList<Book>();
+		for (Integer ISBN : isbnSet) {
+			if (BookStoreUtility.isInvalidISBN(ISBN))
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.INVALID);
+			BookStoreBook book = books.get(ISBN);
+			if (book == null)
+				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+						+ BookStoreConstants.NOT_AVAILABLE);
+			listBooks.add(book.immutableBook());
 		}
 		
 		return listBooks;
@@ -290,50 +419,43 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 		}
 
 		List<Book> listEditorPicks = new ArrayList<Book>();
-		
+		Transaction transaction = this.lockManager.begin();
 		try {
 			List<BookStoreBook> listAllEditorPicks = new ArrayList<BookStoreBook>();
 			
-			try {
-				this.lock.readLock();
-				Iterator<Entry<Integer, BookStoreBook>> it = bookMap.entrySet()
-						.iterator();
-				BookStoreBook book;
+			this.lockCatalog(transaction, LockMode.S);
+			BookStoreBook book;
 		
-				// Get all books that are editor picks
-				while (it.hasNext()) {
-					Entry<Integer, BookStoreBook> pair = (Entry<Integer, BookStoreBook>) it
-							.next();
-					book = (BookStoreBook) pair.getValue();
-					if (book.isEditorPick()) {
-						listAllEditorPicks.add(book);
-					}
+			// Get all books that are editor picks
+			for (BookStoreBook candidate : bookMap.values()) {
+				if (candidate.isEditorPick()) {
+					listAllEditorPicks.add(candidate);
 				}
+			}
 		
-				// Find numBooks random indices of books that will be picked
-				Random rand = new Random();
-				Set<Integer> tobePicked = new HashSet<Integer>();
-				int rangePicks = listAllEditorPicks.size();
-				if (rangePicks < numBooks) {
-					throw new BookStoreException("Only " + rangePicks
-							+ " editor picks are available.");
-				}
-				int randNum;
-				while (tobePicked.size() < numBooks) {
-					randNum = rand.nextInt(rangePicks);
-					tobePicked.add(randNum);
-				}
+			// Find numBooks random indices of books that will be picked
+			Random rand = new Random();
+			Set<Integer> tobePicked = new HashSet<Integer>();
+			int rangePicks = listAllEditorPicks.size();
+			if (rangePicks < numBooks) {
+				throw new BookStoreException("Only " + rangePicks
+						+ " editor picks are available.");
+			}
+			int randNum;
+			while (tobePicked.size() < numBooks) {
+				randNum = rand.nextInt(rangePicks);
+				tobePicked.add(randNum);
+			}
 		
-				// Get the numBooks random books
-				for (Integer index : tobePicked) {
-					book = listAllEditorPicks.get(index);
-					listEditorPicks.add(book.immutableBook());
-				}
-			} finally {
-				this.lock.readUnlock();
+			// Get the numBooks random books
+			for (Integer index : tobePicked) {
+				book = listAllEditorPicks.get(index);
+				listEditorPicks.add(book.immutableBook());
 			}
 		} catch (InterruptedException ex) {
 			throw new BookStoreException("Concurrency exception!");
+		} finally {
+			this.lockManager.releaseAll(transaction);
 		}
 		
 		return listEditorPicks;
@@ -341,24 +463,150 @@ public class ConcurrentCertainBookStore implements BookStore, StockManager{
 
 	@Override
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+		// The index has its own monitor, and is kept ordered by addBooks and
+		// rateBooks, so there is no need to lock the store
+		return this.topRatedIndex.top(numBooks);
 	}
 
 	@Override
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		Transaction transaction = this.lockManager.begin();
+		try {
+			this.lockCatalog(transaction, LockMode.S);
+			// Only visit the books in demand instead of scanning the catalog
+			for (Integer ISBN : booksInDemand) {
+				BookStoreBook book = bookMap.get(ISBN);
+				if (book != null && book.hadSaleMiss()) {
+					listBooks.add(book.immutableStockBook());
+				}
+			}
+		} catch (InterruptedException ex) {
+			ex.printStackTrace();
+			throw new BookStoreException("Concurrency exception!");
+		} finally {
+			this.lockManager.releaseAll(transaction);
+		}
+		return listBooks;
 	}
 
 	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
+		int ISBN;
+
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		Set<Integer> ISBNs = new TreeSet<Integer>();
+		for (BookRating rating : bookRating) {
+			ISBNs.add(rating.getISBN());
+		}
+		Transaction transaction = this.lockManager.begin();
+		try {
+			// Ratings only add to the counters of the books, so raters share
+			// the books with each other and with readers
+			this.lockBooks(transaction, LockMode.IS, ISBNs, LockMode.S);
+			for (BookRating rating : bookRating) {
+				ISBN = rating.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!bookMap.containsKey(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (BookStoreUtility.isInvalidRating(rating.getRating()))
+					throw new BookStoreException(BookStoreConstants.RATING
+							+ rating.getRating() + BookStoreConstants.INVALID);
+			}
+
+			List<BookStoreBook> ratedBooks = new ArrayList<BookStoreBook>();
+			for (BookRating rating : bookRating) {
+				BookStoreBook book = bookMap.get(rating.getISBN());
+				book.addRating(rating.getRating());
+				ratedBooks.add(book);
+			}
+			this.topRatedIndex.update(ratedBooks);
+		} catch (InterruptedException ex) {
+			ex.printStackTrace();
+			throw new BookStoreException("Concurrency exception!");
+		} finally {
+			this.lockManager.releaseAll(transaction);
+		}
+	}
+
+	/**
+	 * Locks the catalog as a whole for the transaction.
+	 */
+	private void lockCatalog(Transaction transaction, LockMode mode)
+			throws InterruptedException, BookStoreException {
+		this.lockBooks(transaction, mode, Collections.<Integer> emptySet(),
+				null);
+	}
+
+	/**
+	 * Locks the catalog in catalogMode and then the books in bookMode for the
+	 * transaction. The ISBNs are locked in the order given, which callers
+	 * keep sorted, so that requests on the same books lock them in the same
+	 * order and do not deadlock each other.
+	 */
+	private void lockBooks(Transaction transaction, LockMode catalogMode,
+			Set<Integer> ISBNs, LockMode bookMode)
+			throws InterruptedException, BookStoreException {
+		long timeout = this.requestTimeout;
+		long deadline = System.nanoTime() + timeout;
+		try {
+			this.lock(transaction, CATALOG, catalogMode, timeout, deadline);
+			for (Integer ISBN : ISBNs) {
+				this.lock(transaction, ISBN, bookMode, timeout, deadline);
+			}
+		} catch (DeadlockException ex) {
+			throw new BookStoreException(BookStoreConstants.DEADLOCK, ex);
+		}
+	}
+
+	private void lock(Transaction transaction, Object key, LockMode mode,
+			long timeout, long deadline) throws InterruptedException,
+			DeadlockException, BookStoreException {
+		if (timeout == 0) {
+			this.lockManager.lock(transaction, key, mode);
+		} else if (!this.lockManager.tryLock(transaction, key, mode, deadline
+				- System.nanoTime(), TimeUnit.NANOSECONDS)) {
+			throw new BookStoreException(BookStoreConstants.BUSY);
+		}
 	}
 
 	@Override
 	public synchronized void clear() {
-		this.bookMap = new HashMap<Integer, BookStoreBook>();
+		Transaction transaction = this.lockManager.begin();
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					this.lockManager.lock(transaction, CATALOG, LockMode.X);
+					break;
+				} catch (InterruptedException ex) {
+					// Clearing cannot fail, so try again and keep the interrupt
+					interrupted = true;
+				} catch (DeadlockException ex) {
+					// A transaction without locks cannot be part of a cycle
+					throw new IllegalStateException(ex);
+				}
+			}
+			this.catalogChangesBegun.incrementAndGet();
+			this.bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+			this.catalogChangesEnded.incrementAndGet();
+			this.topRatedIndex = new TopRatedIndex();
+			this.booksInDemand.clear();
+		} finally {
+			this.lockManager.releaseAll(transaction);
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 }
@@ -0,0 +1,241 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ConcurrentIntHashMap is the concurrent-read variant of {@link IntHashMap}.
+ * It uses the same open-addressing layout, but readers never lock: any
+ * number of threads can call get, containsKey and values while a single
+ * writer at a time modifies the map.
+ *
+ * Writers are serialized on the map's monitor. A new mapping is published by
+ * writing its value before its key, so a reader that finds the key always
+ * sees the value. Removed mappings keep their key in the table with a null
+ * value, so that a reader can never miss a key because another key was moved
+ * underneath it; these slots are reclaimed when the table is rebuilt. A
+ * rebuilt table is filled completely before it is published through a
+ * volatile field, so readers see either the old or the new table, never a
+ * half-built one.
+ *
+ * Null values are not allowed, as null is what marks a removed mapping.
+ *
+ */
+public class ConcurrentIntHashMap<V> {
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.5f;
+	private static final int FREE = 0;
+
+	/**
+	 * The arrays of one generation of the map. Never resized, only replaced.
+	 */
+	private static final class Table<V> {
+		private final AtomicIntegerArray keys;
+		private final AtomicReferenceArray<V> values;
+		private final int mask;
+		private final int threshold;
+
+		private Table(int capacity) {
+			this.keys = new AtomicIntegerArray(capacity);
+			this.values = new AtomicReferenceArray<V>(capacity);
+			this.mask = capacity - 1;
+			this.threshold = (int) (capacity * LOAD_FACTOR);
+		}
+	}
+
+	private volatile Table<V> table;
+	private volatile V zeroValue;
+	private volatile int size;
+	// Slots holding a key, including removed mappings. Guarded by this.
+	private int usedSlots;
+
+	public ConcurrentIntHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a map that can hold expectedSize mappings without resizing.
+	 *
+	 * @param expectedSize
+	 */
+	public ConcurrentIntHashMap(int expectedSize) {
+		this.table = new Table<V>(IntHashMap.tableSizeFor(expectedSize));
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public boolean containsKey(int key) {
+		return this.get(key) != null;
+	}
+
+	public V get(int key) {
+		if (key == FREE) {
+			return this.zeroValue;
+		}
+		Table<V> t = this.table;
+		int index = IntHashMap.mix(key) & t.mask;
+		int current;
+		while ((current = t.keys.get(index)) != FREE) {
+			if (current == key) {
+				return t.values.get(index);
+			}
+			index = (index + 1) & t.mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Maps key to value, and returns the value previously mapped to key, or
+	 * null if there was none.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public synchronized V put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		if (key == FREE) {
+			V old = this.zeroValue;
+			this.zeroValue = value;
+			if (old == null) {
+				this.size++;
+			}
+			return old;
+		}
+
+		Table<V> t = this.table;
+		int index = IntHashMap.mix(key) & t.mask;
+		int current;
+		while ((current = t.keys.get(index)) != FREE) {
+			if (current == key) {
+				V old = t.values.getAndSet(index, value);
+				if (old == null) {
+					this.size++;
+				}
+				return old;
+			}
+			index = (index + 1) & t.mask;
+		}
+
+		if (this.usedSlots + 1 > t.threshold) {
+			this.rebuild(this.size + 1);
+			return this.put(key, value);
+		}
+		// Value first, so that readers finding the key also find the value
+		t.values.set(index, value);
+		t.keys.set(index, key);
+		this.usedSlots++;
+		this.size++;
+		return null;
+	}
+
+	/**
+	 * Copies all mappings of the map into this map.
+	 *
+	 * @param map
+	 */
+	public synchronized void putAll(Map<Integer, ? extends V> map) {
+		for (Entry<Integer, ? extends V> entry : map.entrySet()) {
+			this.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Removes the mapping of key, and returns the value it was mapped to, or
+	 * null if there was none.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public synchronized V remove(int key) {
+		V old;
+		if (key == FREE) {
+			old = this.zeroValue;
+			this.zeroValue = null;
+		} else {
+			Table<V> t = this.table;
+			int index = IntHashMap.mix(key) & t.mask;
+			int current;
+			old = null;
+			while ((current = t.keys.get(index)) != FREE) {
+				if (current == key) {
+					old = t.values.getAndSet(index, null);
+					break;
+				}
+				index = (index + 1) & t.mask;
+			}
+		}
+		if (old != null) {
+			this.size--;
+		}
+		return old;
+	}
+
+	public synchronized void clear() {
+		this.table = new Table<V>(DEFAULT_CAPACITY);
+		this.zeroValue = null;
+		this.usedSlots = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * Returns a snapshot of the values in the map, in no particular order. The
+	 * snapshot is taken without locking, so it reflects each mapping as it
+	 * was at some point during the call.
+	 *
+	 * @return
+	 */
+	public List<V> values() {
+		Table<V> t = this.table;
+		List<V> out = new ArrayList<V>(this.size);
+		V value = this.zeroValue;
+		if (value != null) {
+			out.add(value);
+		}
+		int capacity = t.keys.length();
+		for (int i = 0; i < capacity; i++) {
+			if (t.keys.get(i) != FREE && (value = t.values.get(i)) != null) {
+				out.add(value);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Copies the live mappings into a fresh table sized for expectedSize
+	 * mappings, dropping the slots of removed mappings, and publishes it.
+	 */
+	private void rebuild(int expectedSize) {
+		Table<V> old = this.table;
+		Table<V> t = new Table<V>(IntHashMap.tableSizeFor(expectedSize));
+		int used = 0;
+		int capacity = old.keys.length();
+		for (int i = 0; i < capacity; i++) {
+			int key = old.keys.get(i);
+			V value;
+			if (key != FREE && (value = old.values.get(i)) != null) {
+				int index = IntHashMap.mix(key) & t.mask;
+				while (t.keys.get(index) != FREE) {
+					index = (index + 1) & t.mask;
+				}
+				t.values.set(index, value);
+				t.keys.set(index, key);
+				used++;
+			}
+		}
+		this.usedSlots = used;
+		this.table = t;
+	}
+}
@@ -0,0 +1,716 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * ShardedCertainBookStore splits the catalog into shards by ISBN, each owned
+ * by a thread of its own that runs the requests on the shard one at a time.
+ * The books of a shard, and its books in demand, are only ever touched by
+ * its thread, so they need no locks, and requests on different shards run
+ * side by side.
+ *
+ * A request on the books of one shard is handed to the thread of the shard
+ * and runs there as a whole. A request spanning several shards runs in two
+ * phases: first the shards are prepared one at a time, in shard order, each
+ * checking its part of the request and then serving no other request, and
+ * once all of them have accepted it, each applies its part, otherwise none
+ * does. Every request takes the shards in the same order, so requests never
+ * deadlock, and requests on the whole catalog simply span all shards.
+ *
+ * As in CertainBookStore, a purchase that fails for lack of copies still
+ * records the sale misses.
+ *
+ */
+public class ShardedCertainBookStore implements BookStore, StockManager {
+	private static ShardedCertainBookStore singleInstance;
+
+	private final Shard[] shards;
+	// Shared by the shards, and only updated by their threads
+	private final TopRatedIndex topRatedIndex = new TopRatedIndex();
+
+	/**
+	 * A shard of the catalog. Its books and its owner are only used by its
+	 * thread.
+	 */
+	private static final class Shard implements Runnable {
+		private final int index;
+		private final BlockingQueue<Task<?>> queue = new LinkedBlockingQueue<Task<?>>();
+		// Tasks of other requests that arrived while the shard had an owner
+		private final Deque<Task<?>> deferred = new ArrayDeque<Task<?>>();
+		private IntHashMap<BookStoreBook> books = new IntHashMap<BookStoreBook>();
+		// ISBNs of the books that have had a sale miss since they were
+		// restocked
+		private final Set<Integer> booksInDemand = new HashSet<Integer>();
+		// The request spanning several shards the shard is serving, if any
+		private Object owner = null;
+
+		private Shard(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Task<?> task;
+				if (this.owner == null && !this.deferred.isEmpty()) {
+					task = this.deferred.poll();
+				} else {
+					try {
+						task = this.queue.take();
+					} catch (InterruptedException ex) {
+						return;
+					}
+				}
+				if (this.owner != null && task.request != this.owner) {
+					this.deferred.add(task);
+				} else {
+					task.run();
+				}
+			}
+		}
+
+		/**
+		 * Runs the callable on the thread of the shard for the request, and
+		 * returns its result.
+		 */
+		private <V> V call(Object request, Callable<V> callable)
+				throws BookStoreException {
+			Task<V> task = new Task<V>(request, callable);
+			this.queue.add(task);
+			return task.await();
+		}
+	}
+
+	/**
+	 * A task for the thread of a shard.
+	 */
+	private static final class Task<V> extends FutureTask<V> {
+		// The request spanning several shards the task belongs to, or null
+		private final Object request;
+
+		private Task(Object request, Callable<V> callable) {
+			super(callable);
+			this.request = request;
+		}
+
+		/**
+		 * Waits for the task to run. An interrupt does not stop the wait, as
+		 * a shard serving a request has to see it finish before it can serve
+		 * others.
+		 */
+		private V await() throws BookStoreException {
+			boolean interrupted = false;
+			try {
+				while (true) {
+					try {
+						return this.get();
+					} catch (InterruptedException ex) {
+						interrupted = true;
+					} catch (ExecutionException ex) {
+						Throwable cause = ex.getCause();
+						if (cause instanceof BookStoreException) {
+							throw (BookStoreException) cause;
+						} else if (cause instanceof RuntimeException) {
+							throw (RuntimeException) cause;
+						} else if (cause instanceof Error) {
+							throw (Error) cause;
+						}
+						throw new BookStoreException(cause);
+					}
+				}
+			} finally {
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The part of a request on one shard, run by the thread of the shard.
+	 */
+	private static abstract class Step<R> {
+		// Set by prepare to fail the request once all shards are prepared
+		protected BookStoreException refusal = null;
+
+		/**
+		 * Checks the part of the request against the shard and returns its
+		 * result. It throws to fail the request right away.
+		 */
+		abstract R prepare(Shard shard) throws BookStoreException;
+
+		/**
+		 * Applies the part of the request to the shard, once every shard has
+		 * accepted the request.
+		 */
+		void commit(Shard shard) {
+		}
+	}
+
+	public ShardedCertainBookStore(int numShards) {
+		if (numShards <= 0) {
+			throw new IllegalArgumentException("numShards = " + numShards
+					+ ", but it must be positive");
+		}
+		this.shards = new Shard[numShards];
+		for (int i = 0; i < numShards; i++) {
+			this.shards[i] = new Shard(i);
+			Thread thread = new Thread(this.shards[i],
+					"ShardedCertainBookStore-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Returns the store, with a shard for every processor.
+	 */
+	public synchronized static ShardedCertainBookStore getInstance() {
+		if (singleInstance == null) {
+			singleInstance = new ShardedCertainBookStore(Runtime.getRuntime()
+					.availableProcessors());
+		}
+		return singleInstance;
+	}
+
+	public int getNumShards() {
+		return this.shards.length;
+	}
+
+	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
+		if (bookSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		SortedMap<Integer, List<StockBook>> parts = new TreeMap<Integer, List<StockBook>>();
+		for (StockBook book : bookSet) {
+			this.partOf(parts, book.getISBN()).add(book);
+		}
+		SortedMap<Integer, Step<Void>> steps = new TreeMap<Integer, Step<Void>>();
+		for (Map.Entry<Integer, List<StockBook>> part : parts.entrySet()) {
+			final List<StockBook> books = part.getValue();
+			steps.put(part.getKey(), new Step<Void>() {
+				@Override
+				Void prepare(Shard shard) throws BookStoreException {
+					for (StockBook book : books) {
+						int ISBN = book.getISBN();
+						String bookTitle = book.getTitle();
+						String bookAuthor = book.getAuthor();
+						int noCopies = book.getNumCopies();
+						float bookPrice = book.getPrice();
+						if (BookStoreUtility.isInvalidISBN(ISBN)
+								|| BookStoreUtility.isEmpty(bookTitle)
+								|| BookStoreUtility.isEmpty(bookAuthor)
+								|| BookStoreUtility.isInvalidNoCopies(noCopies)
+								|| bookPrice < 0.0
+								|| BookStoreUtility.isInvalidRatings(
+										book.getTotalRating(),
+										book.getTimesRated())) {
+							throw new BookStoreException(BookStoreConstants.BOOK
+									+ book.toString() + BookStoreConstants.INVALID);
+						} else if (shard.books.containsKey(ISBN)) {
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBN + BookStoreConstants.DUPLICATED);
+						}
+					}
+					return null;
+				}
+
+				@Override
+				void commit(Shard shard) {
+					List<BookStoreBook> newBooks = new ArrayList<BookStoreBook>();
+					for (StockBook book : books) {
+						BookStoreBook newBook = new BookStoreBook(book);
+						shard.books.put(book.getISBN(), newBook);
+						newBooks.add(newBook);
+						if (newBook.hadSaleMiss()) {
+							shard.booksInDemand.add(book.getISBN());
+						}
+					}
+					topRatedIndex.update(newBooks);
+				}
+			});
+		}
+		this.run(steps);
+	}
+
+	public void addCopies(Set<BookCopy> bookCopiesSet)
+			throws BookStoreException {
+		if (bookCopiesSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		SortedMap<Integer, List<BookCopy>> parts = new TreeMap<Integer, List<BookCopy>>();
+		for (BookCopy bookCopy : bookCopiesSet) {
+			this.partOf(parts, bookCopy.getISBN()).add(bookCopy);
+		}
+		SortedMap<Integer, Step<Void>> steps = new TreeMap<Integer, Step<Void>>();
+		for (Map.Entry<Integer, List<BookCopy>> part : parts.entrySet()) {
+			final List<BookCopy> bookCopies = part.getValue();
+			steps.put(part.getKey(), new Step<Void>() {
+				@Override
+				Void prepare(Shard shard) throws BookStoreException {
+					for (BookCopy bookCopy : bookCopies) {
+						int ISBN = bookCopy.getISBN();
+						int numCopies = bookCopy.getNumCopies();
+						if (BookStoreUtility.isInvalidISBN(ISBN))
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBN + BookStoreConstants.INVALID);
+						if (!shard.books.containsKey(ISBN))
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBN + BookStoreConstants.INVALID);
+						if (BookStoreUtility.isInvalidNoCopies(numCopies))
+							throw new BookStoreException(
+									BookStoreConstants.NUM_COPIES + numCopies
+											+ BookStoreConstants.INVALID);
+					}
+					return null;
+				}
+
+				@Override
+				void commit(Shard shard) {
+					for (BookCopy bookCopy : bookCopies) {
+						shard.books.get(bookCopy.getISBN()).addCopies(
+								bookCopy.getNumCopies());
+						// Restocking resets the sale misses
+						shard.booksInDemand.remove(bookCopy.getISBN());
+					}
+				}
+			});
+		}
+		this.run(steps);
+	}
+
+	public List<StockBook> getBooks() throws BookStoreException {
+		SortedMap<Integer, Step<List<StockBook>>> steps = new TreeMap<Integer, Step<List<StockBook>>>();
+		for (int i = 0; i < this.shards.length; i++) {
+			steps.put(i, new Step<List<StockBook>>() {
+				@Override
+				List<StockBook> prepare(Shard shard) {
+					List<StockBook> listBooks = new ArrayList<StockBook>();
+					for (BookStoreBook book : shard.books.values()) {
+						listBooks.add(book.immutableStockBook());
+					}
+					return listBooks;
+				}
+			});
+		}
+		return concat(this.run(steps));
+	}
+
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
+			throws BookStoreException {
+		if (editorPicks == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		SortedMap<Integer, List<BookEditorPick>> parts = new TreeMap<Integer, List<BookEditorPick>>();
+		for (BookEditorPick editorPick : editorPicks) {
+			this.partOf(parts, editorPick.getISBN()).add(editorPick);
+		}
+		SortedMap<Integer, Step<Void>> steps = new TreeMap<Integer, Step<Void>>();
+		for (Map.Entry<Integer, List<BookEditorPick>> part : parts.entrySet()) {
+			final List<BookEditorPick> picks = part.getValue();
+			steps.put(part.getKey(), new Step<Void>() {
+				@Override
+				Void prepare(Shard shard) throws BookStoreException {
+					for (BookEditorPick editorPickArg : picks) {
+						int ISBNVal = editorPickArg.getISBN();
+						if (BookStoreUtility.isInvalidISBN(ISBNVal))
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBNVal + BookStoreConstants.INVALID);
+						if (!shard.books.containsKey(ISBNVal))
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBNVal + BookStoreConstants.NOT_AVAILABLE);
+					}
+					return null;
+				}
+
+				@Override
+				void commit(Shard shard) {
+					for (BookEditorPick editorPickArg : picks) {
+						shard.books.get(editorPickArg.getISBN()).setEditorPick(
+								editorPickArg.isEditorPick());
+					}
+				}
+			});
+		}
+		this.run(steps);
+	}
+
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		if (bookCopiesToBuy == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		SortedMap<Integer, List<BookCopy>> parts = new TreeMap<Integer, List<BookCopy>>();
+		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+			this.partOf(parts, bookCopyToBuy.getISBN()).add(bookCopyToBuy);
+		}
+		SortedMap<Integer, Step<Void>> steps = new TreeMap<Integer, Step<Void>>();
+		for (Map.Entry<Integer, List<BookCopy>> part : parts.entrySet()) {
+			final List<BookCopy> bookCopies = part.getValue();
+			steps.put(part.getKey(), new Step<Void>() {
+				@Override
+				Void prepare(Shard shard) throws BookStoreException {
+					for (BookCopy bookCopyToBuy : bookCopies) {
+						int ISBN = bookCopyToBuy.getISBN();
+						if (BookStoreUtility.isInvalidISBN(ISBN))
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBN + BookStoreConstants.INVALID);
+						if (!shard.books.containsKey(ISBN))
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBN + BookStoreConstants.NOT_AVAILABLE);
+						BookStoreBook book = shard.books.get(ISBN);
+						if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+							// If we cannot sell the copies of the book its a
+							// miss, which is kept even though the purchase
+							// fails
+							book.addSaleMiss();
+							shard.booksInDemand.add(ISBN);
+							this.refusal = new BookStoreException(
+									BookStoreConstants.BOOK
+											+ BookStoreConstants.NOT_AVAILABLE);
+						}
+					}
+					return null;
+				}
+
+				@Override
+				void commit(Shard shard) {
+					for (BookCopy bookCopyToBuy : bookCopies) {
+						shard.books.get(bookCopyToBuy.getISBN()).buyCopies(
+								bookCopyToBuy.getNumCopies());
+					}
+				}
+			});
+		}
+		this.run(steps);
+	}
+
+	public List<Book> getBooks(Set<Integer> isbnSet)
+			throws BookStoreException {
+		if (isbnSet == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		SortedMap<Integer, List<Integer>> parts = new TreeMap<Integer, List<Integer>>();
+		for (Integer ISBN : isbnSet) {
+			this.partOf(parts, ISBN).add(ISBN);
+		}
+		SortedMap<Integer, Step<List<Book>>> steps = new TreeMap<Integer, Step<List<Book>>>();
+		for (Map.Entry<Integer, List<Integer>> part : parts.entrySet()) {
+			final List<Integer> ISBNs = part.getValue();
+			steps.put(part.getKey(), new Step<List<Book>>() {
+				@Override
+				List<Book> prepare(Shard shard) throws BookStoreException {
+					List<Book> listBooks = new ArrayList<Book>();
+					for (Integer ISBN : ISBNs) {
+						if (BookStoreUtility.isInvalidISBN(ISBN))
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBN + BookStoreConstants.INVALID);
+						BookStoreBook book = shard.books.get(ISBN);
+						if (book == null)
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBN + BookStoreConstants.NOT_AVAILABLE);
+						listBooks.add(book.immutableBook());
+					}
+					return listBooks;
+				}
+			});
+		}
+		return concat(this.run(steps));
+	}
+
+	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+
+		SortedMap<Integer, Step<List<Book>>> steps = new TreeMap<Integer, Step<List<Book>>>();
+		for (int i = 0; i < this.shards.length; i++) {
+			steps.put(i, new Step<List<Book>>() {
+				@Override
+				List<Book> prepare(Shard shard) {
+					List<Book> listBooks = new ArrayList<Book>();
+					for (BookStoreBook candidate : shard.books.values()) {
+						if (candidate.isEditorPick()) {
+							listBooks.add(candidate.immutableBook());
+						}
+					}
+					return listBooks;
+				}
+			});
+		}
+		List<Book> listAllEditorPicks = concat(this.run(steps));
+
+		// Find numBooks random indices of books that will be picked
+		Random rand = new Random();
+		Set<Integer> tobePicked = new HashSet<Integer>();
+		int rangePicks = listAllEditorPicks.size();
+		if (rangePicks < numBooks) {
+			throw new BookStoreException("Only " + rangePicks
+					+ " editor picks are available.");
+		}
+		while (tobePicked.size() < numBooks) {
+			tobePicked.add(rand.nextInt(rangePicks));
+		}
+
+		// Get the numBooks random books
+		List<Book> listEditorPicks = new ArrayList<Book>();
+		for (Integer index : tobePicked) {
+			listEditorPicks.add(listAllEditorPicks.get(index));
+		}
+		return listEditorPicks;
+	}
+
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
+		}
+		// The index has its own monitor, so there is no need to go through
+		// the shards
+		return this.topRatedIndex.top(numBooks);
+	}
+
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		SortedMap<Integer, Step<List<StockBook>>> steps = new TreeMap<Integer, Step<List<StockBook>>>();
+		for (int i = 0; i < this.shards.length; i++) {
+			steps.put(i, new Step<List<StockBook>>() {
+				@Override
+				List<StockBook> prepare(Shard shard) {
+					List<StockBook> listBooks = new ArrayList<StockBook>();
+					for (Integer ISBN : shard.booksInDemand) {
+						BookStoreBook book = shard.books.get(ISBN);
+						if (book != null && book.hadSaleMiss()) {
+							listBooks.add(book.immutableStockBook());
+						}
+					}
+					return listBooks;
+				}
+			});
+		}
+		return concat(this.run(steps));
+	}
+
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+
+		SortedMap<Integer, List<BookRating>> parts = new TreeMap<Integer, List<BookRating>>();
+		for (BookRating rating : bookRating) {
+			this.partOf(parts, rating.getISBN()).add(rating);
+		}
+		SortedMap<Integer, Step<Void>> steps = new TreeMap<Integer, Step<Void>>();
+		for (Map.Entry<Integer, List<BookRating>> part : parts.entrySet()) {
+			final List<BookRating> ratings = part.getValue();
+			steps.put(part.getKey(), new Step<Void>() {
+				@Override
+				Void prepare(Shard shard) throws BookStoreException {
+					for (BookRating rating : ratings) {
+						int ISBN = rating.getISBN();
+						if (BookStoreUtility.isInvalidISBN(ISBN))
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBN + BookStoreConstants.INVALID);
+						if (!shard.books.containsKey(ISBN))
+							throw new BookStoreException(BookStoreConstants.ISBN
+									+ ISBN + BookStoreConstants.NOT_AVAILABLE);
+						if (BookStoreUtility.isInvalidRating(rating.getRating()))
+							throw new BookStoreException(BookStoreConstants.RATING
+									+ rating.getRating() + BookStoreConstants.INVALID);
+					}
+					return null;
+				}
+
+				@Override
+				void commit(Shard shard) {
+					List<BookStoreBook> ratedBooks = new ArrayList<BookStoreBook>();
+					for (BookRating rating : ratings) {
+						BookStoreBook book = shard.books.get(rating.getISBN());
+						book.addRating(rating.getRating());
+						ratedBooks.add(book);
+					}
+					topRatedIndex.update(ratedBooks);
+				}
+			});
+		}
+		this.run(steps);
+	}
+
+	@Override
+	public void clear() {
+		SortedMap<Integer, Step<Void>> steps = new TreeMap<Integer, Step<Void>>();
+		for (int i = 0; i < this.shards.length; i++) {
+			final boolean first = i == 0;
+			steps.put(i, new Step<Void>() {
+				@Override
+				Void prepare(Shard shard) {
+					return null;
+				}
+
+				@Override
+				void commit(Shard shard) {
+					// Every shard is still served, so no rating can get in
+					// between
+					if (first) {
+						topRatedIndex.clear();
+					}
+					shard.books = new IntHashMap<BookStoreBook>();
+					shard.booksInDemand.clear();
+				}
+			});
+		}
+		try {
+			this.run(steps);
+		} catch (BookStoreException ex) {
+			// Clearing cannot be refused
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	/**
+	 * Returns the list of the elements of a request falling into the shard
+	 * of the ISBN.
+	 */
+	private <E> List<E> partOf(SortedMap<Integer, List<E>> parts, int ISBN) {
+		// Consecutive ISBNs go to consecutive shards
+		int index = Math.abs(ISBN % this.shards.length);
+		List<E> part = parts.get(index);
+		if (part == null) {
+			part = new ArrayList<E>();
+			parts.put(index, part);
+		}
+		return part;
+	}
+
+	/**
+	 * Runs the steps of a request on their shards, keyed by the index of the
+	 * shard, and returns their results in shard order.
+	 */
+	private <R> List<R> run(final SortedMap<Integer, Step<R>> steps)
+			throws BookStoreException {
+		List<R> results = new ArrayList<R>(steps.size());
+		if (steps.size() == 1) {
+			final Step<R> step = steps.get(steps.firstKey());
+			final Shard shard = this.shards[steps.firstKey()];
+			results.add(shard.call(null, new Callable<R>() {
+				@Override
+				public R call() throws BookStoreException {
+					R result = step.prepare(shard);
+					if (step.refusal != null) {
+						throw step.refusal;
+					}
+					step.commit(shard);
+					return result;
+				}
+			}));
+			return results;
+		}
+
+		final Object request = new Object();
+		List<Shard> prepared = new ArrayList<Shard>(steps.size());
+		boolean commit = false;
+		try {
+			BookStoreException refusal = null;
+			for (Map.Entry<Integer, Step<R>> entry : steps.entrySet()) {
+				final Step<R> step = entry.getValue();
+				final Shard shard = this.shards[entry.getKey()];
+				// The shard serves the request from the time it prepares it,
+				// even if it fails
+				prepared.add(shard);
+				results.add(shard.call(request, new Callable<R>() {
+					@Override
+					public R call() throws BookStoreException {
+						shard.owner = request;
+						return step.prepare(shard);
+					}
+				}));
+				if (refusal == null) {
+					refusal = step.refusal;
+				}
+			}
+			if (refusal != null) {
+				throw refusal;
+			}
+			commit = true;
+		} finally {
+			this.finish(request, steps, prepared, commit);
+		}
+		return results;
+	}
+
+	/**
+	 * Commits or aborts a request on the shards that prepared it, which then
+	 * go on to serve other requests.
+	 */
+	private <R> void finish(Object request, SortedMap<Integer, Step<R>> steps,
+			List<Shard> prepared, final boolean commit) {
+		RuntimeException failure = null;
+		for (final Shard shard : prepared) {
+			final Step<R> step = steps.get(shard.index);
+			try {
+				shard.call(request, new Callable<Void>() {
+					@Override
+					public Void call() {
+						try {
+							if (commit) {
+								step.commit(shard);
+							}
+						} finally {
+							shard.owner = null;
+						}
+						return null;
+					}
+				});
+			} catch (RuntimeException ex) {
+				// Go on, so that the other shards are not left waiting
+				if (failure == null) {
+					failure = ex;
+				}
+			} catch (BookStoreException ex) {
+				// Not thrown by commit
+				if (failure == null) {
+					failure = new IllegalStateException(ex);
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private static <E> List<E> concat(List<List<E>> lists) {
+		List<E> all = new ArrayList<E>();
+		for (List<E> list : lists) {
+			all.addAll(list);
+		}
+		return all;
+	}
+}
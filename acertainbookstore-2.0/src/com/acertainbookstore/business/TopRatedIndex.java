@@ -0,0 +1,103 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * TopRatedIndex keeps the rated books ordered by their average rating, so
+ * that the top rated books can be read off the front of the order instead of
+ * sorting the whole catalog.
+ *
+ * The store updates the index in place whenever the ratings of a book may
+ * have changed. Re-positioning a book costs O(log n), and reading the k top
+ * rated books costs O(log n + k).
+ *
+ * All methods are synchronized on the index, so a reader never sees half of
+ * a rateBooks call.
+ *
+ */
+public class TopRatedIndex {
+
+	/**
+	 * The position of a book in the order, fixed at the time it was indexed.
+	 */
+	private static final class Entry implements Comparable<Entry> {
+		private final double averageRating;
+		private final BookStoreBook book;
+
+		private Entry(BookStoreBook book, double averageRating) {
+			this.averageRating = averageRating;
+			this.book = book;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			int byRating = Double.compare(other.averageRating,
+					this.averageRating);
+			if (byRating != 0) {
+				return byRating;
+			}
+			// Ties are broken by ISBN, so that no two books compare equal
+			return Integer.compare(this.book.getISBN(), other.book.getISBN());
+		}
+	}
+
+	private final TreeSet<Entry> order = new TreeSet<Entry>();
+	private final Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+
+	/**
+	 * Brings the index up to date with the ratings of the books. Books that
+	 * have never been rated are not indexed.
+	 *
+	 * @param books
+	 */
+	public synchronized void update(Collection<BookStoreBook> books) {
+		for (BookStoreBook book : books) {
+			Entry old = entries.remove(book.getISBN());
+			if (old != null) {
+				order.remove(old);
+			}
+			// The exact average, BookStoreBook.getAverageRating truncates it
+			double averageRating = book.averageRatingExact();
+			if (averageRating >= 0) {
+				Entry entry = new Entry(book, averageRating);
+				entries.put(book.getISBN(), entry);
+				order.add(entry);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of rated books.
+	 *
+	 * @return
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized void clear() {
+		order.clear();
+		entries.clear();
+	}
+
+	/**
+	 * Returns up to numBooks rated books, highest average rating first.
+	 *
+	 * @param numBooks
+	 * @return
+	 */
+	public synchronized List<Book> top(int numBooks) {
+		List<Book> out = new ArrayList<Book>(Math.min(numBooks, order.size()));
+		Iterator<Entry> it = order.iterator();
+		while (it.hasNext() && out.size() < numBooks) {
+			out.add(it.next().book.immutableBook());
+		}
+		return out;
+	}
+}
@@ -8,6 +8,7 @@ import org.junit.Test;
 
 import com.acertainbookstore.business.BookStoreBook;
 import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
 import com.acertainbookstore.business.StockBook;
 
 public class BookStoreBookTest {
@@ -103,4 +104,88 @@ public class BookStoreBookTest {
 		assertThat(book1.getTimesRated(), is(book.getTimesRated()));
 		assertThat(book1.getTotalRating(), is(book.getTotalRating()));
 	}
+
+	@Test
+	public void testCopyRatings() {
+		long max = 0xFFFFFFFFL;
+		BookStoreBook book = new BookStoreBook(new ImmutableStockBook(1, "Title", "Author", 1.0f, 1, 0, max, max, false));
+		assertThat(book.getTimesRated(), is(max));
+		assertThat(book.getTotalRating(), is(max));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCopyTotalRatingOverflow() {
+		new BookStoreBook(new ImmutableStockBook(1, "Title", "Author", 1.0f, 1, 0, 1, 1L << 32, false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCopyTimesRatedOverflow() {
+		new BookStoreBook(new ImmutableStockBook(1, "Title", "Author", 1.0f, 1, 0, 1L << 32, 1, false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCopyNegativeRatings() {
+		new BookStoreBook(new ImmutableStockBook(1, "Title", "Author", 1.0f, 1, 0, 1, -1, false));
+	}
+
+	@Test
+	public void testStampChangesWithWrites() {
+		long stamp = book1.getStamp();
+		assertThat(stamp % 2, is(0L));
+		book1.setEditorPick(true);
+		book1.addCopies(1);
+		book1.buyCopies(100);
+		assertThat(book1.getStamp(), is(stamp + 4));
+		// The statistics are counted apart from the stamp
+		book1.addRating(4);
+		book1.addSaleMiss();
+		assertThat(book1.getStamp(), is(stamp + 4));
+	}
+
+	@Test
+	public void testConcurrentStatistics() throws Exception {
+		final int perThread = 10000;
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < perThread; j++) {
+						book2.addSaleMiss();
+						book2.addRating(3);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertThat(book2.getSaleMisses(), is((long) threads.length * perThread));
+		assertThat(book2.getTimesRated(), is((long) threads.length * perThread));
+		assertThat(book2.getTotalRating(), is(3L * threads.length * perThread));
+		book2.addCopies(1);
+		assertThat(book2.hadSaleMiss(), is(false));
+	}
+
+	@Test
+	public void testImmutableStockBookWhileWritten() throws Exception {
+		final int ratings = 100000;
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < ratings; i++) {
+					book1.addRating(5);
+				}
+			}
+		};
+		writer.start();
+		// A copy must never see a rating half added
+		while (writer.isAlive()) {
+			StockBook book = book1.immutableStockBook();
+			assertThat(book.getTotalRating(), is(5 * book.getTimesRated()));
+		}
+		writer.join();
+		assertThat(book1.immutableStockBook().getTimesRated(), is((long) ratings));
+	}
 }
@@ -17,6 +17,7 @@ import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookStoreBook;
 import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.IntHashMap;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.utils.BookStoreException;
 
@@ -80,7 +81,7 @@ public class CertainBookStoreTest {
 	
 	@Before
 	public void setupBookMap() {
-		CertainBookStore.getInstance().bookMap = new HashMap<Integer, BookStoreBook>();
+		CertainBookStore.getInstance().bookMap = new IntHashMap<BookStoreBook>();
 		CertainBookStore.getInstance().bookMap.putAll(CertainBookStoreTest.baseMap);
 	}
 
@@ -128,6 +129,13 @@ public class CertainBookStoreTest {
 		books.add(bookInvalidTitle);
 		CertainBookStore.getInstance().addBooks(books);
 	}
+
+	@Test(expected = BookStoreException.class)
+	public void testAddBooksInvalidRatings() throws BookStoreException {
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(4444, "Title", "Author", 10f, 1, 0, 1, 1L << 32, false));
+		CertainBookStore.getInstance().addBooks(books);
+	}
 	
 	@Test
 	public void testAddCopies() throws BookStoreException {
@@ -16,12 +16,15 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import static org.hamcrest.CoreMatchers.*;
 
+import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookStoreBook;
 import com.acertainbookstore.business.ConcurrentCertainBookStore;
+import com.acertainbookstore.business.ConcurrentIntHashMap;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 
 import java.util.UUID;
@@ -77,7 +80,7 @@ public class ConcurrentCertainBookStoreTest {
 	
 	@Before
 	public void setupBookMap() {
-		ConcurrentCertainBookStore.getInstance().bookMap = new HashMap<Integer, BookStoreBook>();
+		ConcurrentCertainBookStore.getInstance().bookMap = new ConcurrentIntHashMap<BookStoreBook>();
 		for(BookStoreBook book : baseMap.values()) {
 			BookStoreBook copy = new BookStoreBook(book.getISBN(), book.getTitle(), book.getAuthor(), book.getPrice(), book.getNumCopies());
 			ConcurrentCertainBookStore.getInstance().bookMap.put(book.getISBN(), copy);
@@ -203,6 +206,63 @@ public class ConcurrentCertainBookStoreTest {
 		}
 	}
 
+	@Test
+	public void testGetBooksWhileCatalogChanges() {
+		final Set<StockBook> batch = new HashSet<StockBook>();
+		final Set<Integer> batchISBNs = new HashSet<Integer>();
+		for (int i = 0; i < 50; i++) {
+			BookStoreBook book = ConcurrentCertainBookStoreTest.generateRandomBook(200001 + i);
+			batch.add(book.immutableStockBook());
+			batchISBNs.add(book.getISBN());
+		}
+
+		// Adds the batch and clears the catalog again, over and over
+		final Runnable c1 = new Runnable() {
+			@Override
+			public void run() {
+				while(true) {
+					if(Thread.interrupted()) break;
+					try {
+						manager.addBooks(batch);
+						manager.clear();
+					} catch (BookStoreException ex) {
+						ex.printStackTrace();
+						fail();
+					}
+				}
+			}
+		};
+
+		// Finds the whole batch, or fails on a book of it that is missing
+		final Runnable c2 = new Runnable() {
+			@Override
+			public void run() {
+				for(int i = 0; i < 20000; i++) {
+					try {
+						List<Book> books = client.getBooks(batchISBNs);
+						assertThat(books.size(), is(batch.size()));
+						for(Book book : books) {
+							assertTrue(batchISBNs.contains(book.getISBN()));
+						}
+					} catch (BookStoreException ex) {
+						assertTrue(ex.getMessage(), ex.getMessage().endsWith(BookStoreConstants.NOT_AVAILABLE));
+					}
+				}
+			}
+		};
+
+		Future<?> f1 = executor.submit(c1);
+		Future<?> f2 = executor.submit(c2);
+
+		try {
+			f2.get();
+			f1.cancel(true);
+		} catch (InterruptedException | ExecutionException e) {
+			e.printStackTrace();
+			fail();
+		}
+	}
+
 	/*
 	@Test
 	public void test3() {
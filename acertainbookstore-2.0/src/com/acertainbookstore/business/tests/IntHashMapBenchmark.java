@@ -0,0 +1,100 @@
+package com.acertainbookstore.business.tests;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.acertainbookstore.business.BookStoreBook;
+import com.acertainbookstore.business.ConcurrentIntHashMap;
+import com.acertainbookstore.business.IntHashMap;
+
+/**
+ * Compares the memory footprint and lookup latency of the catalog maps
+ * IntHashMap and ConcurrentIntHashMap against HashMap<Integer, BookStoreBook>.
+ * 
+ * Not a unit test, run it through main with the number of books as the
+ * optional argument, preferably with a heap large enough for all three maps.
+ */
+public class IntHashMapBenchmark {
+	private static final int LOOKUPS = 10000000;
+
+	public static void main(String[] args) {
+		int numBooks = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		Random random = new Random();
+		int[] isbns = new int[numBooks];
+		BookStoreBook[] books = new BookStoreBook[numBooks];
+		for (int i = 0; i < numBooks; i++) {
+			isbns[i] = 1 + random.nextInt(Integer.MAX_VALUE - 1);
+			books[i] = new BookStoreBook(isbns[i], "Title", "Author", 10f, 1);
+		}
+		int[] lookups = new int[LOOKUPS];
+		for (int i = 0; i < LOOKUPS; i++) {
+			lookups[i] = isbns[random.nextInt(numBooks)];
+		}
+
+		long before = usedMemory();
+		Map<Integer, BookStoreBook> hashMap = new HashMap<Integer, BookStoreBook>();
+		for (int i = 0; i < numBooks; i++) {
+			hashMap.put(isbns[i], books[i]);
+		}
+		report("HashMap", numBooks, usedMemory() - before);
+
+		before = usedMemory();
+		IntHashMap<BookStoreBook> intMap = new IntHashMap<BookStoreBook>();
+		for (int i = 0; i < numBooks; i++) {
+			intMap.put(isbns[i], books[i]);
+		}
+		report("IntHashMap", numBooks, usedMemory() - before);
+
+		before = usedMemory();
+		ConcurrentIntHashMap<BookStoreBook> concurrentMap = new ConcurrentIntHashMap<BookStoreBook>();
+		for (int i = 0; i < numBooks; i++) {
+			concurrentMap.put(isbns[i], books[i]);
+		}
+		report("ConcurrentIntHashMap", numBooks, usedMemory() - before);
+
+		// Run every lookup loop a few times, so that the JIT has warmed up
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			long found = 0;
+			for (int i = 0; i < LOOKUPS; i++) {
+				found += hashMap.get(lookups[i]).getNumCopies();
+			}
+			reportLatency("HashMap", start, found);
+
+			start = System.nanoTime();
+			found = 0;
+			for (int i = 0; i < LOOKUPS; i++) {
+				found += intMap.get(lookups[i]).getNumCopies();
+			}
+			reportLatency("IntHashMap", start, found);
+
+			start = System.nanoTime();
+			found = 0;
+			for (int i = 0; i < LOOKUPS; i++) {
+				found += concurrentMap.get(lookups[i]).getNumCopies();
+			}
+			reportLatency("ConcurrentIntHashMap", start, found);
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void report(String name, int numBooks, long bytes) {
+		System.out.println(String.format(
+				"%s: %d bytes for %d books, %.1f bytes per book", name, bytes,
+				numBooks, bytes / (double) numBooks));
+	}
+
+	private static void reportLatency(String name, long start, long found) {
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%s: %.1f ns per lookup (%d)", name,
+				elapsed / (double) LOOKUPS, found));
+	}
+}
@@ -0,0 +1,135 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.ShardedCertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+public class ShardedCertainBookStoreTest {
+	private static final int SHARDS = 4;
+	private static final int COPIES = 1000;
+
+	private ShardedCertainBookStore store;
+
+	@Before
+	public void createStore() throws BookStoreException {
+		store = new ShardedCertainBookStore(SHARDS);
+		Set<StockBook> books = new HashSet<StockBook>();
+		for (int i = 1; i <= 2 * SHARDS; i++) {
+			books.add(new ImmutableStockBook(i, "Title " + i, "Author " + i,
+					10.0f, COPIES, 0, 0, 0, false));
+		}
+		store.addBooks(books);
+	}
+
+	private Map<Integer, StockBook> stock() throws BookStoreException {
+		Map<Integer, StockBook> stock = new HashMap<Integer, StockBook>();
+		for (StockBook book : store.getBooks()) {
+			stock.put(book.getISBN(), book);
+		}
+		return stock;
+	}
+
+	@Test
+	public void testGetBooks() throws BookStoreException {
+		assertThat(stock().size(), is(2 * SHARDS));
+		Set<Integer> ISBNs = new HashSet<Integer>();
+		ISBNs.add(1);
+		ISBNs.add(2);
+		ISBNs.add(3);
+		assertThat(store.getBooks(ISBNs).size(), is(3));
+	}
+
+	@Test
+	public void testBuyAcrossShardsIsAllOrNothing() throws BookStoreException {
+		Set<BookCopy> order = new HashSet<BookCopy>();
+		order.add(new BookCopy(1, 1));
+		order.add(new BookCopy(2, COPIES + 1));
+		try {
+			store.buyBooks(order);
+			fail("The purchase must fail for lack of copies");
+		} catch (BookStoreException ex) {
+		}
+		assertThat(stock().get(1).getNumCopies(), is(COPIES));
+		assertThat(stock().get(2).getSaleMisses(), is(1L));
+		List<StockBook> inDemand = store.getBooksInDemand();
+		assertThat(inDemand.size(), is(1));
+		assertThat(inDemand.get(0).getISBN(), is(2));
+
+		order.clear();
+		order.add(new BookCopy(1, 1));
+		order.add(new BookCopy(-1, 1));
+		try {
+			store.buyBooks(order);
+			fail("The purchase must fail for the invalid ISBN");
+		} catch (BookStoreException ex) {
+		}
+		assertThat(stock().get(1).getNumCopies(), is(COPIES));
+
+		order.clear();
+		order.add(new BookCopy(1, 1));
+		order.add(new BookCopy(2, 2));
+		store.buyBooks(order);
+		assertThat(stock().get(1).getNumCopies(), is(COPIES - 1));
+		assertThat(stock().get(2).getNumCopies(), is(COPIES - 2));
+	}
+
+	@Test
+	public void testConcurrentPurchasesAcrossShards() throws Exception {
+		final int threads = 4;
+		final Set<BookCopy> order = new HashSet<BookCopy>();
+		order.add(new BookCopy(1, 1));
+		order.add(new BookCopy(2, 1));
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		Thread[] buyers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			buyers[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < COPIES / threads; j++) {
+						try {
+							store.buyBooks(order);
+						} catch (BookStoreException ex) {
+							failed.set(true);
+						}
+					}
+				}
+			};
+			buyers[i].start();
+		}
+		// Every reader sees both books of a purchase bought, or neither
+		boolean buying = true;
+		while (buying) {
+			buying = false;
+			for (Thread buyer : buyers) {
+				buying |= buyer.isAlive();
+			}
+			Map<Integer, StockBook> stock = stock();
+			assertThat(stock.get(1).getNumCopies(), is(stock.get(2)
+					.getNumCopies()));
+		}
+		assertThat(failed.get(), is(false));
+		assertThat(stock().get(1).getNumCopies(), is(0));
+		assertThat(stock().get(2).getNumCopies(), is(0));
+	}
+
+	@Test
+	public void testClear() throws BookStoreException {
+		store.clear();
+		assertThat(store.getBooks().size(), is(0));
+	}
+}
@@ -0,0 +1,16 @@
+package com.acertainbookstore.locking;
+
+/**
+ * Thrown by {@link LockManager} to a transaction whose lock request would
+ * have closed a cycle of transactions waiting for each other. The request is
+ * withdrawn, but the transaction keeps the locks it already holds, and has to
+ * release them before it can be retried.
+ *
+ */
+public class DeadlockException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	public DeadlockException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,540 @@
+package com.acertainbookstore.locking;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LockManager hands out locks on individual resources to transactions, for
+ * strict two-phase locking: a transaction takes locks as it goes, and
+ * releases all of them at once when it ends.
+ *
+ * Resources can be locked in the modes of multiple granularity locking, so
+ * that a resource standing for a whole collection, such as a catalog, is
+ * locked in an intention mode (IS, IX) by transactions that go on to lock
+ * some of its members, and in a plain mode (S, X) by transactions that work
+ * on the collection as a whole.
+ *
+ * Every resource has its own monitor and its own FIFO queue of waiting
+ * requests, created when the resource is first locked and dropped when its
+ * last lock is released, so transactions on different resources never wait
+ * for each other. A request is granted once it is compatible with the locks
+ * held by other transactions and with the requests queued before it. A
+ * transaction asking for a stronger mode on a resource it holds already is
+ * queued first, as the requests before it may be waiting for it.
+ *
+ * A transaction that has to wait looks for a cycle in the graph of
+ * transactions waiting for each other, starting from itself. The request
+ * closing a cycle is the only one that can see the whole cycle, so it is
+ * withdrawn and its transaction gets a {@link DeadlockException}. The search
+ * runs one at a time, and only on the slow path of a transaction about to
+ * wait.
+ *
+ * The waits and holds of the locks can be sampled into
+ * {@link LockManagerStatistics}, see enableStatistics.
+ *
+ */
+public class LockManager {
+
+	/**
+	 * The modes a resource can be locked in.
+	 */
+	public enum LockMode {
+		IS, IX, S, X;
+
+		private static final boolean[][] COMPATIBLE = {
+				// IS    IX     S      X
+				{ true, true, true, false }, // IS
+				{ true, true, false, false }, // IX
+				{ true, false, true, false }, // S
+				{ false, false, false, false } }; // X
+
+		public boolean isCompatibleWith(LockMode other) {
+			return COMPATIBLE[this.ordinal()][other.ordinal()];
+		}
+
+		/**
+		 * Returns the weakest mode that grants both this mode and other. As
+		 * there is no SIX mode, holding S and IX takes X.
+		 */
+		LockMode join(LockMode other) {
+			if (this == other || other == IS) {
+				return this;
+			}
+			if (this == IS) {
+				return other;
+			}
+			return X;
+		}
+	}
+
+	/**
+	 * A transaction holding locks. It must only be used by one thread at a
+	 * time.
+	 */
+	public static final class Transaction {
+		private final long id;
+		// The locks held by the transaction
+		private final Map<Object, LockMode> held = new HashMap<Object, LockMode>();
+		// The request the transaction is waiting for, read by the search
+		private volatile Request waitingFor;
+		// Set if the transaction is sampled, along with when it took each lock
+		private final LockManagerStatistics statistics;
+		private final Map<Object, Long> heldSince;
+
+		private Transaction(long id, LockManagerStatistics statistics) {
+			this.id = id;
+			this.statistics = statistics;
+			this.heldSince = statistics == null ? null
+					: new HashMap<Object, Long>();
+		}
+
+		public long getId() {
+			return this.id;
+		}
+
+		/**
+		 * Returns the mode the transaction holds the resource in, or null.
+		 */
+		public LockMode getMode(Object key) {
+			return this.held.get(key);
+		}
+
+		@Override
+		public String toString() {
+			return "Transaction " + this.id;
+		}
+	}
+
+	/**
+	 * A request waiting for a resource. Its fields are guarded by the
+	 * monitor of the resource.
+	 */
+	private static final class Request {
+		private final Transaction transaction;
+		private final LockMode mode;
+		private final Resource resource;
+		private boolean granted = false;
+
+		private Request(Transaction transaction, LockMode mode,
+				Resource resource) {
+			this.transaction = transaction;
+			this.mode = mode;
+			this.resource = resource;
+		}
+	}
+
+	/**
+	 * The locks on one resource. Its fields are guarded by its monitor.
+	 */
+	private static final class Resource {
+		private final Object key;
+		private final Map<Transaction, LockMode> granted = new HashMap<Transaction, LockMode>(4);
+		private final LinkedList<Request> waiting = new LinkedList<Request>();
+		// Set once the resource has been dropped from the lock table
+		private boolean removed = false;
+
+		private Resource(Object key) {
+			this.key = key;
+		}
+	}
+
+	private final ConcurrentHashMap<Object, Resource> resources = new ConcurrentHashMap<Object, Resource>();
+	private final AtomicLong transactionIds = new AtomicLong();
+	// Searches for cycles run one at a time, while holding this monitor
+	private final Object detector = new Object();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong deadlocks = new AtomicLong();
+	private final AtomicInteger queueLength = new AtomicInteger();
+	private volatile LockManagerStatistics statistics;
+	// Transactions of the thread left until the next sample
+	private final ThreadLocal<int[]> untilSample = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[] { 1 };
+		}
+	};
+
+	public Transaction begin() {
+		return new Transaction(this.transactionIds.incrementAndGet(),
+				this.sampleStatistics());
+	}
+
+	/**
+	 * Starts sampling the waits and holds of the locks of one in every
+	 * sampleRate transactions of each thread, unless they are sampled
+	 * already.
+	 *
+	 * @param sampleRate
+	 * @return the statistics being recorded
+	 */
+	public synchronized LockManagerStatistics enableStatistics(int sampleRate) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("sampleRate = " + sampleRate
+					+ ", but it must be positive");
+		}
+		if (this.statistics == null) {
+			this.statistics = new LockManagerStatistics(this, sampleRate);
+		}
+		return this.statistics;
+	}
+
+	/**
+	 * Stops sampling the locks.
+	 */
+	public synchronized void disableStatistics() {
+		this.statistics = null;
+	}
+
+	/**
+	 * Locks the resource for the transaction, waiting as long as it takes,
+	 * unless that would deadlock.
+	 *
+	 * @param transaction
+	 * @param key
+	 * @param mode
+	 * @throws InterruptedException
+	 * @throws DeadlockException
+	 */
+	public void lock(Transaction transaction, Object key, LockMode mode)
+			throws InterruptedException, DeadlockException {
+		this.acquire(transaction, key, mode, -1L);
+	}
+
+	/**
+	 * Locks the resource for the transaction like lock, unless that takes
+	 * longer than the timeout.
+	 *
+	 * @param transaction
+	 * @param key
+	 * @param mode
+	 * @param timeout
+	 * @param unit
+	 * @return whether the resource was locked
+	 * @throws InterruptedException
+	 * @throws DeadlockException
+	 */
+	public boolean tryLock(Transaction transaction, Object key, LockMode mode,
+			long timeout, TimeUnit unit) throws InterruptedException,
+			DeadlockException {
+		return this.acquire(transaction, key, mode,
+				Math.max(0L, unit.toNanos(timeout)));
+	}
+
+	/**
+	 * Releases every lock of the transaction, which ends it.
+	 *
+	 * @param transaction
+	 */
+	public void releaseAll(Transaction transaction) {
+		LockManagerStatistics stats = transaction.statistics;
+		long now = stats == null ? 0 : System.nanoTime();
+		for (Map.Entry<Object, LockMode> lock : transaction.held.entrySet()) {
+			Object key = lock.getKey();
+			Resource resource = this.resources.get(key);
+			synchronized (resource) {
+				resource.granted.remove(transaction);
+				this.grantWaiting(resource);
+				this.dropIfUnused(resource);
+			}
+			if (stats != null) {
+				stats.recordHold(lock.getValue(),
+						now - transaction.heldSince.remove(key));
+			}
+		}
+		transaction.held.clear();
+	}
+
+	/**
+	 * Returns the number of lock requests that had to wait.
+	 */
+	public long getWaitCount() {
+		return this.waits.get();
+	}
+
+	/**
+	 * Returns the number of lock requests withdrawn to break a deadlock.
+	 */
+	public long getDeadlockCount() {
+		return this.deadlocks.get();
+	}
+
+	/**
+	 * Returns the number of lock requests waiting.
+	 */
+	public int getQueueLength() {
+		return this.queueLength.get();
+	}
+
+	/**
+	 * Returns the number of resources locked or waited for.
+	 */
+	public int getLockedResourceCount() {
+		return this.resources.size();
+	}
+
+	private boolean acquire(Transaction transaction, Object key,
+			LockMode mode, long timeout) throws InterruptedException,
+			DeadlockException {
+		LockMode held = transaction.held.get(key);
+		LockMode wanted = held == null ? mode : held.join(mode);
+		if (wanted == held) {
+			return true;
+		}
+		long start = transaction.statistics == null ? 0 : System.nanoTime();
+		long deadline = System.nanoTime() + timeout;
+		Request request = null;
+		while (request == null) {
+			Resource resource = this.resourceFor(key);
+			synchronized (resource) {
+				if (resource.removed) {
+					continue;
+				}
+				if (isGrantable(resource, transaction, wanted,
+						held == null ? resource.waiting.size() : 0)) {
+					resource.granted.put(transaction, wanted);
+					transaction.held.put(key, wanted);
+					sampleWait(transaction, key, held, wanted, start);
+					return true;
+				}
+				request = new Request(transaction, wanted, resource);
+				if (held == null) {
+					resource.waiting.addLast(request);
+				} else {
+					resource.waiting.addFirst(request);
+				}
+				this.queueLength.incrementAndGet();
+				transaction.waitingFor = request;
+			}
+		}
+		this.waits.incrementAndGet();
+
+		synchronized (this.detector) {
+			if (this.closesCycle(transaction)) {
+				this.withdraw(request);
+				this.deadlocks.incrementAndGet();
+				throw new DeadlockException(transaction
+						+ " would deadlock waiting for " + key);
+			}
+		}
+
+		Resource resource = request.resource;
+		synchronized (resource) {
+			try {
+				while (!request.granted) {
+					if (timeout < 0) {
+						resource.wait();
+					} else {
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							this.withdraw(request);
+							return false;
+						}
+						TimeUnit.NANOSECONDS.timedWait(resource, remaining);
+					}
+				}
+			} catch (InterruptedException ex) {
+				if (!request.granted) {
+					this.withdraw(request);
+					throw ex;
+				}
+				// Granted meanwhile, keep the lock and the interrupt
+				Thread.currentThread().interrupt();
+			}
+		}
+		transaction.waitingFor = null;
+		transaction.held.put(key, wanted);
+		sampleWait(transaction, key, held, wanted, start);
+		return true;
+	}
+
+	/**
+	 * Returns the statistics if the transaction being begun is to be
+	 * sampled, or null.
+	 */
+	private LockManagerStatistics sampleStatistics() {
+		LockManagerStatistics stats = this.statistics;
+		if (stats == null) {
+			return null;
+		}
+		int[] countdown = this.untilSample.get();
+		if (--countdown[0] > 0) {
+			return null;
+		}
+		countdown[0] = stats.getSampleRate();
+		return stats;
+	}
+
+	/**
+	 * Records the wait of a lock granted to a sampled transaction, and when
+	 * the transaction started to hold the resource.
+	 */
+	private static void sampleWait(Transaction transaction, Object key,
+			LockMode held, LockMode mode, long start) {
+		LockManagerStatistics stats = transaction.statistics;
+		if (stats == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		stats.recordWait(mode, now - start);
+		if (held == null) {
+			transaction.heldSince.put(key, now);
+		}
+	}
+
+	private Resource resourceFor(Object key) {
+		Resource resource = this.resources.get(key);
+		if (resource == null) {
+			Resource created = new Resource(key);
+			resource = this.resources.putIfAbsent(key, created);
+			if (resource == null) {
+				resource = created;
+			}
+		}
+		return resource;
+	}
+
+	/**
+	 * Returns whether the transaction can lock the resource in mode next to
+	 * the other holders and the first queued waiting requests. Only called
+	 * while holding the monitor of the resource.
+	 */
+	private static boolean isGrantable(Resource resource,
+			Transaction transaction, LockMode mode, int queued) {
+		for (Map.Entry<Transaction, LockMode> holder : resource.granted
+				.entrySet()) {
+			if (holder.getKey() != transaction
+					&& !mode.isCompatibleWith(holder.getValue())) {
+				return false;
+			}
+		}
+		Iterator<Request> waiting = resource.waiting.iterator();
+		for (int i = 0; i < queued; i++) {
+			if (!mode.isCompatibleWith(waiting.next().mode)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Grants every waiting request that has become grantable, and wakes their
+	 * transactions. Only called while holding the monitor of the resource.
+	 */
+	private void grantWaiting(Resource resource) {
+		boolean granted = false;
+		int queued = 0;
+		Iterator<Request> waiting = resource.waiting.iterator();
+		while (waiting.hasNext()) {
+			Request request = waiting.next();
+			if (isGrantable(resource, request.transaction, request.mode, queued)) {
+				waiting.remove();
+				this.queueLength.decrementAndGet();
+				resource.granted.put(request.transaction, request.mode);
+				request.granted = true;
+				granted = true;
+			} else {
+				queued++;
+			}
+		}
+		if (granted) {
+			resource.notifyAll();
+		}
+	}
+
+	/**
+	 * Removes a request that gave up from its queue, and grants the requests
+	 * it held back.
+	 */
+	private void withdraw(Request request) {
+		Resource resource = request.resource;
+		synchronized (resource) {
+			if (resource.waiting.remove(request)) {
+				this.queueLength.decrementAndGet();
+			}
+			this.grantWaiting(resource);
+			this.dropIfUnused(resource);
+		}
+		request.transaction.waitingFor = null;
+	}
+
+	/**
+	 * Drops the resource from the lock table once nobody holds or waits for
+	 * it. Only called while holding the monitor of the resource.
+	 */
+	private void dropIfUnused(Resource resource) {
+		if (resource.granted.isEmpty() && resource.waiting.isEmpty()) {
+			resource.removed = true;
+			this.resources.remove(resource.key, resource);
+		}
+	}
+
+	/**
+	 * Returns whether the transactions that start is waiting for are, through
+	 * the transactions they wait for in turn, waiting for start. Only called
+	 * while holding the monitor of the detector.
+	 */
+	private boolean closesCycle(Transaction start) {
+		Set<Transaction> visited = new HashSet<Transaction>();
+		Deque<Transaction> pending = new ArrayDeque<Transaction>();
+		pending.push(start);
+		while (!pending.isEmpty()) {
+			Request request = pending.pop().waitingFor;
+			if (request == null) {
+				continue;
+			}
+			for (Transaction blocker : blockers(request)) {
+				if (blocker == start) {
+					return true;
+				}
+				if (visited.add(blocker)) {
+					pending.push(blocker);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the transactions a waiting request waits for: the holders it is
+	 * not compatible with, and the transactions of the requests queued before
+	 * it that it is not compatible with.
+	 */
+	private static List<Transaction> blockers(Request request) {
+		Resource resource = request.resource;
+		synchronized (resource) {
+			if (request.granted) {
+				return Collections.emptyList();
+			}
+			List<Transaction> blockers = new ArrayList<Transaction>();
+			for (Map.Entry<Transaction, LockMode> holder : resource.granted
+					.entrySet()) {
+				if (holder.getKey() != request.transaction
+						&& !request.mode.isCompatibleWith(holder.getValue())) {
+					blockers.add(holder.getKey());
+				}
+			}
+			for (Request queued : resource.waiting) {
+				if (queued == request) {
+					break;
+				}
+				if (!request.mode.isCompatibleWith(queued.mode)) {
+					blockers.add(queued.transaction);
+				}
+			}
+			return blockers;
+		}
+	}
+}
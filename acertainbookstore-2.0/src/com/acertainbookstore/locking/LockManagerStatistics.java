@@ -0,0 +1,143 @@
+package com.acertainbookstore.locking;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import com.acertainbookstore.locking.LockManager.LockMode;
+
+/**
+ * LockManagerStatistics records how long transactions wait for and hold the
+ * locks of a {@link LockManager}, separately for each lock mode, and
+ * publishes it along with the current state of the lock table, the number of
+ * waits and the number of deadlocks broken as a JMX MBean.
+ *
+ * Like {@link LockStatistics}, only one in every sampleRate transactions of
+ * a thread is timed, and the thread decides that on its own counter when it
+ * begins the transaction, so transactions that are not sampled share
+ * nothing.
+ *
+ */
+public class LockManagerStatistics implements LockManagerStatisticsMBean {
+	private final LockManager lockManager;
+	private final int sampleRate;
+	// Histograms by lock mode
+	private final AtomicLongArray[] waits;
+	private final AtomicLongArray[] holds;
+
+	LockManagerStatistics(LockManager lockManager, int sampleRate) {
+		this.lockManager = lockManager;
+		this.sampleRate = sampleRate;
+		int modes = LockMode.values().length;
+		this.waits = new AtomicLongArray[modes];
+		this.holds = new AtomicLongArray[modes];
+		for (int mode = 0; mode < modes; mode++) {
+			this.waits[mode] = new AtomicLongArray(LockStatistics.BUCKETS);
+			this.holds[mode] = new AtomicLongArray(LockStatistics.BUCKETS);
+		}
+	}
+
+	/**
+	 * Registers the statistics with the platform MBean server, named after
+	 * the lock manager.
+	 *
+	 * @param name
+	 * @return the name the statistics were registered under
+	 * @throws JMException
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName(
+				"com.acertainbookstore:type=LockManager,name="
+						+ ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				objectName);
+		return objectName;
+	}
+
+	void recordWait(LockMode mode, long nanos) {
+		this.waits[mode.ordinal()].incrementAndGet(LockStatistics
+				.bucket(nanos));
+	}
+
+	void recordHold(LockMode mode, long nanos) {
+		this.holds[mode.ordinal()].incrementAndGet(LockStatistics
+				.bucket(nanos));
+	}
+
+	@Override
+	public int getSampleRate() {
+		return this.sampleRate;
+	}
+
+	@Override
+	public int getLockedResourceCount() {
+		return this.lockManager.getLockedResourceCount();
+	}
+
+	@Override
+	public int getQueueLength() {
+		return this.lockManager.getQueueLength();
+	}
+
+	@Override
+	public long getWaitCount() {
+		return this.lockManager.getWaitCount();
+	}
+
+	@Override
+	public long getDeadlockCount() {
+		return this.lockManager.getDeadlockCount();
+	}
+
+	@Override
+	public long[] getISWaitHistogram() {
+		return LockStatistics.snapshot(this.waits[LockMode.IS.ordinal()]);
+	}
+
+	@Override
+	public long[] getIXWaitHistogram() {
+		return LockStatistics.snapshot(this.waits[LockMode.IX.ordinal()]);
+	}
+
+	@Override
+	public long[] getSWaitHistogram() {
+		return LockStatistics.snapshot(this.waits[LockMode.S.ordinal()]);
+	}
+
+	@Override
+	public long[] getXWaitHistogram() {
+		return LockStatistics.snapshot(this.waits[LockMode.X.ordinal()]);
+	}
+
+	@Override
+	public long[] getISHoldHistogram() {
+		return LockStatistics.snapshot(this.holds[LockMode.IS.ordinal()]);
+	}
+
+	@Override
+	public long[] getIXHoldHistogram() {
+		return LockStatistics.snapshot(this.holds[LockMode.IX.ordinal()]);
+	}
+
+	@Override
+	public long[] getSHoldHistogram() {
+		return LockStatistics.snapshot(this.holds[LockMode.S.ordinal()]);
+	}
+
+	@Override
+	public long[] getXHoldHistogram() {
+		return LockStatistics.snapshot(this.holds[LockMode.X.ordinal()]);
+	}
+
+	@Override
+	public void reset() {
+		for (int mode = 0; mode < this.waits.length; mode++) {
+			for (int i = 0; i < LockStatistics.BUCKETS; i++) {
+				this.waits[mode].set(i, 0);
+				this.holds[mode].set(i, 0);
+			}
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.acertainbookstore.locking;
+
+/**
+ * The management interface of {@link LockManagerStatistics}.
+ *
+ * The histograms count the locks of sampled transactions by their wait or
+ * hold time in nanoseconds, in the buckets of {@link LockStatisticsMBean}. A
+ * lock is counted under the mode it was granted in, and its hold under the
+ * mode it was released in.
+ *
+ */
+public interface LockManagerStatisticsMBean {
+
+	/**
+	 * Returns how many transactions of a thread make up one sample.
+	 */
+	public int getSampleRate();
+
+	/**
+	 * Returns the number of resources locked or waited for.
+	 */
+	public int getLockedResourceCount();
+
+	/**
+	 * Returns the number of lock requests waiting.
+	 */
+	public int getQueueLength();
+
+	/**
+	 * Returns the number of lock requests that had to wait.
+	 */
+	public long getWaitCount();
+
+	/**
+	 * Returns the number of lock requests withdrawn to break a deadlock,
+	 * whose transactions were aborted.
+	 */
+	public long getDeadlockCount();
+
+	public long[] getISWaitHistogram();
+
+	public long[] getIXWaitHistogram();
+
+	public long[] getSWaitHistogram();
+
+	public long[] getXWaitHistogram();
+
+	public long[] getISHoldHistogram();
+
+	public long[] getIXHoldHistogram();
+
+	public long[] getSHoldHistogram();
+
+	public long[] getXHoldHistogram();
+
+	/**
+	 * Clears the histograms.
+	 */
+	public void reset();
+}
@@ -0,0 +1,158 @@
+package com.acertainbookstore.locking;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * LockStatistics records how long threads wait for and hold a
+ * {@link ReentrantRWLock}, separately for each lock mode, and publishes it
+ * along with the current state of the lock as a JMX MBean.
+ *
+ * Only one in every sampleRate outermost acquisitions of a thread is timed,
+ * and the thread decides that on its own counter, so the lock pays for two
+ * clock reads and a histogram update once per sample, and threads that are
+ * not sampled share nothing.
+ *
+ */
+public class LockStatistics implements LockStatisticsMBean {
+	// Wait and hold times up to 2^38 nanoseconds, about 4.5 minutes
+	static final int BUCKETS = 40;
+
+	private final ReentrantRWLock lock;
+	private final int sampleRate;
+	// Histograms by lock mode
+	private final AtomicLongArray[] waits = new AtomicLongArray[3];
+	private final AtomicLongArray[] holds = new AtomicLongArray[3];
+	private final AtomicLong upgrades = new AtomicLong();
+
+	LockStatistics(ReentrantRWLock lock, int sampleRate) {
+		this.lock = lock;
+		this.sampleRate = sampleRate;
+		for (int mode = 0; mode < 3; mode++) {
+			this.waits[mode] = new AtomicLongArray(BUCKETS);
+			this.holds[mode] = new AtomicLongArray(BUCKETS);
+		}
+	}
+
+	/**
+	 * Registers the statistics with the platform MBean server, named after
+	 * the lock.
+	 *
+	 * @param name
+	 * @return the name the statistics were registered under
+	 * @throws JMException
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName(
+				"com.acertainbookstore:type=ReentrantRWLock,name="
+						+ ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				objectName);
+		return objectName;
+	}
+
+	void recordWait(int mode, long nanos) {
+		this.waits[mode].incrementAndGet(bucket(nanos));
+	}
+
+	void recordHold(int mode, long nanos) {
+		this.holds[mode].incrementAndGet(bucket(nanos));
+	}
+
+	void recordUpgrade() {
+		this.upgrades.incrementAndGet();
+	}
+
+	@Override
+	public int getSampleRate() {
+		return this.sampleRate;
+	}
+
+	@Override
+	public int getReaderCount() {
+		return this.lock.getReaderCount();
+	}
+
+	@Override
+	public boolean isWriteLocked() {
+		return this.lock.isWriteLocked();
+	}
+
+	@Override
+	public boolean isUpdateLocked() {
+		return this.lock.isUpdateLocked();
+	}
+
+	@Override
+	public int getQueueLength() {
+		return this.lock.getQueueLength();
+	}
+
+	@Override
+	public long getHandoffCount() {
+		return this.lock.getHandoffCount();
+	}
+
+	@Override
+	public long getUpgradeCount() {
+		return this.upgrades.get();
+	}
+
+	@Override
+	public long[] getReadWaitHistogram() {
+		return snapshot(this.waits[ReentrantRWLock.READ]);
+	}
+
+	@Override
+	public long[] getUpdateWaitHistogram() {
+		return snapshot(this.waits[ReentrantRWLock.UPDATE]);
+	}
+
+	@Override
+	public long[] getWriteWaitHistogram() {
+		return snapshot(this.waits[ReentrantRWLock.WRITE]);
+	}
+
+	@Override
+	public long[] getReadHoldHistogram() {
+		return snapshot(this.holds[ReentrantRWLock.READ]);
+	}
+
+	@Override
+	public long[] getUpdateHoldHistogram() {
+		return snapshot(this.holds[ReentrantRWLock.UPDATE]);
+	}
+
+	@Override
+	public long[] getWriteHoldHistogram() {
+		return snapshot(this.holds[ReentrantRWLock.WRITE]);
+	}
+
+	@Override
+	public void reset() {
+		for (int mode = 0; mode < 3; mode++) {
+			for (int i = 0; i < BUCKETS; i++) {
+				this.waits[mode].set(i, 0);
+				this.holds[mode].set(i, 0);
+			}
+		}
+		this.upgrades.set(0);
+	}
+
+	static int bucket(long nanos) {
+		int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0L, nanos));
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	static long[] snapshot(AtomicLongArray histogram) {
+		long[] counts = new long[histogram.length()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = histogram.get(i);
+		}
+		return counts;
+	}
+}
@@ -0,0 +1,50 @@
+package com.acertainbookstore.locking;
+
+/**
+ * The management interface of {@link LockStatistics}.
+ *
+ * The histograms count sampled acquisitions by their wait or hold time in
+ * nanoseconds: bucket 0 counts times of 0, and bucket i counts times of at
+ * least 2^(i-1) and less than 2^i, the last bucket counting everything
+ * longer.
+ *
+ */
+public interface LockStatisticsMBean {
+
+	/**
+	 * Returns how many acquisitions of a thread make up one sample.
+	 */
+	public int getSampleRate();
+
+	public int getReaderCount();
+
+	public boolean isWriteLocked();
+
+	public boolean isUpdateLocked();
+
+	public int getQueueLength();
+
+	public long getHandoffCount();
+
+	/**
+	 * Returns the number of times the updater asked for the write lock.
+	 */
+	public long getUpgradeCount();
+
+	public long[] getReadWaitHistogram();
+
+	public long[] getUpdateWaitHistogram();
+
+	public long[] getWriteWaitHistogram();
+
+	public long[] getReadHoldHistogram();
+
+	public long[] getUpdateHoldHistogram();
+
+	public long[] getWriteHoldHistogram();
+
+	/**
+	 * Clears the histograms and the upgrade count.
+	 */
+	public void reset();
+}
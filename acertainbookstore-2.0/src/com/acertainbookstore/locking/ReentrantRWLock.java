@@ -1,16 +1,51 @@
 package com.acertainbookstore.locking;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Implements a reentrant read/write lock, with preference towards
  * writes, as we assume those are generally short and less frequent than reads.
- * 
+ *
  * Based upon the many (amazing) tutorials written by Jakob Jenkov, available
  * at {@link <a href="http://tutorials.jenkov.com/">Jenkov Tutorials</a>}
- * 
- * The readers map maps reader threads to the number of read holds each thread has.
+ *
+ * Reads are tracked without any shared lock. Each thread keeps the number of
+ * read holds it has in thread local state, and the number of reader threads
+ * is spread over padded stripes of a counter, so that readers on different
+ * cores update different cache lines. A reader announces itself on its
+ * stripe and then checks that there is no writer and no waiting writer; if
+ * there is, it withdraws and queues up instead. A writer announces its
+ * request first and then sums the stripes, so either the reader sees the
+ * writer or the writer sees the reader.
+ *
+ * Threads that have to wait are queued in FIFO order, and park until the
+ * lock is handed to them. Whenever the lock is released, the thread
+ * releasing it hands it on directly: to the writer at the head of the queue,
+ * once the readers have left, or to every reader at the head of the queue,
+ * up to the next queued writer. No waiter is woken just to find that it
+ * still has to wait. New readers queue up behind a queued writer, so a
+ * writer waits for at most the readers holding the lock, and the readers
+ * queued before it.
+ *
+ * A thread that reads before it decides to write should take the update
+ * lock instead of a read lock. The update lock is held by one thread at a
+ * time, but it lets other threads read meanwhile, and its holder can take
+ * the write lock on top of it. Such an upgrade goes ahead of every queued
+ * thread and only waits for the readers to leave. Two threads upgrading
+ * from plain read locks deadlock, as each waits for the other to stop
+ * reading, which cannot happen between updaters.
+ *
+ * Every lock mode can also be tried with a timeout, after which a thread
+ * still queued gives up and leaves the queue, so callers can fail fast
+ * instead of piling up behind a stuck writer.
+ *
+ * The waits and holds of each mode can be sampled into
+ * {@link LockStatistics}, see enableStatistics.
+ *
  * As the write lock is eXclusive, there is a writer variable to keep track of the thread,
  * if any, that has the write lock. To support re-entrant locking for writes, the writeAccess
  * variable keeps track of the number of times a write-lock has been secured, while the writeRequests
@@ -20,40 +55,286 @@ import java.util.Map;
  *
  */
 public class ReentrantRWLock {
-	private Map<Thread, Integer> readers = new HashMap<Thread, Integer>();
-	private Thread writer;
+	// Ints per stripe, so that every stripe has a cache line of its own
+	private static final int PADDING = 16;
+	private static final int MAX_STRIPES = 64;
+	static final int READ = 0;
+	static final int UPDATE = 1;
+	static final int WRITE = 2;
+	// Timeout of the untimed lock methods
+	private static final long NO_TIMEOUT = -1L;
+
+	/**
+	 * A thread queued for the lock. Its fields are guarded by the monitor,
+	 * except granted, which the thread polls after being unparked.
+	 */
+	private static final class Waiter {
+		private final Thread thread;
+		private final int mode;
+		// Whether a queued writer already holds a read lock itself
+		private final int ownReads;
+		// The stripe a queued reader is counted on once admitted
+		private final int stripe;
+		private volatile boolean granted = false;
+
+		private Waiter(Thread thread, int mode, int ownReads, int stripe) {
+			this.thread = thread;
+			this.mode = mode;
+			this.ownReads = ownReads;
+			this.stripe = stripe;
+		}
+	}
+
+	/**
+	 * The read state of one thread on this lock.
+	 */
+	private static final class ReaderState {
+		private int holds = 0;
+		private final int stripe;
+		// Acquisitions left until the next sample
+		private int untilSample = 1;
+		// When the sampled read lock was established, or 0
+		private long readSince = 0;
+
+		private ReaderState(int stripe) {
+			this.stripe = stripe;
+		}
+	}
+
+	private final int stripeMask;
+	// Number of reader threads, counted on the stripe of each thread
+	private final AtomicIntegerArray readerCounts;
+	private final ThreadLocal<ReaderState> readerState = new ThreadLocal<ReaderState>() {
+		@Override
+		protected ReaderState initialValue() {
+			long id = Thread.currentThread().getId();
+			int hash = (int) (id * 0x9E3779B97F4A7C15L >>> 32);
+			return new ReaderState(hash & stripeMask);
+		}
+	};
+
+	// Only modified while holding the monitor
+	private volatile Thread writer;
 	private int writeAccess = 0;
-	private int writeRequests = 0;
+	private volatile int writeRequests = 0;
+	private volatile Thread updater;
+	private int updateAccess = 0;
+	// When the sampled write or update lock was established, or 0. Only
+	// used by the thread holding it.
+	private long writeSince = 0;
+	private long updateSince = 0;
+	private volatile LockStatistics statistics;
+	private final Deque<Waiter> queue = new ArrayDeque<Waiter>();
+	private volatile int queueLength = 0;
+	private long handoffs = 0;
+
+	public ReentrantRWLock() {
+		int stripes = 1;
+		int wanted = Runtime.getRuntime().availableProcessors() * 2;
+		while (stripes < wanted && stripes < MAX_STRIPES) {
+			stripes <<= 1;
+		}
+		this.stripeMask = stripes - 1;
+		this.readerCounts = new AtomicIntegerArray(stripes * PADDING);
+	}
+
+	/**
+	 * Establishes a read lock, once possible: right away if the thread
+	 * already reads or writes, otherwise once there is neither a writer nor
+	 * a waiting writer.
+	 * @throws InterruptedException
+	 */
+	public void readLock() throws InterruptedException {
+		this.acquireRead(NO_TIMEOUT);
+	}
+
+	/**
+	 * Establishes a read lock like readLock, unless that takes longer than
+	 * the timeout.
+	 * @param timeout
+	 * @param unit
+	 * @return whether the read lock was established
+	 * @throws InterruptedException
+	 */
+	public boolean tryReadLock(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return this.acquireRead(Math.max(0L, unit.toNanos(timeout)));
+	}
+
+	/**
+	 * Establish a write lock. Any attempt to do so triggers an increment in the
+	 * number of requests, and then a wait until there is no other writer, and
+	 * no reader other than the calling thread itself.
+	 * @throws InterruptedException
+	 */
+	public void writeLock() throws InterruptedException {
+		this.acquireWrite(NO_TIMEOUT);
+	}
+
+	/**
+	 * Establishes a write lock like writeLock, unless that takes longer than
+	 * the timeout.
+	 * @param timeout
+	 * @param unit
+	 * @return whether the write lock was established
+	 * @throws InterruptedException
+	 */
+	public boolean tryWriteLock(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return this.acquireWrite(Math.max(0L, unit.toNanos(timeout)));
+	}
 
 	/**
-	 * Establishes a read lock, once possible, as per the conditions of
-	 * {@link ReentrantRWLock}'s couldRead() method.
+	 * Establishes the update lock like updateLock, unless that takes longer
+	 * than the timeout.
+	 * @param timeout
+	 * @param unit
+	 * @return whether the update lock was established
 	 * @throws InterruptedException
 	 */
-	public synchronized void readLock() throws InterruptedException {
+	public boolean tryUpdateLock(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		return this.acquireUpdate(Math.max(0L, unit.toNanos(timeout)));
+	}
+
+	/**
+	 * Starts sampling the waits and holds of the lock, one in every
+	 * sampleRate acquisitions of each thread, unless it is sampled already.
+	 * @param sampleRate
+	 * @return the statistics being recorded
+	 */
+	public synchronized LockStatistics enableStatistics(int sampleRate) {
+		if (sampleRate < 1) {
+			throw new IllegalArgumentException("sampleRate = " + sampleRate
+					+ ", but it must be positive");
+		}
+		if (this.statistics == null) {
+			this.statistics = new LockStatistics(this, sampleRate);
+		}
+		return this.statistics;
+	}
+
+	/**
+	 * Stops sampling the lock.
+	 */
+	public synchronized void disableStatistics() {
+		this.statistics = null;
+	}
+
+	private boolean acquireRead(long timeout) throws InterruptedException {
+		ReaderState state = this.readerState.get();
+		if (state.holds > 0) {
+			state.holds++;
+			return true;
+		}
+		long start = this.sampleStart(state);
+		if (!this.establishRead(state, timeout)) {
+			return false;
+		}
+		state.readSince = this.sampleWait(READ, start);
+		return true;
+	}
+
+	private boolean establishRead(ReaderState state, long timeout)
+			throws InterruptedException {
+		Thread current = Thread.currentThread();
+		this.arrive(state);
+		// Writer and updater can always obtain a read lock. A writer is set
+		// before its request is withdrawn, so writeRequests is read first:
+		// if it is already 0, the writer granted meanwhile is seen.
+		if (this.writer == current || this.updater == current
+				|| (this.writeRequests == 0 && this.writer == null)) {
+			state.holds = 1;
+			return true;
+		}
+		this.depart(state);
+		return this.readLockSlow(state, timeout);
+	}
+
+	private boolean acquireWrite(long timeout) throws InterruptedException {
 		Thread current = Thread.currentThread();
-		while(!this.couldRead(current)) {
-			wait();
+		ReaderState state = this.readerState.get();
+		int ownReads = state.holds > 0 ? 1 : 0;
+		long start = this.sampleStart(state);
+		Waiter waiter;
+		synchronized (this) {
+			if (this.writer == current) {
+				this.writeAccess += 1;
+				return true;
+			}
+			LockStatistics stats = this.statistics;
+			if (stats != null && this.updater == current) {
+				stats.recordUpgrade();
+			}
+			// Queue up before counting the readers, so that a reader leaving
+			// meanwhile sees the queue and hands the lock on
+			waiter = new Waiter(current, WRITE, ownReads, -1);
+			if (this.updater == current) {
+				// Upgrades go first, nobody queued can get ahead of the updater
+				this.queue.addFirst(waiter);
+				this.countQueued(waiter);
+			} else {
+				this.enqueue(waiter);
+			}
+			this.grantWaiters();
+		}
+		if (!this.await(waiter, timeout)) {
+			return false;
 		}
-		
-		this.readers.put(current, this.getReadHoldCount(current) + 1);
+		this.writeSince = this.sampleWait(WRITE, start);
+		return true;
 	}
 
 	/**
-	 * Establish a write lock. Any attempt to do so triggers an increment in the
-	 * number of requests, and then a wait until the write lock is available as per
-	 * the conditions of {@link ReentrantRWLock}'s couldWrite() method.
+	 * Establishes the update lock, once there is neither a writer nor another
+	 * updater, and the threads queued before have been served. Plain readers
+	 * may hold the lock alongside the updater, and the updater may later take
+	 * the write lock, without letting another writer in between.
+	 * @throws InterruptedException
+	 */
+	public void updateLock() throws InterruptedException {
+		this.acquireUpdate(NO_TIMEOUT);
+	}
+
+	private boolean acquireUpdate(long timeout) throws InterruptedException {
+		Thread current = Thread.currentThread();
+		long start = this.sampleStart(this.readerState.get());
+		Waiter waiter;
+		synchronized (this) {
+			if (this.updater == current || this.writer == current) {
+				// The writer holds the lock exclusively already
+				this.updater = current;
+				this.updateAccess += 1;
+				return true;
+			}
+			waiter = new Waiter(current, UPDATE, 0, -1);
+			this.enqueue(waiter);
+			this.grantWaiters();
+		}
+		if (!this.await(waiter, timeout)) {
+			return false;
+		}
+		this.updateSince = this.sampleWait(UPDATE, start);
+		return true;
+	}
+
+	/**
+	 * Will unlock the update lock, if the calling thread is in fact the
+	 * updater. A write lock taken on top of it is kept until it is unlocked
+	 * itself.
 	 * @throws InterruptedException
 	 */
-	public synchronized void writeLock() throws InterruptedException {
-		this.writeRequests += 1;
+	public synchronized void updateUnlock() throws InterruptedException {
 		Thread current = Thread.currentThread();
-		while(!this.couldWrite(current)) {
-			wait();
+		if (this.updater != current) {
+			throw new IllegalMonitorStateException(current + " tried to unlock an Update lock it does not have.");
+		}
+
+		if (--this.updateAccess == 0) {
+			this.updateSince = this.sampleHold(UPDATE, this.updateSince);
+			this.updater = null;
+			this.grantWaiters();
 		}
-		this.writeRequests -= 1;
-		this.writeAccess += 1;
-		this.writer = current;
 	}
 
 	/**
@@ -67,12 +348,12 @@ public class ReentrantRWLock {
 		if(!this.isWriter(current)) {
 			throw new IllegalMonitorStateException(current + " tried to unlock a Write lock it does not have.");
 		}
-		
+
 		if(--this.writeAccess == 0) {
+			this.writeSince = this.sampleHold(WRITE, this.writeSince);
 			this.writer = null;
+			this.grantWaiters();
 		}
-		
-		notifyAll();
 	}
 
 	/**
@@ -81,78 +362,267 @@ public class ReentrantRWLock {
 	 * removed once the reader has no lock counts left.
 	 * @throws InterruptedException
 	 */
-	public synchronized void readUnlock() throws InterruptedException {
-		Thread current = Thread.currentThread();
-		if(!this.isReader(current)) {
+	public void readUnlock() throws InterruptedException {
+		ReaderState state = this.readerState.get();
+		if (state.holds == 0) {
+			Thread current = Thread.currentThread();
 			throw new IllegalMonitorStateException(current + " tried to unlock a Read lock it does not have.");
 		}
-		
-		int reads = this.getReadHoldCount(current);
-		if(--reads == 0) {
-			this.readers.remove(current);
-		} else {
-			this.readers.put(current, reads);
+		if (--state.holds == 0) {
+			state.readSince = this.sampleHold(READ, state.readSince);
+			this.depart(state);
 		}
-		
-		notifyAll();
 	}
 
-	
-	public int getReadHoldCount(Thread caller) {
-		if(this.readers.containsKey(caller)) {
-			return this.readers.get(caller);
-		} else {
-			return 0;
-		}
+	/**
+	 * Returns the number of read holds of the calling thread.
+	 *
+	 * @return
+	 */
+	public int getReadHoldCount() {
+		return this.readerState.get().holds;
+	}
+
+	/**
+	 * Returns the number of threads holding a read lock.
+	 *
+	 * @return
+	 */
+	public int getReaderCount() {
+		return this.readerCount();
+	}
+
+	public boolean isWriteLocked() {
+		return this.writer != null;
+	}
+
+	public boolean isUpdateLocked() {
+		return this.updater != null;
+	}
+
+	/**
+	 * Returns the number of threads queued for the lock.
+	 *
+	 * @return
+	 */
+	public int getQueueLength() {
+		return this.queueLength;
+	}
+
+	/**
+	 * Returns the number of times the lock has been handed to a queued
+	 * thread.
+	 *
+	 * @return
+	 */
+	public synchronized long getHandoffCount() {
+		return this.handoffs;
 	}
-	
-	private boolean couldWrite(Thread caller) {
-		// If we're the only reader already.
-		if(this.isOnlyReader(caller)) return true;
-		// If there are others, then we can't get an exclusive lock, so no go.
-		if(this.hasAnyReaders()) return false;
-		// There isn't currently a writer. Go ahead and grab a write lock.
-		if(!this.hasWriter()) return true;
-		// There is a writer, but its not you. No go.
-		if(!this.isWriter(caller)) return false;
+
+	/**
+	 * Queues the reader unless there is neither a writer nor a waiting
+	 * writer. Writers only change while holding the monitor, so once the
+	 * reader has announced itself here, any later writer will see it.
+	 */
+	private boolean readLockSlow(ReaderState state, long timeout)
+			throws InterruptedException {
+		Thread current = Thread.currentThread();
+		Waiter waiter;
+		synchronized (this) {
+			if (this.writer == current || this.updater == current
+					|| (this.writer == null && this.writeRequests == 0)) {
+				this.arrive(state);
+				state.holds = 1;
+				return true;
+			}
+			waiter = new Waiter(current, READ, 0, state.stripe);
+			this.enqueue(waiter);
+		}
+		// The thread that admitted the reader counted it on its stripe
+		if (!this.await(waiter, timeout)) {
+			return false;
+		}
+		state.holds = 1;
 		return true;
 	}
 
-	private boolean couldRead(Thread caller) {
-		// Writer can always obtain a read lock.
-		if(this.isWriter(caller)) return true;
-		// If there is a writer and its not you, you can't read.
-		if(this.hasWriter()) return false;
-		// If you're already a reader, go ahead.
-		if(this.isReader(caller)) return true;
-		// If there are write requests pending, don't allow.
-		// as we'd rather let them get the lock.
-		if(this.hasWriteRequests()) return false;
+	/**
+	 * Queues the waiter. Only called while holding the monitor, and queued
+	 * writers count as write requests until they are granted the lock.
+	 */
+	private void enqueue(Waiter waiter) {
+		this.queue.addLast(waiter);
+		this.countQueued(waiter);
+	}
+
+	private void countQueued(Waiter waiter) {
+		this.queueLength += 1;
+		if (waiter.mode == WRITE) {
+			this.writeRequests += 1;
+		}
+	}
+
+	/**
+	 * Parks until the waiter is granted the lock, or the timeout in
+	 * nanoseconds, if not negative, has passed. If the thread is interrupted
+	 * or times out before, it leaves the queue.
+	 * @return whether the waiter was granted the lock
+	 */
+	private boolean await(Waiter waiter, long timeout)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + timeout;
+		while (!waiter.granted) {
+			if (timeout < 0) {
+				LockSupport.park(this);
+			} else {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					synchronized (this) {
+						if (!waiter.granted) {
+							this.cancel(waiter);
+							return false;
+						}
+					}
+					return true;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+			if (Thread.interrupted()) {
+				synchronized (this) {
+					if (!waiter.granted) {
+						this.cancel(waiter);
+						throw new InterruptedException();
+					}
+				}
+				// Granted meanwhile, keep the lock and the interrupt
+				Thread.currentThread().interrupt();
+			}
+		}
 		return true;
 	}
-	
-	/* Utility methods */
-	private boolean hasAnyReaders() {
-		return this.readers.size() > 0;
+
+	/**
+	 * Removes a waiter that gave up from the queue. Only called while holding
+	 * the monitor.
+	 */
+	private void cancel(Waiter waiter) {
+		this.queue.remove(waiter);
+		this.queueLength -= 1;
+		if (waiter.mode == WRITE) {
+			this.writeRequests -= 1;
+		}
+		// Waiters behind it may have been held back by it only
+		this.grantWaiters();
 	}
-	
-	private boolean hasWriter() {
-		return this.writer != null;
+
+	/**
+	 * Hands the lock to the waiters at the head of the queue, as far as the
+	 * lock allows: either to the writer at the head, or to all readers up to
+	 * the next writer, along with the first updater among them if there is no
+	 * updater yet. Only called while holding the monitor.
+	 */
+	private void grantWaiters() {
+		Waiter head;
+		while ((head = this.queue.peek()) != null) {
+			if (this.writer != null) {
+				return;
+			}
+			if (head.mode == WRITE) {
+				if ((this.updater != null && this.updater != head.thread)
+						|| this.readerCount() != head.ownReads) {
+					return;
+				}
+				// Set the writer before withdrawing its request, so that a
+				// reader arriving meanwhile always sees one of them
+				this.writeAccess = 1;
+				this.writer = head.thread;
+				this.writeRequests -= 1;
+			} else if (head.mode == UPDATE) {
+				if (this.updater != null) {
+					return;
+				}
+				this.updateAccess = 1;
+				this.updater = head.thread;
+			} else {
+				this.readerCounts.incrementAndGet(head.stripe * PADDING);
+			}
+			this.queue.poll();
+			this.queueLength -= 1;
+			head.granted = true;
+			if (head.thread != Thread.currentThread()) {
+				this.handoffs++;
+				LockSupport.unpark(head.thread);
+			}
+			if (head.mode == WRITE) {
+				return;
+			}
+		}
 	}
-	
-	private boolean isReader(Thread caller) {
-		return this.readers.get(caller) != null;
+
+	/**
+	 * Returns the time an acquisition starts at if it is to be sampled, or 0.
+	 */
+	private long sampleStart(ReaderState state) {
+		LockStatistics stats = this.statistics;
+		if (stats == null || --state.untilSample > 0) {
+			return 0;
+		}
+		state.untilSample = stats.getSampleRate();
+		return System.nanoTime();
 	}
-	
-	private boolean isWriter(Thread caller) {
-		return this.writer == caller;
+
+	/**
+	 * Records the wait of a sampled acquisition, and returns the time the
+	 * lock was established at, for its hold to be recorded, or 0.
+	 */
+	private long sampleWait(int mode, long start) {
+		LockStatistics stats = this.statistics;
+		if (start == 0 || stats == null) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		stats.recordWait(mode, now - start);
+		// 0 means not sampled, so avoid it in the rare case
+		return now == 0 ? 1 : now;
+	}
+
+	/**
+	 * Records the hold of a sampled lock being released, and returns 0.
+	 */
+	private long sampleHold(int mode, long since) {
+		LockStatistics stats = this.statistics;
+		if (since != 0 && stats != null) {
+			stats.recordHold(mode, System.nanoTime() - since);
+		}
+		return 0;
+	}
+
+	private void arrive(ReaderState state) {
+		this.readerCounts.incrementAndGet(state.stripe * PADDING);
 	}
-	
-	private boolean isOnlyReader(Thread caller) {
-		return this.isReader(caller) && this.readers.size() == 1;
+
+	/**
+	 * Withdraws the reader from its stripe, and hands the lock on if any
+	 * thread is queued for it.
+	 */
+	private void depart(ReaderState state) {
+		this.readerCounts.decrementAndGet(state.stripe * PADDING);
+		if (this.queueLength > 0) {
+			synchronized (this) {
+				this.grantWaiters();
+			}
+		}
+	}
+
+	private int readerCount() {
+		int count = 0;
+		for (int stripe = 0; stripe <= this.stripeMask; stripe++) {
+			count += this.readerCounts.get(stripe * PADDING);
+		}
+		return count;
 	}
-	
-	private boolean hasWriteRequests() {
-		return this.writeRequests > 0;
+
+	private boolean isWriter(Thread caller) {
+		return this.writer == caller;
 	}
 }
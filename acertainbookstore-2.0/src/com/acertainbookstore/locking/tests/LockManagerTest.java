@@ -0,0 +1,242 @@
+package com.acertainbookstore.locking.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.acertainbookstore.locking.DeadlockException;
+import com.acertainbookstore.locking.LockManager;
+import com.acertainbookstore.locking.LockManager.LockMode;
+import com.acertainbookstore.locking.LockManager.Transaction;
+import com.acertainbookstore.locking.LockManagerStatistics;
+
+/**
+ * Tests for LockManager.
+ */
+public class LockManagerTest {
+
+	@Test
+	public void testSharedAndExclusive() throws Exception {
+		LockManager manager = new LockManager();
+		Transaction first = manager.begin();
+		Transaction second = manager.begin();
+		Transaction third = manager.begin();
+		manager.lock(first, 1, LockMode.S);
+		assertThat(manager.tryLock(second, 1, LockMode.S, 0, TimeUnit.MILLISECONDS), is(true));
+		assertThat(manager.tryLock(third, 1, LockMode.X, 20, TimeUnit.MILLISECONDS), is(false));
+		assertThat(manager.tryLock(third, 2, LockMode.X, 0, TimeUnit.MILLISECONDS), is(true));
+		manager.releaseAll(first);
+		manager.releaseAll(second);
+		assertThat(manager.tryLock(third, 1, LockMode.X, 0, TimeUnit.MILLISECONDS), is(true));
+		assertThat(third.getMode(1), is(LockMode.X));
+		manager.releaseAll(third);
+		assertThat(third.getMode(1), is(nullValue()));
+	}
+
+	@Test
+	public void testIntentionLocks() throws Exception {
+		LockManager manager = new LockManager();
+		Transaction writer = manager.begin();
+		Transaction reader = manager.begin();
+		Transaction scanner = manager.begin();
+		manager.lock(writer, "catalog", LockMode.IX);
+		manager.lock(writer, 1, LockMode.X);
+		assertThat(manager.tryLock(reader, "catalog", LockMode.IS, 0, TimeUnit.MILLISECONDS), is(true));
+		assertThat(manager.tryLock(reader, 2, LockMode.S, 0, TimeUnit.MILLISECONDS), is(true));
+		assertThat(manager.tryLock(scanner, "catalog", LockMode.S, 20, TimeUnit.MILLISECONDS), is(false));
+		manager.releaseAll(writer);
+		assertThat(manager.tryLock(scanner, "catalog", LockMode.S, 0, TimeUnit.MILLISECONDS), is(true));
+		manager.releaseAll(reader);
+		manager.releaseAll(scanner);
+	}
+
+	@Test
+	public void testUpgrade() throws Exception {
+		LockManager manager = new LockManager();
+		Transaction transaction = manager.begin();
+		manager.lock(transaction, 1, LockMode.IS);
+		manager.lock(transaction, 1, LockMode.S);
+		assertThat(transaction.getMode(1), is(LockMode.S));
+		manager.lock(transaction, 1, LockMode.IS);
+		assertThat(transaction.getMode(1), is(LockMode.S));
+		manager.lock(transaction, 1, LockMode.IX);
+		assertThat(transaction.getMode(1), is(LockMode.X));
+		manager.releaseAll(transaction);
+	}
+
+	@Test
+	public void testDeadlockIsBroken() throws Exception {
+		final LockManager manager = new LockManager();
+		final Transaction first = manager.begin();
+		Transaction second = manager.begin();
+		final CountDownLatch locked = new CountDownLatch(1);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		manager.lock(first, 1, LockMode.X);
+		manager.lock(second, 2, LockMode.X);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					manager.lock(first, 2, LockMode.X);
+					locked.countDown();
+				} catch (Exception ex) {
+					failed.set(true);
+				} finally {
+					manager.releaseAll(first);
+				}
+			}
+		};
+		thread.start();
+		// Wait until the thread has checked for a cycle and waits
+		while (thread.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		assertThat(manager.getWaitCount(), is(1L));
+		try {
+			manager.lock(second, 1, LockMode.X);
+			fail("The request closing the cycle must be aborted");
+		} catch (DeadlockException ex) {
+			// The victim keeps its locks until it ends
+			assertThat(second.getMode(2), is(LockMode.X));
+		}
+		manager.releaseAll(second);
+		assertThat(locked.await(5, TimeUnit.SECONDS), is(true));
+		thread.join();
+		assertThat(failed.get(), is(false));
+		assertThat(manager.getDeadlockCount(), is(1L));
+	}
+
+	@Test
+	public void testStatistics() throws Exception {
+		final LockManager manager = new LockManager();
+		LockManagerStatistics stats = manager.enableStatistics(1);
+		Transaction first = manager.begin();
+		manager.lock(first, "catalog", LockMode.IX);
+		manager.lock(first, 1, LockMode.X);
+		final CountDownLatch locked = new CountDownLatch(1);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				Transaction second = manager.begin();
+				try {
+					manager.lock(second, 1, LockMode.S);
+					locked.countDown();
+				} catch (Exception ex) {
+					// The test fails on the latch
+				} finally {
+					manager.releaseAll(second);
+				}
+			}
+		};
+		thread.start();
+		while (thread.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		assertThat(stats.getQueueLength(), is(1));
+		assertThat(stats.getLockedResourceCount(), is(2));
+		manager.releaseAll(first);
+		assertThat(locked.await(5, TimeUnit.SECONDS), is(true));
+		thread.join();
+		assertThat(stats.getQueueLength(), is(0));
+		assertThat(stats.getLockedResourceCount(), is(0));
+		assertThat(stats.getWaitCount(), is(1L));
+		assertThat(sum(stats.getIXWaitHistogram()), is(1L));
+		assertThat(sum(stats.getXWaitHistogram()), is(1L));
+		assertThat(sum(stats.getSWaitHistogram()), is(1L));
+		assertThat(sum(stats.getIXHoldHistogram()), is(1L));
+		assertThat(sum(stats.getXHoldHistogram()), is(1L));
+		assertThat(sum(stats.getSHoldHistogram()), is(1L));
+
+		ObjectName name = stats.register("testStatistics");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			assertThat((Long) server.getAttribute(name, "WaitCount"), is(1L));
+			assertThat((Long) server.getAttribute(name, "DeadlockCount"),
+					is(0L));
+			server.invoke(name, "reset", null, null);
+			assertThat(sum(stats.getSWaitHistogram()), is(0L));
+		} finally {
+			server.unregisterMBean(name);
+		}
+
+		// Only every other transaction of the thread is sampled
+		LockManager sampled = new LockManager();
+		stats = sampled.enableStatistics(2);
+		for (int i = 0; i < 10; i++) {
+			Transaction transaction = sampled.begin();
+			sampled.lock(transaction, 1, LockMode.X);
+			sampled.releaseAll(transaction);
+		}
+		assertThat(sum(stats.getXWaitHistogram()), is(5L));
+		assertThat(sum(stats.getXHoldHistogram()), is(5L));
+	}
+
+	private static long sum(long[] histogram) {
+		long sum = 0;
+		for (long count : histogram) {
+			sum += count;
+		}
+		return sum;
+	}
+
+	@Test
+	public void testConcurrentTransfers() throws Exception {
+		final LockManager manager = new LockManager();
+		final int accounts = 8;
+		final int[] balances = new int[accounts];
+		final AtomicInteger committed = new AtomicInteger();
+		final int threads = 8;
+		final int transfers = 500;
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final Random random = new Random(i);
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					int done = 0;
+					while (done < transfers) {
+						int from = random.nextInt(accounts);
+						int to = random.nextInt(accounts);
+						Transaction transaction = manager.begin();
+						try {
+							// Unordered locking, so that deadlocks happen
+							manager.lock(transaction, from, LockMode.X);
+							manager.lock(transaction, to, LockMode.X);
+							balances[from]--;
+							balances[to]++;
+							done++;
+							committed.incrementAndGet();
+						} catch (DeadlockException ex) {
+							// Retry
+						} catch (InterruptedException ex) {
+							return;
+						} finally {
+							manager.releaseAll(transaction);
+						}
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		int total = 0;
+		for (int balance : balances) {
+			total += balance;
+		}
+		assertThat(total, is(0));
+		assertThat(committed.get(), is(threads * transfers));
+	}
+}
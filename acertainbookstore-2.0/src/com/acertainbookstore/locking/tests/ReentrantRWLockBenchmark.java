@@ -0,0 +1,99 @@
+package com.acertainbookstore.locking.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.acertainbookstore.locking.ReentrantRWLock;
+
+/**
+ * Measures how the read throughput of ReentrantRWLock scales with the number
+ * of reader threads, from 1 to 64, next to the ReentrantReadWriteLock of the
+ * JDK. Every thread takes and releases a read lock in a loop, with a write
+ * lock taken once every WRITE_EVERY reads.
+ *
+ * Not a unit test, run it through main.
+ */
+public class ReentrantRWLockBenchmark {
+	private static final int[] NUM_THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+	private static final int OPERATIONS_PER_THREAD = 1000000;
+	private static final int WRITE_EVERY = 1000;
+
+	/**
+	 * Takes and releases one lock, as read or as write.
+	 */
+	private interface LockOperation {
+		void run(boolean write) throws InterruptedException;
+	}
+
+	public static void main(String[] args) throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final ReentrantReadWriteLock jdkLock = new ReentrantReadWriteLock();
+		LockOperation ours = new LockOperation() {
+			@Override
+			public void run(boolean write) throws InterruptedException {
+				if (write) {
+					lock.writeLock();
+					lock.writeUnlock();
+				} else {
+					lock.readLock();
+					lock.readUnlock();
+				}
+			}
+		};
+		LockOperation jdk = new LockOperation() {
+			@Override
+			public void run(boolean write) {
+				if (write) {
+					jdkLock.writeLock().lock();
+					jdkLock.writeLock().unlock();
+				} else {
+					jdkLock.readLock().lock();
+					jdkLock.readLock().unlock();
+				}
+			}
+		};
+
+		// Warm up the JIT
+		run(ours, 4);
+		run(jdk, 4);
+		for (int threads : NUM_THREADS) {
+			System.out.println(String.format(
+					"Threads: %d, ReentrantRWLock: %.0f ops/s, "
+							+ "ReentrantReadWriteLock: %.0f ops/s", threads,
+					run(ours, threads), run(jdk, threads)));
+		}
+	}
+
+	private static double run(final LockOperation operation, int threads)
+			throws Exception {
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+		for (int i = 0; i < threads; i++) {
+			results.add(exec.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					start.await();
+					long begin = System.nanoTime();
+					for (int op = 1; op <= OPERATIONS_PER_THREAD; op++) {
+						operation.run(op % WRITE_EVERY == 0);
+					}
+					return System.nanoTime() - begin;
+				}
+			}));
+		}
+		start.countDown();
+		long maxElapsed = 0;
+		for (Future<Long> result : results) {
+			maxElapsed = Math.max(maxElapsed, result.get());
+		}
+		exec.shutdownNow();
+		return (threads * (double) OPERATIONS_PER_THREAD) / (maxElapsed / 1E9);
+	}
+}
@@ -0,0 +1,530 @@
+package com.acertainbookstore.locking.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.acertainbookstore.locking.LockStatistics;
+import com.acertainbookstore.locking.ReentrantRWLock;
+
+/**
+ * Tests for ReentrantRWLock.
+ */
+public class ReentrantRWLockTest {
+
+	@Test
+	public void testReentrantReads() throws Exception {
+		ReentrantRWLock lock = new ReentrantRWLock();
+		lock.readLock();
+		lock.readLock();
+		assertThat(lock.getReadHoldCount(), is(2));
+		assertThat(lock.getReaderCount(), is(1));
+		lock.readUnlock();
+		assertThat(lock.getReaderCount(), is(1));
+		lock.readUnlock();
+		assertThat(lock.getReadHoldCount(), is(0));
+		assertThat(lock.getReaderCount(), is(0));
+	}
+
+	@Test
+	public void testWriterMayReadAndReenter() throws Exception {
+		ReentrantRWLock lock = new ReentrantRWLock();
+		lock.writeLock();
+		lock.writeLock();
+		lock.readLock();
+		lock.readUnlock();
+		lock.writeUnlock();
+		lock.writeUnlock();
+		assertThat(lock.getReaderCount(), is(0));
+	}
+
+	@Test
+	public void testOnlyReaderMayUpgrade() throws Exception {
+		ReentrantRWLock lock = new ReentrantRWLock();
+		lock.readLock();
+		lock.writeLock();
+		lock.writeUnlock();
+		lock.readUnlock();
+	}
+
+	@Test(expected = IllegalMonitorStateException.class)
+	public void testReadUnlockWithoutLock() throws Exception {
+		new ReentrantRWLock().readUnlock();
+	}
+
+	@Test(expected = IllegalMonitorStateException.class)
+	public void testWriteUnlockWithoutLock() throws Exception {
+		new ReentrantRWLock().writeUnlock();
+	}
+
+	@Test
+	public void testWriterExcludesReaders() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final CountDownLatch read = new CountDownLatch(1);
+		lock.writeLock();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					lock.readLock();
+					read.countDown();
+					lock.readUnlock();
+				} catch (InterruptedException ex) {
+					// The test fails on the latch
+				}
+			}
+		};
+		reader.start();
+		assertThat(read.await(100, TimeUnit.MILLISECONDS), is(false));
+		lock.writeUnlock();
+		assertThat(read.await(5, TimeUnit.SECONDS), is(true));
+	}
+
+	@Test
+	public void testWaitingWriterBlocksNewReaders() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final CountDownLatch written = new CountDownLatch(1);
+		final CountDownLatch read = new CountDownLatch(1);
+		final AtomicBoolean readBeforeWrite = new AtomicBoolean(false);
+		lock.readLock();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					lock.writeLock();
+					written.countDown();
+					lock.writeUnlock();
+				} catch (InterruptedException ex) {
+					// The test fails on the latch
+				}
+			}
+		};
+		writer.start();
+		// Wait until the writer is queued behind our read lock
+		while (writer.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					lock.readLock();
+					readBeforeWrite.set(written.getCount() > 0);
+					read.countDown();
+					lock.readUnlock();
+				} catch (InterruptedException ex) {
+					// The test fails on the latch
+				}
+			}
+		};
+		reader.start();
+		assertThat(read.await(100, TimeUnit.MILLISECONDS), is(false));
+		lock.readUnlock();
+		assertThat(written.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(read.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(readBeforeWrite.get(), is(false));
+	}
+
+	@Test
+	public void testWaitersAreAdmittedInOrder() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final List<String> admitted = Collections
+				.synchronizedList(new ArrayList<String>());
+		lock.writeLock();
+		String[] names = { "W1", "R1", "R2", "W2" };
+		Thread[] waiters = new Thread[names.length];
+		for (int i = 0; i < names.length; i++) {
+			final String name = names[i];
+			waiters[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						boolean write = name.startsWith("W");
+						if (write) {
+							lock.writeLock();
+						} else {
+							lock.readLock();
+						}
+						admitted.add(name);
+						Thread.sleep(20);
+						if (write) {
+							lock.writeUnlock();
+						} else {
+							lock.readUnlock();
+						}
+					} catch (InterruptedException ex) {
+						// The test fails on the order
+					}
+				}
+			};
+			waiters[i].start();
+			// Queue the waiters one after the other
+			while (lock.getQueueLength() != i + 1) {
+				Thread.sleep(1);
+			}
+		}
+		lock.writeUnlock();
+		for (Thread waiter : waiters) {
+			waiter.join();
+		}
+		assertThat(admitted.size(), is(4));
+		assertThat(admitted.get(0), is("W1"));
+		assertThat(admitted.subList(1, 3).containsAll(
+				Arrays.asList("R1", "R2")), is(true));
+		assertThat(admitted.get(3), is("W2"));
+		assertThat(lock.getHandoffCount(), is(4L));
+		assertThat(lock.getQueueLength(), is(0));
+	}
+
+	@Test
+	public void testInterruptedWaiterLeavesQueue() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final AtomicBoolean interrupted = new AtomicBoolean(false);
+		lock.readLock();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					lock.writeLock();
+					lock.writeUnlock();
+				} catch (InterruptedException ex) {
+					interrupted.set(true);
+				}
+			}
+		};
+		writer.start();
+		while (lock.getQueueLength() != 1) {
+			Thread.sleep(1);
+		}
+		writer.interrupt();
+		writer.join();
+		assertThat(interrupted.get(), is(true));
+		assertThat(lock.getQueueLength(), is(0));
+		lock.readUnlock();
+		// The cancelled request no longer holds back writers
+		lock.writeLock();
+		lock.writeUnlock();
+	}
+
+	@Test
+	public void testUpdaterCoexistsWithReaders() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final CountDownLatch read = new CountDownLatch(1);
+		final CountDownLatch updated = new CountDownLatch(1);
+		lock.updateLock();
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					lock.readLock();
+					read.countDown();
+					lock.readUnlock();
+				} catch (InterruptedException ex) {
+					// The test fails on the latch
+				}
+			}
+		};
+		reader.start();
+		assertThat(read.await(5, TimeUnit.SECONDS), is(true));
+		Thread updater = new Thread() {
+			@Override
+			public void run() {
+				try {
+					lock.updateLock();
+					updated.countDown();
+					lock.updateUnlock();
+				} catch (InterruptedException ex) {
+					// The test fails on the latch
+				}
+			}
+		};
+		updater.start();
+		assertThat(updated.await(100, TimeUnit.MILLISECONDS), is(false));
+		lock.readLock();
+		lock.writeLock();
+		lock.writeUnlock();
+		lock.readUnlock();
+		lock.updateUnlock();
+		assertThat(updated.await(5, TimeUnit.SECONDS), is(true));
+	}
+
+	@Test
+	public void testUpgradeWaitsForReaders() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final CountDownLatch written = new CountDownLatch(1);
+		lock.readLock();
+		Thread updater = new Thread() {
+			@Override
+			public void run() {
+				try {
+					lock.updateLock();
+					lock.writeLock();
+					written.countDown();
+					lock.writeUnlock();
+					lock.updateUnlock();
+				} catch (InterruptedException ex) {
+					// The test fails on the latch
+				}
+			}
+		};
+		updater.start();
+		assertThat(written.await(100, TimeUnit.MILLISECONDS), is(false));
+		lock.readUnlock();
+		assertThat(written.await(5, TimeUnit.SECONDS), is(true));
+	}
+
+	@Test(expected = IllegalMonitorStateException.class)
+	public void testUpdateUnlockWithoutLock() throws Exception {
+		new ReentrantRWLock().updateUnlock();
+	}
+
+	@Test
+	public void testConcurrentUpgrades() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final int[] counter = { 0 };
+		final int threads = 8;
+		final int increments = 2000;
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final boolean updater = i % 2 == 0;
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < increments; j++) {
+							if (updater) {
+								lock.updateLock();
+								lock.writeLock();
+								counter[0]++;
+								lock.writeUnlock();
+								lock.updateUnlock();
+							} else {
+								lock.readLock();
+								lock.readUnlock();
+							}
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertThat(counter[0], is(threads / 2 * increments));
+		assertThat(lock.getReaderCount(), is(0));
+	}
+
+	@Test
+	public void testTimedLocksGiveUp() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final AtomicBoolean[] acquired = { new AtomicBoolean(true),
+				new AtomicBoolean(true), new AtomicBoolean(true) };
+		lock.writeLock();
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					acquired[0].set(lock.tryReadLock(20, TimeUnit.MILLISECONDS));
+					acquired[1].set(lock.tryWriteLock(20, TimeUnit.MILLISECONDS));
+					acquired[2].set(lock.tryUpdateLock(0, TimeUnit.MILLISECONDS));
+				} catch (InterruptedException ex) {
+					// The test fails on the results
+				}
+			}
+		};
+		waiter.start();
+		waiter.join();
+		for (AtomicBoolean result : acquired) {
+			assertThat(result.get(), is(false));
+		}
+		assertThat(lock.getQueueLength(), is(0));
+		lock.writeUnlock();
+		// Nothing was left behind by the waiter that gave up
+		assertThat(lock.tryWriteLock(0, TimeUnit.MILLISECONDS), is(true));
+		lock.writeUnlock();
+		assertThat(lock.tryReadLock(0, TimeUnit.MILLISECONDS), is(true));
+		lock.readUnlock();
+		assertThat(lock.getReaderCount(), is(0));
+	}
+
+	@Test
+	public void testTimedLockWaitsForRelease() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final AtomicBoolean acquired = new AtomicBoolean(false);
+		lock.readLock();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					acquired.set(lock.tryWriteLock(5, TimeUnit.SECONDS));
+					if (acquired.get()) {
+						lock.writeUnlock();
+					}
+				} catch (InterruptedException ex) {
+					// The test fails on the result
+				}
+			}
+		};
+		writer.start();
+		while (lock.getQueueLength() != 1) {
+			Thread.sleep(1);
+		}
+		lock.readUnlock();
+		writer.join();
+		assertThat(acquired.get(), is(true));
+	}
+
+	@Test
+	public void testStatistics() throws Exception {
+		ReentrantRWLock lock = new ReentrantRWLock();
+		LockStatistics stats = lock.enableStatistics(1);
+		lock.readLock();
+		lock.readLock();
+		lock.readUnlock();
+		lock.readUnlock();
+		lock.updateLock();
+		lock.writeLock();
+		assertThat(stats.isWriteLocked(), is(true));
+		lock.writeUnlock();
+		lock.updateUnlock();
+		assertThat(sum(stats.getReadWaitHistogram()), is(1L));
+		assertThat(sum(stats.getReadHoldHistogram()), is(1L));
+		assertThat(sum(stats.getUpdateWaitHistogram()), is(1L));
+		assertThat(sum(stats.getUpdateHoldHistogram()), is(1L));
+		assertThat(sum(stats.getWriteWaitHistogram()), is(1L));
+		assertThat(sum(stats.getWriteHoldHistogram()), is(1L));
+		assertThat(stats.getUpgradeCount(), is(1L));
+
+		ObjectName name = stats.register("testStatistics");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			assertThat((Long) server.getAttribute(name, "UpgradeCount"), is(1L));
+			server.invoke(name, "reset", null, null);
+			assertThat(sum(stats.getWriteWaitHistogram()), is(0L));
+		} finally {
+			server.unregisterMBean(name);
+		}
+
+		// Only every other acquisition of the thread is sampled
+		lock = new ReentrantRWLock();
+		stats = lock.enableStatistics(2);
+		for (int i = 0; i < 10; i++) {
+			lock.readLock();
+			lock.readUnlock();
+		}
+		assertThat(sum(stats.getReadWaitHistogram()), is(5L));
+	}
+
+	private static long sum(long[] histogram) {
+		long sum = 0;
+		for (long count : histogram) {
+			sum += count;
+		}
+		return sum;
+	}
+
+	@Test
+	public void testConcurrentCounter() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final int[] counter = { 0 };
+		final int threads = 8;
+		final int increments = 2000;
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < increments; j++) {
+							lock.readLock();
+							lock.readUnlock();
+							lock.writeLock();
+							counter[0]++;
+							lock.writeUnlock();
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			workers[i].start();
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertThat(counter[0], is(threads * increments));
+		assertThat(lock.getReaderCount(), is(0));
+	}
+
+	@Test
+	public void testReadersAndWritersNeverOverlap() throws Exception {
+		final ReentrantRWLock lock = new ReentrantRWLock();
+		final AtomicInteger readers = new AtomicInteger();
+		final AtomicInteger writers = new AtomicInteger();
+		final AtomicBoolean overlap = new AtomicBoolean(false);
+		// At least two threads per core, so readers arrive while writers are
+		// handed the lock on every core
+		final int threads = Math.max(4,
+				Runtime.getRuntime().availableProcessors() * 2);
+		final int operations = 20000;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int seed = i;
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < operations; j++) {
+							if ((j + seed) % 8 == 0) {
+								lock.writeLock();
+								if (writers.incrementAndGet() != 1
+										|| readers.get() != 0) {
+									overlap.set(true);
+								}
+								writers.decrementAndGet();
+								lock.writeUnlock();
+							} else {
+								lock.readLock();
+								readers.incrementAndGet();
+								if (writers.get() != 0) {
+									overlap.set(true);
+								}
+								readers.decrementAndGet();
+								lock.readUnlock();
+							}
+						}
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			workers[i].start();
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertThat(overlap.get(), is(false));
+		assertThat(lock.getReaderCount(), is(0));
+		assertThat(lock.getQueueLength(), is(0));
+	}
+}
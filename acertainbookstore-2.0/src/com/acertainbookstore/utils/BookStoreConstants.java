@@ -29,5 +29,9 @@ public final class BookStoreConstants {
 	public static final String	NUM_COPIES			= "The Number of copies: ";
 	public static final String	RATING				= "The rating: ";
 	public static final String	NULL_INPUT			= "null input parameters";
+	// When a request could not get hold of the store before its deadline
+	public static final String	BUSY				= "The bookstore is busy, try again later";
+	// When a request was aborted as it would have deadlocked with others
+	public static final String	DEADLOCK			= "The request conflicted with other requests, try again";
 
 }
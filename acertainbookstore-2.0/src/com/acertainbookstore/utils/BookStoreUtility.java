@@ -36,6 +36,19 @@ public final class BookStoreUtility {
 		return(copies < 1);
 	}
 
+	/**
+	 * Checks if the ratings of a book fit the 32 bits that BookStoreBook
+	 * counts the total rating and the times rated in
+	 * 
+	 * @param totalRating
+	 * @param timesRated
+	 * @return
+	 */
+	public static boolean isInvalidRatings(long totalRating, long timesRated) {
+		return(totalRating < 0 || totalRating > 0xFFFFFFFFL
+				|| timesRated < 0 || timesRated > 0xFFFFFFFFL);
+	}
+
 	/**
 	 * Checks if a string is empty or null
 	 * 
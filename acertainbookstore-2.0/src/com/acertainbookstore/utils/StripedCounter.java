@@ -0,0 +1,129 @@
+package com.acertainbookstore.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * StripedCounter is a counter that any number of threads can add to at once,
+ * meant for statistics that are written far more often than they are read.
+ *
+ * The counter starts out as a single value. Once two threads collide on it,
+ * it spreads the additions over padded cells, each on a cache line of its
+ * own, picked by a probe of the adding thread, which moves on to another cell
+ * whenever it collides again. So an addition never waits and rarely
+ * contends, while counters that are never contended stay small.
+ *
+ * The sum is read by adding up the value and the cells. It holds every
+ * addition that finished before it began, and each addition either fully or
+ * not at all, but it is no snapshot of a counter that is being added to.
+ *
+ */
+public final class StripedCounter {
+	// Longs per cell, so that every cell has a cache line of its own
+	private static final int PADDING = 8;
+	private static final int MAX_CELLS = 64;
+	private static final int NUM_CELLS;
+	static {
+		int cells = 1;
+		int wanted = Runtime.getRuntime().availableProcessors() * 2;
+		while (cells < wanted && cells < MAX_CELLS) {
+			cells <<= 1;
+		}
+		NUM_CELLS = cells;
+	}
+
+	private static final AtomicLongFieldUpdater<StripedCounter> BASE = AtomicLongFieldUpdater
+			.newUpdater(StripedCounter.class, "base");
+	private static final AtomicReferenceFieldUpdater<StripedCounter, AtomicLongArray> CELLS = AtomicReferenceFieldUpdater
+			.newUpdater(StripedCounter.class, AtomicLongArray.class, "cells");
+	// The probe of each thread, shared by all counters
+	private static final ThreadLocal<int[]> probe = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			long id = Thread.currentThread().getId();
+			return new int[] { (int) (id * 0x9E3779B97F4A7C15L >>> 32) | 1 };
+		}
+	};
+
+	private volatile long base;
+	// Null until the counter is contended
+	private volatile AtomicLongArray cells;
+
+	public StripedCounter() {
+		this(0L);
+	}
+
+	public StripedCounter(long initial) {
+		this.base = initial;
+	}
+
+	public void increment() {
+		this.add(1L);
+	}
+
+	public void add(long x) {
+		AtomicLongArray cells = this.cells;
+		if (cells == null) {
+			long value = this.base;
+			if (BASE.compareAndSet(this, value, value + x)) {
+				return;
+			}
+			cells = this.inflate();
+		}
+		int[] state = probe.get();
+		while (true) {
+			int i = (state[0] & (NUM_CELLS - 1)) * PADDING;
+			long value = cells.get(i);
+			if (cells.compareAndSet(i, value, value + x)) {
+				return;
+			}
+			// Collided, so try another cell from now on
+			int h = state[0];
+			h ^= h << 13;
+			h ^= h >>> 17;
+			h ^= h << 5;
+			state[0] = h;
+		}
+	}
+
+	/**
+	 * Returns the sum of the additions.
+	 *
+	 * @return
+	 */
+	public long sum() {
+		long sum = this.base;
+		AtomicLongArray cells = this.cells;
+		if (cells != null) {
+			for (int i = 0; i < NUM_CELLS; i++) {
+				sum += cells.get(i * PADDING);
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Sets the counter back to 0. Additions running at the same time may or
+	 * may not be lost, so callers must keep them out.
+	 */
+	public void reset() {
+		this.base = 0L;
+		AtomicLongArray cells = this.cells;
+		if (cells != null) {
+			for (int i = 0; i < NUM_CELLS; i++) {
+				cells.set(i * PADDING, 0L);
+			}
+		}
+	}
+
+	private AtomicLongArray inflate() {
+		CELLS.compareAndSet(this, null, new AtomicLongArray(NUM_CELLS * PADDING));
+		return this.cells;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toString(this.sum());
+	}
+}
@@ -0,0 +1,213 @@
+package com.acertainbookstore.business;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/**
+ * BookStoreCheckpoint writes and loads checkpoints of the catalog of
+ * CertainBookStore, so that a restart only replays the journal records
+ * written after the last checkpoint, cf. {@link BookStoreJournal}.
+ *
+ * A checkpoint has a fixed layout: a header, one fixed size record per book
+ * holding its numbers, and an area holding the titles and authors, which the
+ * records point into. Loading maps the file into memory and decodes the
+ * records straight out of the mapping, so a large catalog is read with
+ * sequential page faults instead of many small read calls.
+ *
+ * A checkpoint is written to a temporary file which then replaces the old
+ * checkpoint by an atomic rename, so a crash while writing leaves the
+ * previous checkpoint in place. The directory is flushed after the rename,
+ * so the new checkpoint survives a crash before the journal records it holds
+ * are dropped.
+ *
+ */
+public class BookStoreCheckpoint {
+	private static final int MAGIC = 0x43424b50;
+	private static final int VERSION = 1;
+	// magic, version, journal offset, number of books, start of the strings
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 8;
+	// ISBN, price, copies, sale misses, times rated, total rating, offset of
+	// the strings, editor pick, padding
+	private static final int RECORD_SIZE = 4 + 4 + 4 + 8 + 8 + 8 + 8 + 1 + 3;
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private BookStoreCheckpoint() {
+	}
+
+	/**
+	 * Writes a checkpoint of books to file, recording that it holds the
+	 * effect of every journal record before journalOffset.
+	 *
+	 * @param file
+	 * @param books
+	 * @param journalOffset
+	 * @throws IOException
+	 */
+	public static void write(File file, Collection<? extends StockBook> books,
+			long journalOffset) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		long stringsStart = HEADER_SIZE + (long) RECORD_SIZE * books.size();
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			channel.truncate(0);
+
+			ByteBuffer records = ByteBuffer.allocate(BUFFER_SIZE);
+			ByteBuffer strings = ByteBuffer.allocate(BUFFER_SIZE);
+			long recordsPosition = HEADER_SIZE;
+			long stringsPosition = stringsStart;
+			long stringOffset = 0;
+			int count = 0;
+			for (StockBook book : books) {
+				byte[] title = book.getTitle().getBytes(UTF8);
+				byte[] author = book.getAuthor().getBytes(UTF8);
+				if (records.remaining() < RECORD_SIZE) {
+					recordsPosition += flush(channel, records, recordsPosition);
+				}
+				records.putInt(book.getISBN());
+				records.putFloat(book.getPrice());
+				records.putInt(book.getNumCopies());
+				records.putLong(book.getSaleMisses());
+				records.putLong(book.getTimesRated());
+				records.putLong(book.getTotalRating());
+				records.putLong(stringOffset);
+				records.put((byte) (book.isEditorPick() ? 1 : 0));
+				records.position(records.position() + 3);
+
+				int size = 8 + title.length + author.length;
+				if (strings.remaining() < size) {
+					stringsPosition += flush(channel, strings, stringsPosition);
+					if (strings.capacity() < size) {
+						strings = ByteBuffer.allocate(size);
+					}
+				}
+				strings.putInt(title.length).put(title);
+				strings.putInt(author.length).put(author);
+				stringOffset += size;
+				count++;
+			}
+			flush(channel, records, recordsPosition);
+			flush(channel, strings, stringsPosition);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(journalOffset)
+					.putInt(count).putLong(stringsStart);
+			flush(channel, header, 0);
+			channel.force(true);
+		} finally {
+			raf.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(file);
+	}
+
+	/**
+	 * Forces the directory holding file to disk, which makes a rename into it
+	 * durable.
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	static void syncDirectory(File file) throws IOException {
+		File directory = file.getAbsoluteFile().getParentFile();
+		FileChannel channel = FileChannel.open(directory.toPath(),
+				StandardOpenOption.READ);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Loads the books of the checkpoint in file into bookMap, and returns the
+	 * journal offset from which the journal must be replayed.
+	 *
+	 * @param file
+	 * @param bookMap
+	 * @return
+	 * @throws IOException
+	 */
+	public static long load(File file,
+			ConcurrentIntHashMap<BookStoreBook> bookMap)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer header = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException(file + " is not a bookstore checkpoint");
+			}
+			long journalOffset = header.getLong();
+			int count = header.getInt();
+			long stringsStart = header.getLong();
+
+			MappedByteBuffer records = map(channel, HEADER_SIZE, stringsStart
+					- HEADER_SIZE);
+			MappedByteBuffer strings = map(channel, stringsStart,
+					channel.size() - stringsStart);
+			for (int i = 0; i < count; i++) {
+				int ISBN = records.getInt();
+				float price = records.getFloat();
+				int numCopies = records.getInt();
+				long saleMisses = records.getLong();
+				long timesRated = records.getLong();
+				long totalRating = records.getLong();
+				strings.position((int) records.getLong());
+				boolean editorPick = records.get() != 0;
+				records.position(records.position() + 3);
+
+				String title = readString(strings);
+				String author = readString(strings);
+				bookMap.put(ISBN, new BookStoreBook(new ImmutableStockBook(
+						ISBN, title, author, price, numCopies, saleMisses,
+						timesRated, totalRating, editorPick)));
+			}
+			return journalOffset;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long position,
+			long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Checkpoint sections over 2GB are not supported");
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+	}
+
+	private static String readString(ByteBuffer strings) {
+		byte[] bytes = new byte[strings.getInt()];
+		strings.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Writes the buffer at position, clears it, and returns the number of
+	 * bytes written.
+	 */
+	private static int flush(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		buffer.flip();
+		int written = 0;
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer, position + written);
+		}
+		buffer.clear();
+		return written;
+	}
+}
@@ -0,0 +1,166 @@
+package com.acertainbookstore.business;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * BulkBookLoader carries out the work of a large addBooks call in parallel,
+ * with fork/join, so that importing a catalog of millions of books is not
+ * bound by a single core.
+ *
+ * Every step works on a range of an array of books, which is split in halves
+ * until the ranges are small enough, and reports the position of the first
+ * book in the array that fails the step, so that the error reported is the
+ * same no matter how the work was split.
+ *
+ */
+class BulkBookLoader {
+	// Books handled by one task without splitting it further
+	private static final int CHUNK_SIZE = 1024;
+
+	private final ForkJoinPool pool;
+
+	BulkBookLoader(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * A step applied to every book of a range, which returns the position of
+	 * the first book that fails the step, or -1.
+	 */
+	private abstract static class RangeTask extends RecursiveTask<Integer> {
+		private static final long serialVersionUID = 1L;
+		private final int from;
+		private final int to;
+
+		private RangeTask(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		abstract RangeTask split(int from, int to);
+
+		abstract int scan(int from, int to);
+
+		@Override
+		protected Integer compute() {
+			if (to - from <= CHUNK_SIZE) {
+				return scan(from, to);
+			}
+			int middle = (from + to) >>> 1;
+			RangeTask right = split(middle, to);
+			right.fork();
+			int left = split(from, middle).compute();
+			int rightResult = right.join();
+			return left >= 0 ? left : rightResult;
+		}
+	}
+
+	/**
+	 * Validates the books the same way as addBooks, and builds the
+	 * BookStoreBook of each valid book into out.
+	 *
+	 * @param books
+	 * @param out
+	 * @return the position of the first invalid book, or -1
+	 */
+	int build(final StockBook[] books, final BookStoreBook[] out) {
+		class BuildTask extends RangeTask {
+			private static final long serialVersionUID = 1L;
+
+			BuildTask(int from, int to) {
+				super(from, to);
+			}
+
+			@Override
+			RangeTask split(int from, int to) {
+				return new BuildTask(from, to);
+			}
+
+			@Override
+			int scan(int from, int to) {
+				for (int i = from; i < to; i++) {
+					StockBook book = books[i];
+					if (BookStoreUtility.isInvalidISBN(book.getISBN())
+							|| BookStoreUtility.isEmpty(book.getTitle())
+							|| BookStoreUtility.isEmpty(book.getAuthor())
+							|| BookStoreUtility.isInvalidNoCopies(book
+									.getNumCopies()) || book.getPrice() < 0.0) {
+						return i;
+					}
+					out[i] = new BookStoreBook(book);
+				}
+				return -1;
+			}
+		}
+		return pool.invoke(new BuildTask(0, books.length));
+	}
+
+	/**
+	 * Looks up the books in bookMap.
+	 *
+	 * @param books
+	 * @param bookMap
+	 * @param end
+	 *            only the books before end are looked up
+	 * @return the position of the first book whose ISBN is in bookMap, or -1
+	 */
+	int findDuplicate(final BookStoreBook[] books,
+			final ConcurrentIntHashMap<BookStoreBook> bookMap, int end) {
+		class DuplicateTask extends RangeTask {
+			private static final long serialVersionUID = 1L;
+
+			DuplicateTask(int from, int to) {
+				super(from, to);
+			}
+
+			@Override
+			RangeTask split(int from, int to) {
+				return new DuplicateTask(from, to);
+			}
+
+			@Override
+			int scan(int from, int to) {
+				for (int i = from; i < to; i++) {
+					if (bookMap.containsKey(books[i].getISBN())) {
+						return i;
+					}
+				}
+				return -1;
+			}
+		}
+		return pool.invoke(new DuplicateTask(0, end));
+	}
+
+	/**
+	 * Grows bookMap to hold the books as well, so that inserting them does
+	 * not rebuild it. The map may be grown while other threads use it, so
+	 * this is done before the books are locked.
+	 *
+	 * @param books
+	 * @param bookMap
+	 */
+	void reserve(BookStoreBook[] books,
+			ConcurrentIntHashMap<BookStoreBook> bookMap) {
+		bookMap.ensureCapacity(bookMap.size() + books.length);
+	}
+
+	/**
+	 * Puts the books into bookMap. Writers of the map are serialized, so the
+	 * books are put by the calling thread, which costs a probe of the table
+	 * per book; the map is first grown to hold them all if reserve did not
+	 * leave room enough, so that it is rebuilt at most once.
+	 *
+	 * @param books
+	 * @param bookMap
+	 */
+	void insert(BookStoreBook[] books,
+			ConcurrentIntHashMap<BookStoreBook> bookMap) {
+		bookMap.ensureCapacity(bookMap.size() + books.length);
+		for (BookStoreBook book : books) {
+			bookMap.put(book.getISBN(), book);
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package com.acertainbookstore.business;
+
+/**
+ * The ways in which CertainBookStore can serve the listing of all books.
+ *
+ */
+public enum CatalogEngine {
+	/**
+	 * Read locks every stripe and copies each book while holding them, so a
+	 * listing waits for, and holds up, every write to the store.
+	 */
+	LOCKING,
+	/**
+	 * Additionally keeps an immutable copy of every book in a
+	 * {@link PersistentIntMap}. Writers publish a new version of the map
+	 * after each change, and a listing simply returns the current version,
+	 * without taking any lock.
+	 */
+	PERSISTENT;
+}
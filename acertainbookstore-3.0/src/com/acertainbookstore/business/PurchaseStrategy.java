@@ -0,0 +1,25 @@
+package com.acertainbookstore.business;
+
+/**
+ * The ways in which CertainBookStore can carry out buyBooks.
+ * 
+ */
+public enum PurchaseStrategy {
+	/**
+	 * Write locks the stripes of the books in the order, then checks and
+	 * buys the copies while holding them.
+	 */
+	LOCKING,
+	/**
+	 * Takes the copies of each book with a compare-and-set on its stock
+	 * counter, without holding any lock. If a book runs short, the copies
+	 * already taken are put back and the purchase fails.
+	 */
+	OPTIMISTIC,
+	/**
+	 * Publishes the purchase in a slot of the calling thread, where the
+	 * thread holding the combiner lock applies it together with all other
+	 * published purchases, under one acquisition of their stripes.
+	 */
+	FLAT_COMBINING;
+}
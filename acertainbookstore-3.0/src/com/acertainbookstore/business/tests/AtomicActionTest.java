@@ -0,0 +1,305 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.CatalogEngine;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Tests for CertainBookStore.runAtomically: the writes of an action that
+ * fails are rolled back, sale misses included, the books it added are
+ * removed, and the rollback is journaled so that replaying the journal
+ * undoes it too.
+ */
+public class AtomicActionTest {
+	private CertainBookStore store;
+	private File journalFile;
+
+	@Before
+	public void setUp() throws BookStoreException, IOException {
+		store = CertainBookStore.getInstance();
+		store.clearBooks();
+		journalFile = File.createTempFile("journal", ".log");
+		journalFile.delete();
+		addBook(1, 5);
+		addBook(2, 5);
+		store.rateBooks(Collections.singleton(new BookRating(1, 4)));
+	}
+
+	@After
+	public void tearDown() throws BookStoreException {
+		store.closeJournal();
+		store.clearBooks();
+		journalFile.delete();
+	}
+
+	@Test
+	public void testCommit() throws BookStoreException {
+		store.runAtomically(new CertainBookStore.AtomicAction() {
+			@Override
+			public void run() throws BookStoreException {
+				store.buyBooks(Collections.singleton(new BookCopy(1, 2)));
+				addBook(3, 1);
+			}
+		});
+		Map<Integer, StockBook> books = books();
+		assertThat(books.size(), is(3));
+		assertThat(books.get(1).getNumCopies(), is(3));
+	}
+
+	@Test
+	public void testRollback() throws BookStoreException {
+		try {
+			store.runAtomically(new CertainBookStore.AtomicAction() {
+				@Override
+				public void run() throws BookStoreException {
+					store.buyBooks(Collections.singleton(new BookCopy(1, 2)));
+					store.addCopies(Collections.singleton(new BookCopy(2, 10)));
+					store.rateBooks(Collections.singleton(new BookRating(1, 1)));
+					store.rateBooks(Collections.singleton(new BookRating(2, 5)));
+					store.updateEditorPicks(Collections
+							.singleton(new BookEditorPick(2, true)));
+					failAction();
+				}
+			});
+			fail("The action did not fail");
+		} catch (BookStoreException ex) {
+			assertThat(ex.getMessage(), is(failureMessage()));
+		}
+		assertBefore(books());
+		// The indexes are rolled back too
+		assertThat(store.getTopRatedBooks(2).size(), is(1));
+		try {
+			store.getEditorPicks(1);
+			fail("The editor pick was not rolled back");
+		} catch (BookStoreException ex) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testRollbackRemovesAddedBooks() throws BookStoreException {
+		try {
+			store.runAtomically(new CertainBookStore.AtomicAction() {
+				@Override
+				public void run() throws BookStoreException {
+					addBook(3, 1);
+					store.buyBooks(Collections.singleton(new BookCopy(3, 1)));
+					store.rateBooks(Collections.singleton(new BookRating(3, 5)));
+					store.updateEditorPicks(Collections
+							.singleton(new BookEditorPick(3, true)));
+					failAction();
+				}
+			});
+			fail("The action did not fail");
+		} catch (BookStoreException ex) {
+			// Expected
+		}
+		assertBefore(books());
+		// Nor is it left in the indexes
+		assertThat(store.getTopRatedBooks(2).size(), is(1));
+		try {
+			store.getEditorPicks(1);
+			fail("The added book is still an editor pick");
+		} catch (BookStoreException ex) {
+			// Expected
+		}
+		// The ISBN is free again
+		addBook(3, 1);
+		assertThat(books().size(), is(3));
+	}
+
+	@Test
+	public void testRollbackSaleMisses() throws BookStoreException {
+		try {
+			store.runAtomically(new CertainBookStore.AtomicAction() {
+				@Override
+				public void run() throws BookStoreException {
+					store.buyBooks(Collections.singleton(new BookCopy(2, 1)));
+					store.buyBooks(Collections.singleton(new BookCopy(1, 6)));
+				}
+			});
+			fail("The purchase did not miss");
+		} catch (BookStoreException ex) {
+			assertThat(ex.getMessage(), is(BookStoreConstants.BOOK
+					+ BookStoreConstants.NOT_AVAILABLE));
+		}
+		// The miss failed the action, and is rolled back with it
+		assertBefore(books());
+		assertThat(store.getBooksInDemand().isEmpty(), is(true));
+	}
+
+	@Test
+	public void testRollbackRestock() throws BookStoreException {
+		// A miss made outside of an action counts
+		try {
+			store.buyBooks(Collections.singleton(new BookCopy(2, 6)));
+			fail("The purchase did not miss");
+		} catch (BookStoreException ex) {
+			// Expected
+		}
+		try {
+			store.runAtomically(new CertainBookStore.AtomicAction() {
+				@Override
+				public void run() throws BookStoreException {
+					store.addCopies(Collections.singleton(new BookCopy(2, 1)));
+					failAction();
+				}
+			});
+			fail("The action did not fail");
+		} catch (BookStoreException ex) {
+			// Expected
+		}
+		// The restock is rolled back, and the book is in demand again
+		List<StockBook> inDemand = store.getBooksInDemand();
+		assertThat(inDemand.size(), is(1));
+		assertThat(inDemand.get(0).getISBN(), is(2));
+		assertThat(inDemand.get(0).getNumCopies(), is(5));
+	}
+
+	@Test
+	public void testRollbackPersistentCatalog() throws BookStoreException {
+		store.setCatalogEngine(CatalogEngine.PERSISTENT);
+		try {
+			try {
+				store.runAtomically(new CertainBookStore.AtomicAction() {
+					@Override
+					public void run() throws BookStoreException {
+						addBook(3, 1);
+						store.buyBooks(Collections.singleton(new BookCopy(1, 2)));
+						failAction();
+					}
+				});
+				fail("The action did not fail");
+			} catch (BookStoreException ex) {
+				// Expected
+			}
+			// Listed from the catalog, which is rolled back too
+			assertBefore(books());
+		} finally {
+			store.setCatalogEngine(CatalogEngine.LOCKING);
+		}
+	}
+
+	@Test
+	public void testNestedActionJoins() throws BookStoreException {
+		try {
+			store.runAtomically(new CertainBookStore.AtomicAction() {
+				@Override
+				public void run() throws BookStoreException {
+					store.runAtomically(new CertainBookStore.AtomicAction() {
+						@Override
+						public void run() throws BookStoreException {
+							store.buyBooks(Collections.singleton(new BookCopy(
+									1, 2)));
+						}
+					});
+					failAction();
+				}
+			});
+			fail("The action did not fail");
+		} catch (BookStoreException ex) {
+			// Expected
+		}
+		assertBefore(books());
+	}
+
+	@Test
+	public void testReplayRollback() throws BookStoreException {
+		store.openJournal(journalFile);
+		try {
+			store.runAtomically(new CertainBookStore.AtomicAction() {
+				@Override
+				public void run() throws BookStoreException {
+					addBook(3, 1);
+					store.buyBooks(Collections.singleton(new BookCopy(1, 2)));
+					store.rateBooks(Collections.singleton(new BookRating(2, 5)));
+					failAction();
+				}
+			});
+			fail("The action did not fail");
+		} catch (BookStoreException ex) {
+			// Expected
+		}
+		store.buyBooks(Collections.singleton(new BookCopy(2, 1)));
+		store.closeJournal();
+
+		// The books were added before the journal was opened
+		store.clearBooks();
+		addBook(1, 5);
+		addBook(2, 5);
+		store.rateBooks(Collections.singleton(new BookRating(1, 4)));
+		store.openJournal(journalFile);
+		Map<Integer, StockBook> books = books();
+		assertThat(books.size(), is(2));
+		assertThat(books.get(1).getNumCopies(), is(5));
+		assertThat(books.get(1).getTimesRated(), is(1L));
+		assertThat(books.get(2).getNumCopies(), is(4));
+		assertThat(books.get(2).getTimesRated(), is(0L));
+	}
+
+	/**
+	 * Checks that the books are as setUp left them
+	 */
+	private static void assertBefore(Map<Integer, StockBook> books) {
+		assertThat(books.size(), is(2));
+		StockBook first = books.get(1);
+		assertThat(first.getNumCopies(), is(5));
+		assertThat(first.getTimesRated(), is(1L));
+		assertThat(first.getTotalRating(), is(4L));
+		assertThat(first.getSaleMisses(), is(0L));
+		assertThat(first.isEditorPick(), is(false));
+		StockBook second = books.get(2);
+		assertThat(second.getNumCopies(), is(5));
+		assertThat(second.getTimesRated(), is(0L));
+		assertThat(second.getTotalRating(), is(0L));
+		assertThat(second.getSaleMisses(), is(0L));
+		assertThat(second.isEditorPick(), is(false));
+	}
+
+	private Map<Integer, StockBook> books() {
+		List<StockBook> books = store.getBooks();
+		Map<Integer, StockBook> byISBN = new HashMap<Integer, StockBook>();
+		for (StockBook book : books) {
+			byISBN.put(book.getISBN(), book);
+		}
+		return byISBN;
+	}
+
+	private void addBook(int ISBN, int numCopies) throws BookStoreException {
+		store.addBooks(Collections.<StockBook> singleton(new ImmutableStockBook(
+				ISBN, "Title " + ISBN, "Author", 10.0f, numCopies, 0, 0, 0,
+				false)));
+	}
+
+	/**
+	 * Fails the action the way an operation would, by buying a book that is
+	 * not in the store
+	 */
+	private void failAction() throws BookStoreException {
+		store.buyBooks(Collections.singleton(new BookCopy(99, 1)));
+	}
+
+	private static String failureMessage() {
+		return BookStoreConstants.ISBN + 99 + BookStoreConstants.NOT_AVAILABLE;
+	}
+}
@@ -0,0 +1,187 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookStoreBook;
+import com.acertainbookstore.business.BookStoreCheckpoint;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ConcurrentIntHashMap;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Tests for BookStoreCheckpoint: checkpoints written and loaded back, and a
+ * store restored from its last checkpoint and the journal written after it.
+ */
+public class BookStoreCheckpointTest {
+	private File checkpointFile;
+	private File journalFile;
+
+	@Before
+	public void setUp() throws IOException {
+		checkpointFile = File.createTempFile("checkpoint", ".dat");
+		checkpointFile.delete();
+		journalFile = File.createTempFile("journal", ".log");
+		journalFile.delete();
+	}
+
+	@After
+	public void tearDown() throws BookStoreException {
+		CertainBookStore store = CertainBookStore.getInstance();
+		store.closeJournal();
+		store.clearBooks();
+		checkpointFile.delete();
+		journalFile.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		StockBook first = new ImmutableStockBook(1, "Title \u00e6\u00f8\u00e5",
+				"Author \u4e66", 12.5f, 7, 3, 4, 15, true);
+		StockBook second = new ImmutableStockBook(2, "", "Author", 1.0f, 0, 0,
+				0, 0, false);
+		BookStoreCheckpoint.write(checkpointFile, Arrays.asList(first, second),
+				1234);
+		assertThat(new File(checkpointFile.getPath() + ".tmp").exists(),
+				is(false));
+
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		assertThat(BookStoreCheckpoint.load(checkpointFile, bookMap), is(1234L));
+		assertThat(bookMap.size(), is(2));
+		assertBook(bookMap.get(1).immutableStockBook(), first);
+		assertBook(bookMap.get(2).immutableStockBook(), second);
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		BookStoreCheckpoint.write(checkpointFile,
+				Collections.<StockBook> emptyList(), 0);
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		assertThat(BookStoreCheckpoint.load(checkpointFile, bookMap), is(0L));
+		assertThat(bookMap.size(), is(0));
+	}
+
+	@Test
+	public void testRestoreAfterCheckpoint() throws BookStoreException {
+		CertainBookStore store = CertainBookStore.getInstance();
+		store.clearBooks();
+		store.openJournal(journalFile, checkpointFile);
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(new ImmutableStockBook(1, "Title 1", "Author", 10.0f, 5, 0,
+				0, 0, false));
+		books.add(new ImmutableStockBook(2, "Title 2", "Author", 20.0f, 5, 0,
+				0, 0, false));
+		store.addBooks(books);
+		store.addCopies(Collections.singleton(new BookCopy(1, 2)));
+		long length = journalFile.length();
+
+		store.checkpoint();
+		// The records the checkpoint holds are dropped from the journal
+		assertThat(journalFile.length() < length, is(true));
+
+		store.buyBooks(Collections.singleton(new BookCopy(2, 3)));
+		store.closeJournal();
+		store.clearBooks();
+
+		store.openJournal(journalFile, checkpointFile);
+		List<StockBook> restored = store.getBooks();
+		assertThat(restored.size(), is(2));
+		for (StockBook book : restored) {
+			if (book.getISBN() == 1) {
+				assertThat(book.getNumCopies(), is(7));
+			} else {
+				assertThat(book.getNumCopies(), is(2));
+			}
+		}
+	}
+
+	@Test
+	public void testRestoreRepeatedPurchase() throws BookStoreException {
+		CertainBookStore store = CertainBookStore.getInstance();
+		store.clearBooks();
+		store.openJournal(journalFile, checkpointFile);
+		store.addBooks(Collections.<StockBook> singleton(new ImmutableStockBook(
+				1, "Title 1", "Author", 10.0f, 1, 0, 0, 0, false)));
+		// BookCopy has no hashCode, so the set keeps both copies of the ISBN,
+		// and each is checked against the stock alone
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		bookCopies.add(new BookCopy(1, 1));
+		bookCopies.add(new BookCopy(1, 1));
+		store.buyBooks(bookCopies);
+		store.closeJournal();
+		store.clearBooks();
+
+		store.openJournal(journalFile, checkpointFile);
+		assertThat(store.getBooks().get(0).getNumCopies(), is(0));
+	}
+
+	@Test
+	public void testBackgroundFailureThrownByCheckpoint()
+			throws BookStoreException, InterruptedException {
+		CertainBookStore store = startFailingCheckpoints();
+		try {
+			store.checkpoint();
+			fail("The failure of the background checkpoint was not thrown");
+		} catch (BookStoreException ex) {
+			assertThat(ex.getCause(), is(instanceOf(BookStoreException.class)));
+		}
+	}
+
+	@Test
+	public void testBackgroundFailureThrownByClose()
+			throws BookStoreException, InterruptedException {
+		CertainBookStore store = startFailingCheckpoints();
+		try {
+			store.closeJournal();
+			fail("The failure of the background checkpoint was not thrown");
+		} catch (BookStoreException ex) {
+			assertThat(ex.getCause(), is(instanceOf(BookStoreException.class)));
+		}
+		// The journal is closed all the same, and the failure thrown once
+		store.closeJournal();
+	}
+
+	/**
+	 * Opens the journal with checkpoints written to a directory that does not
+	 * exist, and waits for a background checkpoint to fail
+	 */
+	private CertainBookStore startFailingCheckpoints()
+			throws BookStoreException, InterruptedException {
+		CertainBookStore store = CertainBookStore.getInstance();
+		store.clearBooks();
+		store.openJournal(journalFile, new File(checkpointFile,
+				"missing/checkpoint.dat"));
+		store.addBooks(Collections.<StockBook> singleton(new ImmutableStockBook(
+				1, "Title 1", "Author", 10.0f, 1, 0, 0, 0, false)));
+		store.startCheckpoints(1);
+		Thread.sleep(2500);
+		return store;
+	}
+
+	private static void assertBook(StockBook actual, StockBook expected) {
+		assertThat(actual.getISBN(), is(expected.getISBN()));
+		assertThat(actual.getTitle(), is(expected.getTitle()));
+		assertThat(actual.getAuthor(), is(expected.getAuthor()));
+		assertThat(actual.getPrice(), is(expected.getPrice()));
+		assertThat(actual.getNumCopies(), is(expected.getNumCopies()));
+		assertThat(actual.getSaleMisses(), is(expected.getSaleMisses()));
+		assertThat(actual.getTimesRated(), is(expected.getTimesRated()));
+		assertThat(actual.getTotalRating(), is(expected.getTotalRating()));
+		assertThat(actual.isEditorPick(), is(expected.isEditorPick()));
+	}
+}
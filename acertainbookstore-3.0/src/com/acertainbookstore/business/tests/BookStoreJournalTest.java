@@ -0,0 +1,309 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.BookStoreBook;
+import com.acertainbookstore.business.BookStoreJournal;
+import com.acertainbookstore.business.ConcurrentIntHashMap;
+import com.acertainbookstore.business.ImmutableStockBook;
+
+/**
+ * Tests for BookStoreJournal: records written, reopened and replayed into a
+ * fresh map, torn or corrupted tails, records dropped after a checkpoint, and
+ * concurrent group commits.
+ */
+public class BookStoreJournalTest {
+	// The journal file starts with the offset of its first record
+	private static final int FILE_HEADER = 8;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("journal", ".log");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		BookStoreJournal journal = BookStoreJournal.open(file, 0,
+				new ConcurrentIntHashMap<BookStoreBook>());
+		BookStoreBook first = book(1, 5);
+		BookStoreBook second = book(2, 1);
+		journal.logAddBooks(Arrays.asList(first, second));
+		journal.logAddCopies(Collections.singleton(new BookCopy(1, 3)));
+		journal.logBuyBooks(Collections.singleton(new BookCopy(1, 2)));
+		journal.logSaleMisses(Collections.singletonList(second));
+		journal.logEditorPicks(Collections.singleton(new BookEditorPick(2,
+				true)));
+		Set<BookRating> ratings = new HashSet<BookRating>();
+		ratings.add(new BookRating(1, 4));
+		ratings.add(new BookRating(2, 3));
+		journal.logRatings(ratings);
+		journal.logRatings(Collections.singleton(new BookRating(1, 2)));
+		long end = journal.getOffset();
+		journal.close();
+		assertThat(file.length(), is(FILE_HEADER + end));
+
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		journal = BookStoreJournal.open(file, 0, bookMap);
+		journal.close();
+		assertThat(bookMap.size(), is(2));
+		BookStoreBook book = bookMap.get(1);
+		assertThat(book.getTitle(), is("Title 1"));
+		assertThat(book.getNumCopies(), is(6));
+		assertThat(book.getTimesRated(), is(2L));
+		assertThat(book.getTotalRating(), is(6L));
+		assertThat(book.isEditorPick(), is(false));
+		book = bookMap.get(2);
+		assertThat(book.getNumCopies(), is(1));
+		assertThat(book.getSaleMisses(), is(1L));
+		assertThat(book.isEditorPick(), is(true));
+		assertThat(book.getTotalRating(), is(3L));
+	}
+
+	@Test
+	public void testRemoveAndClear() throws IOException {
+		BookStoreJournal journal = BookStoreJournal.open(file, 0,
+				new ConcurrentIntHashMap<BookStoreBook>());
+		journal.logAddBooks(Arrays.asList(book(1, 5), book(2, 5), book(3, 5)));
+		journal.logRemoveBooks(Arrays.asList(2));
+		journal.close();
+
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		journal = BookStoreJournal.open(file, 0, bookMap);
+		assertThat(bookMap.size(), is(2));
+		assertThat(bookMap.containsKey(2), is(false));
+		// Records appended after a replay follow the replayed ones
+		journal.logClear();
+		journal.logAddBooks(Arrays.asList(book(4, 1)));
+		journal.close();
+
+		bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		BookStoreJournal.open(file, 0, bookMap).close();
+		assertThat(bookMap.size(), is(1));
+		assertThat(bookMap.get(4).getNumCopies(), is(1));
+	}
+
+	@Test
+	public void testTornTail() throws IOException {
+		BookStoreJournal journal = BookStoreJournal.open(file, 0,
+				new ConcurrentIntHashMap<BookStoreBook>());
+		journal.logAddBooks(Arrays.asList(book(1, 5)));
+		long complete = journal.logAddCopies(Collections
+				.singleton(new BookCopy(1, 3)));
+		journal.logAddCopies(Collections.singleton(new BookCopy(1, 10)));
+		journal.close();
+
+		// A crash in the middle of the last flush
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 3);
+		raf.close();
+
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		journal = BookStoreJournal.open(file, 0, bookMap);
+		assertThat(bookMap.get(1).getNumCopies(), is(8));
+		assertThat(journal.getOffset(), is(complete));
+		assertThat(file.length(), is(FILE_HEADER + complete));
+		journal.logAddCopies(Collections.singleton(new BookCopy(1, 1)));
+		journal.close();
+
+		bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		BookStoreJournal.open(file, 0, bookMap).close();
+		assertThat(bookMap.get(1).getNumCopies(), is(9));
+	}
+
+	@Test
+	public void testCorruptedRecord() throws IOException {
+		BookStoreJournal journal = BookStoreJournal.open(file, 0,
+				new ConcurrentIntHashMap<BookStoreBook>());
+		journal.logAddBooks(Arrays.asList(book(1, 5)));
+		long complete = journal.logAddCopies(Collections
+				.singleton(new BookCopy(1, 3)));
+		journal.logAddCopies(Collections.singleton(new BookCopy(1, 10)));
+		journal.close();
+
+		// Flip the last byte of the last record, which its CRC must catch
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(raf.length() - 1);
+		int last = raf.read();
+		raf.seek(raf.length() - 1);
+		raf.write(last ^ 0xFF);
+		raf.close();
+
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		journal = BookStoreJournal.open(file, 0, bookMap);
+		journal.close();
+		assertThat(bookMap.get(1).getNumCopies(), is(8));
+		assertThat(file.length(), is(FILE_HEADER + complete));
+	}
+
+	@Test
+	public void testDivergedReplayFails() throws IOException {
+		BookStoreJournal journal = BookStoreJournal.open(file, 0,
+				new ConcurrentIntHashMap<BookStoreBook>());
+		journal.logAddBooks(Arrays.asList(book(1, 1)));
+		journal.logBuyBooks(Collections.singleton(new BookCopy(1, 5)));
+		journal.close();
+
+		try {
+			BookStoreJournal.open(file, 0,
+					new ConcurrentIntHashMap<BookStoreBook>());
+			fail("Replaying a purchase beyond the stock should fail");
+		} catch (IOException ex) {
+			;
+		}
+	}
+
+	@Test
+	public void testDiscardBefore() throws IOException {
+		BookStoreJournal journal = BookStoreJournal.open(file, 0,
+				new ConcurrentIntHashMap<BookStoreBook>());
+		long checkpoint = journal.logAddBooks(Arrays.asList(book(1, 5)));
+		long kept = journal.logAddCopies(Collections.singleton(new BookCopy(1,
+				2)));
+		journal.sync(kept);
+		journal.discardBefore(checkpoint);
+		assertThat(file.length(), is(FILE_HEADER + kept - checkpoint));
+		assertThat(new File(file.getPath() + ".tmp").exists(), is(false));
+		// Offsets keep counting across the dropped records
+		long end = journal.logAddCopies(Collections.singleton(new BookCopy(1,
+				1)));
+		journal.close();
+		assertThat(file.length(), is(FILE_HEADER + end - checkpoint));
+
+		// The checkpoint holds the dropped records
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		bookMap.put(1, book(1, 5));
+		journal = BookStoreJournal.open(file, checkpoint, bookMap);
+		assertThat(journal.getOffset(), is(end));
+		journal.close();
+		assertThat(bookMap.get(1).getNumCopies(), is(8));
+
+		try {
+			BookStoreJournal.open(file, 0,
+					new ConcurrentIntHashMap<BookStoreBook>());
+			fail("Replaying records that were dropped should fail");
+		} catch (IOException ex) {
+			;
+		}
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		final BookStoreJournal journal = BookStoreJournal.open(file, 0,
+				new ConcurrentIntHashMap<BookStoreBook>());
+		journal.logAddBooks(Arrays.asList(book(1, 1)));
+		final int numThreads = 16;
+		final int numRecords = 200;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < numThreads; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < numRecords; j++) {
+							long offset = journal.logRatings(Collections
+									.singleton(new BookRating(1, 1)));
+							journal.sync(offset);
+							// Sync only returns once the record is on disk
+							if (file.length() < offset) {
+								throw new AssertionError("Record at " + offset
+										+ " not written");
+							}
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		journal.close();
+		assertThat(failure.get(), is(nullValue()));
+
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		BookStoreJournal.open(file, 0, bookMap).close();
+		assertThat(bookMap.get(1).getTimesRated(),
+				is((long) numThreads * numRecords));
+	}
+
+	@Test
+	public void testSyncWhileInterrupted() throws Exception {
+		final BookStoreJournal journal = BookStoreJournal.open(file, 0,
+				new ConcurrentIntHashMap<BookStoreBook>());
+		journal.logAddBooks(Arrays.asList(book(1, 1)));
+		final int numThreads = 8;
+		final int numRecords = 100;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < numThreads; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < numRecords; j++) {
+							long offset = journal.logRatings(Collections
+									.singleton(new BookRating(1, 1)));
+							// The record is applied already, so the sync must
+							// neither give up nor close the channel
+							Thread.currentThread().interrupt();
+							journal.sync(offset);
+							if (!Thread.interrupted()) {
+								throw new AssertionError(
+										"Interrupt status not restored");
+							}
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		journal.close();
+		assertThat(failure.get(), is(nullValue()));
+
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		BookStoreJournal.open(file, 0, bookMap).close();
+		assertThat(bookMap.get(1).getTimesRated(),
+				is((long) numThreads * numRecords));
+	}
+
+	private static BookStoreBook book(int ISBN, int numCopies) {
+		return new BookStoreBook(new ImmutableStockBook(ISBN, "Title " + ISBN,
+				"Author", 10.0f, numCopies, 0, 0, 0, false));
+	}
+}
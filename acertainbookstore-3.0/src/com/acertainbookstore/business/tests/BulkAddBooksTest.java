@@ -0,0 +1,163 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.CatalogEngine;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Tests for the bulk path of CertainBookStore.addBooks, taken by sets of
+ * 4096 books or more: the books are added with their indexes, catalog
+ * entries and journal record, or not at all, and the error is the one the
+ * serial path reports for the same book.
+ */
+public class BulkAddBooksTest {
+	private static final int NUM_BOOKS = 5000;
+	private CertainBookStore store;
+	private File journalFile;
+
+	@Before
+	public void setUp() throws BookStoreException, IOException {
+		store = CertainBookStore.getInstance();
+		store.clearBooks();
+		journalFile = File.createTempFile("journal", ".log");
+		journalFile.delete();
+	}
+
+	@After
+	public void tearDown() throws BookStoreException {
+		store.closeJournal();
+		store.setCatalogEngine(CatalogEngine.LOCKING);
+		store.clearBooks();
+		journalFile.delete();
+	}
+
+	@Test
+	public void testAdd() throws BookStoreException {
+		store.addBooks(bulk(1));
+		assertAdded();
+	}
+
+	@Test
+	public void testAddPersistentCatalog() throws BookStoreException {
+		store.setCatalogEngine(CatalogEngine.PERSISTENT);
+		store.addBooks(bulk(1));
+		// Listed from the catalog
+		assertAdded();
+	}
+
+	@Test
+	public void testReplay() throws BookStoreException {
+		store.openJournal(journalFile);
+		store.addBooks(bulk(1));
+		store.closeJournal();
+		store.clearBooks();
+		store.openJournal(journalFile);
+		assertAdded();
+	}
+
+	@Test
+	public void testDuplicate() throws BookStoreException {
+		// The first duplicate is reported, not the later duplicate or the
+		// invalid book
+		store.addBooks(Collections.<StockBook> singleton(book(3000, 1)));
+		store.addBooks(Collections.<StockBook> singleton(book(4000, 1)));
+		String serial = failure(Collections.<StockBook> singleton(book(3000,
+				1)));
+		assertThat(failure(bulk(1, 4500)), is(serial));
+		assertThat(store.getBooks().size(), is(2));
+	}
+
+	@Test
+	public void testInvalid() throws BookStoreException {
+		// The invalid book comes before the duplicate, and is reported
+		store.addBooks(Collections.<StockBook> singleton(book(3000, 1)));
+		String serial = failure(Collections.singleton(invalidBook()));
+		assertThat(failure(bulk(1, 1000)), is(serial));
+		assertThat(store.getBooks().size(), is(1));
+	}
+
+	/**
+	 * Returns NUM_BOOKS books from ISBN first on, every tenth an editor pick,
+	 * every seventh rated, and every fifth with a sale miss
+	 */
+	private static Set<StockBook> bulk(int first) {
+		Set<StockBook> books = new LinkedHashSet<StockBook>();
+		for (int ISBN = first; ISBN < first + NUM_BOOKS; ISBN++) {
+			books.add(new ImmutableStockBook(ISBN, "Title " + ISBN, "Author",
+					10.0f, 1, ISBN % 5 == 0 ? 1 : 0, ISBN % 7 == 0 ? 1 : 0,
+					ISBN % 7 == 0 ? ISBN % 5 + 1 : 0, ISBN % 10 == 0));
+		}
+		return books;
+	}
+
+	/**
+	 * Returns bulk(first), with the book of ISBN invalidAt replaced by an
+	 * invalid one
+	 */
+	private static Set<StockBook> bulk(int first, int invalidAt) {
+		Set<StockBook> books = new LinkedHashSet<StockBook>();
+		for (StockBook book : bulk(first)) {
+			books.add(book.getISBN() == invalidAt ? invalidBook() : book);
+		}
+		return books;
+	}
+
+	private static StockBook invalidBook() {
+		return new ImmutableStockBook(-1, "Title", "Author", 10.0f, 1, 0, 0, 0,
+				false);
+	}
+
+	private static StockBook book(int ISBN, int numCopies) {
+		return new ImmutableStockBook(ISBN, "Title " + ISBN, "Author", 10.0f,
+				numCopies, 0, 0, 0, false);
+	}
+
+	private void assertAdded() throws BookStoreException {
+		Map<Integer, StockBook> byISBN = new HashMap<Integer, StockBook>();
+		for (StockBook book : store.getBooks()) {
+			byISBN.put(book.getISBN(), book);
+		}
+		assertThat(byISBN.size(), is(NUM_BOOKS));
+		for (int ISBN = 1; ISBN <= NUM_BOOKS; ISBN++) {
+			StockBook book = byISBN.get(ISBN);
+			assertThat(book.getSaleMisses(), is(ISBN % 5 == 0 ? 1L : 0L));
+			assertThat(book.isEditorPick(), is(ISBN % 10 == 0));
+		}
+		assertThat(store.getBooksInDemand().size(), is(NUM_BOOKS / 5));
+		assertThat(store.getEditorPicks(NUM_BOOKS / 10).size(),
+				is(NUM_BOOKS / 10));
+		List<Book> topRated = store.getTopRatedBooks(NUM_BOOKS);
+		assertThat(topRated.size(), is(NUM_BOOKS / 7));
+		// Rated 5 when ISBN % 5 == 4, the smallest such multiple of 7 is 14
+		assertThat(topRated.get(0).getISBN(), is(14));
+	}
+
+	private String failure(Set<StockBook> books) {
+		try {
+			store.addBooks(books);
+			fail("The books were added");
+		} catch (BookStoreException ex) {
+			return ex.getMessage();
+		}
+		return null;
+	}
+}
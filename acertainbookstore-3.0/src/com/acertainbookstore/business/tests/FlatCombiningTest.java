@@ -0,0 +1,210 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.PurchaseStrategy;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Tests for the flat-combining purchases of CertainBookStore: every caller
+ * served in a combined batch gets the outcome of its own purchase, and the
+ * stock comes out as if the purchases had run one at a time.
+ */
+public class FlatCombiningTest {
+	private static final int NUM_THREADS = 16;
+	private CertainBookStore store;
+
+	@Before
+	public void setUp() throws BookStoreException {
+		store = CertainBookStore.getInstance();
+		store.clearBooks();
+		CertainBookStore.setPurchaseStrategy(PurchaseStrategy.FLAT_COMBINING);
+	}
+
+	@After
+	public void tearDown() throws BookStoreException {
+		CertainBookStore.setPurchaseStrategy(PurchaseStrategy.LOCKING);
+		store.clearBooks();
+	}
+
+	@Test
+	public void testOutcomePerCaller() throws Exception {
+		// Fewer copies of book 1 than buyers, none of book 2
+		addBook(1, 2);
+		addBook(2, 1);
+		store.buyBooks(Collections.singleton(new BookCopy(2, 1)));
+		final int[] ISBNs = { 1, 2, -1, 3 };
+		final List<AtomicReference<String>> outcomes = new ArrayList<AtomicReference<String>>();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < NUM_THREADS; i++) {
+			final int ISBN = ISBNs[i % ISBNs.length];
+			final AtomicReference<String> outcome = new AtomicReference<String>();
+			outcomes.add(outcome);
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						store.buyBooks(Collections.singleton(new BookCopy(
+								ISBN, 1)));
+						outcome.set("bought");
+					} catch (BookStoreException ex) {
+						outcome.set(ex.getMessage());
+					} catch (InterruptedException ex) {
+						outcome.set("interrupted");
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		int bought = 0;
+		int missed = 0;
+		for (int i = 0; i < NUM_THREADS; i++) {
+			String outcome = outcomes.get(i).get();
+			switch (ISBNs[i % ISBNs.length]) {
+			case 1:
+				if (outcome.equals("bought")) {
+					bought++;
+				} else {
+					assertThat(outcome, is(BookStoreConstants.BOOK
+							+ BookStoreConstants.NOT_AVAILABLE));
+					missed++;
+				}
+				break;
+			case 2:
+				assertThat(outcome, is(BookStoreConstants.BOOK
+						+ BookStoreConstants.NOT_AVAILABLE));
+				break;
+			case -1:
+				assertThat(outcome, is(BookStoreConstants.ISBN + -1
+						+ BookStoreConstants.INVALID));
+				break;
+			default:
+				assertThat(outcome, is(BookStoreConstants.ISBN + 3
+						+ BookStoreConstants.NOT_AVAILABLE));
+			}
+		}
+		// Four buyers of book 1 for two copies
+		assertThat(bought, is(2));
+		assertThat(missed, is(2));
+		StockBook book = find(1);
+		assertThat(book.getNumCopies(), is(0));
+		assertThat(book.getSaleMisses(), is(2L));
+		assertThat(find(2).getSaleMisses(),
+				is((long) NUM_THREADS / ISBNs.length));
+	}
+
+	@Test
+	public void testStockIsLinearizable() throws Exception {
+		final int numCopies = 1000;
+		final int purchases = 200;
+		addBook(1, numCopies);
+		addBook(2, numCopies);
+		final AtomicInteger boughtFirst = new AtomicInteger();
+		final AtomicInteger boughtSecond = new AtomicInteger();
+		final AtomicInteger missed = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < NUM_THREADS; i++) {
+			final int seed = i;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < purchases; j++) {
+							// Single books and both books together, so
+							// purchases of one batch overlap
+							Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+							boolean first = (j + seed) % 3 != 1;
+							boolean second = (j + seed) % 3 != 0;
+							if (first) {
+								bookCopies.add(new BookCopy(1, 1));
+							}
+							if (second) {
+								bookCopies.add(new BookCopy(2, 1));
+							}
+							try {
+								store.buyBooks(bookCopies);
+								if (first) {
+									boughtFirst.incrementAndGet();
+								}
+								if (second) {
+									boughtSecond.incrementAndGet();
+								}
+							} catch (BookStoreException ex) {
+								if (!ex.getMessage().equals(
+										BookStoreConstants.BOOK
+												+ BookStoreConstants.NOT_AVAILABLE)) {
+									throw ex;
+								}
+								missed.incrementAndGet();
+							}
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertThat(failure.get(), is(nullValue()));
+
+		// Each book is wanted by two in three purchases, more than its stock
+		assertThat(find(1).getNumCopies(), is(numCopies - boughtFirst.get()));
+		assertThat(find(2).getNumCopies(), is(numCopies - boughtSecond.get()));
+		assertThat(boughtFirst.get() <= numCopies, is(true));
+		assertThat(boughtSecond.get() <= numCopies, is(true));
+		// A purchase only misses once one of its books has run out
+		assertThat(missed.get() > 0, is(true));
+		assertThat(find(1).getNumCopies() == 0
+				|| find(2).getNumCopies() == 0, is(true));
+	}
+
+	private void addBook(int ISBN, int numCopies) throws BookStoreException {
+		store.addBooks(Collections.<StockBook> singleton(new ImmutableStockBook(
+				ISBN, "Title " + ISBN, "Author", 10.0f, numCopies, 0, 0, 0,
+				false)));
+	}
+
+	private StockBook find(int ISBN) throws BookStoreException {
+		for (StockBook book : store.getBooks()) {
+			if (book.getISBN() == ISBN) {
+				return book;
+			}
+		}
+		throw new AssertionError("Book " + ISBN + " is missing");
+	}
+}
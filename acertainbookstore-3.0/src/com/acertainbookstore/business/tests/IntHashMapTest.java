@@ -0,0 +1,203 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.ConcurrentIntHashMap;
+import com.acertainbookstore.business.IntHashMap;
+
+/**
+ * Tests for IntHashMap and ConcurrentIntHashMap, checked against a HashMap
+ * fed the same random operations, and for ConcurrentIntHashMap.ensureCapacity
+ * as the bulk loader uses it.
+ */
+public class IntHashMapTest {
+
+	@Test
+	public void testPutGetRemove() {
+		IntHashMap<String> map = new IntHashMap<String>();
+		assertThat(map.put(5050, "a"), is(nullValue()));
+		assertThat(map.put(5050, "b"), is("a"));
+		assertThat(map.get(5050), is("b"));
+		assertThat(map.containsKey(1111), is(false));
+		assertThat(map.put(0, "zero"), is(nullValue()));
+		assertThat(map.get(0), is("zero"));
+		assertThat(map.size(), is(2));
+		assertThat(map.remove(5050), is("b"));
+		assertThat(map.containsKey(5050), is(false));
+		assertThat(map.size(), is(1));
+		map.clear();
+		assertThat(map.isEmpty(), is(true));
+		assertThat(map.containsKey(0), is(false));
+	}
+
+	@Test
+	public void testRandomOperations() {
+		IntHashMap<Integer> map = new IntHashMap<Integer>();
+		Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+		Random random = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			// A small key range forces collisions, resizes and removals
+			int key = random.nextInt(5000) - 10;
+			if (random.nextInt(3) == 0) {
+				assertThat(map.remove(key), is(reference.remove(key)));
+			} else {
+				assertThat(map.put(key, i), is(reference.put(key, i)));
+			}
+		}
+		assertThat(map.size(), is(reference.size()));
+		for (int key = -10; key < 4990; key++) {
+			assertThat(map.get(key), is(reference.get(key)));
+		}
+		assertThat(map.values().size(), is(reference.size()));
+	}
+
+	@Test
+	public void testConcurrentRandomOperations() {
+		ConcurrentIntHashMap<Integer> map = new ConcurrentIntHashMap<Integer>();
+		Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+		Random random = new Random(42);
+		for (int i = 0; i < 200000; i++) {
+			int key = random.nextInt(5000) - 10;
+			if (random.nextInt(3) == 0) {
+				assertThat(map.remove(key), is(reference.remove(key)));
+			} else {
+				assertThat(map.put(key, i), is(reference.put(key, i)));
+			}
+		}
+		assertThat(map.size(), is(reference.size()));
+		for (int key = -10; key < 4990; key++) {
+			assertThat(map.get(key), is(reference.get(key)));
+		}
+		assertThat(map.values().size(), is(reference.size()));
+	}
+
+	@Test
+	public void testConcurrentReadersSeeAllStableKeys() throws Throwable {
+		final ConcurrentIntHashMap<Integer> map = new ConcurrentIntHashMap<Integer>();
+		for (int key = 1; key <= 1000; key++) {
+			map.put(key, key);
+		}
+
+		// The writer keeps growing and shrinking the map, while a reader
+		// checks that keys 1..1000 are always found
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int round = 0; round < 20; round++) {
+					for (int key = 1001; key <= 20000; key++) {
+						map.put(key, key);
+					}
+					for (int key = 1001; key <= 20000; key++) {
+						map.remove(key);
+					}
+				}
+			}
+		});
+		writer.start();
+		while (writer.isAlive()) {
+			for (int key = 1; key <= 1000; key++) {
+				assertThat(map.get(key), is(key));
+			}
+		}
+		writer.join();
+		assertThat(map.size(), is(1000));
+	}
+
+	@Test
+	public void testEnsureCapacity() throws Exception {
+		ConcurrentIntHashMap<Integer> map = new ConcurrentIntHashMap<Integer>();
+		Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+		// Removed mappings keep their slots until the table is rebuilt
+		for (int key = 0; key < 1000; key++) {
+			map.put(key, key);
+			reference.put(key, key);
+		}
+		for (int key = 0; key < 1000; key += 2) {
+			map.remove(key);
+			reference.remove(key);
+		}
+
+		// As BulkBookLoader.insert grows the map before putting the books
+		map.ensureCapacity(map.size() + 20000);
+		Object table = table(map);
+		for (int key = 1000; key < 21000; key++) {
+			map.put(key, key);
+			reference.put(key, key);
+		}
+		assertThat(table(map), is(sameInstance(table)));
+
+		assertThat(map.size(), is(reference.size()));
+		for (int key = -10; key < 21010; key++) {
+			assertThat(map.get(key), is(reference.get(key)));
+		}
+		assertThat(map.values().size(), is(reference.size()));
+	}
+
+	@Test
+	public void testEnsureCapacityLargeEnough() throws Exception {
+		ConcurrentIntHashMap<Integer> map = new ConcurrentIntHashMap<Integer>(
+				1000);
+		for (int key = 0; key < 100; key++) {
+			map.put(key, key);
+		}
+		Object table = table(map);
+		map.ensureCapacity(500);
+		map.ensureCapacity(0);
+		assertThat(table(map), is(sameInstance(table)));
+		assertThat(map.size(), is(100));
+		for (int key = 0; key < 100; key++) {
+			assertThat(map.get(key), is(key));
+		}
+	}
+
+	@Test
+	public void testConcurrentReadersDuringEnsureCapacity() throws Throwable {
+		final ConcurrentIntHashMap<Integer> map = new ConcurrentIntHashMap<Integer>();
+		for (int key = 1; key <= 1000; key++) {
+			map.put(key, key);
+		}
+
+		// The writer grows the map before each round of puts, while a reader
+		// checks that keys 1..1000 are always found
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int round = 0; round < 20; round++) {
+					map.ensureCapacity(map.size() + 19000);
+					for (int key = 1001; key <= 20000; key++) {
+						map.put(key, key);
+					}
+					for (int key = 1001; key <= 20000; key++) {
+						map.remove(key);
+					}
+				}
+			}
+		});
+		writer.start();
+		while (writer.isAlive()) {
+			for (int key = 1; key <= 1000; key++) {
+				assertThat(map.get(key), is(key));
+			}
+		}
+		writer.join();
+		assertThat(map.size(), is(1000));
+	}
+
+	/**
+	 * Returns the current table of the map, which is replaced whenever the
+	 * map is rebuilt
+	 */
+	private static Object table(ConcurrentIntHashMap<?> map) throws Exception {
+		Field field = ConcurrentIntHashMap.class.getDeclaredField("table");
+		field.setAccessible(true);
+		return field.get(map);
+	}
+}
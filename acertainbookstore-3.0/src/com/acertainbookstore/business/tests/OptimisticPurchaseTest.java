@@ -0,0 +1,188 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.PurchaseStrategy;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreConstants;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Tests for the optimistic purchases of CertainBookStore: a purchase that
+ * runs short gives back the copies it took, records its sale misses, and
+ * concurrent purchases never sell more copies than are in stock.
+ */
+public class OptimisticPurchaseTest {
+	private static final int NUM_THREADS = 16;
+	private CertainBookStore store;
+
+	@Before
+	public void setUp() throws BookStoreException {
+		store = CertainBookStore.getInstance();
+		store.clearBooks();
+		CertainBookStore.setPurchaseStrategy(PurchaseStrategy.OPTIMISTIC);
+	}
+
+	@After
+	public void tearDown() throws BookStoreException {
+		CertainBookStore.setPurchaseStrategy(PurchaseStrategy.LOCKING);
+		store.clearBooks();
+	}
+
+	@Test
+	public void testShortfallReturnsCopies() throws BookStoreException {
+		addBook(1, 5);
+		addBook(2, 1);
+		addBook(3, 5);
+		// Book 2 runs short after book 1 is taken, and before book 3 is
+		Set<BookCopy> bookCopies = new LinkedHashSet<BookCopy>();
+		bookCopies.add(new BookCopy(1, 3));
+		bookCopies.add(new BookCopy(2, 2));
+		bookCopies.add(new BookCopy(3, 1));
+		try {
+			store.buyBooks(bookCopies);
+			fail("The purchase did not miss");
+		} catch (BookStoreException ex) {
+			assertThat(ex.getMessage(), is(BookStoreConstants.BOOK
+					+ BookStoreConstants.NOT_AVAILABLE));
+		}
+		assertThat(find(1).getNumCopies(), is(5));
+		assertThat(find(2).getNumCopies(), is(1));
+		assertThat(find(3).getNumCopies(), is(5));
+		// Only the book that ran short missed a sale
+		assertThat(find(1).getSaleMisses(), is(0L));
+		assertThat(find(3).getSaleMisses(), is(0L));
+
+		// The copies given back can be bought
+		store.buyBooks(Collections.singleton(new BookCopy(1, 5)));
+		assertThat(find(1).getNumCopies(), is(0));
+	}
+
+	@Test
+	public void testSaleMiss() throws BookStoreException {
+		addBook(1, 5);
+		addBook(2, 1);
+		for (int i = 0; i < 2; i++) {
+			try {
+				store.buyBooks(Collections.singleton(new BookCopy(2, 2)));
+				fail("The purchase did not miss");
+			} catch (BookStoreException ex) {
+				assertThat(ex.getMessage(), is(BookStoreConstants.BOOK
+						+ BookStoreConstants.NOT_AVAILABLE));
+			}
+		}
+		assertThat(find(2).getSaleMisses(), is(2L));
+		assertThat(find(2).getNumCopies(), is(1));
+		List<StockBook> inDemand = store.getBooksInDemand();
+		assertThat(inDemand.size(), is(1));
+		assertThat(inDemand.get(0).getISBN(), is(2));
+
+		// Restocking resets the misses
+		store.addCopies(Collections.singleton(new BookCopy(2, 1)));
+		assertThat(store.getBooksInDemand().isEmpty(), is(true));
+	}
+
+	@Test
+	public void testNoOversell() throws Exception {
+		final int numCopies = 500;
+		final int purchases = 100;
+		addBook(1, numCopies);
+		final AtomicInteger bought = new AtomicInteger();
+		final AtomicInteger missed = new AtomicInteger();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < NUM_THREADS; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j = 0; j < purchases; j++) {
+							try {
+								store.buyBooks(Collections
+										.singleton(new BookCopy(1, 1)));
+								bought.incrementAndGet();
+							} catch (BookStoreException ex) {
+								if (!ex.getMessage().equals(
+										BookStoreConstants.BOOK
+												+ BookStoreConstants.NOT_AVAILABLE)) {
+									throw ex;
+								}
+								missed.incrementAndGet();
+							}
+						}
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertThat(failure.get(), is(nullValue()));
+
+		// More purchases than copies, so every copy is sold, and no more
+		assertThat(bought.get(), is(numCopies));
+		assertThat(missed.get(), is(NUM_THREADS * purchases - numCopies));
+		StockBook book = find(1);
+		assertThat(book.getNumCopies(), is(0));
+		assertThat(book.getSaleMisses(), is((long) missed.get()));
+	}
+
+	@Test
+	public void testNotAtomic() throws BookStoreException {
+		addBook(1, 5);
+		final AtomicInteger runs = new AtomicInteger();
+		try {
+			store.runAtomically(new CertainBookStore.AtomicAction() {
+				@Override
+				public void run() throws BookStoreException {
+					runs.incrementAndGet();
+					store.buyBooks(Collections.singleton(new BookCopy(1, 1)));
+				}
+			});
+			fail("The action ran with optimistic purchases");
+		} catch (BookStoreException ex) {
+			assertThat(ex.getMessage(), is(BookStoreConstants.NOT_ATOMIC));
+		}
+		assertThat(runs.get(), is(0));
+		assertThat(find(1).getNumCopies(), is(5));
+	}
+
+	private void addBook(int ISBN, int numCopies) throws BookStoreException {
+		store.addBooks(Collections.<StockBook> singleton(new ImmutableStockBook(
+				ISBN, "Title " + ISBN, "Author", 10.0f, numCopies, 0, 0, 0,
+				false)));
+	}
+
+	private StockBook find(int ISBN) throws BookStoreException {
+		for (StockBook book : store.getBooks()) {
+			if (book.getISBN() == ISBN) {
+				return book;
+			}
+		}
+		throw new AssertionError("Book " + ISBN + " is missing");
+	}
+}
@@ -0,0 +1,181 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CatalogEngine;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Tests for the persistent catalog engine: a listing taken while books are
+ * added, bought and cleared is a consistent snapshot, holding every write
+ * either whole or not at all.
+ */
+public class PersistentCatalogTest {
+	private static final int NUM_COPIES = 1000000;
+	private static final int BATCH_SIZE = 10;
+	private CertainBookStore store;
+
+	@Before
+	public void setUp() throws BookStoreException {
+		store = CertainBookStore.getInstance();
+		store.clearBooks();
+		store.setCatalogEngine(CatalogEngine.PERSISTENT);
+	}
+
+	@After
+	public void tearDown() throws BookStoreException {
+		store.setCatalogEngine(CatalogEngine.LOCKING);
+		store.clearBooks();
+	}
+
+	@Test
+	public void testConsistentListing() throws Exception {
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		List<Thread> writers = new ArrayList<Thread>();
+
+		// Books 1 and 2 are only bought together, so they always have the
+		// same number of copies
+		writers.add(new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (!done.get()) {
+						Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+						bookCopies.add(new BookCopy(1, 1));
+						bookCopies.add(new BookCopy(2, 1));
+						try {
+							store.buyBooks(bookCopies);
+						} catch (BookStoreException ex) {
+							// Cleared in between
+						}
+					}
+				} catch (Throwable ex) {
+					failure.compareAndSet(null, ex);
+				}
+			}
+		});
+		// Batches of books are added at once
+		writers.add(new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int batch = 1; !done.get(); batch++) {
+						Set<StockBook> books = new HashSet<StockBook>();
+						for (int i = 0; i < BATCH_SIZE; i++) {
+							books.add(book(batch * 100 + i));
+						}
+						store.addBooks(books);
+					}
+				} catch (Throwable ex) {
+					failure.compareAndSet(null, ex);
+				}
+			}
+		});
+		// The store is cleared, and books 1 and 2 added back together
+		writers.add(new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (!done.get()) {
+						store.clearBooks();
+						Set<StockBook> books = new HashSet<StockBook>();
+						books.add(book(1));
+						books.add(book(2));
+						store.addBooks(books);
+						Thread.sleep(1);
+					}
+				} catch (Throwable ex) {
+					failure.compareAndSet(null, ex);
+				}
+			}
+		});
+
+		for (Thread writer : writers) {
+			writer.start();
+		}
+		int listings = 0;
+		try {
+			long end = System.currentTimeMillis() + 2000;
+			while (System.currentTimeMillis() < end && failure.get() == null) {
+				assertConsistent(store.getBooks());
+				listings++;
+			}
+		} finally {
+			done.set(true);
+			for (Thread writer : writers) {
+				writer.join();
+			}
+		}
+		assertThat(failure.get(), is(nullValue()));
+		assertThat(listings > 0, is(true));
+	}
+
+	@Test
+	public void testListingNotChangedByLaterWrites() throws BookStoreException {
+		Set<StockBook> books = new HashSet<StockBook>();
+		books.add(book(1));
+		books.add(book(2));
+		store.addBooks(books);
+		List<StockBook> listing = store.getBooks();
+		Set<BookCopy> bookCopies = new HashSet<BookCopy>();
+		bookCopies.add(new BookCopy(1, 1));
+		store.buyBooks(bookCopies);
+		store.clearBooks();
+
+		assertThat(listing.size(), is(2));
+		for (StockBook book : listing) {
+			assertThat(book.getNumCopies(), is(NUM_COPIES));
+		}
+		assertThat(store.getBooks().isEmpty(), is(true));
+	}
+
+	/**
+	 * Checks that the listing holds books 1 and 2 both or neither, with as
+	 * many copies as each other, and every batch either whole or not at all
+	 */
+	private static void assertConsistent(List<StockBook> listing) {
+		Map<Integer, StockBook> byISBN = new HashMap<Integer, StockBook>();
+		Map<Integer, Integer> batchSizes = new HashMap<Integer, Integer>();
+		for (StockBook book : listing) {
+			assertThat(byISBN.put(book.getISBN(), book), is(nullValue()));
+			int batch = book.getISBN() / 100;
+			if (batch > 0) {
+				Integer size = batchSizes.get(batch);
+				batchSizes.put(batch, size == null ? 1 : size + 1);
+			}
+		}
+		StockBook first = byISBN.get(1);
+		StockBook second = byISBN.get(2);
+		assertThat(first == null, is(second == null));
+		if (first != null) {
+			assertThat(first.getNumCopies(), is(second.getNumCopies()));
+		}
+		for (int size : batchSizes.values()) {
+			assertThat(size, is(BATCH_SIZE));
+		}
+	}
+
+	private static StockBook book(int ISBN) {
+		return new ImmutableStockBook(ISBN, "Title " + ISBN, "Author", 10.0f,
+				NUM_COPIES, 0, 0, 0, false);
+	}
+}
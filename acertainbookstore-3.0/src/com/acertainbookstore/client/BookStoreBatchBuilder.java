@@ -0,0 +1,142 @@
+package com.acertainbookstore.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.io.Buffer;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreBatch;
+import com.acertainbookstore.utils.BookStoreCodec;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreOperation;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * BookStoreBatchBuilder gathers operations of the BookStore and StockManager
+ * APIs into one BATCH message, cf. {@link BookStoreBatch}, so that they cost
+ * a single round trip to the server. Operations are added by the methods
+ * named after them, and run by the server in the order they were added.
+ * 
+ * Builders are obtained from BookStoreHTTPProxy.batch() or
+ * StockManagerHTTPProxy.batch(), and send the batch with the codec of their
+ * proxy.
+ * 
+ */
+public class BookStoreBatchBuilder {
+	private final HttpClient client;
+	private final String serverAddress;
+	private final BookStoreCodec codec;
+	private final List<BookStoreOperation> operations = new ArrayList<BookStoreOperation>();
+	private boolean atomic = false;
+
+	BookStoreBatchBuilder(HttpClient client, String serverAddress,
+			BookStoreCodec codec) {
+		this.client = client;
+		this.serverAddress = serverAddress;
+		this.codec = codec;
+	}
+
+	/**
+	 * Makes the batch all or nothing: if any operation fails, none is applied
+	 * 
+	 * @return
+	 */
+	public BookStoreBatchBuilder atomic() {
+		this.atomic = true;
+		return this;
+	}
+
+	public BookStoreBatchBuilder addBooks(Set<StockBook> bookSet) {
+		return add(BookStoreMessageTag.ADDBOOKS, bookSet);
+	}
+
+	public BookStoreBatchBuilder addCopies(Set<BookCopy> bookCopiesSet) {
+		return add(BookStoreMessageTag.ADDCOPIES, bookCopiesSet);
+	}
+
+	public BookStoreBatchBuilder getBooks() {
+		return add(BookStoreMessageTag.LISTBOOKS, null);
+	}
+
+	public BookStoreBatchBuilder updateEditorPicks(
+			Set<BookEditorPick> editorPicks) {
+		return add(BookStoreMessageTag.UPDATEEDITORPICKS, editorPicks);
+	}
+
+	public BookStoreBatchBuilder getBooksInDemand() {
+		return add(BookStoreMessageTag.GETINDEMAND, null);
+	}
+
+	public BookStoreBatchBuilder clearBooks() {
+		return add(BookStoreMessageTag.CLEARBOOKS, null);
+	}
+
+	public BookStoreBatchBuilder buyBooks(Set<BookCopy> booksToBuy) {
+		return add(BookStoreMessageTag.BUYBOOKS, booksToBuy);
+	}
+
+	public BookStoreBatchBuilder getBooks(Set<Integer> isbnSet) {
+		return add(BookStoreMessageTag.GETBOOKS, isbnSet);
+	}
+
+	public BookStoreBatchBuilder getEditorPicks(int numBooks) {
+		return add(BookStoreMessageTag.EDITORPICKS, numBooks);
+	}
+
+	public BookStoreBatchBuilder rateBooks(Set<BookRating> bookRating) {
+		return add(BookStoreMessageTag.RATEBOOKS, bookRating);
+	}
+
+	public BookStoreBatchBuilder getTopRatedBooks(int numBooks) {
+		return add(BookStoreMessageTag.GETTOPRATED, numBooks);
+	}
+
+	private BookStoreBatchBuilder add(BookStoreMessageTag messageTag,
+			Object argument) {
+		operations.add(new BookStoreOperation(messageTag, argument));
+		return this;
+	}
+
+	/**
+	 * Sends the batch, and returns the response to each of its operations, in
+	 * the order they were added: the list of books it returned, if any, or
+	 * the exception it failed with. If the batch is atomic, the exception of
+	 * the operation that failed is thrown instead, and nothing was applied.
+	 * 
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public List<BookStoreResponse> execute() throws BookStoreException {
+		return executeAsync().join();
+	}
+
+	/**
+	 * Sends the batch without waiting for the response, cf. execute
+	 * 
+	 * @return
+	 * @throws BookStoreException
+	 *             if the request cannot be encoded
+	 */
+	public BookStoreFuture<List<BookStoreResponse>> executeAsync()
+			throws BookStoreException {
+		BookStoreExchange<List<BookStoreResponse>> exchange = new BookStoreExchange<List<BookStoreResponse>>(
+				codec);
+		String urlString = serverAddress + "/" + BookStoreMessageTag.BATCH;
+
+		exchange.setMethod("POST");
+		exchange.setURL(urlString);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				new BookStoreBatch(operations, atomic));
+		exchange.setRequestContent(requestContent);
+
+		return exchange.send(this.client);
+	}
+}
@@ -0,0 +1,88 @@
+package com.acertainbookstore.client;
+
+import java.io.IOException;
+
+import org.eclipse.jetty.client.ContentExchange;
+import org.eclipse.jetty.client.HttpClient;
+
+import com.acertainbookstore.utils.BookStoreCodec;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * BookStoreExchange is a ContentExchange which completes a BookStoreFuture
+ * from the callbacks of the HttpClient, instead of having the sender wait
+ * for it as BookStoreUtility.SendAndRecv does. The response is decoded by
+ * the thread of the client that received it, so any number of requests may
+ * be in flight while the threads of the client are busy only when there is
+ * a response to decode.
+ * 
+ * The future is completed with the list of the response, or with the same
+ * exceptions as SendAndRecv throws.
+ * 
+ * @param <T>
+ */
+class BookStoreExchange<T> extends ContentExchange {
+	private final BookStoreCodec codec;
+	private final BookStoreFuture<T> future = new BookStoreFuture<T>();
+
+	BookStoreExchange(BookStoreCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Sends the exchange through the client, and returns the future of its
+	 * response
+	 * 
+	 * @param client
+	 * @return
+	 */
+	BookStoreFuture<T> send(HttpClient client) {
+		BookStoreUtility.setCodecHeaders(this, codec);
+		try {
+			client.send(this);
+		} catch (IOException ex) {
+			future.fail(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, ex));
+		}
+		return future;
+	}
+
+	/**
+	 * The list of the response is cast to the type of the future, which is
+	 * Void for the operations whose response holds none.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void onResponseComplete() throws IOException {
+		super.onResponseComplete();
+		try {
+			future.complete((T) BookStoreUtility.unpackResponse(this, codec));
+		} catch (BookStoreException ex) {
+			future.fail(ex);
+		} catch (RuntimeException ex) {
+			// The body is no BookStoreResponse
+			future.fail(new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_RESPONSE_DECODING,
+					ex));
+		}
+	}
+
+	@Override
+	protected void onConnectionFailed(Throwable x) {
+		future.fail(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, x));
+	}
+
+	@Override
+	protected void onException(Throwable x) {
+		future.fail(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_EXCEPTION, x));
+	}
+
+	@Override
+	protected void onExpire() {
+		future.fail(new BookStoreException(
+				BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT));
+	}
+}
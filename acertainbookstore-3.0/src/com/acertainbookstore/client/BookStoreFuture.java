@@ -0,0 +1,182 @@
+package com.acertainbookstore.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * BookStoreFuture is the outcome of a request sent by one of the asynchronous
+ * methods of the proxies: the value the synchronous method would return, or
+ * the BookStoreException it would throw. It is completed by the HttpClient
+ * once the response is in, cf. {@link BookStoreExchange}, so no thread waits
+ * for the request unless the caller chooses to.
+ * 
+ * The result can be waited for with join, which throws the exception as the
+ * synchronous method does, or with the methods of Future, which wrap it in an
+ * ExecutionException. Listeners are called instead once the future is
+ * completed, by the thread of the HttpClient that completes it, so they must
+ * not block. A listener that throws is reported, and the others are still
+ * called.
+ * 
+ * Requests cannot be taken back once they are sent, so the futures cannot be
+ * cancelled.
+ * 
+ * @param <T>
+ */
+public class BookStoreFuture<T> implements Future<T> {
+	private final CountDownLatch done = new CountDownLatch(1);
+	// The outcome, written once, before done is counted down. Guarded by
+	// this until then.
+	private T value;
+	private BookStoreException failure;
+	// Listeners waiting for the outcome, null once it is known. Guarded by
+	// this.
+	private List<Listener<T>> listeners = new ArrayList<Listener<T>>();
+
+	/**
+	 * Listener called with the outcome of a BookStoreFuture
+	 * 
+	 * @param <T>
+	 */
+	public interface Listener<T> {
+		public void onSuccess(T value);
+
+		public void onFailure(BookStoreException ex);
+	}
+
+	BookStoreFuture() {
+
+	}
+
+	/**
+	 * Calls the listener with the outcome once it is known, at once if it
+	 * already is
+	 * 
+	 * @param listener
+	 */
+	public void addListener(Listener<T> listener) {
+		synchronized (this) {
+			if (listeners != null) {
+				listeners.add(listener);
+				return;
+			}
+		}
+		this.call(listener);
+	}
+
+	/**
+	 * Waits for the outcome, and returns the value or throws the exception
+	 * 
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public T join() throws BookStoreException {
+		try {
+			done.await();
+		} catch (InterruptedException ex) {
+			throw new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING, ex);
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return value;
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		done.await();
+		return this.outcome();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!done.await(timeout, unit)) {
+			throw new TimeoutException();
+		}
+		return this.outcome();
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	/**
+	 * Completes the future with the value, unless it already has an outcome
+	 * 
+	 * @param value
+	 */
+	void complete(T value) {
+		this.finish(value, null);
+	}
+
+	/**
+	 * Completes the future with the exception, unless it already has an
+	 * outcome
+	 * 
+	 * @param failure
+	 */
+	void fail(BookStoreException failure) {
+		this.finish(null, failure);
+	}
+
+	/**
+	 * Publishes the outcome and calls the listeners. Only the first outcome
+	 * counts, as the HttpClient may report a failure after the response.
+	 */
+	private void finish(T value, BookStoreException failure) {
+		List<Listener<T>> waiting;
+		synchronized (this) {
+			if (listeners == null) {
+				return;
+			}
+			this.value = value;
+			this.failure = failure;
+			waiting = listeners;
+			listeners = null;
+		}
+		done.countDown();
+		for (Listener<T> listener : waiting) {
+			this.call(listener);
+		}
+	}
+
+	private void call(Listener<T> listener) {
+		try {
+			if (failure != null) {
+				listener.onFailure(failure);
+			} else {
+				listener.onSuccess(value);
+			}
+		} catch (RuntimeException ex) {
+			// Must not keep the other listeners, or the HttpClient, from
+			// going on
+			ex.printStackTrace();
+		}
+	}
+
+	private T outcome() throws ExecutionException {
+		if (failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return value;
+	}
+}
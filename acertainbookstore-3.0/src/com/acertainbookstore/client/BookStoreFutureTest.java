@@ -0,0 +1,180 @@
+package com.acertainbookstore.client;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * Tests for BookStoreFuture: the outcome seen through join, get and the
+ * listeners, and the exchange of a proxy completing it.
+ */
+public class BookStoreFutureTest {
+
+	/**
+	 * Listener recording the outcomes it is called with
+	 */
+	private static class Recorder implements BookStoreFuture.Listener<String> {
+		private final List<String> calls;
+		private final String name;
+
+		Recorder(List<String> calls, String name) {
+			this.calls = calls;
+			this.name = name;
+		}
+
+		@Override
+		public void onSuccess(String value) {
+			calls.add(name + ":" + value);
+		}
+
+		@Override
+		public void onFailure(BookStoreException ex) {
+			calls.add(name + ":" + ex.getMessage());
+		}
+	}
+
+	@Test
+	public void testComplete() throws Exception {
+		BookStoreFuture<String> future = new BookStoreFuture<String>();
+		List<String> calls = new ArrayList<String>();
+		future.addListener(new Recorder(calls, "before"));
+		assertThat(future.isDone(), is(false));
+		assertThat(calls.isEmpty(), is(true));
+
+		future.complete("value");
+		assertThat(future.isDone(), is(true));
+		assertThat(future.join(), is("value"));
+		assertThat(future.get(), is("value"));
+		assertThat(future.get(1, TimeUnit.SECONDS), is("value"));
+		assertThat(calls, is(Collections.singletonList("before:value")));
+	}
+
+	@Test
+	public void testFail() throws Exception {
+		BookStoreFuture<String> future = new BookStoreFuture<String>();
+		List<String> calls = new ArrayList<String>();
+		future.addListener(new Recorder(calls, "before"));
+		BookStoreException failure = new BookStoreException("failure");
+		future.fail(failure);
+
+		assertThat(future.isDone(), is(true));
+		try {
+			future.join();
+			fail("join did not throw");
+		} catch (BookStoreException ex) {
+			assertThat(ex, is(sameInstance(failure)));
+		}
+		try {
+			future.get();
+			fail("get did not throw");
+		} catch (ExecutionException ex) {
+			assertThat(ex.getCause(), is((Throwable) failure));
+		}
+		try {
+			future.get(1, TimeUnit.SECONDS);
+			fail("get did not throw");
+		} catch (ExecutionException ex) {
+			assertThat(ex.getCause(), is((Throwable) failure));
+		}
+		assertThat(calls, is(Collections.singletonList("before:failure")));
+	}
+
+	@Test
+	public void testListenerAfterCompletion() {
+		BookStoreFuture<String> future = new BookStoreFuture<String>();
+		future.complete("value");
+		List<String> calls = new ArrayList<String>();
+		// Called at once, by the thread adding it
+		future.addListener(new Recorder(calls, "after"));
+		assertThat(calls, is(Collections.singletonList("after:value")));
+	}
+
+	@Test
+	public void testFirstOutcomeWins() throws Exception {
+		BookStoreFuture<String> future = new BookStoreFuture<String>();
+		List<String> calls = new ArrayList<String>();
+		future.addListener(new Recorder(calls, "listener"));
+		future.complete("first");
+		future.fail(new BookStoreException("second"));
+		future.complete("third");
+		assertThat(future.join(), is("first"));
+		assertThat(future.get(), is("first"));
+		assertThat(calls, is(Collections.singletonList("listener:first")));
+	}
+
+	@Test
+	public void testThrowingListener() throws Exception {
+		BookStoreFuture<String> future = new BookStoreFuture<String>();
+		List<String> calls = new ArrayList<String>();
+		BookStoreFuture.Listener<String> throwing = new BookStoreFuture.Listener<String>() {
+			@Override
+			public void onSuccess(String value) {
+				throw new IllegalStateException("listener failed on purpose");
+			}
+
+			@Override
+			public void onFailure(BookStoreException ex) {
+				throw new IllegalStateException("listener failed on purpose");
+			}
+		};
+		future.addListener(new Recorder(calls, "first"));
+		future.addListener(throwing);
+		future.addListener(new Recorder(calls, "last"));
+		future.complete("value");
+		assertThat(calls, is(Arrays.asList("first:value", "last:value")));
+
+		// Nor does it throw at the thread adding it after the completion
+		future.addListener(throwing);
+		assertThat(future.join(), is("value"));
+	}
+
+	@Test(expected = TimeoutException.class)
+	public void testGetTimeout() throws Exception {
+		new BookStoreFuture<String>().get(10, TimeUnit.MILLISECONDS);
+	}
+
+	@Test
+	public void testCannotCancel() {
+		BookStoreFuture<String> future = new BookStoreFuture<String>();
+		assertThat(future.cancel(true), is(false));
+		assertThat(future.isCancelled(), is(false));
+		assertThat(future.isDone(), is(false));
+	}
+
+	@Test
+	public void testExchangeConnectionFailed() throws Exception {
+		// A port nothing listens on
+		ServerSocket socket = new ServerSocket(0);
+		int port = socket.getLocalPort();
+		socket.close();
+		BookStoreHTTPProxy proxy = new BookStoreHTTPProxy("http://localhost:"
+				+ port);
+		try {
+			BookStoreFuture<Void> future = proxy.buyBooksAsync(Collections
+					.singleton(new BookCopy(1, 1)));
+			try {
+				future.get(30, TimeUnit.SECONDS);
+				fail("The request did not fail");
+			} catch (ExecutionException ex) {
+				assertThat(ex.getCause(), is(instanceOf(BookStoreException.class)));
+				assertThat(ex.getCause().getMessage(),
+						is(BookStoreClientConstants.strERR_CLIENT_REQUEST_SENDING));
+			}
+		} finally {
+			proxy.stop();
+		}
+	}
+}
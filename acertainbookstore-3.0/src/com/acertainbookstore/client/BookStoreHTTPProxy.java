@@ -8,16 +8,15 @@ import java.net.URLEncoder;
 import java.util.List;
 import java.util.Set;
 
-import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.utils.BookStoreCodec;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
@@ -27,10 +26,15 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * BookStoreHTTPProxy implements the client level synchronous CertainBookStore
  * API declared in the BookStore class
  * 
+ * Every method also has an asynchronous variant, returning a
+ * {@link BookStoreFuture} of its result as soon as the request is sent. The
+ * synchronous methods wait for these futures.
+ * 
  */
 public class BookStoreHTTPProxy implements BookStore {
 	protected HttpClient client;
 	protected String serverAddress;
+	protected BookStoreCodec codec = BookStoreUtility.XML_CODEC;
 
 	/**
 	 * Initialize the client object
@@ -68,55 +72,106 @@ public class BookStoreHTTPProxy implements BookStore {
 		this.serverAddress = serverAddress;
 	}
 
+	public BookStoreCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec of the requests, and of the responses asked for
+	 * 
+	 * @param codec
+	 */
+	public void setCodec(BookStoreCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns a builder of a batch of operations, sent to the server in one
+	 * request, cf. {@link BookStoreBatchBuilder}
+	 * 
+	 * @return
+	 */
+	public BookStoreBatchBuilder batch() {
+		return new BookStoreBatchBuilder(this.client, serverAddress, codec);
+	}
+
 	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
+		buyBooksAsync(isbnSet).join();
+	}
+
+	/**
+	 * Sends buyBooks without waiting for the response
+	 * 
+	 * @param isbnSet
+	 * @return
+	 * @throws BookStoreException
+	 *             if the request cannot be encoded
+	 */
+	public BookStoreFuture<Void> buyBooksAsync(Set<BookCopy> isbnSet)
+			throws BookStoreException {
+		BookStoreExchange<Void> exchange = new BookStoreExchange<Void>(codec);
 		String urlString = serverAddress + "/" + BookStoreMessageTag.BUYBOOKS;
 
-		String listISBNsxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbnSet);
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listISBNsxmlString);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				isbnSet);
 		exchange.setRequestContent(requestContent);
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
-
+		return exchange.send(this.client);
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
+		return getBooksAsync(isbnSet).join();
+	}
+
+	/**
+	 * Sends getBooks without waiting for the response
+	 * 
+	 * @param isbnSet
+	 * @return
+	 * @throws BookStoreException
+	 *             if the request cannot be encoded
+	 */
+	public BookStoreFuture<List<Book>> getBooksAsync(Set<Integer> isbnSet)
+			throws BookStoreException {
+		BookStoreExchange<List<Book>> exchange = new BookStoreExchange<List<Book>>(
+				codec);
 		String urlString = serverAddress + "/" + BookStoreMessageTag.GETBOOKS;
 
-		String listISBNsxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbnSet);
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listISBNsxmlString);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				isbnSet);
 		exchange.setRequestContent(requestContent);
 
-		return (List<Book>) BookStoreUtility.SendAndRecv(this.client, exchange);
+		return exchange.send(this.client);
 	}
 
-	@SuppressWarnings("unchecked")
 	public List<Book> getEditorPicks(int numBooks) throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
-		String urlEncodedNumBooks = null;
-
-		try {
-			urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks),
-					"UTF-8");
-		} catch (UnsupportedEncodingException ex) {
-			throw new BookStoreException("unsupported encoding of numbooks", ex);
-		}
+		return getEditorPicksAsync(numBooks).join();
+	}
 
+	/**
+	 * Sends getEditorPicks without waiting for the response
+	 * 
+	 * @param numBooks
+	 * @return
+	 * @throws BookStoreException
+	 *             if the request cannot be encoded
+	 */
+	public BookStoreFuture<List<Book>> getEditorPicksAsync(int numBooks)
+			throws BookStoreException {
+		BookStoreExchange<List<Book>> exchange = new BookStoreExchange<List<Book>>(
+				codec);
 		String urlString = serverAddress + "/"
 				+ BookStoreMessageTag.EDITORPICKS + "?"
-				+ BookStoreConstants.BOOK_NUM_PARAM + "=" + urlEncodedNumBooks;
+				+ BookStoreConstants.BOOK_NUM_PARAM + "="
+				+ encodeNumBooks(numBooks);
 
 		exchange.setURL(urlString);
 
-		return (List<Book>) BookStoreUtility.SendAndRecv(this.client, exchange);
+		return exchange.send(this.client);
 	}
 
 	public void stop() {
@@ -130,15 +185,65 @@ public class BookStoreHTTPProxy implements BookStore {
 
 	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
-		
+		rateBooksAsync(bookRating).join();
+	}
+
+	/**
+	 * Sends rateBooks without waiting for the response
+	 * 
+	 * @param bookRating
+	 * @return
+	 * @throws BookStoreException
+	 *             if the request cannot be encoded
+	 */
+	public BookStoreFuture<Void> rateBooksAsync(Set<BookRating> bookRating)
+			throws BookStoreException {
+		BookStoreExchange<Void> exchange = new BookStoreExchange<Void>(codec);
+		String urlString = serverAddress + "/" + BookStoreMessageTag.RATEBOOKS;
+
+		exchange.setMethod("POST");
+		exchange.setURL(urlString);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				bookRating);
+		exchange.setRequestContent(requestContent);
+
+		return exchange.send(this.client);
 	}
 
 	@Override
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
+		return getTopRatedBooksAsync(numBooks).join();
+	}
+
+	/**
+	 * Sends getTopRatedBooks without waiting for the response
+	 * 
+	 * @param numBooks
+	 * @return
+	 * @throws BookStoreException
+	 *             if the request cannot be encoded
+	 */
+	public BookStoreFuture<List<Book>> getTopRatedBooksAsync(int numBooks)
+			throws BookStoreException {
+		BookStoreExchange<List<Book>> exchange = new BookStoreExchange<List<Book>>(
+				codec);
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.GETTOPRATED + "?"
+				+ BookStoreConstants.BOOK_NUM_PARAM + "="
+				+ encodeNumBooks(numBooks);
+
+		exchange.setURL(urlString);
+
+		return exchange.send(this.client);
+	}
+
+	private static String encodeNumBooks(int numBooks)
+			throws BookStoreException {
+		try {
+			return URLEncoder.encode(Integer.toString(numBooks), "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new BookStoreException("unsupported encoding of numbooks", ex);
+		}
 	}
 
 }
@@ -6,16 +6,15 @@ package com.acertainbookstore.client;
 import java.util.List;
 import java.util.Set;
 
-import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreCodec;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
 import com.acertainbookstore.utils.BookStoreUtility;
@@ -26,10 +25,15 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * 
  * Uses the HTTP protocol for communication with the server
  * 
+ * Every method also has an asynchronous variant, returning a
+ * {@link BookStoreFuture} of its result as soon as the request is sent. The
+ * synchronous methods wait for these futures.
+ * 
  */
 public class StockManagerHTTPProxy implements StockManager {
 	protected HttpClient client;
 	protected String serverAddress;
+	protected BookStoreCodec codec = BookStoreUtility.XML_CODEC;
 
 	/**
 	 * Initialize the client object
@@ -67,67 +71,131 @@ public class StockManagerHTTPProxy implements StockManager {
 		this.serverAddress = serverAddress;
 	}
 
+	public BookStoreCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec of the requests, and of the responses asked for
+	 * 
+	 * @param codec
+	 */
+	public void setCodec(BookStoreCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Returns a builder of a batch of operations, sent to the server in one
+	 * request, cf. {@link BookStoreBatchBuilder}
+	 * 
+	 * @return
+	 */
+	public BookStoreBatchBuilder batch() {
+		return new BookStoreBatchBuilder(this.client, serverAddress, codec);
+	}
+
 	public synchronized void addBooks(Set<StockBook> bookSet)
 			throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
+		addBooksAsync(bookSet).join();
+	}
+
+	/**
+	 * Sends addBooks without waiting for the response
+	 * 
+	 * @param bookSet
+	 * @return
+	 * @throws BookStoreException
+	 *             if the request cannot be encoded
+	 */
+	public BookStoreFuture<Void> addBooksAsync(Set<StockBook> bookSet)
+			throws BookStoreException {
+		BookStoreExchange<Void> exchange = new BookStoreExchange<Void>(codec);
 		String urlString;
 		urlString = serverAddress + "/" + BookStoreMessageTag.ADDBOOKS;
 
-		String listBooksxmlString = BookStoreUtility
-				.serializeObjectToXMLString(bookSet);
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listBooksxmlString);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				bookSet);
 		exchange.setRequestContent(requestContent);
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+		return exchange.send(this.client);
 	}
 
 	public void addCopies(Set<BookCopy> bookCopiesSet)
 			throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
+		addCopiesAsync(bookCopiesSet).join();
+	}
+
+	/**
+	 * Sends addCopies without waiting for the response
+	 * 
+	 * @param bookCopiesSet
+	 * @return
+	 * @throws BookStoreException
+	 *             if the request cannot be encoded
+	 */
+	public BookStoreFuture<Void> addCopiesAsync(Set<BookCopy> bookCopiesSet)
+			throws BookStoreException {
+		BookStoreExchange<Void> exchange = new BookStoreExchange<Void>(codec);
 
 		String urlString;
 		urlString = serverAddress + "/" + BookStoreMessageTag.ADDCOPIES;
 
-		String listBookCopiesxmlString = BookStoreUtility
-				.serializeObjectToXMLString(bookCopiesSet);
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(listBookCopiesxmlString);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				bookCopiesSet);
 		exchange.setRequestContent(requestContent);
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
+		return exchange.send(this.client);
 	}
 
-	@SuppressWarnings("unchecked")
 	public synchronized List<StockBook> getBooks() throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
+		return getBooksAsync().join();
+	}
+
+	/**
+	 * Sends getBooks without waiting for the response
+	 * 
+	 * @return
+	 */
+	public BookStoreFuture<List<StockBook>> getBooksAsync() {
+		BookStoreExchange<List<StockBook>> exchange = new BookStoreExchange<List<StockBook>>(
+				codec);
 		String urlString = serverAddress + "/" + BookStoreMessageTag.LISTBOOKS;
 
 		exchange.setURL(urlString);
 
-		return (List<StockBook>) BookStoreUtility.SendAndRecv(this.client,
-				exchange);
+		return exchange.send(this.client);
 	}
 
 	public void updateEditorPicks(Set<BookEditorPick> editorPicksValues)
 			throws BookStoreException {
-		ContentExchange exchange = new ContentExchange();
+		updateEditorPicksAsync(editorPicksValues).join();
+	}
+
+	/**
+	 * Sends updateEditorPicks without waiting for the response
+	 * 
+	 * @param editorPicksValues
+	 * @return
+	 * @throws BookStoreException
+	 *             if the request cannot be encoded
+	 */
+	public BookStoreFuture<Void> updateEditorPicksAsync(
+			Set<BookEditorPick> editorPicksValues) throws BookStoreException {
+		BookStoreExchange<Void> exchange = new BookStoreExchange<Void>(codec);
 		String urlString = serverAddress + "/"
 				+ BookStoreMessageTag.UPDATEEDITORPICKS + "?";
 
-		String xmlStringEditorPicksValues = BookStoreUtility
-				.serializeObjectToXMLString(editorPicksValues);
-
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
-		Buffer requestContent = new ByteArrayBuffer(xmlStringEditorPicksValues);
-
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				editorPicksValues);
 		exchange.setRequestContent(requestContent);
 
-		BookStoreUtility.SendAndRecv(this.client, exchange);
-
+		return exchange.send(this.client);
 	}
 
 	public void stop() {
@@ -141,17 +209,41 @@ public class StockManagerHTTPProxy implements StockManager {
 
 	@Override
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
+		return getBooksInDemandAsync().join();
+	}
+
+	/**
+	 * Sends getBooksInDemand without waiting for the response
+	 * 
+	 * @return
+	 */
+	public BookStoreFuture<List<StockBook>> getBooksInDemandAsync() {
+		BookStoreExchange<List<StockBook>> exchange = new BookStoreExchange<List<StockBook>>(
+				codec);
+		String urlString = serverAddress + "/"
+				+ BookStoreMessageTag.GETINDEMAND;
+
+		exchange.setURL(urlString);
+
+		return exchange.send(this.client);
 	}
 
 	@Override
 	public void clearBooks() throws BookStoreException {
-		ContentExchange exc = new ContentExchange();
+		clearBooksAsync().join();
+	}
+
+	/**
+	 * Sends clearBooks without waiting for the response
+	 * 
+	 * @return
+	 */
+	public BookStoreFuture<Void> clearBooksAsync() {
+		BookStoreExchange<Void> exc = new BookStoreExchange<Void>(codec);
 		String url = serverAddress + "/" + BookStoreMessageTag.CLEARBOOKS;
 		exc.setMethod("GET");
 		exc.setURL(url);
-		BookStoreUtility.SendAndRecv(this.client, exc);
+		return exc.send(this.client);
 	}
 
 }
@@ -0,0 +1,95 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreCodec;
+import com.acertainbookstore.utils.BookStoreResponse;
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ *
+ * CodecWorkload compares the codecs of the bookstore messages. For lists of
+ * growing size it encodes and decodes the response of a LISTBOOKS and the
+ * request of a BUYBOOKS with every codec, and reports the bytes each puts on
+ * the wire and the time it takes to encode and to decode them, per book.
+ *
+ */
+public class CodecWorkload {
+	private static Logger consoleLogger = Logger.getLogger(CodecWorkload.class
+			.getName());
+	private static final int[] NUM_BOOKS = { 1, 10, 100, 1000, 10000 };
+	private static final BookStoreCodec[] CODECS = {
+			BookStoreUtility.XML_CODEC, BookStoreUtility.BINARY_CODEC };
+	// Books encoded per run, so that small lists are timed as long as large
+	private static final int BOOKS_PER_RUN = 100000;
+	private static final int WARMUP_RUNS = 3;
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		BookSetGenerator gen = new BookSetGenerator();
+		for (int numBooks : NUM_BOOKS) {
+			Set<StockBook> books = gen.nextSetOfStockBooks(numBooks);
+			BookStoreResponse listBooks = new BookStoreResponse();
+			listBooks.setList(new ArrayList<StockBook>(books));
+			Set<BookCopy> buyBooks = new HashSet<BookCopy>();
+			for (StockBook book : books) {
+				buyBooks.add(new BookCopy(book.getISBN(), 1));
+			}
+
+			for (BookStoreCodec codec : CODECS) {
+				report(codec, "LISTBOOKS response", listBooks, numBooks);
+				report(codec, "BUYBOOKS request", buyBooks, numBooks);
+			}
+		}
+	}
+
+	/**
+	 * Runs the codec on the message until warmed up, then times it and logs
+	 * the results
+	 */
+	private static void report(BookStoreCodec codec, String name,
+			Object message, int numBooks) throws Exception {
+		int iterations = Math.max(BOOKS_PER_RUN / numBooks, 1);
+		for (int i = 0; i < WARMUP_RUNS; i++) {
+			run(codec, message, iterations);
+		}
+		long[] elapsed = run(codec, message, iterations);
+		double books = (double) iterations * numBooks;
+		consoleLogger.info(String.format(
+				"Books: %d, codec: %s, %s: %d bytes (%f bytes/book),"
+						+ " encode: %f ns/book, decode: %f ns/book", numBooks,
+				codec.getContentType(), name, elapsed[2], elapsed[2]
+						/ (double) numBooks, elapsed[0] / books, elapsed[1]
+						/ books));
+	}
+
+	/**
+	 * Encodes and decodes the message the given number of times, and returns
+	 * the nanoseconds spent encoding, those spent decoding, and the size of
+	 * the message
+	 */
+	private static long[] run(BookStoreCodec codec, Object message,
+			int iterations) throws Exception {
+		List<byte[]> encoded = new ArrayList<byte[]>(iterations);
+		long begin = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			encoded.add(codec.encode(message));
+		}
+		long encoding = System.nanoTime() - begin;
+
+		begin = System.nanoTime();
+		for (byte[] data : encoded) {
+			codec.decode(data, 0, data.length);
+		}
+		long decoding = System.nanoTime() - begin;
+		return new long[] { encoding, decoding, encoded.get(0).length };
+	}
+}
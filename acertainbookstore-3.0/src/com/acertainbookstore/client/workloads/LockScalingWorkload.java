@@ -0,0 +1,162 @@
+package com.acertainbookstore.client.workloads;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.PurchaseStrategy;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ *
+ * LockScalingWorkload measures how the local CertainBookStore scales with the
+ * number of client threads. Every thread runs a mix of getBooks, buyBooks and
+ * addCopies on small random sets of ISBNs. Each thread count is run twice:
+ * once against the striped store as is, and once with every call serialized
+ * on a single global monitor, which is how the store behaved when all of its
+ * methods were synchronized. Finally the striped store is run again with
+ * optimistic, lock-free purchases, and with flat-combined purchases.
+ *
+ */
+public class LockScalingWorkload {
+	private static Logger consoleLogger = Logger
+			.getLogger(LockScalingWorkload.class.getName());
+	private static final int[] NUM_THREADS = { 1, 2, 4, 8, 16, 32 };
+	private static final int NUM_BOOKS = 10000;
+	private static final int BOOKS_PER_OPERATION = 5;
+	private static final int OPERATIONS_PER_THREAD = 20000;
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) throws Exception {
+		CertainBookStore store = CertainBookStore.getInstance();
+		store.clearBooks();
+		BookSetGenerator gen = new BookSetGenerator();
+		Set<StockBook> books = gen.nextSetOfStockBooks(NUM_BOOKS);
+		store.addBooks(books);
+
+		List<Integer> isbns = new ArrayList<Integer>();
+		for (StockBook book : books) {
+			isbns.add(book.getISBN());
+		}
+
+		for (int threads : NUM_THREADS) {
+			CertainBookStore.setPurchaseStrategy(PurchaseStrategy.LOCKING);
+			double striped = run(store, isbns, threads, null);
+			double global = run(store, isbns, threads, new Object());
+			CertainBookStore.setPurchaseStrategy(PurchaseStrategy.OPTIMISTIC);
+			double optimistic = run(store, isbns, threads, null);
+			CertainBookStore
+					.setPurchaseStrategy(PurchaseStrategy.FLAT_COMBINING);
+			double combining = run(store, isbns, threads, null);
+			consoleLogger.info(String.format(
+					"Threads: %d, striped locks: %f ops/s, global lock: %f ops/s,"
+							+ " optimistic purchases: %f ops/s,"
+							+ " combined purchases: %f ops/s, speedup: %f",
+					threads, striped, global, optimistic, combining, striped
+							/ global));
+		}
+	}
+
+	/**
+	 * Runs the mixed workload with the given number of threads and returns
+	 * the aggregated throughput. If globalLock is not null every call is made
+	 * while holding it.
+	 *
+	 * @param store
+	 * @param isbns
+	 * @param threads
+	 * @param globalLock
+	 * @return operations per second
+	 * @throws Exception
+	 */
+	private static double run(final CertainBookStore store,
+			final List<Integer> isbns, int threads, final Object globalLock)
+			throws Exception {
+		ExecutorService exec = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Future<Long>> results = new ArrayList<Future<Long>>();
+
+		for (int i = 0; i < threads; i++) {
+			results.add(exec.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					Random random = new Random();
+					start.await();
+					long begin = System.nanoTime();
+					for (int op = 0; op < OPERATIONS_PER_THREAD; op++) {
+						// Pick the books outside of the global lock, so that
+						// only the store call itself is serialized
+						Set<Integer> isbnSet = nextISBNs(isbns, random);
+						if (globalLock == null) {
+							runOperation(store, isbnSet, op);
+						} else {
+							synchronized (globalLock) {
+								runOperation(store, isbnSet, op);
+							}
+						}
+					}
+					return System.nanoTime() - begin;
+				}
+			}));
+		}
+
+		start.countDown();
+		long maxElapsed = 0;
+		for (Future<Long> result : results) {
+			maxElapsed = Math.max(maxElapsed, result.get());
+		}
+		exec.shutdownNow();
+		return (threads * (double) OPERATIONS_PER_THREAD) / (maxElapsed / 1E9);
+	}
+
+	/**
+	 * Picks BOOKS_PER_OPERATION distinct random ISBNs
+	 */
+	private static Set<Integer> nextISBNs(List<Integer> isbns, Random random) {
+		Set<Integer> isbnSet = new HashSet<Integer>();
+		while (isbnSet.size() < BOOKS_PER_OPERATION) {
+			isbnSet.add(isbns.get(random.nextInt(isbns.size())));
+		}
+		return isbnSet;
+	}
+
+	/**
+	 * Runs one operation of the mix: 80% getBooks, 10% buyBooks and 10%
+	 * addCopies, so the stock never runs out.
+	 */
+	private static void runOperation(CertainBookStore store,
+			Set<Integer> isbnSet, int op) throws BookStoreException {
+		int kind = op % 10;
+		if (kind < 8) {
+			store.getBooks(isbnSet);
+			return;
+		}
+
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		for (Integer ISBN : isbnSet) {
+			copies.add(new BookCopy(ISBN, 1));
+		}
+		if (kind == 8) {
+			try {
+				store.buyBooks(copies);
+			} catch (BookStoreException ex) {
+				// A sale miss, the following addCopies restocks
+			}
+		} else {
+			store.addCopies(copies);
+		}
+	}
+}
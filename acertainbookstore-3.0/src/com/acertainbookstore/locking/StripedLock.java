@@ -0,0 +1,152 @@
+package com.acertainbookstore.locking;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * StripedLock is a fixed size table of read/write locks, where every ISBN is
+ * hashed onto exactly one stripe. Operations on disjoint ISBNs will usually
+ * land on different stripes, and can therefore run in parallel.
+ *
+ * Operations that need several stripes must always acquire them through
+ * {@link StripedLock#readLock(int[])} or {@link StripedLock#writeLock(int[])},
+ * which take the stripes in ascending index order. As every caller agrees on
+ * that global order, two multi-book operations can never deadlock each other.
+ * Both methods return the indices of the stripes that were locked, which must
+ * be handed back to the matching unlock method.
+ *
+ */
+public class StripedLock {
+	private final ReentrantReadWriteLock[] stripes;
+	private final int mask;
+	private final int[] allStripes;
+
+	/**
+	 * Creates a lock table with at least numStripes stripes. The number of
+	 * stripes is rounded up to the nearest power of two.
+	 *
+	 * @param numStripes
+	 */
+	public StripedLock(int numStripes) {
+		int size = 1;
+		while (size < numStripes) {
+			size <<= 1;
+		}
+		this.stripes = new ReentrantReadWriteLock[size];
+		this.allStripes = new int[size];
+		for (int i = 0; i < size; i++) {
+			this.stripes[i] = new ReentrantReadWriteLock();
+			this.allStripes[i] = i;
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Returns the index of the stripe guarding the ISBN.
+	 *
+	 * @param ISBN
+	 * @return
+	 */
+	public int stripeFor(int ISBN) {
+		int h = ISBN ^ (ISBN >>> 16);
+		return (h ^ (h >>> 7)) & this.mask;
+	}
+
+	/**
+	 * Acquires the read locks of the stripes covering the ISBNs.
+	 *
+	 * @param ISBNs
+	 * @return the stripes that were locked, in acquisition order
+	 */
+	public int[] readLock(int[] ISBNs) {
+		int[] indices = this.orderedStripes(ISBNs);
+		for (int index : indices) {
+			this.stripes[index].readLock().lock();
+		}
+		return indices;
+	}
+
+	/**
+	 * Acquires the write locks of the stripes covering the ISBNs.
+	 *
+	 * @param ISBNs
+	 * @return the stripes that were locked, in acquisition order
+	 */
+	public int[] writeLock(int[] ISBNs) {
+		int[] indices = this.orderedStripes(ISBNs);
+		for (int index : indices) {
+			this.stripes[index].writeLock().lock();
+		}
+		return indices;
+	}
+
+	/**
+	 * Acquires the read locks of every stripe, giving the caller a consistent
+	 * view of the whole store while still admitting other readers.
+	 *
+	 * @return the stripes that were locked, in acquisition order
+	 */
+	public int[] readLockAll() {
+		for (int index : this.allStripes) {
+			this.stripes[index].readLock().lock();
+		}
+		return this.allStripes;
+	}
+
+	/**
+	 * Acquires the write locks of every stripe, excluding all other
+	 * operations on the store.
+	 *
+	 * @return the stripes that were locked, in acquisition order
+	 */
+	public int[] writeLockAll() {
+		for (int index : this.allStripes) {
+			this.stripes[index].writeLock().lock();
+		}
+		return this.allStripes;
+	}
+
+	/**
+	 * Releases read locks previously returned by one of the readLock methods.
+	 *
+	 * @param indices
+	 */
+	public void readUnlock(int[] indices) {
+		for (int i = indices.length - 1; i >= 0; i--) {
+			this.stripes[indices[i]].readLock().unlock();
+		}
+	}
+
+	/**
+	 * Releases write locks previously returned by one of the writeLock
+	 * methods.
+	 *
+	 * @param indices
+	 */
+	public void writeUnlock(int[] indices) {
+		for (int i = indices.length - 1; i >= 0; i--) {
+			this.stripes[indices[i]].writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Maps the ISBNs to their stripes, and returns the distinct stripes in
+	 * ascending order, which is the global lock acquisition order.
+	 */
+	private int[] orderedStripes(int[] ISBNs) {
+		int[] indices = new int[ISBNs.length];
+		for (int i = 0; i < ISBNs.length; i++) {
+			indices[i] = this.stripeFor(ISBNs[i]);
+		}
+		Arrays.sort(indices);
+
+		int distinct = 0;
+		for (int i = 0; i < indices.length; i++) {
+			if (distinct == 0 || indices[distinct - 1] != indices[i]) {
+				indices[distinct++] = indices[i];
+			}
+		}
+		return distinct == indices.length ? indices : Arrays.copyOf(indices,
+				distinct);
+	}
+}
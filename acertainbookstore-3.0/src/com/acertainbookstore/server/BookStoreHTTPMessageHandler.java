@@ -5,6 +5,8 @@ package com.acertainbookstore.server;
 
 import java.io.IOException;
 import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import javax.servlet.ServletException;
@@ -16,11 +18,15 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.business.CertainBookStore;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreBatch;
+import com.acertainbookstore.utils.BookStoreCodec;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreOperation;
 import com.acertainbookstore.utils.BookStoreResponse;
 import com.acertainbookstore.utils.BookStoreUtility;
 
@@ -33,16 +39,16 @@ import com.acertainbookstore.utils.BookStoreUtility;
  */
 public class BookStoreHTTPMessageHandler extends AbstractHandler {
 
-	@SuppressWarnings("unchecked")
 	public void handle(String target, Request baseRequest,
 			HttpServletRequest request, HttpServletResponse response)
 			throws IOException, ServletException {
 		BookStoreMessageTag messageTag;
-		String numBooksString = null;
-		int numBooks = -1;
+		Object argument = null;
+		BookStoreException malformed = null;
 		String requestURI;
 
-		response.setContentType("text/html;charset=utf-8");
+		BookStoreCodec codec = BookStoreUtility.getCodec(request);
+		response.setContentType(codec.getContentType());
 		response.setStatus(HttpServletResponse.SC_OK);
 		requestURI = request.getRequestURI();
 
@@ -65,139 +71,191 @@ public class BookStoreHTTPMessageHandler extends AbstractHandler {
 			switch (messageTag) {
 
 			case ADDBOOKS:
-				String xml = BookStoreUtility
-						.extractPOSTDataFromRequest(request);
-
-				Set<StockBook> bookSet = (Set<StockBook>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
-
-				BookStoreResponse bookStoreresponse = new BookStoreResponse();
-				try {
-					CertainBookStore.getInstance().addBooks(bookSet);
-				} catch (BookStoreException ex) {
-					bookStoreresponse.setException(ex);
-				}
-				String listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreresponse);
-				response.getWriter().println(listBooksxmlString);
-				break;
-
 			case ADDCOPIES:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-
-				Set<BookCopy> listBookCopies = (Set<BookCopy>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
-				bookStoreresponse = new BookStoreResponse();
-				try {
-					CertainBookStore.getInstance().addCopies(listBookCopies);
-				} catch (BookStoreException ex) {
-					bookStoreresponse.setException(ex);
-				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreresponse);
-				response.getWriter().println(listBooksxmlString);
-				break;
-
-			case LISTBOOKS:
-				bookStoreresponse = new BookStoreResponse();
-				bookStoreresponse.setList(CertainBookStore.getInstance()
-						.getBooks());
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreresponse);
-				response.getWriter().println(listBooksxmlString);
-				break;
-
 			case UPDATEEDITORPICKS:
-
-				bookStoreresponse = new BookStoreResponse();
-
-				try {
-
-					String xmlStringEditorPicksValues = BookStoreUtility
-							.extractPOSTDataFromRequest(request);
-
-					Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) BookStoreUtility
-							.deserializeXMLStringToObject(xmlStringEditorPicksValues);
-
-					CertainBookStore.getInstance().updateEditorPicks(
-							mapEditorPicksValues);
-				} catch (BookStoreException ex) {
-					bookStoreresponse.setException(ex);
-				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreresponse);
-				response.getWriter().println(listBooksxmlString);
-				break;
-
 			case BUYBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-				Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) BookStoreUtility
-						.deserializeXMLStringToObject(new String(xml));
-
-				// Make the purchase
-				bookStoreresponse = new BookStoreResponse();
-				try {
-					CertainBookStore.getInstance().buyBooks(bookCopiesToBuy);
-				} catch (BookStoreException ex) {
-					bookStoreresponse.setException(ex);
-				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreresponse);
-				response.getWriter().println(listBooksxmlString);
-				break;
-
 			case GETBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-				Set<Integer> isbnSet = (Set<Integer>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
-
-				bookStoreresponse = new BookStoreResponse();
+			case RATEBOOKS:
+			case BATCH:
+				// A message that cannot be decoded is answered as an invalid
+				// argument, like one of the wrong type
 				try {
-					bookStoreresponse.setList(CertainBookStore.getInstance()
-							.getBooks(isbnSet));
-				} catch (BookStoreException ex) {
-					bookStoreresponse.setException(ex);
+					argument = decode(codec, request);
+				} catch (IOException ex) {
+					malformed = new BookStoreException(
+							BookStoreConstants.ARGUMENT + messageTag
+									+ BookStoreConstants.INVALID);
 				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreresponse);
-				response.getWriter().println(listBooksxmlString);
 				break;
 
 			case EDITORPICKS:
-				numBooksString = URLDecoder
-						.decode(request
-								.getParameter(BookStoreConstants.BOOK_NUM_PARAM),
-								"UTF-8");
-				bookStoreresponse = new BookStoreResponse();
-				try {
-					numBooks = BookStoreUtility
-							.convertStringToInt(numBooksString);
-					bookStoreresponse.setList(CertainBookStore.getInstance()
-							.getEditorPicks(numBooks));
-				} catch (BookStoreException ex) {
-					bookStoreresponse.setException(ex);
-				}
-				listBooksxmlString = BookStoreUtility
-						.serializeObjectToXMLString(bookStoreresponse);
-				response.getWriter().println(listBooksxmlString);
+			case GETTOPRATED:
+				argument = URLDecoder.decode(
+						request.getParameter(BookStoreConstants.BOOK_NUM_PARAM),
+						"UTF-8");
 				break;
 
-			case CLEARBOOKS:
-				bookStoreresponse = new BookStoreResponse();
-				CertainBookStore.getInstance().clearBooks();
-				response.getWriter().println(BookStoreUtility.serializeObjectToXMLString(bookStoreresponse));
-				
 			default:
-				if(messageTag.equals("CLEARBOOKS")) {
-					bookStoreresponse = new BookStoreResponse();
-					CertainBookStore.getInstance().clearBooks();
-					response.getWriter().println(BookStoreUtility.serializeObjectToXMLString(bookStoreresponse));
-				}
 				break;
 			}
+			if (malformed != null) {
+				BookStoreResponse bookStoreResponse = new BookStoreResponse();
+				bookStoreResponse.setException(malformed);
+				respond(codec, response, bookStoreResponse);
+			} else {
+				respond(codec, response, execute(messageTag, argument));
+			}
 		}
 		// Mark the request as handled so that the HTTP response can be sent
 		baseRequest.setHandled(true);
 
 	}
+
+	/**
+	 * Runs the operation named by the message tag on its argument, and
+	 * returns the response to send back
+	 */
+	private static BookStoreResponse execute(BookStoreMessageTag messageTag,
+			Object argument) {
+		BookStoreResponse bookStoreResponse = new BookStoreResponse();
+		try {
+			bookStoreResponse.setList(perform(messageTag, argument));
+		} catch (BookStoreException ex) {
+			bookStoreResponse.setException(ex);
+		}
+		return bookStoreResponse;
+	}
+
+	/**
+	 * Calls the CertainBookStore method of the operation, and returns the list
+	 * it answered with, or null for the operations answering none. The
+	 * number of books of EDITORPICKS and GETTOPRATED is either the parameter
+	 * of their URL or, within a batch, an Integer. An argument, or element of
+	 * it, that is not of the type the operation takes is answered as an
+	 * invalid argument, as the decoded message may hold anything.
+	 */
+	private static List<?> perform(BookStoreMessageTag messageTag,
+			Object argument) throws BookStoreException {
+		if (messageTag == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		try {
+			return performUnchecked(messageTag, argument);
+		} catch (ClassCastException ex) {
+			throw new BookStoreException(BookStoreConstants.ARGUMENT
+					+ messageTag + BookStoreConstants.INVALID);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<?> performUnchecked(BookStoreMessageTag messageTag,
+			Object argument) throws BookStoreException {
+		CertainBookStore store = CertainBookStore.getInstance();
+		switch (messageTag) {
+		case ADDBOOKS:
+			store.addBooks((Set<StockBook>) argument);
+			return null;
+		case ADDCOPIES:
+			store.addCopies((Set<BookCopy>) argument);
+			return null;
+		case LISTBOOKS:
+			return store.getBooks();
+		case GETINDEMAND:
+			return store.getBooksInDemand();
+		case UPDATEEDITORPICKS:
+			store.updateEditorPicks((Set<BookEditorPick>) argument);
+			return null;
+		case BUYBOOKS:
+			store.buyBooks((Set<BookCopy>) argument);
+			return null;
+		case GETBOOKS:
+			return store.getBooks((Set<Integer>) argument);
+		case EDITORPICKS:
+			return store.getEditorPicks(numBooks(argument));
+		case RATEBOOKS:
+			store.rateBooks((Set<BookRating>) argument);
+			return null;
+		case GETTOPRATED:
+			return store.getTopRatedBooks(numBooks(argument));
+		case CLEARBOOKS:
+			store.clearBooks();
+			return null;
+		case BATCH:
+			return runBatch((BookStoreBatch) argument);
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the operations of the batch in order, and returns the response to
+	 * each. The operations of an atomic batch are run as one transaction,
+	 * which the first failure rolls back and ends.
+	 */
+	private static List<BookStoreResponse> runBatch(final BookStoreBatch batch)
+			throws BookStoreException {
+		if (batch == null || batch.getOperations() == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		// Checked before any is run, so that a batch is not cut short by a
+		// malformed operation
+		List<?> operations = batch.getOperations();
+		for (Object operation : operations) {
+			if (!(operation instanceof BookStoreOperation)) {
+				throw new BookStoreException(BookStoreConstants.ARGUMENT
+						+ BookStoreMessageTag.BATCH + BookStoreConstants.INVALID);
+			}
+		}
+		final List<BookStoreResponse> responses = new ArrayList<BookStoreResponse>();
+		if (!batch.isAtomic()) {
+			for (BookStoreOperation operation : batch.getOperations()) {
+				responses.add(execute(operation.getMessageTag(),
+						operation.getArgument()));
+			}
+			return responses;
+		}
+
+		CertainBookStore.getInstance().runAtomically(
+				new CertainBookStore.AtomicAction() {
+					@Override
+					public void run() throws BookStoreException {
+						for (BookStoreOperation operation : batch
+								.getOperations()) {
+							BookStoreResponse bookStoreResponse = new BookStoreResponse();
+							bookStoreResponse.setList(perform(
+									operation.getMessageTag(),
+									operation.getArgument()));
+							responses.add(bookStoreResponse);
+						}
+					}
+				});
+		return responses;
+	}
+
+	private static int numBooks(Object argument) throws BookStoreException {
+		if (argument instanceof Integer) {
+			return (Integer) argument;
+		}
+		return BookStoreUtility.convertStringToInt((String) argument);
+	}
+
+	/**
+	 * Decodes the message of the request with the codec
+	 */
+	private static Object decode(BookStoreCodec codec,
+			HttpServletRequest request) throws IOException {
+		return BookStoreUtility.decodePOSTDataFromRequest(request, codec);
+	}
+
+	/**
+	 * Encodes the bookstore response straight into the body of the HTTP
+	 * response. The body is never held as a whole: the codec hands it on in
+	 * pieces, and once they fill the buffer of the response, it is committed
+	 * and sent in chunks, as it has no Content-Length.
+	 */
+	private static void respond(BookStoreCodec codec,
+			HttpServletResponse response, BookStoreResponse bookStoreResponse)
+			throws IOException {
+		codec.encode(bookStoreResponse, response.getOutputStream());
+	}
 }
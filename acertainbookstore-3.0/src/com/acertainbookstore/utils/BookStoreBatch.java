@@ -0,0 +1,41 @@
+package com.acertainbookstore.utils;
+
+import java.util.List;
+
+/**
+ * Data Structure carried by a BATCH message: operations the server runs in
+ * order, answering with one BookStoreResponse whose list holds the response
+ * to each of them.
+ * 
+ * Unless the batch is atomic, every operation is run whether the ones before
+ * it failed or not. An atomic batch is applied as a whole or not at all: if
+ * any operation fails, the changes of the others are rolled back and the
+ * response only holds the exception. That includes the sale misses of a
+ * BUYBOOKS that fails within the batch.
+ * 
+ */
+public class BookStoreBatch {
+	private List<BookStoreOperation> operations;
+	private boolean atomic;
+
+	public BookStoreBatch(List<BookStoreOperation> operations, boolean atomic) {
+		this.setOperations(operations);
+		this.setAtomic(atomic);
+	}
+
+	public List<BookStoreOperation> getOperations() {
+		return operations;
+	}
+
+	public void setOperations(List<BookStoreOperation> operations) {
+		this.operations = operations;
+	}
+
+	public boolean isAtomic() {
+		return atomic;
+	}
+
+	public void setAtomic(boolean atomic) {
+		this.atomic = atomic;
+	}
+}
@@ -30,5 +30,9 @@ public final class BookStoreConstants {
 	public static final String NUM_COPIES = "The Number of copies: ";
 	public static final String RATING = "The rating: ";
 	public static final String NULL_INPUT = "null input parameters";
+	// When the argument of a request is not of the type its operation takes
+	public static final String ARGUMENT = "The argument of ";
+	// When an atomic batch is asked for while purchases take no lock
+	public static final String NOT_ATOMIC = "atomic batches cannot be run with optimistic purchases";
 
 }
@@ -8,5 +8,5 @@ package com.acertainbookstore.utils;
  * 
  */
 public enum BookStoreMessageTag {
-	ADDBOOKS, LISTBOOKS, ADDCOPIES, GETBOOKS, BUYBOOKS, UPDATEEDITORPICKS, EDITORPICKS, CLEARBOOKS;
+	ADDBOOKS, LISTBOOKS, ADDCOPIES, GETBOOKS, BUYBOOKS, UPDATEEDITORPICKS, EDITORPICKS, CLEARBOOKS, RATEBOOKS, GETTOPRATED, GETINDEMAND, BATCH;
 }
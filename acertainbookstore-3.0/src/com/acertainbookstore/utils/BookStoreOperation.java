@@ -0,0 +1,34 @@
+package com.acertainbookstore.utils;
+
+/**
+ * Data Structure holding one operation of a {@link BookStoreBatch}: the
+ * message tag naming the operation and its argument, which is the set the
+ * operation takes, the number of books for EDITORPICKS and GETTOPRATED, or
+ * null for the operations taking none.
+ * 
+ */
+public class BookStoreOperation {
+	private BookStoreMessageTag messageTag;
+	private Object argument;
+
+	public BookStoreOperation(BookStoreMessageTag messageTag, Object argument) {
+		this.setMessageTag(messageTag);
+		this.setArgument(argument);
+	}
+
+	public BookStoreMessageTag getMessageTag() {
+		return messageTag;
+	}
+
+	public void setMessageTag(BookStoreMessageTag messageTag) {
+		this.messageTag = messageTag;
+	}
+
+	public Object getArgument() {
+		return argument;
+	}
+
+	public void setArgument(Object argument) {
+		this.argument = argument;
+	}
+}
@@ -4,8 +4,7 @@
 package com.acertainbookstore.utils;
 
 import java.io.IOException;
-import java.io.Reader;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -13,10 +12,10 @@ import javax.servlet.http.HttpServletRequest;
 import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
 
 import com.acertainbookstore.client.BookStoreClientConstants;
-import com.thoughtworks.xstream.XStream;
-import com.thoughtworks.xstream.io.xml.StaxDriver;
 
 /**
  * BookStoreUtility implements utility methods used by bookstore servers and
@@ -24,6 +23,11 @@ import com.thoughtworks.xstream.io.xml.StaxDriver;
  * 
  */
 public final class BookStoreUtility {
+	public static final XStreamBookStoreCodec XML_CODEC = new XStreamBookStoreCodec();
+	public static final BinaryBookStoreCodec BINARY_CODEC = new BinaryBookStoreCodec();
+	// Request messages are read into buffers of this pool
+	private static final ByteArrayPool REQUEST_BUFFERS = new ByteArrayPool(
+			16 * 1024, 64);
 
 	public static boolean isInvalidISBN(int isbn) {
 		return (isbn < 1);
@@ -113,10 +117,7 @@ public final class BookStoreUtility {
 	 * @return
 	 */
 	public static String serializeObjectToXMLString(Object object) {
-		String xmlString;
-		XStream xmlStream = new XStream(new StaxDriver());
-		xmlString = xmlStream.toXML(object);
-		return xmlString;
+		return XML_CODEC.toXML(object);
 	}
 
 	/**
@@ -126,12 +127,57 @@ public final class BookStoreUtility {
 	 * @return
 	 */
 	public static Object deserializeXMLStringToObject(String xmlObject) {
-		Object dataObject = null;
-		XStream xmlStream = new XStream(new StaxDriver());
-		dataObject = xmlStream.fromXML(xmlObject);
-		return dataObject;
+		return XML_CODEC.fromXML(xmlObject);
 	}
 
+	/**
+	 * Returns the codec of the messages of a Content-Type, or of the first
+	 * type of an Accept header. Messages of no or an unknown type are XML.
+	 * 
+	 * @param contentType
+	 * @return
+	 */
+	public static BookStoreCodec getCodec(String contentType) {
+		if (contentType != null
+				&& contentType.trim().toLowerCase()
+						.startsWith(BinaryBookStoreCodec.CONTENT_TYPE)) {
+			return BINARY_CODEC;
+		}
+		return XML_CODEC;
+	}
+
+	/**
+	 * Returns the codec a request asks for, by its Content-Type or, if it has
+	 * no body, by its Accept header
+	 * 
+	 * @param request
+	 * @return
+	 */
+	public static BookStoreCodec getCodec(HttpServletRequest request) {
+		String contentType = request.getContentType();
+		if (contentType == null) {
+			contentType = request.getHeader("Accept");
+		}
+		return getCodec(contentType);
+	}
+
+	/**
+	 * Encodes an object with a codec as the content of a request
+	 * 
+	 * @param codec
+	 * @param object
+	 * @return
+	 * @throws BookStoreException
+	 */
+	public static Buffer encodeRequestContent(BookStoreCodec codec,
+			Object object) throws BookStoreException {
+		try {
+			return new ByteArrayBuffer(codec.encode(object));
+		} catch (IOException ex) {
+			throw new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_ENCODING, ex);
+		}
+	}
 
 	/**
 	 * Manages the sending of an exchange through the client, waits for the
@@ -144,7 +190,25 @@ public final class BookStoreUtility {
 	 */
 	public static List<?> SendAndRecv(HttpClient client,
 			ContentExchange exchange) throws BookStoreException {
+		return SendAndRecv(client, exchange, XML_CODEC);
+	}
+
+	/**
+	 * Manages the sending of an exchange through the client, with the content
+	 * encoded and the response asked for in a codec, waits for the response
+	 * and unpacks the response
+	 * 
+	 * @param client
+	 * @param exchange
+	 * @param codec
+	 * @return A List<Book> for a get function, otherwise null
+	 * @throws BookStoreException
+	 */
+	public static List<?> SendAndRecv(HttpClient client,
+			ContentExchange exchange, BookStoreCodec codec)
+			throws BookStoreException {
 		int exchangeState;
+		setCodecHeaders(exchange, codec);
 		try {
 			client.send(exchange);
 		} catch (IOException ex) {
@@ -161,21 +225,7 @@ public final class BookStoreUtility {
 		}
 
 		if (exchangeState == HttpExchange.STATUS_COMPLETED) {
-			try {
-				BookStoreResponse bookStoreResponse = (BookStoreResponse) BookStoreUtility
-						.deserializeXMLStringToObject(exchange
-								.getResponseContent().trim());
-				BookStoreException ex = bookStoreResponse.getException();
-				if (ex != null) {
-					throw ex;
-				}
-				return bookStoreResponse.getList();
-				
-			} catch (UnsupportedEncodingException ex) {
-				throw new BookStoreException(
-						BookStoreClientConstants.strERR_CLIENT_RESPONSE_DECODING,
-						ex);
-			}
+			return unpackResponse(exchange, codec);
 		} else if (exchangeState == HttpExchange.STATUS_EXCEPTED) {
 			throw new BookStoreException(
 					BookStoreClientConstants.strERR_CLIENT_REQUEST_EXCEPTION);
@@ -189,21 +239,83 @@ public final class BookStoreUtility {
 	}
 
 	/**
-	 * Returns the message of the request as a string
+	 * Sets the headers telling the server the codec of the content of the
+	 * exchange, if any, and the codec of the response asked for
+	 * 
+	 * @param exchange
+	 * @param codec
+	 */
+	public static void setCodecHeaders(ContentExchange exchange,
+			BookStoreCodec codec) {
+		if (exchange.getRequestContent() != null) {
+			exchange.setRequestContentType(codec.getContentType());
+		}
+		exchange.setRequestHeader("Accept", codec.getContentType());
+	}
+
+	/**
+	 * Decodes the response of a completed exchange, and throws the exception
+	 * it holds, if any
+	 * 
+	 * @param exchange
+	 * @param codec
+	 * @return A List<Book> for a get function, otherwise null
+	 * @throws BookStoreException
+	 */
+	public static List<?> unpackResponse(ContentExchange exchange,
+			BookStoreCodec codec) throws BookStoreException {
+		try {
+			byte[] content = exchange.getResponseContentBytes();
+			BookStoreResponse bookStoreResponse = (BookStoreResponse) codec
+					.decode(content, 0, content.length);
+			BookStoreException ex = bookStoreResponse.getException();
+			if (ex != null) {
+				throw ex;
+			}
+			return bookStoreResponse.getList();
+
+		} catch (IOException ex) {
+			throw new BookStoreException(
+					BookStoreClientConstants.strERR_CLIENT_RESPONSE_DECODING,
+					ex);
+		}
+	}
+
+	/**
+	 * Decodes the message of the request with the codec. The message is read
+	 * into a pooled buffer, as long as it fits one, and decoded from there.
 	 * 
 	 * @param request
-	 * @return xml string
+	 * @param codec
+	 * @return
 	 * @throws IOException
 	 */
-	public static String extractPOSTDataFromRequest(HttpServletRequest request)
-			throws IOException {
-		Reader reader = request.getReader();
+	public static Object decodePOSTDataFromRequest(HttpServletRequest request,
+			BookStoreCodec codec) throws IOException {
+		InputStream in = request.getInputStream();
 		int len = request.getContentLength();
-
-		// Request must be read into a char[] first
-		char res[] = new char[len];
-		reader.read(res);
-		reader.close();
-		return new String(res);
+		byte[] buffer = REQUEST_BUFFERS.acquire(len);
+		int count = 0;
+		try {
+			// A read may return any part of the message, so read until all
+			// of it is in, or until the end if its length is unknown
+			while (count != len) {
+				if (count == buffer.length) {
+					byte[] larger = REQUEST_BUFFERS.acquire(2 * count);
+					System.arraycopy(buffer, 0, larger, 0, count);
+					REQUEST_BUFFERS.release(buffer);
+					buffer = larger;
+				}
+				int read = in.read(buffer, count,
+						(len < 0 ? buffer.length : len) - count);
+				if (read == -1) {
+					break;
+				}
+				count += read;
+			}
+			return codec.decode(buffer, 0, count);
+		} finally {
+			REQUEST_BUFFERS.release(buffer);
+		}
 	}
 }
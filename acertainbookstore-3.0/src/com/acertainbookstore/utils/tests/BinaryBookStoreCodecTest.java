@@ -0,0 +1,283 @@
+package com.acertainbookstore.utils.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BinaryBookStoreCodec;
+import com.acertainbookstore.utils.BookStoreBatch;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreMessageTag;
+import com.acertainbookstore.utils.BookStoreOperation;
+import com.acertainbookstore.utils.BookStoreResponse;
+
+/**
+ * Tests for BinaryBookStoreCodec: every tagged type and the XML fallback
+ * decoded back as they were encoded, and malformed messages rejected with
+ * an IOException.
+ */
+public class BinaryBookStoreCodecTest {
+	private final BinaryBookStoreCodec codec = new BinaryBookStoreCodec();
+
+	@Test
+	public void testScalars() throws IOException {
+		assertThat(roundTrip(null), is(nullValue()));
+		assertThat(roundTrip(Integer.MIN_VALUE), is((Object) Integer.MIN_VALUE));
+		assertThat(roundTrip(-1), is((Object) (-1)));
+		assertThat(roundTrip(Long.MAX_VALUE), is((Object) Long.MAX_VALUE));
+		assertThat(roundTrip(12.5f), is((Object) 12.5f));
+		assertThat(roundTrip(true), is((Object) true));
+		assertThat(roundTrip(false), is((Object) false));
+		assertThat(roundTrip("Title \u00e6\u00f8\u00e5 \u4e66"),
+				is((Object) "Title \u00e6\u00f8\u00e5 \u4e66"));
+		assertThat(roundTrip(""), is((Object) ""));
+	}
+
+	@Test
+	public void testStockBook() throws IOException {
+		StockBook book = new ImmutableStockBook(1, "Title", "Author", 12.5f, 7,
+				3, 4, 15, true);
+		StockBook decoded = (StockBook) roundTrip(book);
+		assertThat(decoded.getISBN(), is(book.getISBN()));
+		assertThat(decoded.getTitle(), is(book.getTitle()));
+		assertThat(decoded.getAuthor(), is(book.getAuthor()));
+		assertThat(decoded.getPrice(), is(book.getPrice()));
+		assertThat(decoded.getNumCopies(), is(book.getNumCopies()));
+		assertThat(decoded.getSaleMisses(), is(book.getSaleMisses()));
+		assertThat(decoded.getTimesRated(), is(book.getTimesRated()));
+		assertThat(decoded.getTotalRating(), is(book.getTotalRating()));
+		assertThat(decoded.isEditorPick(), is(book.isEditorPick()));
+	}
+
+	@Test
+	public void testBook() throws IOException {
+		Book book = new ImmutableBook(2, "Title", "Author", 1.0f);
+		Object decoded = roundTrip(book);
+		assertThat(decoded, is(instanceOf(ImmutableBook.class)));
+		assertThat(decoded, is(not(instanceOf(StockBook.class))));
+		assertThat(decoded, is((Object) book));
+	}
+
+	@Test
+	public void testBookCopy() throws IOException {
+		BookCopy copy = (BookCopy) roundTrip(new BookCopy(3, 42));
+		assertThat(copy.getISBN(), is(3));
+		assertThat(copy.getNumCopies(), is(42));
+	}
+
+	@Test
+	public void testBookRating() throws IOException {
+		BookRating rating = (BookRating) roundTrip(new BookRating(4, 5));
+		assertThat(rating.getISBN(), is(4));
+		assertThat(rating.getRating(), is(5));
+	}
+
+	@Test
+	public void testBookEditorPick() throws IOException {
+		BookEditorPick pick = (BookEditorPick) roundTrip(new BookEditorPick(5,
+				true));
+		assertThat(pick.getISBN(), is(5));
+		assertThat(pick.isEditorPick(), is(true));
+	}
+
+	@Test
+	public void testCollections() throws IOException {
+		List<Integer> list = Arrays.asList(1, 2, 3);
+		assertThat(roundTrip(list), is((Object) new ArrayList<Integer>(list)));
+		Set<Integer> set = new HashSet<Integer>(list);
+		assertThat(roundTrip(set), is((Object) set));
+		assertThat(roundTrip(new ArrayList<Object>()),
+				is((Object) new ArrayList<Object>()));
+	}
+
+	@Test
+	public void testResponse() throws IOException {
+		List<Book> books = new ArrayList<Book>();
+		books.add(new ImmutableBook(1, "Title", "Author", 1.0f));
+		BookStoreResponse response = (BookStoreResponse) roundTrip(new BookStoreResponse(
+				null, books));
+		assertThat(response.getException(), is(nullValue()));
+		assertThat(response.getList(), is((Object) books));
+	}
+
+	@Test
+	public void testResponseWithException() throws IOException {
+		BookStoreResponse response = (BookStoreResponse) roundTrip(new BookStoreResponse(
+				new BookStoreException("Message \u00e6"), null));
+		assertThat(response.getException().getMessage(), is("Message \u00e6"));
+		assertThat(response.getList(), is(nullValue()));
+	}
+
+	@Test
+	public void testBatch() throws IOException {
+		Set<BookCopy> copies = new HashSet<BookCopy>();
+		copies.add(new BookCopy(1, 2));
+		List<BookStoreOperation> operations = new ArrayList<BookStoreOperation>();
+		operations.add(new BookStoreOperation(BookStoreMessageTag.BUYBOOKS,
+				copies));
+		operations.add(new BookStoreOperation(BookStoreMessageTag.LISTBOOKS,
+				null));
+		BookStoreBatch batch = (BookStoreBatch) roundTrip(new BookStoreBatch(
+				operations, true));
+		assertThat(batch.isAtomic(), is(true));
+		assertThat(batch.getOperations().size(), is(2));
+		BookStoreOperation first = batch.getOperations().get(0);
+		assertThat(first.getMessageTag(), is(BookStoreMessageTag.BUYBOOKS));
+		BookCopy copy = (BookCopy) ((Set<?>) first.getArgument()).iterator()
+				.next();
+		assertThat(copy.getISBN(), is(1));
+		assertThat(copy.getNumCopies(), is(2));
+		BookStoreOperation second = batch.getOperations().get(1);
+		assertThat(second.getMessageTag(), is(BookStoreMessageTag.LISTBOOKS));
+		assertThat(second.getArgument(), is(nullValue()));
+	}
+
+	@Test
+	public void testXMLFallback() throws IOException {
+		Map<String, Double> map = new HashMap<String, Double>();
+		map.put("price", 1.5);
+		assertThat(roundTrip(map), is((Object) map));
+		assertThat(roundTrip(2.5), is((Object) 2.5));
+	}
+
+	@Test
+	public void testOffset() throws IOException {
+		byte[] message = codec.encode("Title");
+		byte[] data = new byte[message.length + 4];
+		System.arraycopy(message, 0, data, 2, message.length);
+		assertThat(codec.decode(data, 2, message.length), is((Object) "Title"));
+	}
+
+	@Test
+	public void testStream() throws IOException {
+		// Longer than the buffer of the encoder
+		StringBuilder title = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			title.append('a');
+		}
+		List<Object> list = new ArrayList<Object>();
+		list.add(title.toString());
+		list.add(1);
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		codec.encode(list, stream);
+		byte[] data = stream.toByteArray();
+		assertThat(codec.decode(data, 0, data.length), is((Object) list));
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownVersion() throws IOException {
+		byte[] data = codec.encode(1);
+		data[0] = 2;
+		codec.decode(data, 0, data.length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownTag() throws IOException {
+		byte[] data = codec.encode(1);
+		data[1] = 100;
+		codec.decode(data, 0, data.length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testNegativeSize() throws IOException {
+		byte[] data = codec.encode(new ArrayList<Object>());
+		// Size -1 in zigzag
+		data[2] = 1;
+		codec.decode(data, 0, data.length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testSizeBeyondMessage() throws IOException {
+		byte[] data = codec.encode(Arrays.asList(1, 2));
+		// Size 50 in zigzag, for a message of a few bytes
+		data[2] = 100;
+		codec.decode(data, 0, data.length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testStringLengthBeyondMessage() throws IOException {
+		byte[] data = codec.encode("Title");
+		data[2] = 100;
+		codec.decode(data, 0, data.length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownMessageTag() throws IOException {
+		List<BookStoreOperation> operations = new ArrayList<BookStoreOperation>();
+		operations.add(new BookStoreOperation(BookStoreMessageTag.LISTBOOKS,
+				null));
+		byte[] data = codec.encode(new BookStoreBatch(operations, false));
+		String message = new String(data, "ISO-8859-1").replace("LISTBOOKS",
+				"LISTBOOKZ");
+		data = message.getBytes("ISO-8859-1");
+		codec.decode(data, 0, data.length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedBatch() throws IOException {
+		List<Object> operations = new ArrayList<Object>();
+		operations.add("LISTBOOKS");
+		@SuppressWarnings("unchecked")
+		BookStoreBatch batch = new BookStoreBatch(
+				(List<BookStoreOperation>) (List<?>) operations, false);
+		byte[] data = codec.encode(batch);
+		codec.decode(data, 0, data.length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testMalformedResponse() throws IOException {
+		// A response whose exception is the string "x"
+		byte[] data = { 1, 14, 6, 2, 'x', 0 };
+		codec.decode(data, 0, data.length);
+	}
+
+	@Test
+	public void testTruncated() throws IOException {
+		StockBook book = new ImmutableStockBook(1, "Title", "Author", 12.5f, 7,
+				3, 4, 15, true);
+		List<Object> list = new ArrayList<Object>();
+		list.add(book);
+		list.add(new BookCopy(1, 2));
+		byte[] data = codec.encode(list);
+		// Every proper prefix of the message is rejected
+		for (int length = 0; length < data.length; length++) {
+			try {
+				codec.decode(data, 0, length);
+				fail("Decoded " + length + " of " + data.length + " bytes");
+			} catch (IOException ex) {
+				// Expected
+			}
+		}
+	}
+
+	@Test(expected = EOFException.class)
+	public void testTruncatedAtOffset() throws IOException {
+		byte[] data = codec.encode(Arrays.asList(1, 2, 3));
+		// The bytes past the length do not belong to the message
+		codec.decode(data, 0, data.length - 1);
+	}
+
+	private Object roundTrip(Object object) throws IOException {
+		byte[] data = codec.encode(object);
+		return codec.decode(data, 0, data.length);
+	}
+}
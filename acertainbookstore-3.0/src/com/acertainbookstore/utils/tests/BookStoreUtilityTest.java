@@ -0,0 +1,145 @@
+package com.acertainbookstore.utils.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.Test;
+
+import com.acertainbookstore.utils.BookStoreUtility;
+
+/**
+ * Tests for BookStoreUtility.decodePOSTDataFromRequest: the message is read
+ * whole however the stream hands it out, with or without a Content-Length,
+ * and a body cut short is rejected.
+ */
+public class BookStoreUtilityTest {
+
+	/**
+	 * Input stream returning at most chunkSize bytes per read
+	 */
+	private static class ChunkedInputStream extends ServletInputStream {
+		private final byte[] data;
+		private final int chunkSize;
+		private int position;
+
+		ChunkedInputStream(byte[] data, int chunkSize) {
+			this.data = data;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public int read() {
+			return position < data.length ? data[position++] & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) {
+			if (length == 0) {
+				return 0;
+			}
+			if (position == data.length) {
+				return -1;
+			}
+			int count = Math.min(Math.min(length, chunkSize), data.length
+					- position);
+			System.arraycopy(data, position, buffer, offset, count);
+			position += count;
+			return count;
+		}
+	}
+
+	@Test
+	public void testOneBytePerRead() throws IOException {
+		List<Object> message = message(100);
+		byte[] data = BookStoreUtility.BINARY_CODEC.encode(message);
+		assertThat(decode(data, data.length, 1), is((Object) message));
+	}
+
+	@Test
+	public void testUnknownLength() throws IOException {
+		// Larger than a pooled buffer, which has to grow
+		List<Object> message = message(20000);
+		byte[] data = BookStoreUtility.BINARY_CODEC.encode(message);
+		assertThat(data.length > 16 * 1024, is(true));
+		assertThat(decode(data, -1, 1000), is((Object) message));
+		assertThat(decode(data, -1, 1), is((Object) message));
+	}
+
+	@Test
+	public void testLargerThanPooledBuffer() throws IOException {
+		List<Object> message = message(40000);
+		byte[] data = BookStoreUtility.BINARY_CODEC.encode(message);
+		assertThat(decode(data, data.length, 4096), is((Object) message));
+	}
+
+	@Test
+	public void testPooledBufferReused() throws IOException {
+		// The bytes of a longer message left in a pooled buffer are not
+		// read as part of the next one
+		List<Object> longer = message(1000);
+		byte[] data = BookStoreUtility.BINARY_CODEC.encode(longer);
+		assertThat(decode(data, data.length, data.length), is((Object) longer));
+		byte[] shorter = BookStoreUtility.BINARY_CODEC.encode("Title");
+		assertThat(decode(shorter, shorter.length, shorter.length),
+				is((Object) "Title"));
+		assertThat(decode(shorter, -1, shorter.length), is((Object) "Title"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncated() throws IOException {
+		byte[] data = BookStoreUtility.BINARY_CODEC.encode(message(100));
+		byte[] truncated = new byte[data.length / 2];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		// The stream ends before Content-Length bytes were read
+		decode(truncated, data.length, 7);
+	}
+
+	private static List<Object> message(int titleLength) {
+		StringBuilder title = new StringBuilder();
+		for (int i = 0; i < titleLength; i++) {
+			title.append((char) ('a' + i % 26));
+		}
+		List<Object> message = new ArrayList<Object>();
+		message.add(title.toString());
+		message.add(42);
+		return message;
+	}
+
+	/**
+	 * Decodes data from a request with the given Content-Length, -1 if
+	 * unknown, whose stream returns chunkSize bytes per read
+	 */
+	private static Object decode(byte[] data, final int contentLength,
+			int chunkSize) throws IOException {
+		final ServletInputStream in = new ChunkedInputStream(data, chunkSize);
+		HttpServletRequest request = (HttpServletRequest) Proxy
+				.newProxyInstance(HttpServletRequest.class.getClassLoader(),
+						new Class<?>[] { HttpServletRequest.class },
+						new InvocationHandler() {
+							@Override
+							public Object invoke(Object proxy, Method method,
+									Object[] args) {
+								if (method.getName().equals("getInputStream")) {
+									return in;
+								}
+								if (method.getName().equals("getContentLength")) {
+									return contentLength;
+								}
+								throw new UnsupportedOperationException(method
+										.getName());
+							}
+						});
+		return BookStoreUtility.decodePOSTDataFromRequest(request,
+				BookStoreUtility.BINARY_CODEC);
+	}
+}
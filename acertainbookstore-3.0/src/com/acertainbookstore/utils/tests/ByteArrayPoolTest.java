@@ -0,0 +1,127 @@
+package com.acertainbookstore.utils.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.acertainbookstore.utils.ByteArrayPool;
+
+/**
+ * Tests for ByteArrayPool: arrays of the pooled size are reused, and the pool
+ * keeps neither arrays of another size nor more arrays than it may hold.
+ */
+public class ByteArrayPoolTest {
+
+	@Test
+	public void testReuse() {
+		ByteArrayPool pool = new ByteArrayPool(16, 2);
+		byte[] array = pool.acquire(10);
+		assertThat(array.length, is(16));
+		pool.release(array);
+		assertThat(pool.acquire(16), is(sameInstance(array)));
+		// The pool is empty again
+		assertThat(pool.acquire(16), is(not(sameInstance(array))));
+	}
+
+	@Test
+	public void testLargerArraysNotPooled() {
+		ByteArrayPool pool = new ByteArrayPool(16, 2);
+		byte[] large = pool.acquire(17);
+		assertThat(large.length, is(17));
+		pool.release(large);
+		assertThat(pool.acquire(17), is(not(sameInstance(large))));
+		assertThat(pool.acquire(16).length, is(16));
+	}
+
+	@Test
+	public void testOtherSizesNotPooled() {
+		ByteArrayPool pool = new ByteArrayPool(16, 2);
+		byte[] small = new byte[8];
+		pool.release(small);
+		byte[] array = pool.acquire(8);
+		assertThat(array, is(not(sameInstance(small))));
+		assertThat(array.length, is(16));
+	}
+
+	@Test
+	public void testMaxArrays() {
+		ByteArrayPool pool = new ByteArrayPool(16, 2);
+		List<byte[]> released = new ArrayList<byte[]>();
+		for (int i = 0; i < 5; i++) {
+			released.add(pool.acquire(16));
+		}
+		for (byte[] array : released) {
+			pool.release(array);
+		}
+		// Only the first two arrays given back are kept
+		List<byte[]> acquired = new ArrayList<byte[]>();
+		for (int i = 0; i < 5; i++) {
+			acquired.add(pool.acquire(16));
+		}
+		assertThat(acquired.get(0), is(sameInstance(released.get(0))));
+		assertThat(acquired.get(1), is(sameInstance(released.get(1))));
+		for (int i = 2; i < 5; i++) {
+			for (byte[] array : released) {
+				assertThat(acquired.get(i), is(not(sameInstance(array))));
+			}
+		}
+
+		// Room is made again as arrays are taken
+		for (byte[] array : acquired) {
+			pool.release(array);
+		}
+		assertThat(pool.acquire(16), is(sameInstance(acquired.get(0))));
+		assertThat(pool.acquire(16), is(sameInstance(acquired.get(1))));
+		assertThat(pool.acquire(16), is(not(sameInstance(acquired.get(2)))));
+	}
+
+	@Test
+	public void testMaxArraysConcurrently() throws InterruptedException {
+		final ByteArrayPool pool = new ByteArrayPool(16, 4);
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < 8; i++) {
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						byte[] first = pool.acquire(16);
+						byte[] second = pool.acquire(16);
+						// Marks the arrays that went through the pool, new
+						// ones are all zeros
+						first[0] = 1;
+						second[0] = 1;
+						pool.release(first);
+						pool.release(second);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// No more than 4 arrays are left in the pool
+		int pooled = 0;
+		while (pool.acquire(16)[0] == 1) {
+			pooled++;
+		}
+		assertThat(pooled <= 4, is(true));
+
+		// Nor did the count of arrays drift, so the empty pool takes 4 again
+		List<byte[]> released = new ArrayList<byte[]>();
+		for (int i = 0; i < 4; i++) {
+			byte[] array = new byte[16];
+			released.add(array);
+			pool.release(array);
+		}
+		for (byte[] array : released) {
+			assertThat(pool.acquire(16), is(sameInstance(array)));
+		}
+	}
+}
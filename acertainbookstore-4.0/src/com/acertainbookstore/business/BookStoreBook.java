@@ -1,16 +1,23 @@
 package com.acertainbookstore.business;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * The implementation of all parts of the book. Only parts of it are available
  * in the BookStoreClient and StockManager, cf. the Book interface and the
  * StockBook interface.
  * 
+ * The number of copies and the sale misses are atomic, so that purchases can
+ * take copies of the book with a compare-and-set instead of holding a lock,
+ * cf. {@link BookStoreBook#tryBuyCopies(int)}.
+ * 
  */
 public class BookStoreBook extends ImmutableBook {
-	private int numCopies;
+	private final AtomicInteger numCopies = new AtomicInteger();
 	private long totalRating;
 	private long timesRated;
-	private long saleMisses;
+	private final AtomicLong saleMisses = new AtomicLong();
 	private boolean editorPick;
 
 	/**
@@ -50,11 +57,11 @@ public class BookStoreBook extends ImmutableBook {
 	}
 
 	public int getNumCopies() {
-		return numCopies;
+		return numCopies.get();
 	}
 
 	public long getSaleMisses() {
-		return saleMisses;
+		return saleMisses.get();
 	}
 
 	public float getAverageRating() {
@@ -89,7 +96,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param numCopies
 	 */
 	private void setNumCopies(int numCopies) {
-		this.numCopies = numCopies;
+		this.numCopies.set(numCopies);
 	}
 
 	/**
@@ -99,7 +106,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @param saleMisses
 	 */
 	private void setSaleMisses(long saleMisses) {
-		this.saleMisses = saleMisses;
+		this.saleMisses.set(saleMisses);
 	}
 
 	/**
@@ -118,7 +125,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean areCopiesInStore(int numCopies) {
-		return (this.numCopies>=numCopies);
+		return (this.numCopies.get()>=numCopies);
 	}
 	
 	/**
@@ -127,19 +134,46 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean buyCopies(int numCopies) {
-		if(areCopiesInStore(numCopies)) {
-			this.numCopies-=numCopies;
-			return true;
+		return tryBuyCopies(numCopies);
+	}
+
+	/**
+	 * Atomically takes numCopies of the book if that many are in stock.
+	 * Retries the compare-and-set until it either succeeds, or the stock is
+	 * observed to be too low.
+	 * 
+	 * @param numCopies
+	 * @return true if the copies were taken, false if the stock was too low
+	 */
+	public boolean tryBuyCopies(int numCopies) {
+		while (true) {
+			int current = this.numCopies.get();
+			if (current < numCopies) {
+				return false;
+			}
+			if (this.numCopies.compareAndSet(current, current - numCopies)) {
+				return true;
+			}
 		}
-		return false;
+	}
+
+	/**
+	 * Puts back copies taken by {@link BookStoreBook#tryBuyCopies(int)}, when
+	 * the purchase they were part of is rolled back. Unlike addCopies this
+	 * does not reset the sale misses.
+	 * 
+	 * @param numCopies
+	 */
+	public void returnCopies(int numCopies) {
+		this.numCopies.addAndGet(numCopies);
 	}
 	
 	/**
 	 * Adds newCopies to the total number of copies of the book.
 	 */
 	public void addCopies(int newCopies) {
-		this.numCopies += newCopies;
-		this.saleMisses = 0;
+		this.numCopies.addAndGet(newCopies);
+		this.saleMisses.set(0);
 	}
 
 
@@ -147,7 +181,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * Increases the amount of missed sales of the book.
 	 */
 	public void addSaleMiss() {
-		this.saleMisses++;
+		this.saleMisses.incrementAndGet();
 	}
 
 	/**
@@ -167,7 +201,7 @@ public class BookStoreBook extends ImmutableBook {
 	 * @return
 	 */
 	public boolean hadSaleMiss() {
-		return this.saleMisses > 0;
+		return this.saleMisses.get() > 0;
 	}
 
 	/**
@@ -198,7 +232,7 @@ public class BookStoreBook extends ImmutableBook {
 	public StockBook immutableStockBook() {
 		return new ImmutableStockBook(this.getISBN(), new String(
 				this.getTitle()), new String(this.getAuthor()),
-				this.getPrice(), this.numCopies, this.saleMisses,
+				this.getPrice(), this.numCopies.get(), this.saleMisses.get(),
 				this.timesRated, this.totalRating, this.editorPick);
 	}
 
@@ -209,7 +243,8 @@ public class BookStoreBook extends ImmutableBook {
 	 */
 	public BookStoreBook copy() {
 		return new BookStoreBook(this.getISBN(), new String(this.getTitle()),
-				new String(this.getAuthor()), this.getPrice(), this.numCopies);
+				new String(this.getAuthor()), this.getPrice(),
+				this.numCopies.get());
 	}
 
 }
@@ -0,0 +1,606 @@
+package com.acertainbookstore.business;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * BookStoreJournal is the write-ahead log of CertainBookStore. Every write
+ * accepted by the store is appended as one compact binary record, and
+ * replaying the records on startup restores the state of the store.
+ *
+ * Writers append their record while they still hold the stripes of their
+ * books, so the records of a book are in the order the changes were applied.
+ * Appending only copies the record into a memory buffer. A writer then calls
+ * sync after releasing its stripes, and does not return to its client until
+ * the record is on disk. The first writer to sync while no flush is running
+ * becomes the leader: it writes every record buffered so far, forces them to
+ * disk, and wakes the writers whose records that made durable. Writers
+ * arriving during a flush queue up behind it and are served together by the
+ * next flush, so the store pays one disk flush per group of writes instead
+ * of one per write.
+ *
+ * A record is framed by its length and the CRC32 of its contents. Replay
+ * stops at the first record that is incomplete or does not match its
+ * checksum, which is where a crash interrupted the last flush, and the
+ * journal is truncated there.
+ * A complete record that cannot be applied, such as a purchase of more
+ * copies than the replayed stock holds, fails the replay instead, as the
+ * journal no longer describes the store.
+ *
+ * Offsets into the journal identify the records before them, so a
+ * {@link BookStoreCheckpoint} records the offset of the journal it was taken
+ * at, and only the records after it are replayed on top of the checkpoint.
+ * Once a checkpoint is durable, the records before it are dropped from the
+ * file, cf. discardBefore. Offsets keep counting from the start of the
+ * journal's history: the file begins with the offset of its first record.
+ *
+ */
+public class BookStoreJournal {
+	private static final byte ADD_BOOKS = 1;
+	private static final byte ADD_COPIES = 2;
+	private static final byte BUY_BOOKS = 3;
+	private static final byte SALE_MISSES = 4;
+	private static final byte EDITOR_PICKS = 5;
+	private static final byte RATINGS = 6;
+	private static final byte CLEAR = 7;
+	private static final int FRAME_HEADER = 8;
+	// The offset of the first record in the file
+	private static final int FILE_HEADER = 8;
+
+	private final File file;
+	// Only used by the thread flushing, or before the journal is shared
+	private FileChannel channel;
+	// The offset of the first record in the file. Guarded by this.
+	private long base;
+	// Records appended but not yet written. Guarded by this.
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	// Journal offset after the last appended record. Guarded by this.
+	private long appended;
+	// Journal offset up to which the records are on disk. Guarded by this.
+	private long durable;
+	private boolean flushing = false;
+	private IOException failure = null;
+
+	private BookStoreJournal(File file, FileChannel channel, long base,
+			long end) {
+		this.file = file;
+		this.channel = channel;
+		this.base = base;
+		this.appended = end;
+		this.durable = end;
+	}
+
+	/**
+	 * Opens the journal in file, creating it if needed, and replays its
+	 * records from offset on into bookMap. New records are appended after the
+	 * last complete record.
+	 *
+	 * @param file
+	 * @param offset
+	 * @param bookMap
+	 * @return
+	 * @throws IOException
+	 */
+	public static BookStoreJournal open(File file, long offset,
+			ConcurrentIntHashMap<BookStoreBook> bookMap) throws IOException {
+		FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			long base;
+			if (channel.size() < FILE_HEADER) {
+				// A new journal, or one whose creation was interrupted
+				base = 0;
+				channel.truncate(0);
+				writeFully(channel, fileHeader(base), 0);
+				channel.force(true);
+			} else {
+				ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+				while (header.hasRemaining()) {
+					if (channel.read(header, header.position()) < 0) {
+						throw new EOFException();
+					}
+				}
+				header.flip();
+				base = header.getLong();
+			}
+			if (offset < base) {
+				throw new IOException(file + " starts at offset " + base
+						+ ", after offset " + offset);
+			}
+			long position = FILE_HEADER + offset - base;
+			if (channel.size() < position) {
+				throw new IOException(file + " ends before offset " + offset);
+			}
+			long end = replay(channel, position, bookMap);
+			channel.truncate(end);
+			channel.position(end);
+			return new BookStoreJournal(file, channel, base, base + end
+					- FILE_HEADER);
+		} catch (IOException ex) {
+			channel.close();
+			throw ex;
+		}
+	}
+
+	public synchronized long logAddBooks(Collection<BookStoreBook> books) {
+		return append(addBooksRecord(books));
+	}
+
+	/**
+	 * Appends a record encoded beforehand, such as by addBooksRecord, and
+	 * returns the journal offset after it.
+	 *
+	 * @param record
+	 * @return
+	 */
+	synchronized long log(Record record) {
+		return append(record);
+	}
+
+	/**
+	 * Encodes the record logAddBooks appends, so that a large write can
+	 * encode it before it takes any lock, and only append it under them.
+	 * The books must not change until the record is appended.
+	 *
+	 * @param books
+	 * @return
+	 */
+	static Record addBooksRecord(Collection<BookStoreBook> books) {
+		Record record = new Record(ADD_BOOKS, books.size());
+		try {
+			for (BookStoreBook book : books) {
+				record.out.writeInt(book.getISBN());
+				record.out.writeUTF(book.getTitle());
+				record.out.writeUTF(book.getAuthor());
+				record.out.writeFloat(book.getPrice());
+				record.out.writeInt(book.getNumCopies());
+				record.out.writeLong(book.getSaleMisses());
+				record.out.writeLong(book.getTimesRated());
+				record.out.writeLong(book.getTotalRating());
+				record.out.writeBoolean(book.isEditorPick());
+			}
+		} catch (IOException ex) {
+			// Cannot happen when writing to memory
+			throw new IllegalStateException(ex);
+		}
+		record.frame();
+		return record;
+	}
+
+	public synchronized long logAddCopies(Set<BookCopy> bookCopies) {
+		return append(copiesRecord(ADD_COPIES, bookCopies));
+	}
+
+	public synchronized long logBuyBooks(Collection<BookCopy> bookCopies) {
+		return append(copiesRecord(BUY_BOOKS, bookCopies));
+	}
+
+	public synchronized long logSaleMisses(Collection<BookStoreBook> books) {
+		Record record = new Record(SALE_MISSES, books.size());
+		try {
+			for (BookStoreBook book : books) {
+				record.out.writeInt(book.getISBN());
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return append(record);
+	}
+
+	public synchronized long logEditorPicks(Set<BookEditorPick> editorPicks) {
+		Record record = new Record(EDITOR_PICKS, editorPicks.size());
+		try {
+			for (BookEditorPick editorPick : editorPicks) {
+				record.out.writeInt(editorPick.getISBN());
+				record.out.writeBoolean(editorPick.isEditorPick());
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return append(record);
+	}
+
+	public synchronized long logRatings(Set<BookRating> bookRatings) {
+		Record record = new Record(RATINGS, bookRatings.size());
+		try {
+			for (BookRating rating : bookRatings) {
+				record.out.writeInt(rating.getISBN());
+				record.out.writeInt(rating.getRating());
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return append(record);
+	}
+
+	public synchronized long logClear() {
+		return append(new Record(CLEAR, 0));
+	}
+
+	/**
+	 * Returns the journal offset after the last appended record.
+	 *
+	 * @return
+	 */
+	public synchronized long getOffset() {
+		return appended;
+	}
+
+	/**
+	 * Returns once every record up to offset, as returned by the log methods,
+	 * is on disk. Flushes the records buffered so far if no other thread is
+	 * flushing, otherwise waits for that flush.
+	 *
+	 * The records are applied to the store before they are synced, so giving
+	 * up the wait would tell the caller that a write failed which other
+	 * threads can already see. Interrupts are therefore only recorded, and
+	 * the interrupt status is restored once the records are on disk. It is
+	 * cleared while flushing, as an interrupted thread would close the
+	 * channel.
+	 *
+	 * @param offset
+	 * @throws IOException
+	 *             if a flush failed, after which the journal is unusable
+	 */
+	public void sync(long offset) throws IOException {
+		boolean interrupted = Thread.interrupted();
+		try {
+			while (true) {
+				byte[] batch;
+				long batchEnd;
+				synchronized (this) {
+					while (flushing && durable < offset && failure == null) {
+						try {
+							this.wait();
+						} catch (InterruptedException ex) {
+							interrupted = true;
+						}
+					}
+					if (failure != null) {
+						throw failure;
+					}
+					if (durable >= offset) {
+						return;
+					}
+					// Become the leader of the next flush
+					flushing = true;
+					batch = pending.toByteArray();
+					batchEnd = appended;
+					pending = new ByteArrayOutputStream();
+				}
+
+				IOException error = null;
+				try {
+					ByteBuffer buffer = ByteBuffer.wrap(batch);
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					channel.force(false);
+				} catch (IOException ex) {
+					error = ex;
+				}
+
+				synchronized (this) {
+					flushing = false;
+					if (error == null) {
+						durable = batchEnd;
+					} else {
+						failure = error;
+					}
+					this.notifyAll();
+				}
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Flushes the remaining records and closes the journal file.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		long end;
+		synchronized (this) {
+			end = appended;
+		}
+		try {
+			sync(end);
+		} finally {
+			synchronized (this) {
+				// Let a rotation of the file finish, cf. discardBefore
+				while (flushing && failure == null) {
+					try {
+						this.wait();
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+			}
+			channel.close();
+		}
+	}
+
+	/**
+	 * Drops the records before offset, which a durable checkpoint holds, from
+	 * the file, so that the journal does not grow without bound. The records
+	 * after offset are copied into a new file, which replaces the journal by
+	 * an atomic rename, so a crash leaves either file in place. Records are
+	 * still appended meanwhile, and written once the new file is in place.
+	 *
+	 * @param offset
+	 * @throws IOException
+	 */
+	public void discardBefore(long offset) throws IOException {
+		synchronized (this) {
+			while (flushing && failure == null) {
+				try {
+					this.wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			if (offset <= base) {
+				return;
+			}
+			if (offset > durable) {
+				throw new IOException("Offset " + offset + " is not durable");
+			}
+			// No flush writes to the file while it is replaced
+			flushing = true;
+		}
+
+		IOException error = null;
+		boolean replaced = false;
+		long start = FILE_HEADER + offset - base;
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			FileChannel copy = new RandomAccessFile(tmp, "rw").getChannel();
+			try {
+				copy.truncate(0);
+				writeFully(copy, fileHeader(offset), 0);
+				copy.position(FILE_HEADER);
+				long size = channel.size();
+				long position = start;
+				while (position < size) {
+					position += channel.transferTo(position, size - position,
+							copy);
+				}
+				copy.force(true);
+			} finally {
+				copy.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			replaced = true;
+			BookStoreCheckpoint.syncDirectory(file);
+			channel.close();
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			channel.position(channel.size());
+		} catch (IOException ex) {
+			error = ex;
+			tmp.delete();
+		}
+
+		synchronized (this) {
+			flushing = false;
+			if (replaced) {
+				base = offset;
+				if (error != null) {
+					// The old file is gone, and the new one cannot be written
+					failure = error;
+				}
+			}
+			this.notifyAll();
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	private static ByteBuffer fileHeader(long base) {
+		ByteBuffer header = ByteBuffer.allocate(FILE_HEADER);
+		header.putLong(base);
+		header.flip();
+		return header;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * A record being encoded. The frame header is added by append, from the
+	 * length and checksum computed by frame.
+	 */
+	static final class Record {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(bytes);
+		private byte[] payload;
+		private int checksum;
+
+		private Record(byte type, int count) {
+			try {
+				out.writeByte(type);
+				out.writeInt(count);
+			} catch (IOException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+
+		/**
+		 * Ends the encoding, and computes the checksum of the record
+		 */
+		private void frame() {
+			if (payload == null) {
+				payload = bytes.toByteArray();
+				CRC32 crc = new CRC32();
+				crc.update(payload, 0, payload.length);
+				checksum = (int) crc.getValue();
+			}
+		}
+	}
+
+	private static Record copiesRecord(byte type,
+			Collection<BookCopy> bookCopies) {
+		Record record = new Record(type, bookCopies.size());
+		try {
+			for (BookCopy bookCopy : bookCopies) {
+				record.out.writeInt(bookCopy.getISBN());
+				record.out.writeInt(bookCopy.getNumCopies());
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return record;
+	}
+
+	/**
+	 * Frames the record into the pending buffer, and returns the journal
+	 * offset after it. Only called while holding the monitor.
+	 */
+	private long append(Record record) {
+		record.frame();
+		byte[] payload = record.payload;
+		ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+		header.putInt(payload.length);
+		header.putInt(record.checksum);
+		pending.write(header.array(), 0, FRAME_HEADER);
+		pending.write(payload, 0, payload.length);
+		appended += FRAME_HEADER + payload.length;
+		return appended;
+	}
+
+	/**
+	 * Applies the complete records of the file from position offset on to
+	 * bookMap, and returns the position after the last of them.
+	 */
+	private static long replay(FileChannel channel, long offset,
+			ConcurrentIntHashMap<BookStoreBook> bookMap) throws IOException {
+		channel.position(offset);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				Channels.newInputStream(channel)));
+		long end = offset;
+		while (true) {
+			byte[] payload;
+			int checksum;
+			try {
+				int length = in.readInt();
+				checksum = in.readInt();
+				if (length < 0 || end + FRAME_HEADER + length > channel.size()) {
+					break;
+				}
+				payload = new byte[length];
+				in.readFully(payload);
+			} catch (EOFException ex) {
+				break;
+			}
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, payload.length);
+			if ((int) crc.getValue() != checksum) {
+				break;
+			}
+			apply(payload, bookMap);
+			end += FRAME_HEADER + payload.length;
+		}
+		return end;
+	}
+
+	private static void apply(byte[] payload,
+			ConcurrentIntHashMap<BookStoreBook> bookMap)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				payload));
+		byte type = in.readByte();
+		int count = in.readInt();
+		if (type == CLEAR) {
+			bookMap.clear();
+			return;
+		}
+		for (int i = 0; i < count; i++) {
+			int ISBN = in.readInt();
+			switch (type) {
+			case ADD_BOOKS:
+				String title = in.readUTF();
+				String author = in.readUTF();
+				float price = in.readFloat();
+				int numCopies = in.readInt();
+				long saleMisses = in.readLong();
+				long timesRated = in.readLong();
+				long totalRating = in.readLong();
+				boolean editorPick = in.readBoolean();
+				bookMap.put(ISBN, new BookStoreBook(new ImmutableStockBook(
+						ISBN, title, author, price, numCopies, saleMisses,
+						timesRated, totalRating, editorPick)));
+				break;
+			case ADD_COPIES:
+				bookOf(bookMap, ISBN).addCopies(in.readInt());
+				break;
+			case BUY_BOOKS:
+				int numBought = in.readInt();
+				if (!bookOf(bookMap, ISBN).buyCopies(numBought)) {
+					// Only purchases that succeeded are logged, so the
+					// replayed state has diverged from the logged one
+					throw new IOException("Journal purchase of " + numBought
+							+ " copies of ISBN " + ISBN + " exceeds the stock");
+				}
+				break;
+			case SALE_MISSES:
+				bookOf(bookMap, ISBN).addSaleMiss();
+				break;
+			case EDITOR_PICKS:
+				bookOf(bookMap, ISBN).setEditorPick(in.readBoolean());
+				break;
+			case RATINGS:
+				bookOf(bookMap, ISBN).addRating(in.readInt());
+				break;
+			default:
+				throw new IOException("Unknown journal record type " + type);
+			}
+		}
+	}
+
+	/**
+	 * Returns the book a replayed record applies to, which an earlier record
+	 * must have added.
+	 */
+	private static BookStoreBook bookOf(
+			ConcurrentIntHashMap<BookStoreBook> bookMap, int ISBN)
+			throws IOException {
+		BookStoreBook book = bookMap.get(ISBN);
+		if (book == null) {
+			throw new IOException("Journal record for unknown ISBN " + ISBN);
+		}
+		return book;
+	}
+}
@@ -3,19 +3,28 @@
  */
 package com.acertainbookstore.business;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.acertainbookstore.interfaces.BookStore;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.locking.StripedLock;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreUtility;
@@ -27,10 +36,80 @@ import com.acertainbookstore.utils.BookStoreUtility;
  * Designed using the singleTon design pattern so there is always just one
  * CertainBookStore object
  * 
+ * Instead of synchronizing on the whole store, every ISBN is guarded by a
+ * stripe of a {@link StripedLock}. Operations on single books, or on sets of
+ * books, only lock the stripes of the ISBNs they touch, so operations on
+ * disjoint books run in parallel. Stripes are always taken in ascending order,
+ * so multi-book operations cannot deadlock. Each method still validates all of
+ * its input before applying any change, while holding every stripe it needs.
+ * The books are kept in a {@link ConcurrentIntHashMap} keyed by ISBN, whose
+ * lookups never lock, and whose rare puts and removals are serialized on the
+ * map on top of the stripes.
+ * 
+ * With the {@link CatalogEngine#PERSISTENT} engine, every write also
+ * publishes immutable copies of the books it changed into a persistent
+ * catalog, from which getBooks() lists the books without locking.
+ * 
+ * Once a {@link BookStoreJournal} is opened, every write is also appended to
+ * it while the stripes are held, and made durable after they are released,
+ * before the write returns. Checkpoints of the catalog, cf.
+ * {@link BookStoreCheckpoint}, bound how much of the journal is replayed on
+ * startup and kept on disk.
+ * 
  */
 public class CertainBookStore implements BookStore, StockManager {
+	private static final int NUM_LOCK_STRIPES = 64;
+	// addBooks calls with at least this many books are loaded in parallel
+	private static final int BULK_LOAD_THRESHOLD = 4096;
 	private static CertainBookStore singleInstance;
-	private static Map<Integer, BookStoreBook> bookMap;
+	private static ConcurrentIntHashMap<BookStoreBook> bookMap;
+	private static StripedLock lock;
+	private static EditorPicksIndex editorPicksIndex;
+	private static TopRatedIndex topRatedIndex;
+	private static BulkBookLoader bulkLoader;
+	// ISBNs of the books that have had a sale miss since they were restocked
+	private static Set<Integer> booksInDemand;
+	// Immutable copies of the books, null unless the engine is PERSISTENT
+	private static AtomicReference<PersistentIntMap<StockBook>> catalog;
+	// The write-ahead log, null unless one has been opened
+	private static volatile BookStoreJournal journal;
+	// Where checkpoints are written, null unless checkpoints are enabled
+	private static volatile File checkpointFile;
+	private static ScheduledExecutorService checkpointer;
+	// The failure of a background checkpoint, until checkpoint() or
+	// closeJournal() throws it
+	private static BookStoreException checkpointFailure;
+	private static volatile PurchaseStrategy purchaseStrategy = PurchaseStrategy.LOCKING;
+	// How many times a purchase waiting to be combined yields before parking
+	private static final int COMBINING_SPINS = 64;
+	// How many batches a combiner applies before handing over
+	private static final int COMBINING_PASSES = 8;
+	// Published purchases waiting for a combiner, cf. buyBooksCombining
+	private static final ConcurrentLinkedQueue<Purchase> pendingPurchases = new ConcurrentLinkedQueue<Purchase>();
+	private static final ReentrantLock combinerLock = new ReentrantLock();
+	private static final ThreadLocal<Purchase> purchaseSlot = new ThreadLocal<Purchase>() {
+		@Override
+		protected Purchase initialValue() {
+			return new Purchase(Thread.currentThread());
+		}
+	};
+
+	/**
+	 * The slot in which a thread publishes its purchase for flat combining.
+	 * The outcome is written by the combiner before it sets done.
+	 */
+	private static final class Purchase {
+		private final Thread thread;
+		private Set<BookCopy> bookCopies;
+		private BookStoreException failure;
+		private RuntimeException error;
+		private long journalOffset;
+		private volatile boolean done;
+
+		private Purchase(Thread thread) {
+			this.thread = thread;
+		}
+	}
 
 	private CertainBookStore() {
 
@@ -41,45 +120,176 @@ public class CertainBookStore implements BookStore, StockManager {
 			return singleInstance;
 		} else {
 			singleInstance = new CertainBookStore();
-			bookMap = new HashMap<Integer, BookStoreBook>();
+			bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+			lock = new StripedLock(NUM_LOCK_STRIPES);
+			editorPicksIndex = new EditorPicksIndex();
+			topRatedIndex = new TopRatedIndex();
+			booksInDemand = Collections
+					.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+			catalog = new AtomicReference<PersistentIntMap<StockBook>>();
+			bulkLoader = new BulkBookLoader(new ForkJoinPool());
 		}
 		return singleInstance;
 	}
 
-	public synchronized void addBooks(Set<StockBook> bookSet)
+	public void addBooks(Set<StockBook> bookSet)
 			throws BookStoreException {
 
 		if (bookSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		// Check if all are there
+		if (bookSet.size() >= BULK_LOAD_THRESHOLD) {
+			addBooksInBulk(bookSet);
+			return;
+		}
+		int[] ISBNs = new int[bookSet.size()];
+		int i = 0;
 		for (StockBook book : bookSet) {
-			int ISBN = book.getISBN();
-			String bookTitle = book.getTitle();
-			String bookAuthor = book.getAuthor();
-			int noCopies = book.getNumCopies();
-			float bookPrice = book.getPrice();
-			if (BookStoreUtility.isInvalidISBN(ISBN)
-					|| BookStoreUtility.isEmpty(bookTitle)
-					|| BookStoreUtility.isEmpty(bookAuthor)
-					|| BookStoreUtility.isInvalidNoCopies(noCopies)
-					|| bookPrice < 0.0) {
-				throw new BookStoreException(BookStoreConstants.BOOK
-						+ book.toString() + BookStoreConstants.INVALID);
-			} else if (bookMap.containsKey(ISBN)) {
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.DUPLICATED);
-			}
+			ISBNs[i++] = book.getISBN();
 		}
 
-		for (StockBook book : bookSet) {
-			int ISBN = book.getISBN();
-			bookMap.put(ISBN, new BookStoreBook(book));
+		long journalOffset = 0;
+		int[] stripes = lock.writeLock(ISBNs);
+		try {
+			// Check if all are there
+			for (StockBook book : bookSet) {
+				int ISBN = book.getISBN();
+				String bookTitle = book.getTitle();
+				String bookAuthor = book.getAuthor();
+				int noCopies = book.getNumCopies();
+				float bookPrice = book.getPrice();
+				if (BookStoreUtility.isInvalidISBN(ISBN)
+						|| BookStoreUtility.isEmpty(bookTitle)
+						|| BookStoreUtility.isEmpty(bookAuthor)
+						|| BookStoreUtility.isInvalidNoCopies(noCopies)
+						|| bookPrice < 0.0) {
+					throw new BookStoreException(BookStoreConstants.BOOK
+							+ book.toString() + BookStoreConstants.INVALID);
+				} else if (bookMap.containsKey(ISBN)) {
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.DUPLICATED);
+				}
+			}
+
+			List<BookStoreBook> newBooks = new ArrayList<BookStoreBook>();
+			for (StockBook book : bookSet) {
+				int ISBN = book.getISBN();
+				BookStoreBook newBook = new BookStoreBook(book);
+				bookMap.put(ISBN, newBook);
+				newBooks.add(newBook);
+				if (newBook.hadSaleMiss()) {
+					booksInDemand.add(ISBN);
+				}
+			}
+			editorPicksIndex.update(newBooks);
+			topRatedIndex.update(newBooks);
+			publish(newBooks);
+			if (journal != null) {
+				journalOffset = journal.logAddBooks(newBooks);
+			}
+		} finally {
+			lock.writeUnlock(stripes);
 		}
+		syncJournal(journalOffset);
 		return;
 	}
 
-	public synchronized void addCopies(Set<BookCopy> bookCopiesSet)
+	/**
+	 * addBooks for large sets of books, cf. {@link BulkBookLoader}. The books
+	 * are validated and built in parallel before any lock is taken, and so is
+	 * everything derived from them: the books the indexes need to know of,
+	 * the version of the persistent catalog holding them, and the journal
+	 * record. The table of books is grown beforehand as well. The only
+	 * critical section, which holds every stripe, looks for duplicates in
+	 * parallel, swaps in the catalog version and puts the books into the
+	 * table. The catalog version is built again under the stripes if another
+	 * write published one in between.
+	 * 
+	 * As in the serial path, nothing is added if any book is invalid or
+	 * already in the store, and the error names the first such book in the
+	 * order of the set.
+	 * 
+	 * @param bookSet
+	 * @throws BookStoreException
+	 */
+	private void addBooksInBulk(Set<StockBook> bookSet)
+			throws BookStoreException {
+		StockBook[] books = bookSet.toArray(new StockBook[bookSet.size()]);
+		BookStoreBook[] newBooks = new BookStoreBook[books.length];
+		int invalid = bulkLoader.build(books, newBooks);
+
+		// No other thread sees the new books yet, so nothing derived from
+		// them changes until they are added
+		List<BookStoreBook> newBookList = Arrays.asList(newBooks);
+		List<BookStoreBook> indexedBooks = new ArrayList<BookStoreBook>();
+		PersistentIntMap<StockBook> oldCatalog = null;
+		PersistentIntMap<StockBook> newCatalog = null;
+		BookStoreJournal.Record record = null;
+		if (invalid < 0) {
+			for (BookStoreBook newBook : newBooks) {
+				if (newBook.isEditorPick() || newBook.getTimesRated() > 0
+						|| newBook.hadSaleMiss()) {
+					indexedBooks.add(newBook);
+				}
+			}
+			oldCatalog = catalog.get();
+			if (oldCatalog != null) {
+				newCatalog = oldCatalog;
+				for (BookStoreBook newBook : newBooks) {
+					newCatalog = newCatalog.put(newBook.getISBN(),
+							newBook.immutableStockBook());
+				}
+			}
+			if (journal != null) {
+				record = BookStoreJournal.addBooksRecord(newBookList);
+			}
+			bulkLoader.reserve(newBooks, bookMap);
+		}
+
+		long journalOffset = 0;
+		int[] stripes = lock.writeLockAll();
+		try {
+			// Only the books before the first invalid one have been built
+			int duplicate = bulkLoader.findDuplicate(newBooks, bookMap,
+					invalid >= 0 ? invalid : newBooks.length);
+			if (duplicate >= 0) {
+				throw new BookStoreException(BookStoreConstants.ISBN
+						+ books[duplicate].getISBN()
+						+ BookStoreConstants.DUPLICATED);
+			} else if (invalid >= 0) {
+				throw new BookStoreException(BookStoreConstants.BOOK
+						+ books[invalid].toString() + BookStoreConstants.INVALID);
+			}
+
+			// Swapped in before the books are put into the table, where an
+			// optimistic purchase could find one of them and publish it
+			// ahead of the others
+			if (newCatalog == null
+					|| !catalog.compareAndSet(oldCatalog, newCatalog)) {
+				publish(newBookList);
+			}
+			bulkLoader.insert(newBooks, bookMap);
+			for (BookStoreBook newBook : indexedBooks) {
+				if (newBook.hadSaleMiss()) {
+					booksInDemand.add(newBook.getISBN());
+				}
+			}
+			editorPicksIndex.update(indexedBooks);
+			topRatedIndex.update(indexedBooks);
+			if (journal != null) {
+				if (record == null) {
+					// The journal was opened since
+					record = BookStoreJournal.addBooksRecord(newBookList);
+				}
+				journalOffset = journal.log(record);
+			}
+		} finally {
+			lock.writeUnlock(stripes);
+		}
+		syncJournal(journalOffset);
+	}
+
+	public void addCopies(Set<BookCopy> bookCopiesSet)
 			throws BookStoreException {
 		int ISBN, numCopies;
 
@@ -87,41 +297,69 @@ public class CertainBookStore implements BookStore, StockManager {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
 
-		for (BookCopy bookCopy : bookCopiesSet) {
-			ISBN = bookCopy.getISBN();
-			numCopies = bookCopy.getNumCopies();
-			if (BookStoreUtility.isInvalidISBN(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);
-			if (!bookMap.containsKey(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);
-			if (BookStoreUtility.isInvalidNoCopies(numCopies))
-				throw new BookStoreException(BookStoreConstants.NUM_COPIES
-						+ numCopies + BookStoreConstants.INVALID);
+		long journalOffset = 0;
+		int[] stripes = lock.writeLock(isbnsOf(bookCopiesSet));
+		try {
+			for (BookCopy bookCopy : bookCopiesSet) {
+				ISBN = bookCopy.getISBN();
+				numCopies = bookCopy.getNumCopies();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!bookMap.containsKey(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (BookStoreUtility.isInvalidNoCopies(numCopies))
+					throw new BookStoreException(BookStoreConstants.NUM_COPIES
+							+ numCopies + BookStoreConstants.INVALID);
 
-		}
+			}
 
-		BookStoreBook book;
-		// Update the number of copies
-		for (BookCopy bookCopy : bookCopiesSet) {
-			ISBN = bookCopy.getISBN();
-			numCopies = bookCopy.getNumCopies();
-			book = bookMap.get(ISBN);
-			book.addCopies(numCopies);
+			BookStoreBook book;
+			List<BookStoreBook> restockedBooks = new ArrayList<BookStoreBook>();
+			// Update the number of copies
+			for (BookCopy bookCopy : bookCopiesSet) {
+				ISBN = bookCopy.getISBN();
+				numCopies = bookCopy.getNumCopies();
+				book = bookMap.get(ISBN);
+				book.addCopies(numCopies);
+				restockedBooks.add(book);
+				// Restocking resets the sale misses
+				booksInDemand.remove(ISBN);
+			}
+			publish(restockedBooks);
+			if (journal != null) {
+				journalOffset = journal.logAddCopies(bookCopiesSet);
+			}
+		} finally {
+			lock.writeUnlock(stripes);
 		}
+		syncJournal(journalOffset);
 	}
 
-	public synchronized List<StockBook> getBooks() {
+	public List<StockBook> getBooks() {
+		PersistentIntMap<StockBook> snapshot = catalog.get();
+		if (snapshot != null) {
+			// Every write publishes a whole new version, so the snapshot is
+			// consistent without holding any stripe
+			return snapshot.values();
+		}
+
 		List<StockBook> listBooks = new ArrayList<StockBook>();
-		Collection<BookStoreBook> bookMapValues = bookMap.values();
-		for (BookStoreBook book : bookMapValues) {
-			listBooks.add(book.immutableStockBook());
+		// Read lock every stripe, so that the listing is a consistent snapshot
+		int[] stripes = lock.readLockAll();
+		try {
+			Collection<BookStoreBook> bookMapValues = bookMap.values();
+			for (BookStoreBook book : bookMapValues) {
+				listBooks.add(book.immutableStockBook());
+			}
+		} finally {
+			lock.readUnlock(stripes);
 		}
 		return listBooks;
 	}
 
-	public synchronized void updateEditorPicks(Set<BookEditorPick> editorPicks)
+	public void updateEditorPicks(Set<BookEditorPick> editorPicks)
 			throws BookStoreException {
 		// Check that all ISBNs that we add/remove are there first.
 		if (editorPicks == null) {
@@ -129,150 +367,860 @@ public class CertainBookStore implements BookStore, StockManager {
 		}
 
 		int ISBNVal;
-
+		int[] ISBNs = new int[editorPicks.size()];
+		int i = 0;
 		for (BookEditorPick editorPickArg : editorPicks) {
-			ISBNVal = editorPickArg.getISBN();
-			if (BookStoreUtility.isInvalidISBN(ISBNVal))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBNVal
-						+ BookStoreConstants.INVALID);
-			if (!bookMap.containsKey(ISBNVal))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBNVal
-						+ BookStoreConstants.NOT_AVAILABLE);
+			ISBNs[i++] = editorPickArg.getISBN();
 		}
 
-		for (BookEditorPick editorPickArg : editorPicks) {
-			bookMap.get(editorPickArg.getISBN()).setEditorPick(
-					editorPickArg.isEditorPick());
+		long journalOffset = 0;
+		int[] stripes = lock.writeLock(ISBNs);
+		try {
+			for (BookEditorPick editorPickArg : editorPicks) {
+				ISBNVal = editorPickArg.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBNVal))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBNVal
+							+ BookStoreConstants.INVALID);
+				if (!bookMap.containsKey(ISBNVal))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBNVal
+							+ BookStoreConstants.NOT_AVAILABLE);
+			}
+
+			List<BookStoreBook> updatedBooks = new ArrayList<BookStoreBook>();
+			for (BookEditorPick editorPickArg : editorPicks) {
+				BookStoreBook book = bookMap.get(editorPickArg.getISBN());
+				book.setEditorPick(editorPickArg.isEditorPick());
+				updatedBooks.add(book);
+			}
+			editorPicksIndex.update(updatedBooks);
+			publish(updatedBooks);
+			if (journal != null) {
+				journalOffset = journal.logEditorPicks(editorPicks);
+			}
+		} finally {
+			lock.writeUnlock(stripes);
 		}
+		syncJournal(journalOffset);
 		return;
 	}
 
-	public synchronized void buyBooks(Set<BookCopy> bookCopiesToBuy)
+	/**
+	 * Selects how buyBooks carries out purchases, cf. {@link PurchaseStrategy}.
+	 * 
+	 * @param strategy
+	 */
+	public static void setPurchaseStrategy(PurchaseStrategy strategy) {
+		purchaseStrategy = strategy;
+	}
+
+	public static PurchaseStrategy getPurchaseStrategy() {
+		return purchaseStrategy;
+	}
+
+	/**
+	 * Selects how getBooks() lists the books, cf. {@link CatalogEngine}.
+	 * Switching to the persistent engine builds the catalog from the books
+	 * in the store.
+	 * 
+	 * @param engine
+	 */
+	public void setCatalogEngine(CatalogEngine engine) {
+		int[] stripes = lock.writeLockAll();
+		try {
+			if (engine == CatalogEngine.LOCKING) {
+				catalog.set(null);
+			} else if (catalog.get() == null) {
+				PersistentIntMap<StockBook> snapshot = PersistentIntMap.empty();
+				for (BookStoreBook book : bookMap.values()) {
+					snapshot = snapshot.put(book.getISBN(),
+							book.immutableStockBook());
+				}
+				catalog.set(snapshot);
+			}
+		} finally {
+			lock.writeUnlock(stripes);
+		}
+	}
+
+	public CatalogEngine getCatalogEngine() {
+		return catalog.get() == null ? CatalogEngine.LOCKING
+				: CatalogEngine.PERSISTENT;
+	}
+
+	/**
+	 * Opens the journal in journalFile and restores the store from it, after
+	 * which every write is logged to it. Meant to be called once on startup,
+	 * before the store is written to.
+	 * 
+	 * @param journalFile
+	 * @throws BookStoreException
+	 */
+	public void openJournal(File journalFile) throws BookStoreException {
+		openJournal(journalFile, null);
+	}
+
+	/**
+	 * Restores the store from the checkpoint in checkpointFile, if there is
+	 * one, and the records of the journal in journalFile written after it.
+	 * Every write is then logged to the journal, and checkpoint() writes to
+	 * checkpointFile. Meant to be called once on startup, before the store is
+	 * written to.
+	 * 
+	 * @param journalFile
+	 * @param checkpointFile
+	 *            may be null, to disable checkpoints
+	 * @throws BookStoreException
+	 */
+	public void openJournal(File journalFile, File checkpointFile)
+			throws BookStoreException {
+		int[] stripes = lock.writeLockAll();
+		try {
+			if (journal != null) {
+				journal.close();
+			}
+			long offset = 0;
+			if (checkpointFile != null && checkpointFile.exists()) {
+				bookMap.clear();
+				offset = BookStoreCheckpoint.load(checkpointFile, bookMap);
+			}
+			journal = BookStoreJournal.open(journalFile, offset, bookMap);
+			CertainBookStore.checkpointFile = checkpointFile;
+			rebuildIndexes();
+		} catch (IOException ex) {
+			journal = null;
+			throw new BookStoreException(ex);
+		} finally {
+			lock.writeUnlock(stripes);
+		}
+	}
+
+	/**
+	 * Flushes and closes the journal, if one is open, and stops taking
+	 * checkpoints. Waits for a checkpoint being written to finish.
+	 * 
+	 * @throws BookStoreException
+	 *             also if a background checkpoint failed since the last
+	 *             call to checkpoint(), once the journal is closed
+	 */
+	public synchronized void closeJournal() throws BookStoreException {
+		if (checkpointer != null) {
+			checkpointer.shutdown();
+			checkpointer = null;
+		}
+		int[] stripes = lock.writeLockAll();
+		try {
+			if (journal != null) {
+				journal.close();
+			}
+		} catch (IOException ex) {
+			throw new BookStoreException(ex);
+		} finally {
+			journal = null;
+			checkpointFile = null;
+			lock.writeUnlock(stripes);
+		}
+		throwCheckpointFailure();
+	}
+
+	/**
+	 * Writes a checkpoint of the catalog, after which a restart only replays
+	 * the journal from this point on.
+	 * 
+	 * All stripes are write locked only while the books are copied, or,
+	 * with the persistent catalog engine, only while its current version is
+	 * read. The file is written after they are released. Once it is on
+	 * disk, the journal records before it are dropped.
+	 * 
+	 * @throws BookStoreException
+	 *             also, without writing a checkpoint, if a background
+	 *             checkpoint failed since the last call
+	 */
+	public synchronized void checkpoint() throws BookStoreException {
+		throwCheckpointFailure();
+		writeCheckpoint();
+	}
+
+	private void writeCheckpoint() throws BookStoreException {
+		BookStoreJournal current = journal;
+		File file = checkpointFile;
+		if (current == null || file == null) {
+			throw new BookStoreException("Checkpoints are not enabled");
+		}
+
+		long offset;
+		PersistentIntMap<StockBook> snapshot;
+		List<StockBook> books = null;
+		int[] stripes = lock.writeLockAll();
+		try {
+			offset = current.getOffset();
+			snapshot = catalog.get();
+			if (snapshot == null) {
+				books = new ArrayList<StockBook>(bookMap.size());
+				for (BookStoreBook book : bookMap.values()) {
+					books.add(book.immutableStockBook());
+				}
+			}
+		} finally {
+			lock.writeUnlock(stripes);
+		}
+
+		try {
+			// The checkpoint must not be ahead of the journal on disk
+			current.sync(offset);
+			BookStoreCheckpoint.write(file, books != null ? books
+					: snapshot.values(), offset);
+			current.discardBefore(offset);
+		} catch (IOException ex) {
+			throw new BookStoreException(ex);
+		}
+	}
+
+	/**
+	 * Starts writing a checkpoint every period seconds, in a background
+	 * thread. A checkpoint that fails is retried at the next period, and its
+	 * exception is thrown by the next call to checkpoint() or closeJournal().
+	 * 
+	 * @param period
+	 */
+	public synchronized void startCheckpoints(long period) {
+		if (checkpointer != null) {
+			checkpointer.shutdown();
+		}
+		checkpointer = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"BookStoreCheckpointer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		checkpointer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				backgroundCheckpoint();
+			}
+		}, period, period, TimeUnit.SECONDS);
+	}
+
+	private synchronized void backgroundCheckpoint() {
+		// closeJournal may have stopped the checkpoints while this waited
+		if (checkpointFile == null) {
+			return;
+		}
+		try {
+			writeCheckpoint();
+		} catch (BookStoreException ex) {
+			checkpointFailure = ex;
+		}
+	}
+
+	private static void throwCheckpointFailure() throws BookStoreException {
+		BookStoreException failure = checkpointFailure;
+		if (failure != null) {
+			checkpointFailure = null;
+			throw new BookStoreException("A background checkpoint failed",
+					failure);
+		}
+	}
+
+	/**
+	 * Rebuilds the indexes and the persistent catalog from the books, after
+	 * they were restored without going through the write methods.
+	 */
+	private static void rebuildIndexes() {
+		editorPicksIndex.clear();
+		topRatedIndex.clear();
+		booksInDemand.clear();
+		Collection<BookStoreBook> books = bookMap.values();
+		editorPicksIndex.update(books);
+		topRatedIndex.update(books);
+		for (BookStoreBook book : books) {
+			if (book.hadSaleMiss()) {
+				booksInDemand.add(book.getISBN());
+			}
+		}
+		if (catalog.get() != null) {
+			catalog.set(PersistentIntMap.<StockBook> empty());
+			publish(books);
+		}
+	}
+
+	/**
+	 * Waits until the journal holds every record up to journalOffset, which
+	 * is 0 if the write was not logged.
+	 * 
+	 * @param journalOffset
+	 * @throws BookStoreException
+	 */
+	private static void syncJournal(long journalOffset)
+			throws BookStoreException {
+		BookStoreJournal current = journal;
+		if (current == null || journalOffset == 0) {
+			return;
+		}
+		try {
+			current.sync(journalOffset);
+		} catch (IOException ex) {
+			throw new BookStoreException(ex);
+		}
+	}
+
+	/**
+	 * Returns the current version of the persistent catalog, or null if the
+	 * engine is LOCKING. The version never changes, later writes publish new
+	 * versions.
+	 * 
+	 * @return
+	 */
+	PersistentIntMap<StockBook> getCatalogSnapshot() {
+		return catalog.get();
+	}
+
+	public void buyBooks(Set<BookCopy> bookCopiesToBuy)
 			throws BookStoreException {
 		if (bookCopiesToBuy == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
+		if (purchaseStrategy == PurchaseStrategy.OPTIMISTIC) {
+			buyBooksOptimistic(bookCopiesToBuy);
+			return;
+		}
+		if (purchaseStrategy == PurchaseStrategy.FLAT_COMBINING) {
+			buyBooksCombining(bookCopiesToBuy);
+			return;
+		}
 		// Check that all ISBNs that we buy are there first.
 		int ISBN;
 		BookStoreBook book;
 		Boolean saleMiss = false;
+		List<BookStoreBook> missedBooks = new ArrayList<BookStoreBook>();
+		long journalOffset = 0;
+
+		int[] stripes = lock.writeLock(isbnsOf(bookCopiesToBuy));
+		try {
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				ISBN = bookCopyToBuy.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!bookMap.containsKey(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				book = bookMap.get(ISBN);
+				if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+					book.addSaleMiss(); // If we cannot sell the copies of the book
+										// its a miss 
+					booksInDemand.add(ISBN);
+					missedBooks.add(book);
+					saleMiss = true;
+				}
+			}
+
+			if (saleMiss) {
+				publish(missedBooks);
+				if (journal != null) {
+					journalOffset = journal.logSaleMisses(missedBooks);
+				}
+			} else {
+				// Then make purchase
+				List<BookStoreBook> boughtBooks = new ArrayList<BookStoreBook>();
+				// The same ISBN may be asked for twice, and each copy is
+				// checked alone, so only the copies taken are journaled
+				List<BookCopy> boughtCopies = new ArrayList<BookCopy>();
+				for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+					book = bookMap.get(bookCopyToBuy.getISBN());
+					if (book.buyCopies(bookCopyToBuy.getNumCopies())) {
+						boughtCopies.add(bookCopyToBuy);
+					}
+					boughtBooks.add(book);
+				}
+				publish(boughtBooks);
+				if (journal != null) {
+					journalOffset = journal.logBuyBooks(boughtCopies);
+				}
+			}
+		} finally {
+			lock.writeUnlock(stripes);
+		}
+		syncJournal(journalOffset);
+
+		// We throw exception now since we want to see how many books in the
+		// order incurred misses which is used by books in demand
+		if (saleMiss)
+			throw new BookStoreException(BookStoreConstants.BOOK
+					+ BookStoreConstants.NOT_AVAILABLE);
+		return;
+	}
+
+	/**
+	 * Buys the books without taking any lock. Every book is bought with a
+	 * compare-and-set on its stock counter; if any of them runs short, the
+	 * copies already taken are returned and a sale miss is recorded for each
+	 * book that was short, before the same exception as in the locking mode
+	 * is thrown. Purchases of disjoint books therefore never wait for each
+	 * other, at the price of concurrent readers possibly seeing the
+	 * intermediate stock of a purchase that is later rolled back.
+	 * 
+	 * @param bookCopiesToBuy
+	 * @throws BookStoreException
+	 */
+	private void buyBooksOptimistic(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		int ISBN;
+		BookStoreBook book;
+		List<BookStoreBook> books = new ArrayList<BookStoreBook>();
 		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
 			ISBN = bookCopyToBuy.getISBN();
 			if (BookStoreUtility.isInvalidISBN(ISBN))
 				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 						+ BookStoreConstants.INVALID);
-			if (!bookMap.containsKey(ISBN))
+			book = bookMap.get(ISBN);
+			if (book == null)
 				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
 						+ BookStoreConstants.NOT_AVAILABLE);
-			book = bookMap.get(ISBN);
-			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
-				book.addSaleMiss(); // If we cannot sell the copies of the book
-									// its a miss 
-				saleMiss = true;
+			books.add(book);
+		}
+
+		List<BookStoreBook> bought = new ArrayList<BookStoreBook>();
+		List<Integer> boughtCopies = new ArrayList<Integer>();
+		List<BookStoreBook> missedBooks = new ArrayList<BookStoreBook>();
+		boolean saleMiss = false;
+		long journalOffset = 0;
+
+		// While a journal is open, the purchase holds the read locks of its
+		// stripes until it is logged. Purchases still do not wait for each
+		// other, but a checkpoint, which write locks every stripe, never sees
+		// a purchase that is applied but not yet logged.
+		BookStoreJournal current = journal;
+		int[] stripes = current == null ? null : lock
+				.readLock(isbnsOf(bookCopiesToBuy));
+		try {
+			int i = 0;
+			for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+				book = books.get(i++);
+				if (book.tryBuyCopies(bookCopyToBuy.getNumCopies())) {
+					bought.add(book);
+					boughtCopies.add(bookCopyToBuy.getNumCopies());
+				} else {
+					book.addSaleMiss();
+					booksInDemand.add(book.getISBN());
+					missedBooks.add(book);
+					saleMiss = true;
+				}
+			}
+
+			if (saleMiss) {
+				// Roll back the copies we already took
+				for (int j = 0; j < bought.size(); j++) {
+					bought.get(j).returnCopies(boughtCopies.get(j));
+				}
+				// Published after the rollback, so that the catalog never
+				// holds the intermediate stock
+				publish(books);
+				if (current != null) {
+					journalOffset = current.logSaleMisses(missedBooks);
+				}
+			} else {
+				publish(books);
+				if (current != null) {
+					journalOffset = current.logBuyBooks(bookCopiesToBuy);
+				}
+			}
+		} finally {
+			if (stripes != null) {
+				lock.readUnlock(stripes);
 			}
 		}
+		syncJournal(journalOffset);
 
-		// We throw exception now since we want to see how many books in the
-		// order incurred misses which is used by books in demand
 		if (saleMiss)
 			throw new BookStoreException(BookStoreConstants.BOOK
 					+ BookStoreConstants.NOT_AVAILABLE);
+	}
 
-		// Then make purchase
-		for (BookCopy bookCopyToBuy : bookCopiesToBuy) {
+	/**
+	 * Buys the books by flat combining. The purchase is published in the slot
+	 * of the calling thread, and whichever thread holds the combiner lock
+	 * applies every published purchase in one pass, under a single
+	 * acquisition of the stripes they need, and wakes their threads. Under
+	 * contention most threads never touch the stripes, they wait to be
+	 * served instead of handing the stripes to each other. Each purchase is
+	 * still applied on its own, all or nothing, and fails with the same
+	 * exceptions as in the locking mode.
+	 * 
+	 * @param bookCopiesToBuy
+	 * @throws BookStoreException
+	 */
+	private void buyBooksCombining(Set<BookCopy> bookCopiesToBuy)
+			throws BookStoreException {
+		Purchase purchase = purchaseSlot.get();
+		purchase.bookCopies = bookCopiesToBuy;
+		purchase.failure = null;
+		purchase.error = null;
+		purchase.journalOffset = 0;
+		purchase.done = false;
+		pendingPurchases.offer(purchase);
+
+		boolean interrupted = false;
+		int spins = 0;
+		while (!purchase.done) {
+			if (combinerLock.tryLock()) {
+				combinePurchases();
+			} else if (spins < COMBINING_SPINS) {
+				spins++;
+				Thread.yield();
+			} else {
+				// A combiner wakes us once the purchase is applied
+				LockSupport.park(purchase);
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+			}
+		}
+		purchase.bookCopies = null;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		syncJournal(purchase.journalOffset);
+
+		if (purchase.error != null)
+			throw purchase.error;
+		if (purchase.failure != null)
+			throw purchase.failure;
+	}
+
+	/**
+	 * Applies the published purchases in batches, as long as more keep
+	 * arriving, up to COMBINING_PASSES batches. Called while holding the
+	 * combiner lock, which it releases.
+	 */
+	private static void combinePurchases() {
+		int passes = 0;
+		while (true) {
+			try {
+				List<Purchase> batch = new ArrayList<Purchase>();
+				Purchase purchase;
+				while ((purchase = pendingPurchases.poll()) != null) {
+					batch.add(purchase);
+				}
+				applyPurchases(batch);
+			} finally {
+				combinerLock.unlock();
+			}
+			passes++;
+			// A purchase published after the batch was taken may be parked
+			// already, so it is served here, or by whoever holds the lock
+			// now, or handed the lock to serve itself
+			Purchase next = pendingPurchases.peek();
+			if (next == null) {
+				return;
+			}
+			if (passes == COMBINING_PASSES) {
+				LockSupport.unpark(next.thread);
+				return;
+			}
+			if (!combinerLock.tryLock()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Applies a batch of purchases in the order they were published, while
+	 * holding the write locks of all the stripes they need, and publishes the
+	 * books once for the whole batch.
+	 * 
+	 * @param batch
+	 */
+	private static void applyPurchases(List<Purchase> batch) {
+		int numCopies = 0;
+		for (Purchase purchase : batch) {
+			numCopies += purchase.bookCopies.size();
+		}
+		int[] ISBNs = new int[numCopies];
+		int i = 0;
+		for (Purchase purchase : batch) {
+			for (BookCopy bookCopy : purchase.bookCopies) {
+				ISBNs[i++] = bookCopy.getISBN();
+			}
+		}
+
+		try {
+			List<BookStoreBook> changedBooks = new ArrayList<BookStoreBook>();
+			BookStoreJournal current = journal;
+			int[] stripes = lock.writeLock(ISBNs);
+			try {
+				for (Purchase purchase : batch) {
+					try {
+						applyPurchase(purchase, current, changedBooks);
+					} catch (RuntimeException ex) {
+						purchase.error = ex;
+					}
+				}
+				publish(changedBooks);
+			} finally {
+				lock.writeUnlock(stripes);
+			}
+		} catch (RuntimeException ex) {
+			for (Purchase purchase : batch) {
+				purchase.error = ex;
+			}
+		} finally {
+			for (Purchase purchase : batch) {
+				Thread thread = purchase.thread;
+				purchase.done = true;
+				if (thread != Thread.currentThread()) {
+					LockSupport.unpark(thread);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Applies one purchase of a batch like buyBooks in the locking mode, and
+	 * records its outcome in it. Called while holding the write locks of its
+	 * stripes.
+	 */
+	private static void applyPurchase(Purchase purchase,
+			BookStoreJournal current, List<BookStoreBook> changedBooks) {
+		int ISBN;
+		BookStoreBook book;
+		// Check that all ISBNs that we buy are there first.
+		for (BookCopy bookCopyToBuy : purchase.bookCopies) {
+			ISBN = bookCopyToBuy.getISBN();
+			if (BookStoreUtility.isInvalidISBN(ISBN)) {
+				purchase.failure = new BookStoreException(
+						BookStoreConstants.ISBN + ISBN
+								+ BookStoreConstants.INVALID);
+				return;
+			}
+			if (!bookMap.containsKey(ISBN)) {
+				purchase.failure = new BookStoreException(
+						BookStoreConstants.ISBN + ISBN
+								+ BookStoreConstants.NOT_AVAILABLE);
+				return;
+			}
+		}
+
+		List<BookStoreBook> missedBooks = new ArrayList<BookStoreBook>();
+		for (BookCopy bookCopyToBuy : purchase.bookCopies) {
 			book = bookMap.get(bookCopyToBuy.getISBN());
-			book.buyCopies(bookCopyToBuy.getNumCopies());
+			if (!book.areCopiesInStore(bookCopyToBuy.getNumCopies())) {
+				book.addSaleMiss();
+				booksInDemand.add(book.getISBN());
+				missedBooks.add(book);
+			}
+		}
+
+		if (!missedBooks.isEmpty()) {
+			changedBooks.addAll(missedBooks);
+			if (current != null) {
+				purchase.journalOffset = current.logSaleMisses(missedBooks);
+			}
+			purchase.failure = new BookStoreException(BookStoreConstants.BOOK
+					+ BookStoreConstants.NOT_AVAILABLE);
+			return;
+		}
+
+		List<BookCopy> boughtCopies = new ArrayList<BookCopy>();
+		for (BookCopy bookCopyToBuy : purchase.bookCopies) {
+			book = bookMap.get(bookCopyToBuy.getISBN());
+			if (book.buyCopies(bookCopyToBuy.getNumCopies())) {
+				boughtCopies.add(bookCopyToBuy);
+			}
+			changedBooks.add(book);
+		}
+		if (current != null) {
+			purchase.journalOffset = current.logBuyBooks(boughtCopies);
 		}
-		return;
 	}
 
-	public synchronized List<Book> getBooks(Set<Integer> isbnSet)
+	public List<Book> getBooks(Set<Integer> isbnSet)
 			throws BookStoreException {
 		if (isbnSet == null) {
 			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
 		}
-		// Check that all ISBNs that we rate are there first.
+		int[] ISBNs = new int[isbnSet.size()];
+		int i = 0;
 		for (Integer ISBN : isbnSet) {
-			if (BookStoreUtility.isInvalidISBN(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.INVALID);
-			if (!bookMap.containsKey(ISBN))
-				throw new BookStoreException(BookStoreConstants.ISBN + ISBN
-						+ BookStoreConstants.NOT_AVAILABLE);
+			ISBNs[i++] = ISBN;
 		}
 
 		List<Book> listBooks = new ArrayList<Book>();
+		int[] stripes = lock.readLock(ISBNs);
+		try {
+			// Check that all ISBNs that we rate are there first.
+			for (Integer ISBN : isbnSet) {
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!bookMap.containsKey(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+			}
 
-		// Get the books
-		for (Integer ISBN : isbnSet) {
-			listBooks.add(bookMap.get(ISBN).immutableBook());
+			// Get the books
+			for (Integer ISBN : isbnSet) {
+				listBooks.add(bookMap.get(ISBN).immutableBook());
+			}
+		} finally {
+			lock.readUnlock(stripes);
 		}
 		return listBooks;
 	}
 
 
-	public synchronized List<Book> getEditorPicks(int numBooks)
+	public List<Book> getEditorPicks(int numBooks)
 			throws BookStoreException {
 		if (numBooks < 0) {
 			throw new BookStoreException("numBooks = " + numBooks
 					+ ", but it must be positive");
 		}
 
-		List<BookStoreBook> listAllEditorPicks = new ArrayList<BookStoreBook>();
-		List<Book> listEditorPicks = new ArrayList<Book>();
-		Iterator<Entry<Integer, BookStoreBook>> it = bookMap.entrySet()
-				.iterator();
-		BookStoreBook book;
+		// The index is maintained by addBooks and updateEditorPicks, so
+		// sampling neither scans the catalog nor locks any stripe
+		return editorPicksIndex.sample(numBooks);
+	}
 
-		// Get all books that are editor picks
-		while (it.hasNext()) {
-			Entry<Integer, BookStoreBook> pair = (Entry<Integer, BookStoreBook>) it
-					.next();
-			book = (BookStoreBook) pair.getValue();
-			if (book.isEditorPick()) {
-				listAllEditorPicks.add(book);
-			}
+	@Override
+	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
+		if (numBooks < 0) {
+			throw new BookStoreException("numBooks = " + numBooks
+					+ ", but it must be positive");
 		}
+		// The index is maintained by addBooks and rateBooks
+		return topRatedIndex.top(numBooks);
+	}
 
-		// Find numBooks random indices of books that will be picked
-		Random rand = new Random();
-		Set<Integer> tobePicked = new HashSet<Integer>();
-		int rangePicks = listAllEditorPicks.size();
-		if (rangePicks < numBooks) {
-			throw new BookStoreException("Only " + rangePicks
-					+ " editor picks are available.");
+	@Override
+	public List<StockBook> getBooksInDemand() throws BookStoreException {
+		// Only visit the books in demand instead of scanning the catalog. A
+		// restock may race with a sale miss and leave a stale ISBN in the
+		// set, so the sale misses of each book are checked again.
+		List<Integer> inDemand = new ArrayList<Integer>(booksInDemand);
+		int[] ISBNs = new int[inDemand.size()];
+		for (int i = 0; i < ISBNs.length; i++) {
+			ISBNs[i] = inDemand.get(i);
 		}
-		int randNum;
-		while (tobePicked.size() < numBooks) {
-			randNum = rand.nextInt(rangePicks);
-			tobePicked.add(randNum);
+
+		List<StockBook> listBooks = new ArrayList<StockBook>();
+		int[] stripes = lock.readLock(ISBNs);
+		try {
+			for (int ISBN : ISBNs) {
+				BookStoreBook book = bookMap.get(ISBN);
+				if (book != null && book.hadSaleMiss()) {
+					listBooks.add(book.immutableStockBook());
+				}
+			}
+		} finally {
+			lock.readUnlock(stripes);
 		}
+		return listBooks;
+	}
 
-		// Get the numBooks random books
-		for (Integer index : tobePicked) {
-			book = listAllEditorPicks.get(index);
-			listEditorPicks.add(book.immutableBook());
+	@Override
+	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
+		if (bookRating == null) {
+			throw new BookStoreException(BookStoreConstants.NULL_INPUT);
+		}
+		int ISBN;
+		int[] ISBNs = new int[bookRating.size()];
+		int i = 0;
+		for (BookRating rating : bookRating) {
+			ISBNs[i++] = rating.getISBN();
 		}
-		return listEditorPicks;
 
+		long journalOffset = 0;
+		int[] stripes = lock.writeLock(ISBNs);
+		try {
+			// Check that all ISBNs and ratings are valid first
+			for (BookRating rating : bookRating) {
+				ISBN = rating.getISBN();
+				if (BookStoreUtility.isInvalidISBN(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.INVALID);
+				if (!bookMap.containsKey(ISBN))
+					throw new BookStoreException(BookStoreConstants.ISBN + ISBN
+							+ BookStoreConstants.NOT_AVAILABLE);
+				if (BookStoreUtility.isInvalidRating(rating.getRating()))
+					throw new BookStoreException(BookStoreConstants.RATING
+							+ rating.getRating() + BookStoreConstants.INVALID);
+			}
+
+			List<BookStoreBook> ratedBooks = new ArrayList<BookStoreBook>();
+			for (BookRating rating : bookRating) {
+				BookStoreBook book = bookMap.get(rating.getISBN());
+				book.addRating(rating.getRating());
+				ratedBooks.add(book);
+			}
+			topRatedIndex.update(ratedBooks);
+			publish(ratedBooks);
+			if (journal != null) {
+				journalOffset = journal.logRatings(bookRating);
+			}
+		} finally {
+			lock.writeUnlock(stripes);
+		}
+		syncJournal(journalOffset);
 	}
 
-	@Override
-	public synchronized List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
+	/**
+	 * Publishes a new version of the persistent catalog holding the current
+	 * state of the books, if the engine is PERSISTENT. All books of a write
+	 * are published in one version, so readers see either all or none of it.
+	 * 
+	 * The state of the books is read after the current version, and only
+	 * published if no other version was published in between, so a newer
+	 * state of a book is never overwritten by an older one, even by the
+	 * optimistic purchases which do not lock the books.
+	 * 
+	 * @param books
+	 */
+	private static void publish(Collection<BookStoreBook> books) {
+		publish(books, Collections.<Integer> emptyList());
 	}
 
-	@Override
-	public synchronized List<StockBook> getBooksInDemand() throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
+	/**
+	 * Publishes the books and the removal of the books with removedISBNs in
+	 * one version of the persistent catalog, if the engine is PERSISTENT.
+	 * 
+	 * @param books
+	 * @param removedISBNs
+	 */
+	private static void publish(Collection<BookStoreBook> books,
+			Collection<Integer> removedISBNs) {
+		PersistentIntMap<StockBook> current, next;
+		do {
+			current = catalog.get();
+			if (current == null) {
+				return;
+			}
+			next = current;
+			for (Integer ISBN : removedISBNs) {
+				next = next.remove(ISBN);
+			}
+			for (BookStoreBook book : books) {
+				next = next.put(book.getISBN(), book.immutableStockBook());
+			}
+		} while (!catalog.compareAndSet(current, next));
 	}
 
-	@Override
-	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
+	/**
+	 * Returns the ISBNs of the book copies, used for picking the lock stripes
+	 * of an operation.
+	 * 
+	 * @param bookCopies
+	 * @return
+	 */
+	private static int[] isbnsOf(Set<BookCopy> bookCopies) {
+		int[] ISBNs = new int[bookCopies.size()];
+		int i = 0;
+		for (BookCopy bookCopy : bookCopies) {
+			ISBNs[i++] = bookCopy.getISBN();
+		}
+		return ISBNs;
 	}
 
 }
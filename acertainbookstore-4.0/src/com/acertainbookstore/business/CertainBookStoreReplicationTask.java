@@ -4,8 +4,8 @@ import java.util.concurrent.Callable;
 
 import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.io.ByteArrayBuffer;
 
+import com.acertainbookstore.utils.BookStoreCodec;
 import com.acertainbookstore.utils.BookStoreResult;
 import com.acertainbookstore.utils.BookStoreUtility;
 
@@ -29,13 +29,17 @@ public class CertainBookStoreReplicationTask implements
 	@Override
 	public ReplicationResult call() throws Exception {
 		ContentExchange exchange = new ContentExchange();
-		String url = this.slave + "/" + request.getMessageType();
-		String serialData = BookStoreUtility.serializeObjectToXMLString(request.getDataSet());
+		// The slave addresses already end with a slash
+		String url = this.slave + request.getMessageType();
+		// Master and slaves are the same code, so they can use the compact codec
+		BookStoreCodec codec = BookStoreUtility.BINARY_CODEC;
 		exchange.setMethod("POST");
 		exchange.setURL(url);
-		exchange.setRequestContent(new ByteArrayBuffer(serialData));
+		exchange.setRequestContent(BookStoreUtility.encodeRequestContent(codec,
+				request.getDataSet()));
 
-		BookStoreResult result = BookStoreUtility.SendAndRecv(this.client, exchange);
+		BookStoreResult result = BookStoreUtility.SendAndRecv(this.client,
+				exchange, codec);
 		// TODO: Verify that result is in fact correct instead of simply setting
 		// to true.
 		ReplicationResult res = new ReplicationResult(this.slave, true);
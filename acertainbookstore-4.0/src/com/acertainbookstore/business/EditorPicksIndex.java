@@ -0,0 +1,106 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.acertainbookstore.utils.BookStoreException;
+
+/**
+ * EditorPicksIndex keeps the books that are editor picks in a dense list, so
+ * that random editor picks can be drawn without scanning the catalog.
+ *
+ * The index is maintained in place by the store whenever the editor pick
+ * flag of a book may have changed. A book is removed by moving the last book
+ * of the list into its position, so both adding and removing are O(1), and
+ * drawing k picks is O(k) regardless of the size of the catalog.
+ *
+ * All methods are synchronized on the index, so a sample never sees half of
+ * an update.
+ *
+ */
+public class EditorPicksIndex {
+	private final List<BookStoreBook> picks = new ArrayList<BookStoreBook>();
+	// Position of each ISBN in picks
+	private final Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+
+	/**
+	 * Brings the index up to date with the editor pick flag of the books.
+	 *
+	 * @param books
+	 */
+	public synchronized void update(Collection<BookStoreBook> books) {
+		for (BookStoreBook book : books) {
+			Integer position = positions.get(book.getISBN());
+			if (book.isEditorPick()) {
+				if (position == null) {
+					positions.put(book.getISBN(), picks.size());
+					picks.add(book);
+				} else {
+					// The book may have been replaced since it was indexed
+					picks.set(position, book);
+				}
+			} else if (position != null) {
+				this.remove(book.getISBN(), position);
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return picks.size();
+	}
+
+	public synchronized void clear() {
+		picks.clear();
+		positions.clear();
+	}
+
+	/**
+	 * Returns numBooks distinct editor picks, drawn uniformly at random.
+	 *
+	 * Uses Floyd's algorithm, which draws exactly numBooks random numbers
+	 * without replacement, instead of retrying until enough distinct indices
+	 * have been found.
+	 *
+	 * @param numBooks
+	 * @return
+	 * @throws BookStoreException
+	 *             if there are fewer than numBooks editor picks
+	 */
+	public synchronized List<Book> sample(int numBooks)
+			throws BookStoreException {
+		int rangePicks = picks.size();
+		if (rangePicks < numBooks) {
+			throw new BookStoreException("Only " + rangePicks
+					+ " editor picks are available.");
+		}
+
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		Set<Integer> tobePicked = new HashSet<Integer>();
+		List<Book> listEditorPicks = new ArrayList<Book>(numBooks);
+		for (int j = rangePicks - numBooks; j < rangePicks; j++) {
+			int index = rand.nextInt(j + 1);
+			if (!tobePicked.add(index)) {
+				// index was drawn before, but j never was
+				tobePicked.add(j);
+				index = j;
+			}
+			listEditorPicks.add(picks.get(index).immutableBook());
+		}
+		return listEditorPicks;
+	}
+
+	private void remove(int ISBN, int position) {
+		BookStoreBook last = picks.remove(picks.size() - 1);
+		positions.remove(ISBN);
+		if (position < picks.size()) {
+			picks.set(position, last);
+			positions.put(last.getISBN(), position);
+		}
+	}
+}
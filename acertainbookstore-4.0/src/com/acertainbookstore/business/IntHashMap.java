@@ -0,0 +1,264 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * IntHashMap is a hash map from primitive int keys to values, used for the
+ * book catalog which is keyed by ISBN.
+ *
+ * Unlike HashMap<Integer, V> it does not box the keys or allocate an entry
+ * per mapping: keys and values are kept in two parallel arrays, and
+ * collisions are resolved by linear probing. A lookup is therefore a hash and
+ * a scan over neighbouring array slots, which is much friendlier to the cache
+ * than chasing entry nodes, and every mapping only costs the slots in the two
+ * arrays.
+ *
+ * The map is not thread safe; callers must provide their own locking, cf.
+ * {@link ConcurrentIntHashMap} for a variant with lock-free reads.
+ *
+ */
+public class IntHashMap<V> {
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.5f;
+	// Marks an unused slot. The key 0 itself is stored outside the arrays.
+	private static final int FREE = 0;
+
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int size;
+	private int threshold;
+	private boolean hasZeroKey;
+	private V zeroValue;
+
+	public IntHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates a map that can hold expectedSize mappings without resizing.
+	 *
+	 * @param expectedSize
+	 */
+	public IntHashMap(int expectedSize) {
+		this.allocate(tableSizeFor(expectedSize));
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	public boolean containsKey(int key) {
+		if (key == FREE) {
+			return this.hasZeroKey;
+		}
+		return this.indexOf(key) >= 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		if (key == FREE) {
+			return this.zeroValue;
+		}
+		int index = this.indexOf(key);
+		return index < 0 ? null : (V) this.values[index];
+	}
+
+	/**
+	 * Maps key to value, and returns the value previously mapped to key, or
+	 * null if there was none.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (key == FREE) {
+			V old = this.zeroValue;
+			if (!this.hasZeroKey) {
+				this.hasZeroKey = true;
+				this.size++;
+			}
+			this.zeroValue = value;
+			return old;
+		}
+
+		int index = mix(key) & this.mask;
+		int current;
+		while ((current = this.keys[index]) != FREE) {
+			if (current == key) {
+				V old = (V) this.values[index];
+				this.values[index] = value;
+				return old;
+			}
+			index = (index + 1) & this.mask;
+		}
+		this.keys[index] = key;
+		this.values[index] = value;
+		if (++this.size > this.threshold) {
+			this.rehash(this.keys.length << 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Copies all mappings of the map into this map.
+	 *
+	 * @param map
+	 */
+	public void putAll(Map<Integer, ? extends V> map) {
+		for (Entry<Integer, ? extends V> entry : map.entrySet()) {
+			this.put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Removes the mapping of key, and returns the value it was mapped to, or
+	 * null if there was none.
+	 *
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		if (key == FREE) {
+			V old = this.zeroValue;
+			if (this.hasZeroKey) {
+				this.hasZeroKey = false;
+				this.zeroValue = null;
+				this.size--;
+			}
+			return old;
+		}
+		int index = this.indexOf(key);
+		if (index < 0) {
+			return null;
+		}
+		V old = (V) this.values[index];
+		this.size--;
+		this.shiftKeys(index);
+		return old;
+	}
+
+	public void clear() {
+		this.allocate(DEFAULT_CAPACITY);
+		this.size = 0;
+		this.hasZeroKey = false;
+		this.zeroValue = null;
+	}
+
+	/**
+	 * Returns a snapshot of the values in the map, in no particular order.
+	 *
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values() {
+		List<V> out = new ArrayList<V>(this.size);
+		if (this.hasZeroKey) {
+			out.add(this.zeroValue);
+		}
+		for (int i = 0; i < this.keys.length; i++) {
+			if (this.keys[i] != FREE) {
+				out.add((V) this.values[i]);
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the slot holding key, or -1 if the key is not in the map.
+	 */
+	private int indexOf(int key) {
+		int index = mix(key) & this.mask;
+		int current;
+		while ((current = this.keys[index]) != FREE) {
+			if (current == key) {
+				return index;
+			}
+			index = (index + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Closes the gap left by a removed key, by moving later keys of the same
+	 * probe sequence back into it. This keeps lookups correct without the
+	 * need for tombstones.
+	 */
+	private void shiftKeys(int gap) {
+		int index = gap;
+		while (true) {
+			index = (index + 1) & this.mask;
+			int current = this.keys[index];
+			if (current == FREE) {
+				break;
+			}
+			int home = mix(current) & this.mask;
+			// Move the key into the gap unless its home slot lies cyclically
+			// in (gap, index], in which case it is already reachable
+			boolean reachable = gap <= index ? (gap < home && home <= index)
+					: (gap < home || home <= index);
+			if (!reachable) {
+				this.keys[gap] = current;
+				this.values[gap] = this.values[index];
+				gap = index;
+			}
+		}
+		this.keys[gap] = FREE;
+		this.values[gap] = null;
+	}
+
+	private void rehash(int capacity) {
+		int[] oldKeys = this.keys;
+		Object[] oldValues = this.values;
+		this.allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			int key = oldKeys[i];
+			if (key != FREE) {
+				int index = mix(key) & this.mask;
+				while (this.keys[index] != FREE) {
+					index = (index + 1) & this.mask;
+				}
+				this.keys[index] = key;
+				this.values[index] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new int[capacity];
+		this.values = new Object[capacity];
+		this.mask = capacity - 1;
+		this.threshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+	/**
+	 * Scrambles the key, so that consecutive ISBNs are spread over the table
+	 * instead of forming long probe runs.
+	 */
+	static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns the power of two table size that holds expectedSize mappings
+	 * within the load factor.
+	 */
+	static int tableSizeFor(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+}
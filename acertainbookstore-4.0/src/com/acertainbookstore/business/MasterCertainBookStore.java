@@ -1,5 +1,6 @@
 package com.acertainbookstore.business;
 
+import java.io.File;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -23,6 +24,10 @@ import com.acertainbookstore.utils.BookStoreResult;
  * 
  * This class also contains a Replicator which replicates updates to slaves.
  * 
+ * If server.properties selects the persistent catalog engine, every snapshot
+ * id is paired with the version of the catalog it was reached at, so that
+ * getBooks() returns a consistent listing without waiting for writes.
+ * 
  * Designed using the singleton design pattern.
  * 
  */
@@ -35,19 +40,35 @@ public class MasterCertainBookStore implements ReplicatedBookStore,
 	private Set<String> slaveServers;
 	private static int maxReplicatorThreads = 10;
 	private static String filePath = "server.properties";
+	private volatile CatalogVersion catalogVersion = null;
+
+	/**
+	 * A version of the persistent catalog together with its snapshot id
+	 */
+	private static final class CatalogVersion {
+		private final long snapshotId;
+		private final PersistentIntMap<StockBook> catalog;
+
+		private CatalogVersion(long snapshotId,
+				PersistentIntMap<StockBook> catalog) {
+			this.snapshotId = snapshotId;
+			this.catalog = catalog;
+		}
+	}
 
 	private MasterCertainBookStore() throws Exception {
 		bookStore = CertainBookStore.getInstance();
 		replicator = new CertainBookStoreReplicator(maxReplicatorThreads);
-		initializeSlaveMapping();
-	}
-
-	private void initializeSlaveMapping() throws Exception {
 		Properties props = new Properties();
-		slaveServers = new HashSet<String>();
-
 		InputStream inpStream = this.getClass().getClassLoader().getResourceAsStream(filePath);
 		props.load(inpStream);
+		initializeSlaveMapping(props);
+		initializeJournal(props);
+		initializeCatalogEngine(props);
+	}
+
+	private void initializeSlaveMapping(Properties props) throws Exception {
+		slaveServers = new HashSet<String>();
 
 		String slaveAddresses = props
 				.getProperty(BookStoreConstants.KEY_SLAVE);
@@ -64,6 +85,54 @@ public class MasterCertainBookStore implements ReplicatedBookStore,
 		}
 	}
 
+	/**
+	 * Restores the store from the latest checkpoint and the journal, if
+	 * server.properties names them, so that a restarted master keeps its
+	 * inventory.
+	 */
+	private void initializeJournal(Properties props) throws BookStoreException {
+		String journalFile = props
+				.getProperty(BookStoreConstants.KEY_JOURNAL_FILE);
+		if (journalFile == null) {
+			return;
+		}
+		String checkpointFile = props
+				.getProperty(BookStoreConstants.KEY_CHECKPOINT_FILE);
+		bookStore.openJournal(new File(journalFile.trim()),
+				checkpointFile == null ? null : new File(checkpointFile.trim()));
+		if (checkpointFile != null) {
+			String interval = props.getProperty(
+					BookStoreConstants.KEY_CHECKPOINT_INTERVAL,
+					BookStoreConstants.DEFAULT_CHECKPOINT_INTERVAL);
+			bookStore.startCheckpoints(Long.parseLong(interval.trim()));
+		}
+	}
+
+	private void initializeCatalogEngine(Properties props) {
+		String engine = props.getProperty(BookStoreConstants.KEY_CATALOG_ENGINE);
+		if (engine != null) {
+			bookStore.setCatalogEngine(CatalogEngine.valueOf(engine.trim()
+					.toUpperCase()));
+		}
+		publishCatalogVersion();
+	}
+
+	/**
+	 * Pairs the current snapshot id with the current version of the
+	 * persistent catalog. Only called while holding the monitor, so no write
+	 * can slip in between the two.
+	 */
+	private void publishCatalogVersion() {
+		PersistentIntMap<StockBook> catalog = bookStore.getCatalogSnapshot();
+		catalogVersion = catalog == null ? null : new CatalogVersion(
+				snapShotId, catalog);
+	}
+
+	private void advanceSnapshot() {
+		snapShotId++;
+		publishCatalogVersion();
+	}
+
 	public synchronized static MasterCertainBookStore getInstance()
 			throws BookStoreException {
 		if (instance == null) {
@@ -108,7 +177,9 @@ public class MasterCertainBookStore implements ReplicatedBookStore,
 
 	public synchronized BookStoreResult getTopRatedBooks(int numBooks)
 			throws BookStoreException {
-		throw new BookStoreException();
+		BookStoreResult result = new BookStoreResult(
+				bookStore.getTopRatedBooks(numBooks), snapShotId);
+		return result;
 	}
 
 	public synchronized BookStoreResult getEditorPicks(int numBooks)
@@ -118,15 +189,24 @@ public class MasterCertainBookStore implements ReplicatedBookStore,
 		return result;
 	}
 
-	public synchronized BookStoreResult getBooks() throws BookStoreException {
-		BookStoreResult result = new BookStoreResult(bookStore.getBooks(),
-				snapShotId);
-		return result;
+	public BookStoreResult getBooks() throws BookStoreException {
+		CatalogVersion version = catalogVersion;
+		if (version != null) {
+			return new BookStoreResult(version.catalog.values(),
+					version.snapshotId);
+		}
+		synchronized (this) {
+			BookStoreResult result = new BookStoreResult(bookStore.getBooks(),
+					snapShotId);
+			return result;
+		}
 	}
 
 	public synchronized BookStoreResult getBooksInDemand()
 			throws BookStoreException {
-		throw new BookStoreException();
+		BookStoreResult result = new BookStoreResult(
+				bookStore.getBooksInDemand(), snapShotId);
+		return result;
 	}
 
 	public synchronized BookStoreResult addBooks(Set<StockBook> bookSet)
@@ -137,7 +217,7 @@ public class MasterCertainBookStore implements ReplicatedBookStore,
 		List<Future<ReplicationResult>> replicatedSlaveFutures = replicator
 				.replicate(slaveServers, request);
 		bookStore.addBooks(bookSet); // If this fails it will throw an exception
-		snapShotId++;
+		advanceSnapshot();
 		waitForSlaveUpdates(replicatedSlaveFutures);
 		BookStoreResult result = new BookStoreResult(null, snapShotId);
 		return result;
@@ -151,7 +231,7 @@ public class MasterCertainBookStore implements ReplicatedBookStore,
 				.replicate(slaveServers, request);
 		bookStore.addCopies(bookCopiesSet); // If this fails it will throw an
 											// exception
-		snapShotId++;
+		advanceSnapshot();
 		waitForSlaveUpdates(replicatedSlaveFutures);
 		BookStoreResult result = new BookStoreResult(null, snapShotId);
 		return result;
@@ -165,7 +245,7 @@ public class MasterCertainBookStore implements ReplicatedBookStore,
 				.replicate(slaveServers, request);
 		bookStore.updateEditorPicks(editorPicks); // If this fails it will throw
 													// an exception
-		snapShotId++;
+		advanceSnapshot();
 		waitForSlaveUpdates(replicatedSlaveFutures);
 		BookStoreResult result = new BookStoreResult(null, snapShotId);
 		return result;
@@ -179,7 +259,7 @@ public class MasterCertainBookStore implements ReplicatedBookStore,
 				.replicate(slaveServers, request);
 		bookStore.buyBooks(booksToBuy); // If this fails it will throw an
 										// exception
-		snapShotId++;
+		advanceSnapshot();
 		waitForSlaveUpdates(replicatedSlaveFutures);
 		BookStoreResult result = new BookStoreResult(null, snapShotId);
 		return result;
@@ -187,8 +267,16 @@ public class MasterCertainBookStore implements ReplicatedBookStore,
 
 	public synchronized BookStoreResult rateBooks(Set<BookRating> bookRating)
 			throws BookStoreException {
-
-		throw new BookStoreException();
+		ReplicationRequest request = new ReplicationRequest(bookRating,
+				BookStoreMessageTag.RATEBOOKS);
+		List<Future<ReplicationResult>> replicatedSlaveFutures = replicator
+				.replicate(slaveServers, request);
+		bookStore.rateBooks(bookRating); // If this fails it will throw an
+											// exception
+		advanceSnapshot();
+		waitForSlaveUpdates(replicatedSlaveFutures);
+		BookStoreResult result = new BookStoreResult(null, snapShotId);
+		return result;
 	}
 
 }
@@ -0,0 +1,261 @@
+package com.acertainbookstore.business;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PersistentIntMap is an immutable map from int keys to values, implemented
+ * as a hash array mapped trie. It is used for the persistent catalog, cf.
+ * {@link CatalogEngine#PERSISTENT}.
+ *
+ * Every node of the trie covers 5 bits of the hashed key, and only holds the
+ * slots that are in use, as flagged by a 32 bit bitmap. put and remove never
+ * modify a map, but return a new map which shares every node off the path to
+ * the key with the old one, so an update costs O(log32 n) new nodes. A map
+ * can therefore be handed to any number of readers, which iterate it without
+ * locking while writers derive newer versions from it.
+ *
+ * The hash of a key is a bijection, so two distinct keys always differ in
+ * some 5 bit fragment of their hashes and collisions never need handling.
+ *
+ */
+public final class PersistentIntMap<V> {
+	private static final int BITS = 5;
+	private static final int FRAGMENT_MASK = (1 << BITS) - 1;
+	private static final Node EMPTY_NODE = new Node(0, new Object[0]);
+	private static final PersistentIntMap<Object> EMPTY = new PersistentIntMap<Object>(
+			EMPTY_NODE, 0);
+
+	/**
+	 * A mapping, stored in the slot of a node.
+	 */
+	private static final class Leaf {
+		private final int key;
+		private final Object value;
+
+		private Leaf(int key, Object value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * An inner node. Its slots hold either leaves or nodes, in the order of
+	 * the bits set in the bitmap.
+	 */
+	private static final class Node {
+		private final int bitmap;
+		private final Object[] slots;
+
+		private Node(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+
+		private int indexOf(int bit) {
+			return Integer.bitCount(bitmap & (bit - 1));
+		}
+
+		private Node with(int index, Object slot) {
+			Object[] copy = slots.clone();
+			copy[index] = slot;
+			return new Node(bitmap, copy);
+		}
+
+		private Node inserted(int bit, Object slot) {
+			int index = indexOf(bit);
+			Object[] copy = new Object[slots.length + 1];
+			System.arraycopy(slots, 0, copy, 0, index);
+			copy[index] = slot;
+			System.arraycopy(slots, index, copy, index + 1, slots.length
+					- index);
+			return new Node(bitmap | bit, copy);
+		}
+
+		private Node removed(int bit) {
+			int index = indexOf(bit);
+			Object[] copy = new Object[slots.length - 1];
+			System.arraycopy(slots, 0, copy, 0, index);
+			System.arraycopy(slots, index + 1, copy, index, copy.length - index);
+			return new Node(bitmap & ~bit, copy);
+		}
+	}
+
+	private final Node root;
+	private final int size;
+
+	private PersistentIntMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Returns the empty map.
+	 *
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> PersistentIntMap<V> empty() {
+		return (PersistentIntMap<V>) EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int hash = mix(key);
+		Node node = root;
+		for (int shift = 0;; shift += BITS) {
+			int bit = bitFor(hash, shift);
+			if ((node.bitmap & bit) == 0) {
+				return null;
+			}
+			Object slot = node.slots[node.indexOf(bit)];
+			if (slot instanceof Node) {
+				node = (Node) slot;
+			} else {
+				Leaf leaf = (Leaf) slot;
+				return leaf.key == key ? (V) leaf.value : null;
+			}
+		}
+	}
+
+	/**
+	 * Returns a map which maps key to value, and otherwise holds the same
+	 * mappings as this map.
+	 *
+	 * @param key
+	 * @param value
+	 * @return
+	 */
+	public PersistentIntMap<V> put(int key, V value) {
+		boolean[] added = new boolean[1];
+		Node newRoot = put(root, 0, new Leaf(key, value), mix(key), added);
+		return new PersistentIntMap<V>(newRoot, added[0] ? size + 1 : size);
+	}
+
+	/**
+	 * Returns a map which holds the same mappings as this map, except for the
+	 * mapping of key.
+	 *
+	 * @param key
+	 * @return
+	 */
+	public PersistentIntMap<V> remove(int key) {
+		Node newRoot = remove(root, 0, key, mix(key));
+		if (newRoot == root) {
+			return this;
+		}
+		return new PersistentIntMap<V>(newRoot == null ? EMPTY_NODE : newRoot,
+				size - 1);
+	}
+
+	/**
+	 * Returns the values of the map, in no particular order.
+	 *
+	 * @return
+	 */
+	public List<V> values() {
+		List<V> out = new ArrayList<V>(size);
+		collect(root, out);
+		return out;
+	}
+
+	private static Node put(Node node, int shift, Leaf leaf, int hash,
+			boolean[] added) {
+		int bit = bitFor(hash, shift);
+		if ((node.bitmap & bit) == 0) {
+			added[0] = true;
+			return node.inserted(bit, leaf);
+		}
+		int index = node.indexOf(bit);
+		Object slot = node.slots[index];
+		if (slot instanceof Node) {
+			return node.with(index,
+					put((Node) slot, shift + BITS, leaf, hash, added));
+		}
+		Leaf existing = (Leaf) slot;
+		if (existing.key == leaf.key) {
+			return node.with(index, leaf);
+		}
+		added[0] = true;
+		return node.with(index,
+				split(existing, mix(existing.key), leaf, hash, shift + BITS));
+	}
+
+	/**
+	 * Returns the node holding two leaves whose hashes agree on every
+	 * fragment before shift.
+	 */
+	private static Node split(Leaf a, int hashA, Leaf b, int hashB, int shift) {
+		int fragmentA = (hashA >>> shift) & FRAGMENT_MASK;
+		int fragmentB = (hashB >>> shift) & FRAGMENT_MASK;
+		if (fragmentA == fragmentB) {
+			return new Node(1 << fragmentA, new Object[] { split(a, hashA, b,
+					hashB, shift + BITS) });
+		}
+		Object[] slots = fragmentA < fragmentB ? new Object[] { a, b }
+				: new Object[] { b, a };
+		return new Node((1 << fragmentA) | (1 << fragmentB), slots);
+	}
+
+	/**
+	 * Returns node without key, node itself if it does not hold key, or null
+	 * if the node is left empty.
+	 */
+	private static Node remove(Node node, int shift, int key, int hash) {
+		int bit = bitFor(hash, shift);
+		if ((node.bitmap & bit) == 0) {
+			return node;
+		}
+		int index = node.indexOf(bit);
+		Object slot = node.slots[index];
+		if (slot instanceof Node) {
+			Node child = remove((Node) slot, shift + BITS, key, hash);
+			if (child == slot) {
+				return node;
+			} else if (child == null) {
+				return node.slots.length == 1 ? null : node.removed(bit);
+			} else if (child.slots.length == 1
+					&& child.slots[0] instanceof Leaf) {
+				// Pull a lone leaf up, to keep the trie shallow
+				return node.with(index, child.slots[0]);
+			}
+			return node.with(index, child);
+		}
+		if (((Leaf) slot).key != key) {
+			return node;
+		}
+		return node.slots.length == 1 ? null : node.removed(bit);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> void collect(Node node, List<V> out) {
+		for (Object slot : node.slots) {
+			if (slot instanceof Node) {
+				collect((Node) slot, out);
+			} else {
+				out.add((V) ((Leaf) slot).value);
+			}
+		}
+	}
+
+	private static int bitFor(int hash, int shift) {
+		return 1 << ((hash >>> shift) & FRAGMENT_MASK);
+	}
+
+	/**
+	 * Scrambles the key, so that consecutive ISBNs are spread over the trie.
+	 * Multiplying by an odd constant and xor-shifting are both invertible.
+	 */
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -44,7 +44,9 @@ public class SlaveCertainBookStore implements ReplicatedBookStore,
 
 	public synchronized BookStoreResult getBooksInDemand()
 			throws BookStoreException {
-		throw new BookStoreException();
+		BookStoreResult result = new BookStoreResult(
+				bookStore.getBooksInDemand(), snapshotId);
+		return result;
 	}
 
 	public synchronized BookStoreResult getBooks(Set<Integer> ISBNList)
@@ -56,7 +58,9 @@ public class SlaveCertainBookStore implements ReplicatedBookStore,
 
 	public synchronized BookStoreResult getTopRatedBooks(int numBooks)
 			throws BookStoreException {
-		throw new BookStoreException();
+		BookStoreResult result = new BookStoreResult(
+				bookStore.getTopRatedBooks(numBooks), snapshotId);
+		return result;
 	}
 
 	public synchronized BookStoreResult getEditorPicks(int numBooks)
@@ -0,0 +1,76 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookStoreBook;
+import com.acertainbookstore.business.BookStoreCheckpoint;
+import com.acertainbookstore.business.ConcurrentIntHashMap;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+
+/**
+ * Tests for BookStoreCheckpoint: checkpoints written and loaded back.
+ */
+public class BookStoreCheckpointTest {
+	private File checkpointFile;
+
+	@Before
+	public void setUp() throws IOException {
+		checkpointFile = File.createTempFile("checkpoint", ".dat");
+		checkpointFile.delete();
+	}
+
+	@After
+	public void tearDown() {
+		checkpointFile.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		StockBook first = new ImmutableStockBook(1, "Title \u00e6\u00f8\u00e5",
+				"Author \u4e66", 12.5f, 7, 3, 4, 15, true);
+		StockBook second = new ImmutableStockBook(2, "", "Author", 1.0f, 0, 0,
+				0, 0, false);
+		BookStoreCheckpoint.write(checkpointFile, Arrays.asList(first, second),
+				1234);
+		assertThat(new File(checkpointFile.getPath() + ".tmp").exists(),
+				is(false));
+
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		assertThat(BookStoreCheckpoint.load(checkpointFile, bookMap), is(1234L));
+		assertThat(bookMap.size(), is(2));
+		assertBook(bookMap.get(1).immutableStockBook(), first);
+		assertBook(bookMap.get(2).immutableStockBook(), second);
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+		BookStoreCheckpoint.write(checkpointFile,
+				Collections.<StockBook> emptyList(), 0);
+		ConcurrentIntHashMap<BookStoreBook> bookMap = new ConcurrentIntHashMap<BookStoreBook>();
+		assertThat(BookStoreCheckpoint.load(checkpointFile, bookMap), is(0L));
+		assertThat(bookMap.size(), is(0));
+	}
+
+	private static void assertBook(StockBook actual, StockBook expected) {
+		assertThat(actual.getISBN(), is(expected.getISBN()));
+		assertThat(actual.getTitle(), is(expected.getTitle()));
+		assertThat(actual.getAuthor(), is(expected.getAuthor()));
+		assertThat(actual.getPrice(), is(expected.getPrice()));
+		assertThat(actual.getNumCopies(), is(expected.getNumCopies()));
+		assertThat(actual.getSaleMisses(), is(expected.getSaleMisses()));
+		assertThat(actual.getTimesRated(), is(expected.getTimesRated()));
+		assertThat(actual.getTotalRating(), is(expected.getTotalRating()));
+		assertThat(actual.isEditorPick(), is(expected.isEditorPick()));
+	}
+}
@@ -0,0 +1,99 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.CatalogEngine;
+import com.acertainbookstore.business.CertainBookStore;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.MasterCertainBookStore;
+import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreException;
+import com.acertainbookstore.utils.BookStoreResult;
+
+/**
+ * Tests for MasterCertainBookStore with the persistent catalog engine: the
+ * snapshot id returned with getBooks() is the one of the listing, though the
+ * listing is read without waiting for writes.
+ *
+ * No slaves need to be running, the master drops the ones it cannot reach.
+ */
+public class MasterCertainBookStoreTest {
+	private static final int ISBN = 4242;
+	private static final int NUM_COPIES = 10;
+	private static final int NUM_WRITES = 200;
+	private MasterCertainBookStore master;
+
+	@Before
+	public void setUp() throws BookStoreException {
+		// After the master, which sets the engine of server.properties
+		master = MasterCertainBookStore.getInstance();
+		CertainBookStore.getInstance().setCatalogEngine(
+				CatalogEngine.PERSISTENT);
+	}
+
+	@After
+	public void tearDown() {
+		CertainBookStore.getInstance().setCatalogEngine(CatalogEngine.LOCKING);
+	}
+
+	@Test
+	public void testSnapshotIdOfListing() throws Exception {
+		BookStoreResult added = master.addBooks(Collections
+				.<StockBook> singleton(new ImmutableStockBook(ISBN, "Title",
+						"Author", 10.0f, NUM_COPIES, 0, 0, 0, false)));
+		final long firstId = added.getSnapshotId();
+		assertThat(copiesIn(master.getBooks()), is(NUM_COPIES));
+		assertThat(master.getBooks().getSnapshotId(), is(firstId));
+
+		// Every write adds one copy, so the listing of snapshot id s holds
+		// NUM_COPIES + s - firstId copies
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < NUM_WRITES; i++) {
+						master.addCopies(Collections.singleton(new BookCopy(
+								ISBN, 1)));
+					}
+				} catch (Throwable ex) {
+					failure.compareAndSet(null, ex);
+				}
+			}
+		};
+		writer.start();
+		long lastId = firstId;
+		while (writer.isAlive()) {
+			BookStoreResult result = master.getBooks();
+			long snapshotId = result.getSnapshotId();
+			assertThat(snapshotId >= lastId, is(true));
+			assertThat((long) copiesIn(result), is(NUM_COPIES + snapshotId
+					- firstId));
+			lastId = snapshotId;
+		}
+		writer.join();
+		assertThat(failure.get(), is(nullValue()));
+
+		BookStoreResult result = master.getBooks();
+		assertThat(result.getSnapshotId(), is(firstId + NUM_WRITES));
+		assertThat(copiesIn(result), is(NUM_COPIES + NUM_WRITES));
+	}
+
+	private static int copiesIn(BookStoreResult result) {
+		for (Object book : result.getResultList()) {
+			if (((StockBook) book).getISBN() == ISBN) {
+				return ((StockBook) book).getNumCopies();
+			}
+		}
+		throw new AssertionError("Book " + ISBN + " is missing");
+	}
+}
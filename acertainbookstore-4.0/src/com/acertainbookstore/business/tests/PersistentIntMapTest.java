@@ -0,0 +1,173 @@
+package com.acertainbookstore.business.tests;
+
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.acertainbookstore.business.PersistentIntMap;
+
+/**
+ * Tests for PersistentIntMap, checked against a HashMap fed the same
+ * operations. Most keys are chosen so that their hashes agree on their first
+ * fragments, which forces the leaves they collide with to be split into
+ * deeper nodes, and the lone leaves left by removals to be pulled up.
+ */
+public class PersistentIntMapTest {
+
+	@Test
+	public void testPutGetRemove() {
+		PersistentIntMap<String> empty = PersistentIntMap.empty();
+		assertThat(empty.isEmpty(), is(true));
+		PersistentIntMap<String> map = empty.put(5050, "a");
+		assertThat(map.put(5050, "b").get(5050), is("b"));
+		assertThat(map.put(5050, "b").size(), is(1));
+		map = map.put(0, "zero").put(-1, "minus");
+		assertThat(map.size(), is(3));
+		assertThat(map.get(5050), is("a"));
+		assertThat(map.get(0), is("zero"));
+		assertThat(map.get(-1), is("minus"));
+		assertThat(map.get(1111), is(nullValue()));
+
+		PersistentIntMap<String> removed = map.remove(5050);
+		assertThat(removed.size(), is(2));
+		assertThat(removed.get(5050), is(nullValue()));
+		// Removing a key that is not there returns the same map
+		assertThat(removed.remove(5050), is(sameInstance(removed)));
+		assertThat(removed.remove(0).remove(-1).isEmpty(), is(true));
+	}
+
+	@Test
+	public void testVersionsUnchanged() {
+		PersistentIntMap<Integer> first = PersistentIntMap.empty();
+		for (int key = 0; key < 100; key++) {
+			first = first.put(key, key);
+		}
+		PersistentIntMap<Integer> second = first.put(1, -1).remove(2)
+				.put(100, 100);
+		// Every version keeps its own mappings
+		assertThat(first.size(), is(100));
+		assertThat(first.get(1), is(1));
+		assertThat(first.get(2), is(2));
+		assertThat(first.get(100), is(nullValue()));
+		assertThat(second.size(), is(100));
+		assertThat(second.get(1), is(-1));
+		assertThat(second.get(2), is(nullValue()));
+		assertThat(second.get(100), is(100));
+	}
+
+	@Test
+	public void testCollidingKeys() {
+		// Hashes that agree on every bit but the top two, so each pair of
+		// them is split down to the last fragment
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int top = 0; top < 4; top++) {
+			keys.add(unmix(0x12345678 & 0x3fffffff | top << 30));
+		}
+		PersistentIntMap<Integer> map = PersistentIntMap.empty();
+		for (int key : keys) {
+			map = map.put(key, key);
+		}
+		assertThat(map.size(), is(4));
+		for (int key : keys) {
+			assertThat(map.get(key), is(key));
+		}
+		assertValues(map, keys);
+
+		// Removing all but one leaves a lone leaf, which is pulled up to the
+		// root and can be split again
+		PersistentIntMap<Integer> lone = map.remove(keys.get(1))
+				.remove(keys.get(2)).remove(keys.get(3));
+		assertThat(lone.size(), is(1));
+		assertThat(lone.get(keys.get(0)), is(keys.get(0)));
+		assertThat(lone.get(keys.get(1)), is(nullValue()));
+		PersistentIntMap<Integer> again = lone.put(keys.get(3), 3);
+		assertThat(again.get(keys.get(0)), is(keys.get(0)));
+		assertThat(again.get(keys.get(3)), is(3));
+		assertThat(again.remove(keys.get(0)).remove(keys.get(3)).isEmpty(),
+				is(true));
+	}
+
+	@Test
+	public void testRandomOperations() {
+		Random random = new Random(42);
+		// Families of keys whose hashes share their first 5 to 25 bits
+		int[] keys = new int[4000];
+		for (int i = 0; i < keys.length; i++) {
+			int base = random.nextInt();
+			int sharedBits = 5 * (1 + random.nextInt(5));
+			int family = i / 8;
+			int hash = (family * 0x9E3779B9 & ((1 << sharedBits) - 1))
+					| (base << sharedBits);
+			keys[i] = i % 4 == 0 ? base : unmix(hash);
+		}
+
+		PersistentIntMap<Integer> map = PersistentIntMap.empty();
+		Map<Integer, Integer> reference = new HashMap<Integer, Integer>();
+		PersistentIntMap<Integer> saved = null;
+		Map<Integer, Integer> savedReference = null;
+		for (int i = 0; i < 100000; i++) {
+			if (i == 50000) {
+				saved = map;
+				savedReference = new HashMap<Integer, Integer>(reference);
+			}
+			int key = keys[random.nextInt(keys.length)];
+			if (random.nextInt(3) == 0) {
+				map = map.remove(key);
+				reference.remove(key);
+			} else {
+				map = map.put(key, i);
+				reference.put(key, i);
+			}
+			assertThat(map.size(), is(reference.size()));
+			assertThat(map.get(key), is(reference.get(key)));
+		}
+		for (int key : keys) {
+			assertThat(map.get(key), is(reference.get(key)));
+			// The version saved halfway is left as it was
+			assertThat(saved.get(key), is(savedReference.get(key)));
+		}
+		assertValues(map, reference.values());
+		assertValues(saved, savedReference.values());
+
+		// Down to empty, through every lone leaf pulled up on the way
+		for (int key : keys) {
+			map = map.remove(key);
+			reference.remove(key);
+			assertThat(map.size(), is(reference.size()));
+		}
+		assertThat(map.isEmpty(), is(true));
+		assertThat(map.values().isEmpty(), is(true));
+	}
+
+	private static void assertValues(PersistentIntMap<Integer> map,
+			Collection<Integer> expected) {
+		List<Integer> values = map.values();
+		List<Integer> sortedExpected = new ArrayList<Integer>(expected);
+		Collections.sort(values);
+		Collections.sort(sortedExpected);
+		assertThat(values, is(sortedExpected));
+	}
+
+	/**
+	 * Returns the key whose hash in PersistentIntMap is hash, by inverting
+	 * its xor-shift and its multiplication
+	 */
+	private static int unmix(int hash) {
+		int h = hash ^ (hash >>> 16);
+		// The inverse of the odd multiplier modulo 2^32, by Newton's method
+		int inverse = 0x9E3779B9;
+		for (int i = 0; i < 5; i++) {
+			inverse *= 2 - 0x9E3779B9 * inverse;
+		}
+		return h * inverse;
+	}
+}
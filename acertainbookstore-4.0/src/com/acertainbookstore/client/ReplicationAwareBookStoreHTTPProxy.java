@@ -16,13 +16,13 @@ import java.util.Set;
 import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.business.Book;
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.interfaces.BookStore;
+import com.acertainbookstore.utils.BookStoreCodec;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
@@ -41,6 +41,7 @@ public class ReplicationAwareBookStoreHTTPProxy implements BookStore {
 	private List<String> slaveAddresses;
 	private String masterAddress;
 	private String filePath = "proxy.properties";
+	private volatile BookStoreCodec codec = BookStoreUtility.XML_CODEC;
 	private volatile long snapshotId = 0;
 	private volatile int nextSlave = 0;
 	private static int maxTries = 5;
@@ -117,11 +118,23 @@ public class ReplicationAwareBookStoreHTTPProxy implements BookStore {
 		return this.masterAddress;
 	}
 
+	public BookStoreCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec of the requests, and of the responses asked for
+	 * 
+	 * @param codec
+	 */
+	public void setCodec(BookStoreCodec codec) {
+		this.codec = codec;
+	}
+
 	public void buyBooks(Set<BookCopy> isbnSet) throws BookStoreException {
 
-		String listISBNsxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbnSet);
-		Buffer requestContent = new ByteArrayBuffer(listISBNsxmlString);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				isbnSet);
 
 		BookStoreResult result = null;
 
@@ -131,16 +144,16 @@ public class ReplicationAwareBookStoreHTTPProxy implements BookStore {
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
 		exchange.setRequestContent(requestContent);
-		result = BookStoreUtility.SendAndRecv(this.client, exchange);
+		result = BookStoreUtility.SendAndRecv(this.client, exchange,
+				codec);
 		this.setSnapshotId(result.getSnapshotId());
 	}
 
 	@SuppressWarnings("unchecked")
 	public List<Book> getBooks(Set<Integer> isbnSet) throws BookStoreException {
 
-		String listISBNsxmlString = BookStoreUtility
-				.serializeObjectToXMLString(isbnSet);
-		Buffer requestContent = new ByteArrayBuffer(listISBNsxmlString);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				isbnSet);
 
 		BookStoreResult result = null;
 		int tries = 0;
@@ -152,7 +165,8 @@ public class ReplicationAwareBookStoreHTTPProxy implements BookStore {
 			exchange.setURL(urlString);
 			exchange.setRequestContent(requestContent);
 			try {
-				result = BookStoreUtility.SendAndRecv(this.client, exchange);
+				result = BookStoreUtility.SendAndRecv(this.client, exchange,
+						codec);
 			} catch (BookStoreException ex) {
 				if(ex.getMessage().equals(BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT)) {
 					tries++;
@@ -193,7 +207,8 @@ public class ReplicationAwareBookStoreHTTPProxy implements BookStore {
 					+ urlEncodedNumBooks;
 			exchange.setURL(urlString);
 			try {
-				result = BookStoreUtility.SendAndRecv(this.client, exchange);
+				result = BookStoreUtility.SendAndRecv(this.client, exchange,
+						codec);
 			} catch (BookStoreException ex) {
 				if(ex.getMessage().equals(BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT)) {
 					tries++;
@@ -224,15 +239,64 @@ public class ReplicationAwareBookStoreHTTPProxy implements BookStore {
 
 	@Override
 	public void rateBooks(Set<BookRating> bookRating) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
 
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				bookRating);
+
+		BookStoreResult result = null;
+
+		ContentExchange exchange = new ContentExchange();
+		String urlString = getMasterServerAddress() + "/"
+				+ BookStoreMessageTag.RATEBOOKS;
+		exchange.setMethod("POST");
+		exchange.setURL(urlString);
+		exchange.setRequestContent(requestContent);
+		result = BookStoreUtility.SendAndRecv(this.client, exchange,
+				codec);
+		this.setSnapshotId(result.getSnapshotId());
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public List<Book> getTopRatedBooks(int numBooks) throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
+		String urlEncodedNumBooks = null;
+
+		try {
+			urlEncodedNumBooks = URLEncoder.encode(Integer.toString(numBooks),
+					"UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new BookStoreException("unsupported encoding of numbooks", ex);
+		}
+
+		BookStoreResult result = null;
+		int tries = 0;
+		do {
+			ContentExchange exchange = new ContentExchange();
+			String urlString = getReplicaAddress(tries) + "/"
+					+ BookStoreMessageTag.GETTOPRATED + "?"
+					+ BookStoreConstants.BOOK_NUM_PARAM + "="
+					+ urlEncodedNumBooks;
+			exchange.setURL(urlString);
+			try {
+				result = BookStoreUtility.SendAndRecv(this.client, exchange,
+						codec);
+			} catch (BookStoreException ex) {
+				if(ex.getMessage().equals(BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT)) {
+					tries++;
+					continue;
+				} else {
+					throw ex;
+				}
+			}
+		} while (result.getSnapshotId() < this.getSnapshotId()
+				&& tries < ReplicationAwareBookStoreHTTPProxy.maxTries);
+
+		if(tries == ReplicationAwareBookStoreHTTPProxy.maxTries) {
+			throw new BookStoreException(BookStoreClientConstants.strERR_CLIENT_FAILURE);
+		}
+		this.setSnapshotId(result.getSnapshotId());
+
+		return (List<Book>) result.getResultList();
 	}
 
 }
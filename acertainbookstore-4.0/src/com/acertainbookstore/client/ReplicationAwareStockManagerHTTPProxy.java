@@ -14,13 +14,13 @@ import java.util.Set;
 import org.eclipse.jetty.client.ContentExchange;
 import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
 import com.acertainbookstore.business.StockBook;
 import com.acertainbookstore.interfaces.StockManager;
+import com.acertainbookstore.utils.BookStoreCodec;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
@@ -39,6 +39,7 @@ public class ReplicationAwareStockManagerHTTPProxy implements StockManager {
 	private List<String> slaveAddresses;
 	private String masterAddress;
 	private String filePath = "proxy.properties";
+	private volatile BookStoreCodec codec = BookStoreUtility.XML_CODEC;
 	private long snapshotId = 0;
 	private volatile int nextSlave = 0;
 	
@@ -115,11 +116,23 @@ public class ReplicationAwareStockManagerHTTPProxy implements StockManager {
 		return masterAddress;
 	}
 
+	public BookStoreCodec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * Sets the codec of the requests, and of the responses asked for
+	 * 
+	 * @param codec
+	 */
+	public void setCodec(BookStoreCodec codec) {
+		this.codec = codec;
+	}
+
 	public void addBooks(Set<StockBook> bookSet) throws BookStoreException {
 
-		String listBooksxmlString = BookStoreUtility
-				.serializeObjectToXMLString(bookSet);
-		Buffer requestContent = new ByteArrayBuffer(listBooksxmlString);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				bookSet);
 
 		BookStoreResult result = null;
 
@@ -129,16 +142,16 @@ public class ReplicationAwareStockManagerHTTPProxy implements StockManager {
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
 		exchange.setRequestContent(requestContent);
-		result = BookStoreUtility.SendAndRecv(this.client, exchange);
+		result = BookStoreUtility.SendAndRecv(this.client, exchange,
+				codec);
 		this.setSnapshotId(result.getSnapshotId());
 	}
 
 	public void addCopies(Set<BookCopy> bookCopiesSet)
 			throws BookStoreException {
 
-		String listBookCopiesxmlString = BookStoreUtility
-				.serializeObjectToXMLString(bookCopiesSet);
-		Buffer requestContent = new ByteArrayBuffer(listBookCopiesxmlString);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				bookCopiesSet);
 		BookStoreResult result = null;
 
 		ContentExchange exchange = new ContentExchange();
@@ -147,7 +160,8 @@ public class ReplicationAwareStockManagerHTTPProxy implements StockManager {
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
 		exchange.setRequestContent(requestContent);
-		result = BookStoreUtility.SendAndRecv(this.client, exchange);
+		result = BookStoreUtility.SendAndRecv(this.client, exchange,
+				codec);
 		this.setSnapshotId(result.getSnapshotId());
 	}
 
@@ -163,7 +177,8 @@ public class ReplicationAwareStockManagerHTTPProxy implements StockManager {
 
 			exchange.setURL(urlString);
 			try {
-				result = BookStoreUtility.SendAndRecv(this.client, exchange);
+				result = BookStoreUtility.SendAndRecv(this.client, exchange,
+						codec);
 			} catch (BookStoreException ex) {
 				if(ex.getMessage().equals(BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT)) {
 					tries++;
@@ -186,9 +201,8 @@ public class ReplicationAwareStockManagerHTTPProxy implements StockManager {
 	public void updateEditorPicks(Set<BookEditorPick> editorPicksValues)
 			throws BookStoreException {
 
-		String xmlStringEditorPicksValues = BookStoreUtility
-				.serializeObjectToXMLString(editorPicksValues);
-		Buffer requestContent = new ByteArrayBuffer(xmlStringEditorPicksValues);
+		Buffer requestContent = BookStoreUtility.encodeRequestContent(codec,
+				editorPicksValues);
 
 		BookStoreResult result = null;
 		ContentExchange exchange = new ContentExchange();
@@ -198,7 +212,8 @@ public class ReplicationAwareStockManagerHTTPProxy implements StockManager {
 		exchange.setMethod("POST");
 		exchange.setURL(urlString);
 		exchange.setRequestContent(requestContent);
-		result = BookStoreUtility.SendAndRecv(this.client, exchange);
+		result = BookStoreUtility.SendAndRecv(this.client, exchange,
+				codec);
 		this.setSnapshotId(result.getSnapshotId());
 	}
 
@@ -219,10 +234,38 @@ public class ReplicationAwareStockManagerHTTPProxy implements StockManager {
 		}
 	}
 
+	@SuppressWarnings("unchecked")
 	@Override
 	public List<StockBook> getBooksInDemand() throws BookStoreException {
-		// TODO Auto-generated method stub
-		throw new BookStoreException();
+
+		BookStoreResult result = null;
+		int tries = 0;
+		do {
+			ContentExchange exchange = new ContentExchange();
+			String urlString = getReplicaAddress(tries) + "/"
+					+ BookStoreMessageTag.GETINDEMAND;
+
+			exchange.setURL(urlString);
+			try {
+				result = BookStoreUtility.SendAndRecv(this.client, exchange,
+						codec);
+			} catch (BookStoreException ex) {
+				if(ex.getMessage().equals(BookStoreClientConstants.strERR_CLIENT_REQUEST_TIMEOUT)) {
+					tries++;
+					continue;
+				} else {
+					throw ex;
+				}
+			}
+		} while (result.getSnapshotId() < this.getSnapshotId() && 
+				tries < ReplicationAwareStockManagerHTTPProxy.maxTries);
+		
+		if(tries == ReplicationAwareStockManagerHTTPProxy.maxTries) {
+			throw new BookStoreException(BookStoreClientConstants.strERR_CLIENT_FAILURE);
+		}
+
+		this.setSnapshotId(result.getSnapshotId());
+		return (List<StockBook>) result.getResultList();
 	}
 
 }
@@ -16,8 +16,10 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.business.MasterCertainBookStore;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreCodec;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
@@ -42,7 +44,8 @@ public class MasterBookStoreHTTPMessageHandler extends AbstractHandler {
 		int numBooks = -1;
 		String requestURI;
 
-		response.setContentType("text/html;charset=utf-8");
+		BookStoreCodec codec = BookStoreUtility.getCodec(request);
+		response.setContentType(codec.getContentType());
 		response.setStatus(HttpServletResponse.SC_OK);
 		requestURI = request.getRequestURI();
 
@@ -65,11 +68,7 @@ public class MasterBookStoreHTTPMessageHandler extends AbstractHandler {
 			switch (messageTag) {
 
 			case ADDBOOKS:
-				String xml = BookStoreUtility
-						.extractPOSTDataFromRequest(request);
-
-				Set<StockBook> bookSet = (Set<StockBook>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+				Set<StockBook> bookSet = (Set<StockBook>) decode(codec, request);
 
 				BookStoreResponse bookStoreresponse = new BookStoreResponse();
 				try {
@@ -79,16 +78,11 @@ public class MasterBookStoreHTTPMessageHandler extends AbstractHandler {
 					bookStoreresponse.setException(ex);
 				}
 
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			case ADDCOPIES:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-
-				Set<BookCopy> listBookCopies = (Set<BookCopy>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+				Set<BookCopy> listBookCopies = (Set<BookCopy>) decode(codec, request);
 				bookStoreresponse = new BookStoreResponse();
 				try {
 					bookStoreresponse.setResult(MasterCertainBookStore
@@ -96,9 +90,7 @@ public class MasterBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			case LISTBOOKS:
@@ -110,18 +102,23 @@ public class MasterBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
-			case UPDATEEDITORPICKS:
+			case GETINDEMAND:
+				bookStoreresponse = new BookStoreResponse();
+				try {
+					bookStoreresponse.setResult(MasterCertainBookStore
+							.getInstance().getBooksInDemand());
+				} catch (BookStoreException ex) {
+					bookStoreresponse.setException(ex);
+				}
+				respond(codec, response, bookStoreresponse);
+				break;
 
-				String xmlStringEditorPicksValues = BookStoreUtility
-						.extractPOSTDataFromRequest(request);
+			case UPDATEEDITORPICKS:
 
-				Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) BookStoreUtility
-						.deserializeXMLStringToObject(xmlStringEditorPicksValues);
+				Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) decode(codec, request);
 				bookStoreresponse = new BookStoreResponse();
 
 				try {
@@ -131,15 +128,11 @@ public class MasterBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			case BUYBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-				Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+				Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) decode(codec, request);
 
 				// Make the purchase
 				bookStoreresponse = new BookStoreResponse();
@@ -149,15 +142,11 @@ public class MasterBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			case GETBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-				Set<Integer> isbnSet = (Set<Integer>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+				Set<Integer> isbnSet = (Set<Integer>) decode(codec, request);
 
 				bookStoreresponse = new BookStoreResponse();
 				try {
@@ -166,9 +155,7 @@ public class MasterBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			case EDITORPICKS:
@@ -185,9 +172,37 @@ public class MasterBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
+				break;
+
+			case RATEBOOKS:
+				Set<BookRating> bookRatings = (Set<BookRating>) decode(codec, request);
+
+				bookStoreresponse = new BookStoreResponse();
+				try {
+					bookStoreresponse.setResult(MasterCertainBookStore
+							.getInstance().rateBooks(bookRatings));
+				} catch (BookStoreException ex) {
+					bookStoreresponse.setException(ex);
+				}
+				respond(codec, response, bookStoreresponse);
+				break;
+
+			case GETTOPRATED:
+				numBooksString = URLDecoder
+						.decode(request
+								.getParameter(BookStoreConstants.BOOK_NUM_PARAM),
+								"UTF-8");
+				bookStoreresponse = new BookStoreResponse();
+				try {
+					numBooks = BookStoreUtility
+							.convertStringToInt(numBooksString);
+					bookStoreresponse.setResult(MasterCertainBookStore
+							.getInstance().getTopRatedBooks(numBooks));
+				} catch (BookStoreException ex) {
+					bookStoreresponse.setException(ex);
+				}
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			default:
@@ -199,4 +214,24 @@ public class MasterBookStoreHTTPMessageHandler extends AbstractHandler {
 		baseRequest.setHandled(true);
 
 	}
+
+	/**
+	 * Decodes the message of the request with the codec
+	 */
+	private static Object decode(BookStoreCodec codec,
+			HttpServletRequest request) throws IOException {
+		return BookStoreUtility.decodePOSTDataFromRequest(request, codec);
+	}
+
+	/**
+	 * Encodes the bookstore response straight into the body of the HTTP
+	 * response. The body is never held as a whole: the codec hands it on in
+	 * pieces, and once they fill the buffer of the response, it is committed
+	 * and sent in chunks, as it has no Content-Length.
+	 */
+	private static void respond(BookStoreCodec codec,
+			HttpServletResponse response, BookStoreResponse bookStoreResponse)
+			throws IOException {
+		codec.encode(bookStoreResponse, response.getOutputStream());
+	}
 }
@@ -16,9 +16,11 @@ import org.eclipse.jetty.server.handler.AbstractHandler;
 
 import com.acertainbookstore.business.BookCopy;
 import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
 import com.acertainbookstore.business.MasterCertainBookStore;
 import com.acertainbookstore.business.SlaveCertainBookStore;
 import com.acertainbookstore.business.StockBook;
+import com.acertainbookstore.utils.BookStoreCodec;
 import com.acertainbookstore.utils.BookStoreConstants;
 import com.acertainbookstore.utils.BookStoreException;
 import com.acertainbookstore.utils.BookStoreMessageTag;
@@ -43,7 +45,8 @@ public class SlaveBookStoreHTTPMessageHandler extends AbstractHandler {
 		int numBooks = -1;
 		String requestURI;
 
-		response.setContentType("text/html;charset=utf-8");
+		BookStoreCodec codec = BookStoreUtility.getCodec(request);
+		response.setContentType(codec.getContentType());
 		response.setStatus(HttpServletResponse.SC_OK);
 		requestURI = request.getRequestURI();
 
@@ -75,16 +78,11 @@ public class SlaveBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			case GETBOOKS:
-				String xml = BookStoreUtility
-						.extractPOSTDataFromRequest(request);
-				Set<Integer> isbnSet = (Set<Integer>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+				Set<Integer> isbnSet = (Set<Integer>) decode(codec, request);
 
 				bookStoreresponse = new BookStoreResponse();
 				try {
@@ -93,9 +91,7 @@ public class SlaveBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			case EDITORPICKS:
@@ -112,17 +108,39 @@ public class SlaveBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
-			case ADDBOOKS:
-				xml = BookStoreUtility
-						.extractPOSTDataFromRequest(request);
+			case GETTOPRATED:
+				numBooksString = URLDecoder
+						.decode(request
+								.getParameter(BookStoreConstants.BOOK_NUM_PARAM),
+								"UTF-8");
+				bookStoreresponse = new BookStoreResponse();
+				try {
+					numBooks = BookStoreUtility
+							.convertStringToInt(numBooksString);
+					bookStoreresponse.setResult(SlaveCertainBookStore
+							.getInstance().getTopRatedBooks(numBooks));
+				} catch (BookStoreException ex) {
+					bookStoreresponse.setException(ex);
+				}
+				respond(codec, response, bookStoreresponse);
+				break;
+
+			case GETINDEMAND:
+				bookStoreresponse = new BookStoreResponse();
+				try {
+					bookStoreresponse.setResult(SlaveCertainBookStore
+							.getInstance().getBooksInDemand());
+				} catch (BookStoreException ex) {
+					bookStoreresponse.setException(ex);
+				}
+				respond(codec, response, bookStoreresponse);
+				break;
 
-				Set<StockBook> bookSet = (Set<StockBook>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+			case ADDBOOKS:
+				Set<StockBook> bookSet = (Set<StockBook>) decode(codec, request);
 
 				bookStoreresponse = new BookStoreResponse();
 				try {
@@ -132,16 +150,11 @@ public class SlaveBookStoreHTTPMessageHandler extends AbstractHandler {
 					bookStoreresponse.setException(ex);
 				}
 
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			case ADDCOPIES:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-
-				Set<BookCopy> listBookCopies = (Set<BookCopy>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+				Set<BookCopy> listBookCopies = (Set<BookCopy>) decode(codec, request);
 				bookStoreresponse = new BookStoreResponse();
 				try {
 					bookStoreresponse.setResult(SlaveCertainBookStore
@@ -149,18 +162,12 @@ public class SlaveBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			case UPDATEEDITORPICKS:
 
-				String xmlStringEditorPicksValues = BookStoreUtility
-						.extractPOSTDataFromRequest(request);
-
-				Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) BookStoreUtility
-						.deserializeXMLStringToObject(xmlStringEditorPicksValues);
+				Set<BookEditorPick> mapEditorPicksValues = (Set<BookEditorPick>) decode(codec, request);
 				bookStoreresponse = new BookStoreResponse();
 
 				try {
@@ -170,15 +177,11 @@ public class SlaveBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			case BUYBOOKS:
-				xml = BookStoreUtility.extractPOSTDataFromRequest(request);
-				Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) BookStoreUtility
-						.deserializeXMLStringToObject(xml);
+				Set<BookCopy> bookCopiesToBuy = (Set<BookCopy>) decode(codec, request);
 
 				// Make the purchase
 				bookStoreresponse = new BookStoreResponse();
@@ -188,9 +191,20 @@ public class SlaveBookStoreHTTPMessageHandler extends AbstractHandler {
 				} catch (BookStoreException ex) {
 					bookStoreresponse.setException(ex);
 				}
-				response.getWriter().println(
-						BookStoreUtility
-								.serializeObjectToXMLString(bookStoreresponse));
+				respond(codec, response, bookStoreresponse);
+				break;
+
+			case RATEBOOKS:
+				Set<BookRating> bookRatings = (Set<BookRating>) decode(codec, request);
+
+				bookStoreresponse = new BookStoreResponse();
+				try {
+					bookStoreresponse.setResult(SlaveCertainBookStore
+							.getInstance().rateBooks(bookRatings));
+				} catch (BookStoreException ex) {
+					bookStoreresponse.setException(ex);
+				}
+				respond(codec, response, bookStoreresponse);
 				break;
 
 			default:
@@ -202,4 +216,24 @@ public class SlaveBookStoreHTTPMessageHandler extends AbstractHandler {
 		baseRequest.setHandled(true);
 
 	}
+
+	/**
+	 * Decodes the message of the request with the codec
+	 */
+	private static Object decode(BookStoreCodec codec,
+			HttpServletRequest request) throws IOException {
+		return BookStoreUtility.decodePOSTDataFromRequest(request, codec);
+	}
+
+	/**
+	 * Encodes the bookstore response straight into the body of the HTTP
+	 * response. The body is never held as a whole: the codec hands it on in
+	 * pieces, and once they fill the buffer of the response, it is committed
+	 * and sent in chunks, as it has no Content-Length.
+	 */
+	private static void respond(BookStoreCodec codec,
+			HttpServletResponse response, BookStoreResponse bookStoreResponse)
+			throws IOException {
+		codec.encode(bookStoreResponse, response.getOutputStream());
+	}
 }
@@ -0,0 +1,404 @@
+package com.acertainbookstore.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.acertainbookstore.business.Book;
+import com.acertainbookstore.business.BookCopy;
+import com.acertainbookstore.business.BookEditorPick;
+import com.acertainbookstore.business.BookRating;
+import com.acertainbookstore.business.ImmutableBook;
+import com.acertainbookstore.business.ImmutableStockBook;
+import com.acertainbookstore.business.StockBook;
+
+/**
+ * BinaryBookStoreCodec encodes the objects of the bookstore protocol in a
+ * compact binary form, for clients that would rather not pay for XML.
+ *
+ * A message is a version byte followed by one value. Every value starts with
+ * a tag byte naming its type, and the fields of the type follow without
+ * names: ints and longs as zigzag varints, floats as their four bytes and
+ * strings as their length and UTF-8 bytes. Lists and sets are their size
+ * followed by their elements. Books are decoded as ImmutableBook or
+ * ImmutableStockBook, lists as ArrayList and sets as HashSet, whatever the
+ * classes the sender had, and an exception only keeps its message. Any other
+ * object is sent as the XML of XStreamBookStoreCodec, so that the codec can
+ * carry everything the XML one can, if not as compactly.
+ *
+ */
+public final class BinaryBookStoreCodec implements BookStoreCodec {
+	public static final String CONTENT_TYPE = "application/x-bookstore-binary";
+	private static final byte VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final byte NULL = 0;
+	private static final byte INTEGER = 1;
+	private static final byte LONG = 2;
+	private static final byte FLOAT = 3;
+	private static final byte TRUE = 4;
+	private static final byte FALSE = 5;
+	private static final byte STRING = 6;
+	private static final byte LIST = 7;
+	private static final byte SET = 8;
+	private static final byte BOOK = 9;
+	private static final byte STOCK_BOOK = 10;
+	private static final byte BOOK_COPY = 11;
+	private static final byte BOOK_RATING = 12;
+	private static final byte BOOK_EDITOR_PICK = 13;
+	private static final byte RESPONSE = 14;
+	private static final byte EXCEPTION = 15;
+	private static final byte RESULT = 16;
+	private static final byte XML = 127;
+
+	private final XStreamBookStoreCodec xmlCodec = new XStreamBookStoreCodec();
+
+	@Override
+	public String getContentType() {
+		return CONTENT_TYPE;
+	}
+
+	@Override
+	public byte[] encode(Object object) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		this.encode(object, bytes);
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public void encode(Object object, OutputStream stream) throws IOException {
+		Output out = new Output(stream);
+		out.writeByte(VERSION);
+		this.write(out, object);
+		out.flush();
+	}
+
+	@Override
+	public Object decode(byte[] data, int offset, int length)
+			throws IOException {
+		Input in = new Input(data, offset, length);
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unknown version " + version);
+		}
+		return this.read(in);
+	}
+
+	private void write(Output out, Object object) throws IOException {
+		if (object == null) {
+			out.writeByte(NULL);
+		} else if (object instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) object);
+		} else if (object instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) object);
+		} else if (object instanceof Float) {
+			out.writeByte(FLOAT);
+			out.writeFloat((Float) object);
+		} else if (object instanceof Boolean) {
+			out.writeByte((Boolean) object ? TRUE : FALSE);
+		} else if (object instanceof String) {
+			out.writeByte(STRING);
+			out.writeString((String) object);
+		} else if (object instanceof List) {
+			out.writeByte(LIST);
+			this.writeElements(out, (List<?>) object);
+		} else if (object instanceof Set) {
+			out.writeByte(SET);
+			this.writeElements(out, (Set<?>) object);
+		} else if (object instanceof StockBook) {
+			StockBook book = (StockBook) object;
+			out.writeByte(STOCK_BOOK);
+			writeBook(out, book);
+			out.writeInt(book.getNumCopies());
+			out.writeLong(book.getSaleMisses());
+			out.writeLong(book.getTimesRated());
+			out.writeLong(book.getTotalRating());
+			out.writeByte(book.isEditorPick() ? TRUE : FALSE);
+		} else if (object instanceof Book) {
+			out.writeByte(BOOK);
+			writeBook(out, (Book) object);
+		} else if (object instanceof BookCopy) {
+			BookCopy copy = (BookCopy) object;
+			out.writeByte(BOOK_COPY);
+			out.writeInt(copy.getISBN());
+			out.writeInt(copy.getNumCopies());
+		} else if (object instanceof BookRating) {
+			BookRating rating = (BookRating) object;
+			out.writeByte(BOOK_RATING);
+			out.writeInt(rating.getISBN());
+			out.writeInt(rating.getRating());
+		} else if (object instanceof BookEditorPick) {
+			BookEditorPick pick = (BookEditorPick) object;
+			out.writeByte(BOOK_EDITOR_PICK);
+			out.writeInt(pick.getISBN());
+			out.writeByte(pick.isEditorPick() ? TRUE : FALSE);
+		} else if (object instanceof BookStoreResponse) {
+			BookStoreResponse response = (BookStoreResponse) object;
+			out.writeByte(RESPONSE);
+			this.write(out, response.getException());
+			this.write(out, response.getResult());
+		} else if (object instanceof BookStoreResult) {
+			BookStoreResult result = (BookStoreResult) object;
+			out.writeByte(RESULT);
+			this.write(out, result.getResultList());
+			out.writeLong(result.getSnapshotId());
+		} else if (object instanceof BookStoreException) {
+			out.writeByte(EXCEPTION);
+			out.writeString(((BookStoreException) object).getMessage());
+		} else {
+			out.writeByte(XML);
+			out.writeString(xmlCodec.toXML(object));
+		}
+	}
+
+	private void writeElements(Output out, Collection<?> elements)
+			throws IOException {
+		out.writeInt(elements.size());
+		for (Object element : elements) {
+			this.write(out, element);
+		}
+	}
+
+	private static void writeBook(Output out, Book book) throws IOException {
+		out.writeInt(book.getISBN());
+		out.writeString(book.getTitle());
+		out.writeString(book.getAuthor());
+		out.writeFloat(book.getPrice());
+	}
+
+	private Object read(Input in) throws IOException {
+		byte tag = in.readByte();
+		switch (tag) {
+		case NULL:
+			return null;
+		case INTEGER:
+			return in.readInt();
+		case LONG:
+			return in.readLong();
+		case FLOAT:
+			return in.readFloat();
+		case TRUE:
+			return Boolean.TRUE;
+		case FALSE:
+			return Boolean.FALSE;
+		case STRING:
+			return in.readString();
+		case LIST:
+			int size = in.readSize();
+			List<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(this.read(in));
+			}
+			return list;
+		case SET:
+			size = in.readSize();
+			Set<Object> set = new HashSet<Object>(Math.max(
+					(int) (size / .75f) + 1, 16));
+			for (int i = 0; i < size; i++) {
+				set.add(this.read(in));
+			}
+			return set;
+		case BOOK:
+			return new ImmutableBook(in.readInt(), in.readString(),
+					in.readString(), in.readFloat());
+		case STOCK_BOOK:
+			return new ImmutableStockBook(in.readInt(), in.readString(),
+					in.readString(), in.readFloat(), in.readInt(),
+					in.readLong(), in.readLong(), in.readLong(),
+					in.readBoolean());
+		case BOOK_COPY:
+			return new BookCopy(in.readInt(), in.readInt());
+		case BOOK_RATING:
+			return new BookRating(in.readInt(), in.readInt());
+		case BOOK_EDITOR_PICK:
+			return new BookEditorPick(in.readInt(), in.readBoolean());
+		case RESPONSE:
+			BookStoreResponse response = new BookStoreResponse();
+			response.setException(this.read(in, BookStoreException.class));
+			response.setResult(this.read(in, BookStoreResult.class));
+			return response;
+		case RESULT:
+			return new BookStoreResult(this.read(in, List.class), in.readLong());
+		case EXCEPTION:
+			return new BookStoreException(in.readString());
+		case XML:
+			return xmlCodec.fromXML(in.readString());
+		default:
+			throw new IOException("Unknown tag " + tag);
+		}
+	}
+
+	/**
+	 * Reads a value that must be null or of the type, so that a malformed
+	 * message fails to decode rather than where the value is used
+	 */
+	private <T> T read(Input in, Class<T> type) throws IOException {
+		Object value = this.read(in);
+		if (value != null && !type.isInstance(value)) {
+			throw new IOException("Malformed " + type.getSimpleName() + " "
+					+ value);
+		}
+		return type.cast(value);
+	}
+
+	/**
+	 * Output gathers the encoded bytes in a buffer of its own, and only hands
+	 * them to the stream when it is full.
+	 */
+	private static final class Output {
+		private final OutputStream stream;
+		private final byte[] buffer = new byte[8192];
+		private int position = 0;
+
+		Output(OutputStream stream) {
+			this.stream = stream;
+		}
+
+		void writeByte(int b) throws IOException {
+			if (position == buffer.length) {
+				this.flush();
+			}
+			buffer[position++] = (byte) b;
+		}
+
+		void writeInt(int value) throws IOException {
+			this.writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+		}
+
+		void writeLong(long value) throws IOException {
+			this.writeVarLong((value << 1) ^ (value >> 63));
+		}
+
+		private void writeVarLong(long value) throws IOException {
+			while ((value & ~0x7FL) != 0) {
+				this.writeByte((int) (value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			this.writeByte((int) value);
+		}
+
+		void writeFloat(float value) throws IOException {
+			int bits = Float.floatToIntBits(value);
+			this.writeByte(bits >>> 24);
+			this.writeByte(bits >>> 16);
+			this.writeByte(bits >>> 8);
+			this.writeByte(bits);
+		}
+
+		void writeString(String value) throws IOException {
+			if (value == null) {
+				this.writeInt(-1);
+				return;
+			}
+			byte[] bytes = value.getBytes(UTF8);
+			this.writeInt(bytes.length);
+			if (bytes.length > buffer.length - position) {
+				this.flush();
+				if (bytes.length > buffer.length) {
+					stream.write(bytes);
+					return;
+				}
+			}
+			System.arraycopy(bytes, 0, buffer, position, bytes.length);
+			position += bytes.length;
+		}
+
+		void flush() throws IOException {
+			stream.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	/**
+	 * Input reads the encoded values straight from the bytes of the message.
+	 */
+	private static final class Input {
+		private final byte[] data;
+		private final int limit;
+		private int position;
+
+		Input(byte[] data, int offset, int length) {
+			this.data = data;
+			this.position = offset;
+			this.limit = offset + length;
+		}
+
+		byte readByte() throws IOException {
+			if (position == limit) {
+				throw new EOFException();
+			}
+			return data[position++];
+		}
+
+		boolean readBoolean() throws IOException {
+			byte b = this.readByte();
+			if (b != TRUE && b != FALSE) {
+				throw new IOException("Unknown boolean " + b);
+			}
+			return b == TRUE;
+		}
+
+		int readInt() throws IOException {
+			long value = this.readVarLong();
+			return (int) (value >>> 1) ^ -(int) (value & 1);
+		}
+
+		long readLong() throws IOException {
+			long value = this.readVarLong();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = this.readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		/**
+		 * Reads the size of a list or set, which must not be negative nor
+		 * exceed the bytes left, as each element takes one at least
+		 */
+		int readSize() throws IOException {
+			int size = this.readInt();
+			if (size < 0 || size > limit - position) {
+				throw new IOException("Malformed size " + size);
+			}
+			return size;
+		}
+
+		float readFloat() throws IOException {
+			int bits = (this.readByte() & 0xFF) << 24
+					| (this.readByte() & 0xFF) << 16
+					| (this.readByte() & 0xFF) << 8 | (this.readByte() & 0xFF);
+			return Float.intBitsToFloat(bits);
+		}
+
+		String readString() throws IOException {
+			int length = this.readInt();
+			if (length == -1) {
+				return null;
+			}
+			if (length < 0 || length > limit - position) {
+				throw new IOException("Malformed string length " + length);
+			}
+			String value = new String(data, position, length, UTF8);
+			position += length;
+			return value;
+		}
+	}
+}
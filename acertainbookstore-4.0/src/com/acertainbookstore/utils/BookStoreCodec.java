@@ -0,0 +1,54 @@
+package com.acertainbookstore.utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * BookStoreCodec turns the objects exchanged by the bookstore clients and
+ * servers, the request arguments and the BookStoreResponse answering them,
+ * into the body of an HTTP message and back. Every codec is named by the
+ * Content-Type of the messages it writes, which is how the two ends agree on
+ * it, cf. BookStoreUtility.getCodec.
+ *
+ */
+public interface BookStoreCodec {
+
+	/**
+	 * Returns the Content-Type of the messages written by the codec
+	 *
+	 * @return
+	 */
+	public String getContentType();
+
+	/**
+	 * Encodes an object into the body of a message
+	 *
+	 * @param object
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] encode(Object object) throws IOException;
+
+	/**
+	 * Encodes an object into the body of a message as it goes, so that no
+	 * more of the body than a bounded buffer is held at any time
+	 *
+	 * @param object
+	 * @param out
+	 * @throws IOException
+	 */
+	public void encode(Object object, OutputStream out) throws IOException;
+
+	/**
+	 * Decodes the object held by length bytes of data, starting at offset
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 * @throws IOException
+	 *             if the bytes are no message of the codec
+	 */
+	public Object decode(byte[] data, int offset, int length)
+			throws IOException;
+}
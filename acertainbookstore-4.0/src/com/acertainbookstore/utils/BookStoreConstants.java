@@ -34,5 +34,14 @@ public final class BookStoreConstants {
 	public static final String KEY_MASTER = "master";
 	public static final String KEY_SLAVE = "slaves";
 	public static final String SPLIT_SLAVE_REGEX = ";";
+	// Either locking or persistent, cf. CatalogEngine
+	public static final String KEY_CATALOG_ENGINE = "catalog_engine";
+	// Path of the write-ahead log of the master, cf. BookStoreJournal
+	public static final String KEY_JOURNAL_FILE = "journal_file";
+	// Checkpoints of the master, cf. BookStoreCheckpoint, taken every
+	// checkpoint_interval seconds
+	public static final String KEY_CHECKPOINT_FILE = "checkpoint_file";
+	public static final String KEY_CHECKPOINT_INTERVAL = "checkpoint_interval";
+	public static final String DEFAULT_CHECKPOINT_INTERVAL = "300";
 
 }
@@ -0,0 +1,64 @@
+package com.acertainbookstore.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ByteArrayPool keeps byte arrays of one size for reuse, so that a server
+ * does not allocate a new buffer for every request it reads. Any thread may
+ * take an array from the pool and give it back.
+ *
+ * Only arrays of the pooled size are kept, and no more of them than the pool
+ * is allowed to hold, so that a burst of large requests does not pin their
+ * buffers for good. Larger arrays are allocated when asked for, and left to
+ * the garbage collector when given back.
+ *
+ */
+public final class ByteArrayPool {
+	private final int arraySize;
+	private final int maxArrays;
+	private final ConcurrentLinkedQueue<byte[]> arrays = new ConcurrentLinkedQueue<byte[]>();
+	// The number of arrays in the pool, kept apart as the queue has no
+	// constant time size
+	private final AtomicInteger numArrays = new AtomicInteger(0);
+
+	public ByteArrayPool(int arraySize, int maxArrays) {
+		this.arraySize = arraySize;
+		this.maxArrays = maxArrays;
+	}
+
+	/**
+	 * Returns an array of size bytes at least, from the pool if it is no
+	 * larger than the pooled size
+	 *
+	 * @param size
+	 * @return
+	 */
+	public byte[] acquire(int size) {
+		if (size > arraySize) {
+			return new byte[size];
+		}
+		byte[] array = arrays.poll();
+		if (array == null) {
+			return new byte[arraySize];
+		}
+		numArrays.decrementAndGet();
+		return array;
+	}
+
+	/**
+	 * Gives an array back to the pool. The caller must not use it any more.
+	 *
+	 * @param array
+	 */
+	public void release(byte[] array) {
+		if (array.length != arraySize) {
+			return;
+		}
+		if (numArrays.incrementAndGet() > maxArrays) {
+			numArrays.decrementAndGet();
+			return;
+		}
+		arrays.offer(array);
+	}
+}